@@ -0,0 +1,89 @@
+/*
+ * @license Copyright 2018-2020 Peter Froud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/*
+ * A VISA library which doesn't talk to any instrument, so the benchmarks in src/jmh/java only measure the cost of
+ * calling it from Java. Every function succeeds right away. Types are like visatype.h on 64-bit Linux.
+ *
+ * Built by the jmh profile in pom.xml:
+ *     cc -shared -fPIC -o target/libvisastub.so src/jmh/c/visastub.c
+ */
+
+#include <string.h>
+
+typedef int ViStatus;
+typedef unsigned int ViUInt32;
+typedef ViUInt32 ViSession;
+typedef ViUInt32 ViAttr;
+typedef unsigned long long ViAttrState;
+
+#define VI_ATTR_TERMCHAR 0x3FFF0018u
+
+static const char RESPONSE[] = "+1.23456789E+00\n";
+
+ViStatus viOpenDefaultRM(ViSession *vi) {
+    *vi = 1;
+    return 0;
+}
+
+ViStatus viOpen(ViSession rmSession, const char *name, ViUInt32 mode, ViUInt32 timeout, ViSession *vi) {
+    *vi = 2;
+    return 0;
+}
+
+ViStatus viClose(ViSession vi) {
+    return 0;
+}
+
+ViStatus viClear(ViSession vi) {
+    return 0;
+}
+
+ViStatus viStatusDesc(ViSession vi, ViStatus status, char *desc) {
+    strcpy(desc, "Stub status.");
+    return 0;
+}
+
+ViStatus viSetAttribute(ViSession vi, ViAttr attrName, ViAttrState attrValue) {
+    return 0;
+}
+
+ViStatus viGetAttribute(ViSession vi, ViAttr attrName, void *attrValue) {
+    if (attrName == VI_ATTR_TERMCHAR) {
+        *(unsigned char *) attrValue = '\n';
+    }
+    return 0;
+}
+
+/* Every read returns the whole RESPONSE with END, or as much as fits. */
+ViStatus viRead(ViSession vi, unsigned char *buf, ViUInt32 cnt, ViUInt32 *retCnt) {
+    ViUInt32 length = sizeof(RESPONSE) - 1;
+    if (length > cnt) {
+        length = cnt;
+    }
+    memcpy(buf, RESPONSE, length);
+    if (retCnt != NULL) {
+        *retCnt = length;
+    }
+    return 0;
+}
+
+ViStatus viWrite(ViSession vi, const unsigned char *buf, ViUInt32 cnt, ViUInt32 *retCnt) {
+    if (retCnt != NULL) {
+        *retCnt = cnt;
+    }
+    return 0;
+}
@@ -0,0 +1,99 @@
+/**
+ * @license Copyright 2018-2020 Peter Froud
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package xyz.froud.jvisa;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares {@link JVisaBlockDecoder.FloatDecoder} with one ByteBuffer.getFloat() call per number, for a block of
+ * floats which is read in 64 KiB chunks, like JVisaInstrument does.
+ * <p>
+ * Nothing is read from an instrument. The chunks are slices of one direct buffer, like the pooled buffer which the
+ * instrument reads into.
+ *
+ * @author Peter Froud
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BlockDecoderBenchmark {
+
+    private static final int DATA_LENGTH = 4 * 1024 * 1024;
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    @Param({"BIG_ENDIAN", "LITTLE_ENDIAN"})
+    public String byteOrderName;
+
+    private ByteOrder byteOrder;
+    private ByteBuffer[] chunks;
+
+    @Setup
+    public void setUp() {
+        byteOrder = byteOrderName.equals("BIG_ENDIAN") ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN;
+
+        final ByteBuffer data = ByteBuffer.allocateDirect(DATA_LENGTH).order(byteOrder);
+        for (int i = 0; data.hasRemaining(); i++) {
+            data.putFloat((float) Math.sin(i / 100.0));
+        }
+
+        chunks = new ByteBuffer[DATA_LENGTH / CHUNK_SIZE];
+        for (int i = 0; i < chunks.length; i++) {
+            chunks[i] = data.slice(i * CHUNK_SIZE, CHUNK_SIZE);
+        }
+    }
+
+    @Benchmark
+    public float[] decoder() throws JVisaException {
+        final JVisaBlockDecoder.FloatDecoder decoder = new JVisaBlockDecoder.FloatDecoder(byteOrder);
+        decoder.setDataLength(DATA_LENGTH);
+        for (ByteBuffer chunk : chunks) {
+            chunk.rewind();
+            decoder.accept(chunk);
+        }
+        return decoder.toArray();
+    }
+
+    @Benchmark
+    public float[] naiveLoop() {
+        final float[] array = new float[DATA_LENGTH / Float.BYTES];
+        int elementCount = 0;
+        for (ByteBuffer chunk : chunks) {
+            chunk.rewind();
+            chunk.order(byteOrder);
+            while (chunk.remaining() >= Float.BYTES) {
+                array[elementCount++] = chunk.getFloat();
+            }
+        }
+        return array;
+    }
+
+}
@@ -0,0 +1,84 @@
+/**
+ * @license Copyright 2018-2020 Peter Froud
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package xyz.froud.jvisa;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the JNA interface mapping and direct mapping bindings for short commands.
+ * <p>
+ * The native library is src/jmh/c/visastub.c, which returns right away, so the time is only the cost of getting from
+ * Java to the native function and back. A real instrument adds microseconds or milliseconds to every call.
+ * <p>
+ * JMH runs each binding in its own fork, because JNA can only register the direct mapping once per JVM.
+ *
+ * @author Peter Froud
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class NativeBindingBenchmark {
+
+    @Param({"INTERFACE_MAPPING", "DIRECT_MAPPING"})
+    public JVisaBinding binding;
+
+    private JVisaResourceManager resourceManager;
+    private JVisaInstrument instrument;
+
+    @Setup(Level.Trial)
+    public void setUp() throws JVisaException {
+        resourceManager = new JVisaResourceManager("visastub", binding);
+        instrument = resourceManager.openInstrument("GPIB0::1::INSTR");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws JVisaException {
+        instrument.close();
+        resourceManager.close();
+    }
+
+    @Benchmark
+    public void write() throws JVisaException {
+        instrument.write("*CLS");
+    }
+
+    @Benchmark
+    public String queryString() throws JVisaException {
+        return instrument.queryString("MEAS:VOLT?");
+    }
+
+    @Benchmark
+    public char getAttribute() throws JVisaException {
+        return instrument.getReadTerminationCharacter();
+    }
+
+}
@@ -0,0 +1,374 @@
+/**
+ * @license Copyright 2018-2020 Peter Froud
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package xyz.froud.jvisa;
+
+import com.sun.jna.NativeLong;
+import com.sun.jna.Pointer;
+import xyz.froud.jvisa.eventhandling.JVisaEventCallback;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Asynchronous reads and writes of one JVisaInstrument, completed from VI_EVENT_IO_COMPLETION events.
+ * <p>
+ * viReadAsync() and viWriteAsync() return a job ID right away, and the VISA library calls the event handler from its
+ * own thread when the job is done. Jobs which haven't completed are kept by job ID together with their direct buffer,
+ * so the buffer isn't garbage collected or reused while the VISA library can still use it. The event can arrive
+ * before viReadAsync() or viWriteAsync() returns the job ID, so completions of jobs which aren't known yet are kept
+ * until the job is.
+ * <p>
+ * Cancelling a future calls viTerminate(). The buffer is only released when the VI_EVENT_IO_COMPLETION event for the
+ * aborted job arrives.
+ *
+ * @author Peter Froud
+ * @see <a href="https://www.ni.com/docs/en-US/bundle/ni-visa/page/ni-visa/asynchronousreadwrite.html">Asynchronous
+ * Read/Write</a>
+ */
+final class JVisaAsyncIo {
+
+    private final int INSTRUMENT_HANDLE;
+    private final JVisaResourceManager RESOURCE_MANAGER;
+    private final JVisaBackend BACKEND;
+    private final JVisaBufferPool BUFFER_POOL;
+
+    /**
+     * Only reads and writes the fields of this class, so JNA can call it from any thread. The JVisaEventCallback
+     * object must stay reachable as long as the handler is installed, so it's a field.
+     */
+    private final JVisaEventCallback CALLBACK = new JVisaEventCallback() {
+        @Override
+        public void invoke(NativeLong instrumentHandle, NativeLong eventType, NativeLong eventContext, Pointer userHandle) {
+            onIoCompletion(eventContext.intValue());
+        }
+    };
+
+    /**
+     * Jobs which were started and haven't completed, by job ID.
+     */
+    private final Map<Integer, Job> PENDING_JOBS = new HashMap<>();
+
+    /**
+     * Completions which arrived before their job ID was known. Element zero is the status and element one is the
+     * count.
+     */
+    private final Map<Integer, int[]> EARLY_COMPLETIONS = new HashMap<>();
+
+    /**
+     * Element zero receives the job ID from viReadAsync() and viWriteAsync().
+     */
+    private final int[] JOB_ID = new int[1];
+
+    /**
+     * Receives attributes of the event context.
+     */
+    private final ByteBuffer ATTRIBUTE_VALUE = ByteBuffer.allocateDirect(Long.BYTES).order(ByteOrder.nativeOrder());
+
+    private boolean isStarted = false;
+    private boolean isSupported = false;
+
+    JVisaAsyncIo(int instrumentHandle, JVisaResourceManager resourceManager, JVisaBackend backend, JVisaBufferPool bufferPool) {
+        INSTRUMENT_HANDLE = instrumentHandle;
+        RESOURCE_MANAGER = resourceManager;
+        BACKEND = backend;
+        BUFFER_POOL = bufferPool;
+    }
+
+    /**
+     * Installs the VI_EVENT_IO_COMPLETION handler the first time it's called.
+     *
+     * @return false if the backend doesn't support VI_EVENT_IO_COMPLETION, so the I/O must be done synchronously
+     */
+    synchronized boolean start() throws JVisaException {
+        if (isStarted) {
+            return isSupported;
+        }
+        final int statusInstall = BACKEND.viInstallHandler(INSTRUMENT_HANDLE, JVisaLibrary.VI_EVENT_IO_COMPLETION, CALLBACK, Pointer.NULL);
+        if (statusInstall == JVisaLibrary.VI_ERROR_NSUP_OPER || statusInstall == JVisaLibrary.VI_ERROR_INV_EVENT) {
+            isStarted = true;
+            return false;
+        }
+        RESOURCE_MANAGER.checkError(statusInstall, "viInstallHandler");
+        final int statusEnable = BACKEND.viEnableEvent(INSTRUMENT_HANDLE, JVisaLibrary.VI_EVENT_IO_COMPLETION,
+                (short) JVisaLibrary.VI_HNDLR, 0);
+        RESOURCE_MANAGER.checkError(statusEnable, "viEnableEvent");
+        isStarted = true;
+        isSupported = true;
+        return true;
+    }
+
+    /**
+     * @return the bytes which were read, in a heap buffer
+     */
+    CompletableFuture<ByteBuffer> read(int byteCount) throws JVisaException {
+        final Job job = startJob(BUFFER_POOL.acquire(byteCount), byteCount, true);
+        return cancelWith(job.FUTURE.thenApply(completedJob -> completedJob.data), job.FUTURE);
+    }
+
+    /**
+     * @param buffer direct buffer from the buffer pool, whose position is zero and whose limit is after the last byte
+     * to write. It's released when the write is done.
+     */
+    CompletableFuture<Void> write(ByteBuffer buffer) throws JVisaException {
+        final Job job = startJob(buffer, buffer.limit(), false);
+        return cancelWith(job.FUTURE.thenApply(JVisaAsyncIo::checkWriteCount), job.FUTURE);
+    }
+
+    /**
+     * Writes a command, then reads until the instrument ends the response. Reads which end with VI_SUCCESS_MAX_CNT are
+     * followed by another read.
+     *
+     * @param command like for write(ByteBuffer)
+     * @param readSize how many bytes to read at once
+     * @return the whole response, in a heap buffer
+     */
+    CompletableFuture<ByteBuffer> query(ByteBuffer command, int readSize) throws JVisaException {
+        final CompletableFuture<ByteBuffer> result = new CompletableFuture<>();
+        final AtomicReference<Job> currentJob = new AtomicReference<>();
+        result.whenComplete((response, ex) -> {
+            if (result.isCancelled()) {
+                currentJob.get().FUTURE.cancel(false);
+            }
+        });
+        final Job writeJob = startJob(command, command.limit(), false);
+        currentJob.set(writeJob);
+        writeJob.FUTURE.whenComplete((completedJob, ex) -> {
+            try {
+                if (ex != null) {
+                    throw ex;
+                }
+                checkWriteCount(completedJob);
+                readRest(result, currentJob, readSize, null);
+            } catch (Throwable t) {
+                result.completeExceptionally(t);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * @param response the bytes read so far, in write mode, or null before the first read
+     */
+    private void readRest(CompletableFuture<ByteBuffer> result, AtomicReference<Job> currentJob, int readSize,
+                          ByteBuffer response) throws JVisaException {
+        if (result.isDone()) {
+            return;
+        }
+        final Job readJob = startJob(BUFFER_POOL.acquire(readSize), readSize, true);
+        currentJob.set(readJob);
+        if (result.isCancelled()) {
+            readJob.FUTURE.cancel(false);
+        }
+        readJob.FUTURE.whenComplete((completedJob, ex) -> {
+            try {
+                if (ex != null) {
+                    throw ex;
+                }
+                final ByteBuffer data = completedJob.data;
+                if (completedJob.status == JVisaLibrary.VI_SUCCESS_MAX_CNT) {
+                    readRest(result, currentJob, readSize, append(response, data));
+                } else if (response == null) {
+                    // The whole response came in one read, so it doesn't need to be copied again.
+                    result.complete(data);
+                } else {
+                    result.complete(append(response, data).flip());
+                }
+            } catch (Throwable t) {
+                result.completeExceptionally(t);
+            }
+        });
+    }
+
+    /**
+     * @param response in write mode, or null
+     * @return response with data put after it, in a bigger buffer if it didn't fit
+     */
+    private static ByteBuffer append(ByteBuffer response, ByteBuffer data) {
+        if (response == null) {
+            response = ByteBuffer.allocate(2 * data.remaining());
+        } else if (response.remaining() < data.remaining()) {
+            final ByteBuffer biggerResponse = ByteBuffer.allocate(
+                    Math.max(response.position() + data.remaining(), 2 * response.capacity()));
+            response = biggerResponse.put(response.flip());
+        }
+        return response.put(data);
+    }
+
+    /**
+     * Starts viReadAsync() or viWriteAsync().
+     *
+     * @param buffer direct buffer from the buffer pool, which is released when the job completes, or right away if it
+     * couldn't be started
+     */
+    private Job startJob(ByteBuffer buffer, int byteCount, boolean isRead) throws JVisaException {
+        final Job job = new Job(buffer, byteCount, isRead);
+        final int[] earlyCompletion;
+        synchronized (this) {
+            final int status = isRead
+                    ? BACKEND.viReadAsync(INSTRUMENT_HANDLE, buffer, byteCount, JOB_ID)
+                    : BACKEND.viWriteAsync(INSTRUMENT_HANDLE, buffer, byteCount, JOB_ID);
+            if (status < 0) {
+                BUFFER_POOL.release(buffer);
+                RESOURCE_MANAGER.checkError(status, job.getFunctionName());
+            }
+            job.jobId = JOB_ID[0];
+            earlyCompletion = EARLY_COMPLETIONS.remove(job.jobId);
+            if (earlyCompletion == null) {
+                PENDING_JOBS.put(job.jobId, job);
+            }
+        }
+        if (earlyCompletion != null) {
+            complete(job, earlyCompletion[0], earlyCompletion[1]);
+        }
+        job.FUTURE.whenComplete((completedJob, ex) -> {
+            if (job.FUTURE.isCancelled()) {
+                // The status is ignored because the job might have completed already.
+                BACKEND.viTerminate(INSTRUMENT_HANDLE, (short) 0, job.jobId);
+            }
+        });
+        return job;
+    }
+
+    /**
+     * Called by the VISA library from its own thread.
+     */
+    private void onIoCompletion(int eventContext) {
+        final Job job;
+        final int status;
+        final int count;
+        synchronized (this) {
+            final int jobId = getEventAttribute(eventContext, JVisaLibrary.VI_ATTR_JOB_ID);
+            status = getEventAttribute(eventContext, JVisaLibrary.VI_ATTR_STATUS);
+            count = getEventAttribute(eventContext, JVisaLibrary.VI_ATTR_RET_COUNT_32);
+            job = PENDING_JOBS.remove(jobId);
+            if (job == null) {
+                EARLY_COMPLETIONS.put(jobId, new int[]{status, count});
+                return;
+            }
+        }
+        complete(job, status, count);
+    }
+
+    /**
+     * Copies the data out of the buffer of a read, releases the buffer, then completes the future.
+     */
+    private void complete(Job job, int status, int count) {
+        job.status = status;
+        job.count = count;
+        if (job.IS_READ && status >= 0) {
+            final ByteBuffer data = ByteBuffer.allocate(count);
+            data.put(job.BUFFER.limit(count)).flip();
+            job.data = data;
+        }
+        BUFFER_POOL.release(job.BUFFER);
+        try {
+            RESOURCE_MANAGER.checkError(status, job.getFunctionName());
+            job.FUTURE.complete(job);
+        } catch (JVisaException ex) {
+            job.FUTURE.completeExceptionally(ex);
+        }
+    }
+
+    /**
+     * Must be called while synchronized on this.
+     *
+     * @return the value of a 32-bit attribute of an event, or zero if it couldn't be read
+     */
+    private int getEventAttribute(int eventContext, int attribute) {
+        ATTRIBUTE_VALUE.putInt(0, 0);
+        BACKEND.viGetAttribute(eventContext, attribute, ATTRIBUTE_VALUE);
+        return ATTRIBUTE_VALUE.getInt(0);
+    }
+
+    /**
+     * Fails the futures of every job which hasn't completed, after the session was closed. The VISA library doesn't use
+     * their buffers anymore, so those are dropped.
+     */
+    void close() {
+        final List<Job> jobs;
+        synchronized (this) {
+            jobs = new ArrayList<>(PENDING_JOBS.values());
+            PENDING_JOBS.clear();
+            EARLY_COMPLETIONS.clear();
+        }
+        for (Job job : jobs) {
+            job.FUTURE.completeExceptionally(new JVisaException("the instrument was closed before " + job.getFunctionName() + " completed"));
+        }
+    }
+
+    private static Void checkWriteCount(Job job) {
+        if (job.count != job.BYTE_COUNT) {
+            throw new CompletionException(new JVisaException(String.format("Could only write %d instead of %d bytes.",
+                    job.count, job.BYTE_COUNT)));
+        }
+        return null;
+    }
+
+    /**
+     * Cancelling a future made with thenApply() doesn't cancel the future it was made from, so this does.
+     *
+     * @return the result
+     */
+    static <T> CompletableFuture<T> cancelWith(CompletableFuture<T> result, CompletableFuture<?> source) {
+        result.whenComplete((value, ex) -> {
+            if (result.isCancelled()) {
+                source.cancel(false);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * One viReadAsync() or viWriteAsync() call.
+     */
+    private static final class Job {
+
+        /**
+         * Kept until the job completes, so the VISA library can still use it.
+         */
+        final ByteBuffer BUFFER;
+        final int BYTE_COUNT;
+        final boolean IS_READ;
+        final CompletableFuture<Job> FUTURE = new CompletableFuture<>();
+
+        volatile int jobId;
+        int status;
+        int count;
+
+        /**
+         * The bytes which were read, copied out of the buffer.
+         */
+        ByteBuffer data;
+
+        Job(ByteBuffer buffer, int byteCount, boolean isRead) {
+            BUFFER = buffer;
+            BYTE_COUNT = byteCount;
+            IS_READ = isRead;
+        }
+
+        String getFunctionName() {
+            return IS_READ ? "viReadAsync" : "viWriteAsync";
+        }
+    }
+
+}
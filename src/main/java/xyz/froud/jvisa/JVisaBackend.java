@@ -0,0 +1,265 @@
+/**
+ * @license Copyright 2018-2020 Peter Froud
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package xyz.froud.jvisa;
+
+import com.sun.jna.Pointer;
+import xyz.froud.jvisa.eventhandling.JVisaEventCallback;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Service provider interface for the VISA implementation that JVisaResourceManager and JVisaInstrument call.
+ * <p>
+ * The built-in backends call the native shared library (.dll or .so or .dylib file). Another implementation can be
+ * passed to {@link JVisaResourceManager#JVisaResourceManager(JVisaBackend)}, or listed in
+ * {@code META-INF/services/xyz.froud.jvisa.JVisaBackend} and selected by name with the {@value #SYSTEM_PROPERTY}
+ * system property. Implementations found by ServiceLoader need a public no-argument constructor.
+ * <p>
+ * The methods have the same names, arguments, and return values as the functions in visa.h, so an implementation
+ * returns a VISA status code instead of throwing an exception. Sessions, statuses, and counts are Java {@code int}s so a
+ * call doesn't need to allocate NativeLong objects. Output arguments are returned in element zero of an array which
+ * the caller can reuse.
+ *
+ * @author Peter Froud
+ * @see <a href="https://www.ni.com/docs/en-US/bundle/ni-visa/page/ni-visa/completion_codes.html">Completion Codes</a>
+ * @see <a href="https://www.ni.com/docs/en-US/bundle/ni-visa/page/ni-visa/error_codes.html">Error Codes</a>
+ */
+public interface JVisaBackend {
+
+    /**
+     * Name of a system property which selects a backend found by ServiceLoader, for example
+     * {@code -Djvisa.backend=simulated}.
+     */
+    String SYSTEM_PROPERTY = "jvisa.backend";
+
+    /**
+     * @return a short name used to select this backend with the {@value #SYSTEM_PROPERTY} system property
+     */
+    String getName();
+
+    ////////////////////////////// resource manager //////////////////////////////
+
+    /**
+     * @param session element zero is set to the resource manager session
+     * @see <a href="https://www.ni.com/docs/en-US/bundle/ni-visa/page/ni-visa/viopendefaultrm.html">viOpenDefaultRM</a>
+     */
+    int viOpenDefaultRM(int[] session);
+
+    /**
+     * @param session element zero is set to the instrument session
+     * @see <a href="https://www.ni.com/docs/en-US/bundle/ni-visa/page/ni-visa/viopen.html">viOpen</a>
+     */
+    int viOpen(int rmSession, String resourceName, int accessMode, int openTimeout, int[] session);
+
+    /**
+     * @param findList element zero is set to a handle for viFindNext()
+     * @param returnCount element zero is set to the number of resources found
+     * @param description receives the first resource name as a zero-terminated string, at least VI_FIND_BUFLEN bytes
+     * @see <a href="https://www.ni.com/docs/en-US/bundle/ni-visa/page/ni-visa/vifindrsrc.html">viFindRsrc</a>
+     */
+    int viFindRsrc(int rmSession, String expression, int[] findList, int[] returnCount, ByteBuffer description);
+
+    /**
+     * @param description receives the next resource name as a zero-terminated string, at least VI_FIND_BUFLEN bytes
+     * @see <a href="https://www.ni.com/docs/en-US/bundle/ni-visa/page/ni-visa/vifindnext.html">viFindNext</a>
+     */
+    int viFindNext(int findList, ByteBuffer description);
+
+    /**
+     * The default implementation calls viParseRsrcEx() and ignores the strings.
+     *
+     * @param interfaceType element zero is set to the interface type, one of the {@code VI_INTF_} constants
+     * @param interfaceNumber element zero is set to the board number
+     * @see <a href="https://www.ni.com/docs/en-US/bundle/ni-visa/page/ni-visa/viparsersrc.html">viParseRsrc</a>
+     */
+    default int viParseRsrc(int rmSession, String resourceName, short[] interfaceType, short[] interfaceNumber) {
+        return viParseRsrcEx(rmSession, resourceName, interfaceType, interfaceNumber,
+                ByteBuffer.allocate(JVisaLibrary.VI_FIND_BUFLEN),
+                ByteBuffer.allocate(JVisaLibrary.VI_FIND_BUFLEN),
+                ByteBuffer.allocate(JVisaLibrary.VI_FIND_BUFLEN));
+    }
+
+    /**
+     * @param interfaceType element zero is set to the interface type, one of the {@code VI_INTF_} constants
+     * @param interfaceNumber element zero is set to the board number
+     * @param resourceClass receives the resource class like "INSTR" as a zero-terminated string
+     * @param expandedUnaliasedName receives the full resource name as a zero-terminated string
+     * @param aliasIfExists receives the alias as a zero-terminated string, or an empty string
+     * @see <a href="https://www.ni.com/docs/en-US/bundle/ni-visa/page/ni-visa/viparsersrcex.html">viParseRsrcEx</a>
+     */
+    int viParseRsrcEx(int rmSession, String resourceName, short[] interfaceType, short[] interfaceNumber,
+                      ByteBuffer resourceClass, ByteBuffer expandedUnaliasedName, ByteBuffer aliasIfExists);
+
+    /**
+     * @param description receives the description as a zero-terminated string, at least 256 bytes
+     * @see <a href="https://www.ni.com/docs/en-US/bundle/ni-visa/page/ni-visa/vistatusdesc.html">viStatusDesc</a>
+     */
+    int viStatusDesc(int vi, int status, ByteBuffer description);
+
+    /**
+     * @see <a href="https://www.ni.com/docs/en-US/bundle/ni-visa/page/ni-visa/viclose.html">viClose</a>
+     */
+    int viClose(int vi);
+
+    ////////////////////////////// attributes //////////////////////////////
+
+    /**
+     * @see <a href="https://www.ni.com/docs/en-US/bundle/ni-visa/page/ni-visa/visetattribute.html">viSetAttribute</a>
+     */
+    int viSetAttribute(int vi, int attribute, long value);
+
+    /**
+     * @param value direct buffer in native byte order which the attribute value is written to
+     * @see <a href="https://www.ni.com/docs/en-US/bundle/ni-visa/page/ni-visa/vigetattribute.html">viGetAttribute</a>
+     */
+    int viGetAttribute(int vi, int attribute, ByteBuffer value);
+
+    ////////////////////////////// basic I/O //////////////////////////////
+
+    /**
+     * @param returnCount element zero is set to the number of bytes read
+     * @see <a href="https://www.ni.com/docs/en-US/bundle/ni-visa/page/ni-visa/viread.html">viRead</a>
+     */
+    int viRead(int vi, ByteBuffer buffer, int count, int[] returnCount);
+
+    /**
+     * @param returnCount element zero is set to the number of bytes written
+     * @see <a href="https://www.ni.com/docs/en-US/bundle/ni-visa/page/ni-visa/viwrite.html">viWrite</a>
+     */
+    int viWrite(int vi, ByteBuffer buffer, int count, int[] returnCount);
+
+    /**
+     * @see <a href="https://www.ni.com/docs/en-US/bundle/ni-visa/page/ni-visa/viclear.html">viClear</a>
+     */
+    int viClear(int vi);
+
+    /**
+     * Backends which don't support serial polls can return VI_ERROR_NSUP_OPER.
+     *
+     * @param statusByte element zero is set to the status byte
+     * @see <a href="https://www.ni.com/docs/en-US/bundle/ni-visa/page/ni-visa/vireadstb.html">viReadSTB</a>
+     */
+    default int viReadSTB(int vi, short[] statusByte) {
+        return JVisaLibrary.VI_ERROR_NSUP_OPER;
+    }
+
+    /**
+     * Backends which don't call native code can return VI_ERROR_NSUP_OPER.
+     *
+     * @param fileName path of the file which the data is written to
+     * @param returnCount element zero is set to the number of bytes read
+     * @see <a href="https://www.ni.com/docs/en-US/bundle/ni-visa/page/ni-visa/vireadtofile.html">viReadToFile</a>
+     */
+    default int viReadToFile(int vi, String fileName, int count, int[] returnCount) {
+        return JVisaLibrary.VI_ERROR_NSUP_OPER;
+    }
+
+    /**
+     * Backends which don't call native code can return VI_ERROR_NSUP_OPER.
+     *
+     * @param fileName path of the file which the data is read from
+     * @param returnCount element zero is set to the number of bytes written
+     * @see <a href="https://www.ni.com/docs/en-US/bundle/ni-visa/page/ni-visa/viwritefromfile.html">viWriteFromFile</a>
+     */
+    default int viWriteFromFile(int vi, String fileName, int count, int[] returnCount) {
+        return JVisaLibrary.VI_ERROR_NSUP_OPER;
+    }
+
+    ////////////////////////////// asynchronous I/O //////////////////////////////
+
+    /**
+     * Starts a read and returns right away. When the read is done, a VI_EVENT_IO_COMPLETION event is generated, even
+     * if it completed synchronously.
+     * <p>
+     * Backends which don't call native code can return VI_ERROR_NSUP_OPER.
+     *
+     * @param buffer direct buffer whose position is zero. The caller must keep a reference to it until the
+     * VI_EVENT_IO_COMPLETION event, because the VISA library writes to it after this method returns.
+     * @param jobId element zero is set to the job ID, which the VI_EVENT_IO_COMPLETION event has too
+     * @see <a href="https://www.ni.com/docs/en-US/bundle/ni-visa/page/ni-visa/vireadasync.html">viReadAsync</a>
+     */
+    default int viReadAsync(int vi, ByteBuffer buffer, int count, int[] jobId) {
+        return JVisaLibrary.VI_ERROR_NSUP_OPER;
+    }
+
+    /**
+     * Starts a write and returns right away. When the write is done, a VI_EVENT_IO_COMPLETION event is generated, even
+     * if it completed synchronously.
+     * <p>
+     * Backends which don't call native code can return VI_ERROR_NSUP_OPER.
+     *
+     * @param buffer direct buffer whose position is zero. The caller must keep a reference to it until the
+     * VI_EVENT_IO_COMPLETION event, because the VISA library reads from it after this method returns.
+     * @param jobId element zero is set to the job ID, which the VI_EVENT_IO_COMPLETION event has too
+     * @see <a href="https://www.ni.com/docs/en-US/bundle/ni-visa/page/ni-visa/viwriteasync.html">viWriteAsync</a>
+     */
+    default int viWriteAsync(int vi, ByteBuffer buffer, int count, int[] jobId) {
+        return JVisaLibrary.VI_ERROR_NSUP_OPER;
+    }
+
+    /**
+     * Aborts an asynchronous read or write. The VI_EVENT_IO_COMPLETION event of the job is still generated, with the
+     * status VI_ERROR_ABORT.
+     * <p>
+     * Backends which don't support asynchronous I/O can return VI_ERROR_NSUP_OPER.
+     *
+     * @param degree always VI_NULL
+     * @see <a href="https://www.ni.com/docs/en-US/bundle/ni-visa/page/ni-visa/viterminate.html">viTerminate</a>
+     */
+    default int viTerminate(int vi, short degree, int jobId) {
+        return JVisaLibrary.VI_ERROR_NSUP_OPER;
+    }
+
+    ////////////////////////////// events //////////////////////////////
+
+    /**
+     * Backends which don't call native code can return VI_ERROR_NSUP_OPER.
+     *
+     * @see <a href="https://www.ni.com/docs/en-US/bundle/ni-visa/page/ni-visa/viinstallhandler.html">viInstallHandler</a>
+     */
+    default int viInstallHandler(int vi, int eventType, JVisaEventCallback handler, Pointer userHandle) {
+        return JVisaLibrary.VI_ERROR_NSUP_OPER;
+    }
+
+    /**
+     * @see <a href="https://www.ni.com/docs/en-US/bundle/ni-visa/page/ni-visa/viuninstallhandler.html">viUninstallHandler</a>
+     */
+    default int viUninstallHandler(int vi, int eventType, JVisaEventCallback handler, Pointer userHandle) {
+        return JVisaLibrary.VI_ERROR_NSUP_OPER;
+    }
+
+    /**
+     * @see <a href="https://www.ni.com/docs/en-US/bundle/ni-visa/page/ni-visa/vienableevent.html">viEnableEvent</a>
+     */
+    default int viEnableEvent(int vi, int eventType, short mechanism, int context) {
+        return JVisaLibrary.VI_ERROR_NSUP_OPER;
+    }
+
+    /**
+     * @see <a href="https://www.ni.com/docs/en-US/bundle/ni-visa/page/ni-visa/vidisableevent.html">viDisableEvent</a>
+     */
+    default int viDisableEvent(int vi, int eventType, short mechanism) {
+        return JVisaLibrary.VI_ERROR_NSUP_OPER;
+    }
+
+    /**
+     * @see <a href="https://www.ni.com/docs/en-US/bundle/ni-visa/page/ni-visa/vidiscardevents.html">viDiscardEvents</a>
+     */
+    default int viDiscardEvents(int vi, int eventType, short mechanism) {
+        return JVisaLibrary.VI_ERROR_NSUP_OPER;
+    }
+
+}
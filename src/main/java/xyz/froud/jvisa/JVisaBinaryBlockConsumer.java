@@ -0,0 +1,40 @@
+/**
+ * @license Copyright 2018-2020 Peter Froud
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package xyz.froud.jvisa;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Receives the data of a binary block one chunk at a time, so a block can be processed or saved without holding all of
+ * it in memory.
+ *
+ * @author Peter Froud
+ * @see JVisaInstrument#readBinaryBlock(JVisaBinaryBlockConsumer)
+ */
+@FunctionalInterface
+public interface JVisaBinaryBlockConsumer {
+
+    /**
+     * Called with each chunk of data in order. The buffer is reused for the next chunk, so copy anything you need to
+     * keep before returning.
+     *
+     * @param chunk the data is from the position of the buffer to its limit
+     * @throws IOException to stop reading the block, for example if the data can't be saved
+     */
+    void accept(ByteBuffer chunk) throws IOException;
+
+}
@@ -0,0 +1,79 @@
+/**
+ * @license Copyright 2018-2020 Peter Froud
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package xyz.froud.jvisa;
+
+import java.util.Locale;
+
+/**
+ * How JNA binds the Java methods to the functions in the native shared library (.dll or .so or .dylib file).
+ *
+ * @author Peter Froud
+ * @see JVisaResourceManager#JVisaResourceManager(String, JVisaBinding)
+ */
+public enum JVisaBinding {
+
+    /**
+     * Every call goes through the JVisaLibrary interface, which JNA implements with a proxy. This is the default on
+     * Java versions older than 22.
+     *
+     * @see <a href="https://github.com/java-native-access/jna/blob/master/www/Mappings.md">JNA type mappings</a>
+     */
+    INTERFACE_MAPPING,
+
+    /**
+     * Reads, writes, and attribute calls from JVisaInstrument go through static native methods registered with
+     * {@code Native.register()}, which skips the reflection and argument conversion of the proxy. Other calls still go
+     * through the JVisaLibrary interface.
+     * <p>
+     * A direct mapping can only be registered with one native library per JVM.
+     *
+     * @see <a href="https://github.com/java-native-access/jna/blob/master/www/DirectMapping.md">JNA Direct Mapping</a>
+     */
+    DIRECT_MAPPING,
+
+    /**
+     * Reads, writes, and attribute calls from JVisaInstrument go through downcall handles from the Foreign Function
+     * &amp; Memory API, which pass direct buffers to the native library without copying and don't allocate NativeLong
+     * objects. Other calls still go through the JVisaLibrary interface.
+     * <p>
+     * This needs Java 22 or newer, and it's the default when it's available. Add {@code --enable-native-access=ALL-UNNAMED}
+     * to the java command to get rid of the warning about restricted methods.
+     *
+     * @see <a href="https://openjdk.org/jeps/454">JEP 454: Foreign Function &amp; Memory API</a>
+     */
+    FOREIGN_FUNCTION;
+
+    /**
+     * Name of a system property which overrides the default binding, for example {@code -Djvisa.binding=direct_mapping}.
+     */
+    public static final String SYSTEM_PROPERTY = "jvisa.binding";
+
+    /**
+     * Returns the binding named by the {@value #SYSTEM_PROPERTY} system property if it's set. Otherwise, returns
+     * FOREIGN_FUNCTION if the JVM supports it, or INTERFACE_MAPPING if not.
+     *
+     * @return the binding to use when none is specified
+     * @throws IllegalArgumentException if the system property doesn't name a binding
+     */
+    public static JVisaBinding getDefault() {
+        final String property = System.getProperty(SYSTEM_PROPERTY);
+        if (property != null) {
+            return valueOf(property.trim().toUpperCase(Locale.ROOT));
+        }
+        return JVisaForeignBackend.isAvailable() ? FOREIGN_FUNCTION : INTERFACE_MAPPING;
+    }
+
+}
@@ -0,0 +1,233 @@
+/**
+ * @license Copyright 2018-2020 Peter Froud
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package xyz.froud.jvisa;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * Converts the data of a binary block to an array of numbers while it's read, one chunk at a time.
+ * <p>
+ * Each chunk is copied with a bulk get from a view like {@link ByteBuffer#asFloatBuffer()}, which swaps the byte order
+ * if needed in the same pass, instead of one ByteBuffer.getFloat() call per number. A number can be split between two
+ * chunks, so its first bytes are kept until the next chunk.
+ *
+ * @author Peter Froud
+ */
+abstract class JVisaBlockDecoder implements JVisaBinaryBlockConsumer {
+
+    private final int ELEMENT_SIZE;
+    private final ByteOrder BYTE_ORDER;
+
+    /**
+     * The first bytes of a number which is split between two chunks.
+     */
+    private final ByteBuffer PARTIAL_ELEMENT;
+
+    /**
+     * How many numbers were put in the array.
+     */
+    int elementCount = 0;
+
+    private JVisaBlockDecoder(int elementSize, ByteOrder byteOrder) {
+        ELEMENT_SIZE = elementSize;
+        BYTE_ORDER = byteOrder;
+        PARTIAL_ELEMENT = ByteBuffer.allocate(elementSize).order(byteOrder);
+    }
+
+    /**
+     * Called when the length of a definite length block is known, before the first chunk, so the array can be
+     * allocated once with the right size.
+     */
+    final void setDataLength(int byteCount) {
+        resize(byteCount / ELEMENT_SIZE);
+    }
+
+    @Override
+    public final void accept(ByteBuffer chunk) {
+        // The chunk is reused for the next read, so don't change its byte order.
+        final ByteBuffer data = chunk.slice().order(BYTE_ORDER);
+        chunk.position(chunk.limit());
+
+        if (PARTIAL_ELEMENT.position() > 0) {
+            while (PARTIAL_ELEMENT.hasRemaining() && data.hasRemaining()) {
+                PARTIAL_ELEMENT.put(data.get());
+            }
+            if (PARTIAL_ELEMENT.hasRemaining()) {
+                return;
+            }
+            PARTIAL_ELEMENT.flip();
+            decode(PARTIAL_ELEMENT, 1);
+            PARTIAL_ELEMENT.clear();
+        }
+
+        final int count = data.remaining() / ELEMENT_SIZE;
+        decode(data, count);
+        PARTIAL_ELEMENT.put(data);
+    }
+
+    /**
+     * Makes room in the array if needed, then converts the numbers.
+     */
+    private void decode(ByteBuffer data, int count) {
+        if (count == 0) {
+            return;
+        }
+        if (elementCount + count > capacity()) {
+            resize(Math.max(elementCount + count, 2 * capacity()));
+        }
+        get(data, count);
+        data.position(data.position() + count * ELEMENT_SIZE);
+        elementCount += count;
+    }
+
+    /**
+     * @throws JVisaException if the data ended in the middle of a number
+     */
+    final void checkComplete() throws JVisaException {
+        if (PARTIAL_ELEMENT.position() > 0) {
+            throw new JVisaException(String.format(
+                    "can't convert binary block, its length isn't a multiple of %d bytes", ELEMENT_SIZE));
+        }
+    }
+
+    abstract int capacity();
+
+    /**
+     * Replaces the array with one of a different length, keeping the numbers already in it.
+     */
+    abstract void resize(int length);
+
+    /**
+     * Converts numbers from the data to the array, starting at elementCount. It doesn't need to move the position of
+     * the data.
+     */
+    abstract void get(ByteBuffer data, int count);
+
+    static final class FloatDecoder extends JVisaBlockDecoder {
+        private float[] array = new float[0];
+
+        FloatDecoder(ByteOrder byteOrder) {
+            super(Float.BYTES, byteOrder);
+        }
+
+        @Override
+        int capacity() {
+            return array.length;
+        }
+
+        @Override
+        void resize(int length) {
+            array = Arrays.copyOf(array, length);
+        }
+
+        @Override
+        void get(ByteBuffer data, int count) {
+            data.asFloatBuffer().get(array, elementCount, count);
+        }
+
+        float[] toArray() throws JVisaException {
+            checkComplete();
+            return array.length == elementCount ? array : Arrays.copyOf(array, elementCount);
+        }
+    }
+
+    static final class DoubleDecoder extends JVisaBlockDecoder {
+        private double[] array = new double[0];
+
+        DoubleDecoder(ByteOrder byteOrder) {
+            super(Double.BYTES, byteOrder);
+        }
+
+        @Override
+        int capacity() {
+            return array.length;
+        }
+
+        @Override
+        void resize(int length) {
+            array = Arrays.copyOf(array, length);
+        }
+
+        @Override
+        void get(ByteBuffer data, int count) {
+            data.asDoubleBuffer().get(array, elementCount, count);
+        }
+
+        double[] toArray() throws JVisaException {
+            checkComplete();
+            return array.length == elementCount ? array : Arrays.copyOf(array, elementCount);
+        }
+    }
+
+    static final class ShortDecoder extends JVisaBlockDecoder {
+        private short[] array = new short[0];
+
+        ShortDecoder(ByteOrder byteOrder) {
+            super(Short.BYTES, byteOrder);
+        }
+
+        @Override
+        int capacity() {
+            return array.length;
+        }
+
+        @Override
+        void resize(int length) {
+            array = Arrays.copyOf(array, length);
+        }
+
+        @Override
+        void get(ByteBuffer data, int count) {
+            data.asShortBuffer().get(array, elementCount, count);
+        }
+
+        short[] toArray() throws JVisaException {
+            checkComplete();
+            return array.length == elementCount ? array : Arrays.copyOf(array, elementCount);
+        }
+    }
+
+    static final class IntDecoder extends JVisaBlockDecoder {
+        private int[] array = new int[0];
+
+        IntDecoder(ByteOrder byteOrder) {
+            super(Integer.BYTES, byteOrder);
+        }
+
+        @Override
+        int capacity() {
+            return array.length;
+        }
+
+        @Override
+        void resize(int length) {
+            array = Arrays.copyOf(array, length);
+        }
+
+        @Override
+        void get(ByteBuffer data, int count) {
+            data.asIntBuffer().get(array, elementCount, count);
+        }
+
+        int[] toArray() throws JVisaException {
+            checkComplete();
+            return array.length == elementCount ? array : Arrays.copyOf(array, elementCount);
+        }
+    }
+
+}
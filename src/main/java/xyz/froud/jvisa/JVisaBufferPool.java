@@ -0,0 +1,200 @@
+/**
+ * @license Copyright 2018-2020 Peter Froud
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package xyz.froud.jvisa;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Direct ByteBuffers which a JVisaInstrument reuses for viRead() and viWrite().
+ * <p>
+ * The native library can only read and write native memory, so when a heap ByteBuffer is passed to viRead() or
+ * viWrite(), JNA copies it to and from temporary native memory on every call. Direct ByteBuffers are native memory
+ * already, but allocating one is slow, so they're kept for the next call instead.
+ * <p>
+ * Buffers are grouped by size class: every capacity is a power of two from {@value #MIN_CAPACITY} to
+ * {@value #MAX_POOLED_CAPACITY} bytes. A bigger buffer is allocated for one call and not kept. Use the statistics to
+ * check that the size classes fit your commands and responses.
+ *
+ * @author Peter Froud
+ */
+public final class JVisaBufferPool {
+
+    /**
+     * Capacity of the smallest size class, in bytes.
+     */
+    public static final int MIN_CAPACITY = 256;
+
+    /**
+     * Capacity of the biggest size class, in bytes.
+     */
+    public static final int MAX_POOLED_CAPACITY = 1 << 20;
+
+    /**
+     * How many released buffers are kept in each size class. A query only needs one buffer at a time, so a few is
+     * plenty.
+     */
+    private static final int BUFFERS_PER_SIZE_CLASS = 4;
+
+    private static final int MIN_CAPACITY_SHIFT = Integer.numberOfTrailingZeros(MIN_CAPACITY);
+
+    private static final int SIZE_CLASS_COUNT = Integer.numberOfTrailingZeros(MAX_POOLED_CAPACITY) - MIN_CAPACITY_SHIFT + 1;
+
+    /**
+     * Released buffers, a stack for each size class.
+     */
+    private final ByteBuffer[][] FREE_BUFFERS = new ByteBuffer[SIZE_CLASS_COUNT][BUFFERS_PER_SIZE_CLASS];
+    private final int[] FREE_COUNTS = new int[SIZE_CLASS_COUNT];
+
+    private long acquireCount;
+    private long reuseCount;
+    private long allocationCount;
+    private long allocatedBytes;
+    private long oversizeCount;
+    private long discardCount;
+
+    JVisaBufferPool() {
+    }
+
+    /**
+     * @return index of the smallest size class which fits the capacity, or -1 if it's too big for every size class
+     */
+    private static int sizeClass(int capacity) {
+        if (capacity <= MIN_CAPACITY) {
+            return 0;
+        }
+        if (capacity > MAX_POOLED_CAPACITY) {
+            return -1;
+        }
+        return 32 - Integer.numberOfLeadingZeros(capacity - 1) - MIN_CAPACITY_SHIFT;
+    }
+
+    /**
+     * Gets a direct buffer. Pass it to {@link #release(ByteBuffer)} when finished with it.
+     *
+     * @param capacity how many bytes the buffer must hold
+     * @return a buffer whose position is zero and whose limit is the capacity which was asked for
+     */
+    synchronized ByteBuffer acquire(int capacity) {
+        acquireCount++;
+        final int sizeClass = sizeClass(capacity);
+        final ByteBuffer buffer;
+        if (sizeClass < 0) {
+            oversizeCount++;
+            buffer = ByteBuffer.allocateDirect(capacity);
+        } else if (FREE_COUNTS[sizeClass] > 0) {
+            reuseCount++;
+            final int index = --FREE_COUNTS[sizeClass];
+            buffer = FREE_BUFFERS[sizeClass][index];
+            FREE_BUFFERS[sizeClass][index] = null;
+        } else {
+            allocationCount++;
+            allocatedBytes += MIN_CAPACITY << sizeClass;
+            buffer = ByteBuffer.allocateDirect(MIN_CAPACITY << sizeClass);
+        }
+        buffer.clear().limit(capacity);
+        return buffer;
+    }
+
+    /**
+     * Gives back a buffer from {@link #acquire(int)}, so a later call can reuse it.
+     */
+    synchronized void release(ByteBuffer buffer) {
+        final int capacity = buffer.capacity();
+        final int sizeClass = sizeClass(capacity);
+        if (sizeClass < 0 || capacity != MIN_CAPACITY << sizeClass) {
+            // Too big to keep.
+            return;
+        }
+        if (FREE_COUNTS[sizeClass] == BUFFERS_PER_SIZE_CLASS) {
+            discardCount++;
+            return;
+        }
+        FREE_BUFFERS[sizeClass][FREE_COUNTS[sizeClass]++] = buffer;
+    }
+
+    /**
+     * Drops every buffer which isn't in use, so the garbage collector can free its native memory.
+     */
+    public synchronized void clear() {
+        for (int sizeClass = 0; sizeClass < SIZE_CLASS_COUNT; sizeClass++) {
+            for (int i = 0; i < FREE_COUNTS[sizeClass]; i++) {
+                FREE_BUFFERS[sizeClass][i] = null;
+            }
+            FREE_COUNTS[sizeClass] = 0;
+        }
+    }
+
+    /**
+     * @return how many buffers were asked for
+     */
+    public synchronized long getAcquireCount() {
+        return acquireCount;
+    }
+
+    /**
+     * @return how many buffers were reused instead of allocated
+     */
+    public synchronized long getReuseCount() {
+        return reuseCount;
+    }
+
+    /**
+     * @return how many buffers were allocated to be kept in a size class
+     */
+    public synchronized long getAllocationCount() {
+        return allocationCount;
+    }
+
+    /**
+     * @return total capacity of the buffers which were allocated to be kept in a size class, in bytes
+     */
+    public synchronized long getAllocatedBytes() {
+        return allocatedBytes;
+    }
+
+    /**
+     * @return how many buffers were bigger than {@value #MAX_POOLED_CAPACITY} bytes, so they were allocated and not
+     * kept
+     */
+    public synchronized long getOversizeCount() {
+        return oversizeCount;
+    }
+
+    /**
+     * @return how many released buffers weren't kept because their size class was full
+     */
+    public synchronized long getDiscardCount() {
+        return discardCount;
+    }
+
+    /**
+     * @return how many released buffers are waiting to be reused
+     */
+    public synchronized int getFreeBufferCount() {
+        int count = 0;
+        for (int freeCount : FREE_COUNTS) {
+            count += freeCount;
+        }
+        return count;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("JVisaBufferPool[acquired=%d, reused=%d, allocated=%d (%d bytes), oversize=%d, discarded=%d, free=%d]",
+                acquireCount, reuseCount, allocationCount, allocatedBytes, oversizeCount, discardCount, getFreeBufferCount());
+    }
+
+}
@@ -0,0 +1,93 @@
+/**
+ * @license Copyright 2018-2020 Peter Froud
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package xyz.froud.jvisa;
+
+/**
+ * A physical interface which resources are connected to, like GPIB board 0 or the first serial port. Resources on the
+ * same GPIB board or serial port share the bus, so only one of them can transfer data at a time.
+ *
+ * @author Peter Froud
+ * @see JVisaResourceManager#getBus(String)
+ */
+public final class JVisaBus {
+
+    /**
+     * One of the {@code VI_INTF_} constants in JVisaLibrary, like {@link JVisaLibrary#VI_INTF_GPIB}.
+     */
+    public final int INTERFACE_TYPE;
+
+    /**
+     * Board number, like 0 for GPIB0.
+     */
+    public final int INTERFACE_NUMBER;
+
+    public JVisaBus(int interfaceType, int interfaceNumber) {
+        INTERFACE_TYPE = interfaceType;
+        INTERFACE_NUMBER = interfaceNumber;
+    }
+
+    /**
+     * @return whether more than one resource on this bus can transfer data at the same time. False for GPIB, GPIB-VXI,
+     * and serial, true for everything else like TCPIP and USB.
+     */
+    public boolean allowsConcurrentTransfers() {
+        switch (INTERFACE_TYPE) {
+            case JVisaLibrary.VI_INTF_GPIB:
+            case JVisaLibrary.VI_INTF_GPIB_VXI:
+            case JVisaLibrary.VI_INTF_ASRL:
+                return false;
+            default:
+                return true;
+        }
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (!(other instanceof JVisaBus)) {
+            return false;
+        }
+        final JVisaBus otherBus = (JVisaBus) other;
+        return INTERFACE_TYPE == otherBus.INTERFACE_TYPE && INTERFACE_NUMBER == otherBus.INTERFACE_NUMBER;
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * INTERFACE_TYPE + INTERFACE_NUMBER;
+    }
+
+    @Override
+    public String toString() {
+        switch (INTERFACE_TYPE) {
+            case JVisaLibrary.VI_INTF_GPIB:
+                return "GPIB" + INTERFACE_NUMBER;
+            case JVisaLibrary.VI_INTF_VXI:
+                return "VXI" + INTERFACE_NUMBER;
+            case JVisaLibrary.VI_INTF_GPIB_VXI:
+                return "GPIB-VXI" + INTERFACE_NUMBER;
+            case JVisaLibrary.VI_INTF_ASRL:
+                return "ASRL" + INTERFACE_NUMBER;
+            case JVisaLibrary.VI_INTF_PXI:
+                return "PXI" + INTERFACE_NUMBER;
+            case JVisaLibrary.VI_INTF_TCPIP:
+                return "TCPIP" + INTERFACE_NUMBER;
+            case JVisaLibrary.VI_INTF_USB:
+                return "USB" + INTERFACE_NUMBER;
+            default:
+                return "interface type " + INTERFACE_TYPE + " number " + INTERFACE_NUMBER;
+        }
+    }
+
+}
@@ -0,0 +1,293 @@
+/**
+ * @license Copyright 2018-2020 Peter Froud
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package xyz.froud.jvisa;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Runs tasks for many resources on a few threads, with a separate queue and concurrency limit for each bus.
+ * <p>
+ * Several threads talking to devices on the same GPIB board just wait for each other inside the driver, while LAN
+ * instruments can all be busy at once. So each task is queued on the bus of its resource, which comes from
+ * viParseRsrc(), and a bus only runs as many tasks at a time as its limit allows: one for GPIB and serial, unlimited
+ * for others. When a thread is free it takes the next task from the next bus which can run one, going round the buses
+ * in turn, so a long GPIB queue doesn't delay LAN instruments and no thread ever waits for a busy bus.
+ * <p>
+ * This class is thread-safe.
+ *
+ * @author Peter Froud
+ * @see JVisaResourceManager#getBusScheduler()
+ */
+public final class JVisaBusScheduler implements AutoCloseable {
+
+    private static final class Job<T> {
+
+        final Callable<T> TASK;
+        final CompletableFuture<T> FUTURE = new CompletableFuture<>();
+
+        Job(Callable<T> task) {
+            TASK = task;
+        }
+
+        void run() {
+            if (FUTURE.isDone()) {
+                // It was cancelled after it was taken from the queue.
+                return;
+            }
+            try {
+                FUTURE.complete(TASK.call());
+            } catch (Throwable ex) {
+                FUTURE.completeExceptionally(ex);
+            }
+        }
+    }
+
+    private static final class Bus {
+
+        final Queue<Job<?>> QUEUE = new ArrayDeque<>();
+        int concurrency;
+        int runningCount = 0;
+
+        /**
+         * Whether it's in READY_BUSES.
+         */
+        boolean isReady = false;
+
+        Bus(int concurrency) {
+            this.concurrency = concurrency;
+        }
+
+        boolean canRunMore() {
+            return !QUEUE.isEmpty() && runningCount < concurrency;
+        }
+    }
+
+    private final JVisaResourceManager RESOURCE_MANAGER;
+    private final int MAX_CONCURRENCY;
+    private final ExecutorService EXECUTOR;
+
+    /**
+     * Resource names which were already parsed.
+     */
+    private final Map<String, JVisaBus> BUS_OF_RESOURCE = new ConcurrentHashMap<>();
+
+    // Everything below is guarded by this.
+    private final Map<JVisaBus, Bus> BUSES = new HashMap<>();
+
+    /**
+     * Buses which have a queued task and are below their limit, in the order they get a thread.
+     */
+    private final Queue<Bus> READY_BUSES = new ArrayDeque<>();
+    private int runningCount = 0;
+    private int queuedCount = 0;
+    private boolean isClosed = false;
+
+    /**
+     * @param resourceManager used to find the bus of each resource
+     * @param maxConcurrency how many tasks can run at the same time over all buses, which is how many threads are
+     * used
+     */
+    public JVisaBusScheduler(JVisaResourceManager resourceManager, int maxConcurrency) {
+        if (maxConcurrency < 1) {
+            throw new IllegalArgumentException("maxConcurrency must be at least 1, got " + maxConcurrency);
+        }
+        RESOURCE_MANAGER = resourceManager;
+        MAX_CONCURRENCY = maxConcurrency;
+        EXECUTOR = Executors.newCachedThreadPool(runnable -> {
+            final Thread thread = new Thread(runnable, "JVisa bus scheduler");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Sets how many tasks on one bus can run at the same time. Tasks which are already running aren't affected.
+     *
+     * @param bus the bus to change
+     * @param concurrency at least 1
+     */
+    public synchronized void setBusConcurrency(JVisaBus bus, int concurrency) {
+        if (concurrency < 1) {
+            throw new IllegalArgumentException("concurrency must be at least 1, got " + concurrency);
+        }
+        final Bus busState = getOrAddBus(bus);
+        busState.concurrency = concurrency;
+        dispatch(busState);
+    }
+
+    /**
+     * Runs a task when the bus of the resource and a thread are free.
+     *
+     * @param <T> type of the result
+     * @param resourceName the resource which the task uses
+     * @param task what to do
+     * @return the result of the task. Cancelling it before the task starts removes the task from the queue. Cancelling
+     * it later doesn't interrupt the task.
+     */
+    public <T> CompletableFuture<T> submit(String resourceName, Callable<T> task) {
+        final Job<T> job = new Job<>(task);
+        final JVisaBus bus;
+        try {
+            bus = getBus(resourceName);
+        } catch (JVisaException ex) {
+            job.FUTURE.completeExceptionally(ex);
+            return job.FUTURE;
+        }
+        synchronized (this) {
+            if (isClosed) {
+                job.FUTURE.completeExceptionally(new JVisaException("the bus scheduler is closed"));
+                return job.FUTURE;
+            }
+            final Bus busState = getOrAddBus(bus);
+            busState.QUEUE.add(job);
+            queuedCount++;
+            dispatch(busState);
+            job.FUTURE.whenComplete((result, ex) -> {
+                if (ex instanceof CancellationException) {
+                    removeCancelled(busState, job);
+                }
+            });
+        }
+        return job.FUTURE;
+    }
+
+    /**
+     * Runs an operation on an instrument when its bus and a thread are free. The instrument must not be used by other
+     * threads meanwhile.
+     *
+     * @param <T> type of the result
+     * @param instrument the instrument to use
+     * @param operation what to do with it
+     * @return the result of the operation
+     */
+    public <T> CompletableFuture<T> submit(JVisaInstrument instrument, JVisaInstrumentActor.Operation<T> operation) {
+        return submit(instrument.RESOURCE_NAME, () -> operation.apply(instrument));
+    }
+
+    /**
+     * @return how many tasks are running now
+     */
+    public synchronized int getRunningCount() {
+        return runningCount;
+    }
+
+    /**
+     * @return how many tasks are waiting for their bus or for a thread
+     */
+    public synchronized int getQueuedCount() {
+        return queuedCount;
+    }
+
+    /**
+     * Stops running tasks which haven't started yet and cancels their futures. Tasks which already started are
+     * allowed to finish.
+     */
+    @Override
+    public void close() {
+        final Queue<Job<?>> cancelledJobs = new ArrayDeque<>();
+        synchronized (this) {
+            if (isClosed) {
+                return;
+            }
+            isClosed = true;
+            for (Bus bus : BUSES.values()) {
+                cancelledJobs.addAll(bus.QUEUE);
+                bus.QUEUE.clear();
+            }
+            READY_BUSES.clear();
+            queuedCount = 0;
+        }
+        EXECUTOR.shutdown();
+        // Completing a future runs its dependents, so do it outside the lock.
+        cancelledJobs.forEach(job -> job.FUTURE.cancel(false));
+    }
+
+    private JVisaBus getBus(String resourceName) throws JVisaException {
+        JVisaBus bus = BUS_OF_RESOURCE.get(resourceName);
+        if (bus == null) {
+            bus = RESOURCE_MANAGER.getBus(resourceName);
+            BUS_OF_RESOURCE.put(resourceName, bus);
+        }
+        return bus;
+    }
+
+    private Bus getOrAddBus(JVisaBus bus) {
+        return BUSES.computeIfAbsent(bus, key -> new Bus(key.allowsConcurrentTransfers() ? Integer.MAX_VALUE : 1));
+    }
+
+    /**
+     * Starts queued tasks until every thread is busy or no bus can run more.
+     *
+     * @param changedBus the bus whose queue or limit just changed
+     */
+    private void dispatch(Bus changedBus) {
+        if (!changedBus.isReady && changedBus.canRunMore()) {
+            changedBus.isReady = true;
+            READY_BUSES.add(changedBus);
+        }
+        while (runningCount < MAX_CONCURRENCY && !READY_BUSES.isEmpty()) {
+            final Bus bus = READY_BUSES.poll();
+            final Job<?> job = bus.QUEUE.poll();
+            queuedCount--;
+            bus.runningCount++;
+            runningCount++;
+            if (bus.canRunMore()) {
+                READY_BUSES.add(bus);
+            } else {
+                bus.isReady = false;
+            }
+            EXECUTOR.execute(() -> {
+                try {
+                    job.run();
+                } finally {
+                    onFinished(bus);
+                }
+            });
+        }
+    }
+
+    /**
+     * Removes a job whose future was cancelled, if it's still queued.
+     */
+    private synchronized void removeCancelled(Bus bus, Job<?> job) {
+        if (!bus.QUEUE.remove(job)) {
+            return;
+        }
+        queuedCount--;
+        if (bus.isReady && !bus.canRunMore()) {
+            READY_BUSES.remove(bus);
+            bus.isReady = false;
+        }
+    }
+
+    private synchronized void onFinished(Bus bus) {
+        bus.runningCount--;
+        runningCount--;
+        if (!isClosed) {
+            dispatch(bus);
+        }
+    }
+
+}
@@ -0,0 +1,85 @@
+/**
+ * @license Copyright 2018-2020 Peter Froud
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package xyz.froud.jvisa;
+
+import com.sun.jna.Platform;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Calls the native library through the static native methods in JVisaLibraryDirect for reads, writes, and
+ * attributes, and through the JVisaLibrary interface proxy for everything else.
+ *
+ * @author Peter Froud
+ * @see JVisaBinding#DIRECT_MAPPING
+ */
+final class JVisaDirectMappingBackend extends JVisaInterfaceMappingBackend {
+
+    /**
+     * ViAttrState is ViUInt64 on 64-bit VISA implementations and ViUInt32 otherwise.
+     */
+    private static final boolean IS_ATTRIBUTE_STATE_64_BIT = Platform.is64Bit();
+
+    /**
+     * @param visaLibrary interface proxy for the calls which aren't direct-mapped
+     * @param nativeLibraryName VISA native library name
+     * @throws UnsatisfiedLinkError if the native shared library (.dll or .so or .dylib file) couldn't be loaded
+     */
+    JVisaDirectMappingBackend(JVisaLibrary visaLibrary, String nativeLibraryName) throws UnsatisfiedLinkError {
+        super(visaLibrary);
+        JVisaLibraryDirect.register(nativeLibraryName);
+    }
+
+    @Override
+    public String getName() {
+        return "direct_mapping";
+    }
+
+    @Override
+    public int viClose(int vi) {
+        return JVisaLibraryDirect.viClose(vi);
+    }
+
+    @Override
+    public int viSetAttribute(int vi, int attribute, long value) {
+        if (IS_ATTRIBUTE_STATE_64_BIT) {
+            return JVisaLibraryDirect.viSetAttribute(vi, attribute, value);
+        } else {
+            return JVisaLibraryDirect.viSetAttribute(vi, attribute, (int) value);
+        }
+    }
+
+    @Override
+    public int viGetAttribute(int vi, int attribute, ByteBuffer value) {
+        return JVisaLibraryDirect.viGetAttribute(vi, attribute, value);
+    }
+
+    @Override
+    public int viRead(int vi, ByteBuffer buffer, int count, int[] returnCount) {
+        return JVisaLibraryDirect.viRead(vi, buffer, count, returnCount);
+    }
+
+    @Override
+    public int viWrite(int vi, ByteBuffer buffer, int count, int[] returnCount) {
+        return JVisaLibraryDirect.viWrite(vi, buffer, count, returnCount);
+    }
+
+    @Override
+    public int viClear(int vi) {
+        return JVisaLibraryDirect.viClear(vi);
+    }
+
+}
@@ -25,16 +25,25 @@ package xyz.froud.jvisa;
  */
 public class JVisaException extends Exception {
 
+    /**
+     * The status returned by the VISA function which failed, like {@link JVisaLibrary#VI_ERROR_NSUP_OPER}, or zero if
+     * the exception didn't come from a VISA status.
+     */
+    public final int STATUS_CODE;
+
     public JVisaException(String message) {
         super(message);
+        STATUS_CODE = 0;
     }
 
     public JVisaException(String message, Throwable cause){
         super(message, cause);
+        STATUS_CODE = 0;
     }
 
     public JVisaException(long statusCode, String cFunctionName, String errorDescription) {
         super(String.format("in %s(): %s (0x%H)", cFunctionName, errorDescription, statusCode));
+        STATUS_CODE = (int) statusCode;
     }
 
 }
@@ -0,0 +1,95 @@
+/**
+ * @license Copyright 2018-2020 Peter Froud
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package xyz.froud.jvisa;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Consumer;
+
+/**
+ * Runs an operation on many resources from a few threads.
+ * <p>
+ * Each resource is opened, used, and closed by one task on a {@link JVisaBusScheduler}, so resources on a busy GPIB
+ * board are used one at a time without holding up LAN instruments.
+ *
+ * @author Peter Froud
+ */
+final class JVisaFanOut<T> {
+
+    private final JVisaResourceManager RESOURCE_MANAGER;
+    private final JVisaInstrumentActor.Operation<T> OPERATION;
+    private final long TIMEOUT_MILLISECONDS;
+    private final Consumer<JVisaFanOutResult<T>> LISTENER;
+
+    JVisaFanOut(JVisaResourceManager resourceManager, JVisaInstrumentActor.Operation<T> operation,
+                long timeoutMilliseconds, Consumer<JVisaFanOutResult<T>> listener) {
+        RESOURCE_MANAGER = resourceManager;
+        OPERATION = operation;
+        TIMEOUT_MILLISECONDS = timeoutMilliseconds;
+        LISTENER = listener;
+    }
+
+    List<JVisaFanOutResult<T>> run(String[] resourceNames, int maxConcurrency) throws JVisaException {
+        final List<JVisaFanOutResult<T>> results = new ArrayList<>(resourceNames.length);
+        try (JVisaBusScheduler scheduler = new JVisaBusScheduler(RESOURCE_MANAGER, maxConcurrency)) {
+            final List<CompletableFuture<JVisaFanOutResult<T>>> futures = new ArrayList<>(resourceNames.length);
+            for (String resourceName : resourceNames) {
+                futures.add(scheduler.submit(resourceName, () -> runOnResource(resourceName)));
+            }
+            for (int i = 0; i < resourceNames.length; i++) {
+                try {
+                    results.add(futures.get(i).get());
+                } catch (ExecutionException ex) {
+                    // The bus of the resource couldn't be found, or the operation threw an Error.
+                    final Throwable cause = ex.getCause();
+                    final JVisaException exception = cause instanceof JVisaException ? (JVisaException) cause
+                            : new JVisaException("operation on " + resourceNames[i] + " failed", cause);
+                    results.add(report(new JVisaFanOutResult<>(resourceNames[i], null, exception, 0)));
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new JVisaException("interrupted while running on " + resourceNames.length + " resources", ex);
+        }
+        return results;
+    }
+
+    private JVisaFanOutResult<T> runOnResource(String resourceName) {
+        final long startNanoseconds = System.nanoTime();
+        T value = null;
+        JVisaException exception = null;
+        try (JVisaInstrument instrument = RESOURCE_MANAGER.openInstrument(resourceName)) {
+            instrument.setTimeout(TIMEOUT_MILLISECONDS);
+            value = OPERATION.apply(instrument);
+        } catch (JVisaException ex) {
+            exception = ex;
+        } catch (RuntimeException ex) {
+            exception = new JVisaException("operation on " + resourceName + " failed", ex);
+        }
+        return report(new JVisaFanOutResult<>(resourceName, exception == null ? value : null, exception,
+                System.nanoTime() - startNanoseconds));
+    }
+
+    private JVisaFanOutResult<T> report(JVisaFanOutResult<T> result) {
+        if (LISTENER != null) {
+            LISTENER.accept(result);
+        }
+        return result;
+    }
+
+}
@@ -0,0 +1,64 @@
+/**
+ * @license Copyright 2018-2020 Peter Froud
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package xyz.froud.jvisa;
+
+/**
+ * What happened when an operation ran on one resource of
+ * {@link JVisaResourceManager#runOnEach(String[], JVisaInstrumentActor.Operation, int, long, java.util.function.Consumer)}.
+ * Exactly one of VALUE and EXCEPTION is set, unless the operation returned null.
+ *
+ * @param <T> type of the result of the operation
+ * @author Peter Froud
+ */
+public final class JVisaFanOutResult<T> {
+
+    public final String RESOURCE_NAME;
+
+    /**
+     * What the operation returned, or null if it failed.
+     */
+    public final T VALUE;
+
+    /**
+     * Why the resource couldn't be opened, why the operation failed, or why the resource couldn't be closed. Null if
+     * it succeeded.
+     */
+    public final JVisaException EXCEPTION;
+
+    /**
+     * How long opening the resource, running the operation, and closing the resource took, not counting the time
+     * waiting for a free thread or bus.
+     */
+    public final long DURATION_NANOSECONDS;
+
+    JVisaFanOutResult(String resourceName, T value, JVisaException exception, long durationNanoseconds) {
+        RESOURCE_NAME = resourceName;
+        VALUE = value;
+        EXCEPTION = exception;
+        DURATION_NANOSECONDS = durationNanoseconds;
+    }
+
+    public boolean isSuccess() {
+        return EXCEPTION == null;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s: %s (%.1f ms)", RESOURCE_NAME, isSuccess() ? VALUE : EXCEPTION.getMessage(),
+                DURATION_NANOSECONDS / 1e6);
+    }
+
+}
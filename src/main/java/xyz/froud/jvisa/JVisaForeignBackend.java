@@ -0,0 +1,42 @@
+/**
+ * @license Copyright 2018-2020 Peter Froud
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package xyz.froud.jvisa;
+
+/**
+ * Placeholder for the Foreign Function &amp; Memory API backend, which needs Java 22 or newer.
+ * <p>
+ * The real implementation is in src/main/java22 and gets packaged in META-INF/versions/22 of the multi-release jar.
+ * On older JVMs this class is loaded instead, and it reports that the backend isn't available.
+ *
+ * @author Peter Froud
+ * @see JVisaBinding#FOREIGN_FUNCTION
+ */
+final class JVisaForeignBackend extends JVisaInterfaceMappingBackend {
+
+    /**
+     * @return true if the JVM supports the Foreign Function &amp; Memory API
+     */
+    static boolean isAvailable() {
+        return false;
+    }
+
+    JVisaForeignBackend(JVisaLibrary visaLibrary, String nativeLibraryName) {
+        super(visaLibrary);
+        throw new UnsupportedOperationException("the foreign function binding needs Java 22 or newer, this is Java "
+                + System.getProperty("java.specification.version"));
+    }
+
+}
@@ -18,12 +18,22 @@
 package xyz.froud.jvisa;
 
 import com.sun.jna.Memory;
-import com.sun.jna.NativeLong;
 import com.sun.jna.ptr.NativeLongByReference;
 import xyz.froud.jvisa.eventhandling.JVisaEventHandler;
 import xyz.froud.jvisa.eventhandling.JVisaEventType;
+import xyz.froud.jvisa.tcpip.JVisaTcpipBackend;
 
+import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * Represents a Visa instrument. This is a wrapper around the native C instrument handle.
@@ -37,11 +47,74 @@ public class JVisaInstrument implements AutoCloseable {
 
     private final static int DEFAULT_BUFFER_SIZE = 1024;
 
-    private final NativeLong INSTRUMENT_HANDLE;
+    /**
+     * How many bytes readBinaryBlock() reads at first on sessions which send the END indicator. The header is at most
+     * 11 bytes, so the rest is the start of the data, or for small blocks the whole response.
+     */
+    private final static int BINARY_BLOCK_FIRST_READ_SIZE = 4096;
+
+    /**
+     * How many bytes are read at a time when a binary block is passed to a JVisaBinaryBlockConsumer.
+     */
+    private final static int BINARY_BLOCK_CHUNK_SIZE = 64 * 1024;
+
+    /**
+     * Returned by readBinaryBlockHeader() for a block which starts with {@code #0}.
+     */
+    private final static int INDEFINITE_LENGTH = -1;
+
+    /**
+     * The header of a definite length arbitrary block has at most nine digits for the length.
+     */
+    private final static long MAX_DEFINITE_LENGTH = 999_999_999L;
+
+    /**
+     * Bit of the status byte which SCPI instruments set while the error queue isn't empty.
+     */
+    public static final int STATUS_BYTE_ERROR_QUEUE = 0x04;
+
+    /**
+     * Message available bit of the status byte, set while a response is waiting to be read.
+     */
+    public static final int STATUS_BYTE_MAV = 0x10;
+
+    /**
+     * Event status bit of the status byte, set while a bit of the standard event status register which is enabled
+     * with {@code *ESE} is set.
+     */
+    public static final int STATUS_BYTE_ESB = 0x20;
+
+    /**
+     * Request service bit of the status byte.
+     */
+    public static final int STATUS_BYTE_RQS = 0x40;
+
+    private final int INSTRUMENT_HANDLE;
     private final JVisaResourceManager RESOURCE_MANAGER;
-    private final JVisaLibrary VISA_LIBRARY;
+    private final JVisaBackend BACKEND;
     public final String RESOURCE_NAME;
 
+    /**
+     * Element zero receives the count from viRead() and viWrite(). It's reused so those calls don't allocate.
+     */
+    private final int[] RETURN_COUNT = new int[1];
+
+    /**
+     * Direct buffers for viRead() and viWrite(), so the native library doesn't need a temporary copy of every command
+     * and response.
+     */
+    private final JVisaBufferPool BUFFER_POOL = new JVisaBufferPool();
+
+    /**
+     * How many bytes queryString() reads at once for each command header.
+     */
+    private final JVisaReadSizeCache READ_SIZE_CACHE = new JVisaReadSizeCache();
+
+    /**
+     * Jobs from readAsync(), writeAsync(), and queryAsync() which haven't completed.
+     */
+    private final JVisaAsyncIo ASYNC_IO;
+
     /**
      * A string appended to the end of every string sent to the instrument. If it null then nothing is appended.
      *
@@ -50,11 +123,46 @@ public class JVisaInstrument implements AutoCloseable {
      */
     private String writeTerminator = null;
 
+    /**
+     * The write terminator converted to bytes once, instead of on every write.
+     */
+    private byte[] writeTerminatorBytes = null;
+
+    /**
+     * Reused by readString() so decoding a response only allocates the String itself.
+     */
+    private byte[] responseBytes = new byte[DEFAULT_BUFFER_SIZE];
+
+    /**
+     * Holds the response from readResponse() until the next call, so the response can be returned without a copy. It's
+     * null until readResponse() is first called.
+     */
+    private ByteBuffer responseBuffer = null;
+
+    /**
+     * Status of the last viRead(): zero if the END indicator was received, VI_SUCCESS_TERM_CHAR, or
+     * VI_SUCCESS_MAX_CNT if the instrument could have more to send.
+     */
+    private int lastReadStatus = 0;
+
+    /**
+     * Cached by isEndIndicatorSent(), null until it's needed.
+     */
+    private Boolean isEndIndicatorSent = null;
+
     public JVisaInstrument(JVisaResourceManager resourceManager, NativeLongByReference instrumentHandle, String resourceName) {
+        this(resourceManager, resourceManager.BACKEND, instrumentHandle.getValue().intValue(), resourceName);
+    }
+
+    /**
+     * @param backend the backend which opened the session, which isn't always the resource manager's backend
+     */
+    JVisaInstrument(JVisaResourceManager resourceManager, JVisaBackend backend, int instrumentHandle, String resourceName) {
         RESOURCE_MANAGER = resourceManager;
-        VISA_LIBRARY = resourceManager.VISA_LIBRARY;
-        INSTRUMENT_HANDLE = instrumentHandle.getValue();
+        BACKEND = backend;
+        INSTRUMENT_HANDLE = instrumentHandle;
         RESOURCE_NAME = resourceName;
+        ASYNC_IO = new JVisaAsyncIo(instrumentHandle, resourceManager, backend, BUFFER_POOL);
     }
 
     /**
@@ -87,28 +195,32 @@ public class JVisaInstrument implements AutoCloseable {
     /**
      * Sends a command and receives its response. If setWriteTerminator() was called with a non-null
      * string, the terminator will be appended to the string before sending it to the instrument.
-     * It receives as many bytes as the instrument is sending. (That is probably wrong, it can receive maximum DEFAULT_BUFFER_SIZE bytes)
+     * It receives as many bytes as the instrument is sending. The first read is as big as the responses to earlier
+     * commands with the same header, and longer responses are read in more than one piece.
      *
      * @param command string to send to the instrument
      * @return response from instrument as a String
      * @throws JVisaException if the write operation fails or the read operation fails
+     * @see #getReadSizeCache()
      */
     public String queryString(String command) throws JVisaException {
         write(command);
-        return readString(DEFAULT_BUFFER_SIZE);
+        return readLearnedString(JVisaReadSizeCache.header(command));
     }
 
     /**
      * Sends a command and receives its response. No write terminator is added. It receives as many
-     * bytes as the instrument is sending. (That is probably wrong, it can receive maximum DEFAULT_BUFFER_SIZE bytes)
+     * bytes as the instrument is sending. The first read is as big as the responses to earlier commands with the same
+     * header, and longer responses are read in more than one piece.
      *
      * @param command bytes to send to the instrument
      * @return response from instrument as a String
      * @throws JVisaException if the write operation fails or the read operation fails
+     * @see #getReadSizeCache()
      */
     public String queryString(byte[] command) throws JVisaException {
         write(command);
-        return readString(DEFAULT_BUFFER_SIZE);
+        return readLearnedString(JVisaReadSizeCache.header(command));
     }
 
     /**
@@ -177,6 +289,243 @@ public class JVisaInstrument implements AutoCloseable {
         return readBinaryBlock();
     }
 
+    /**
+     * Sends a command and reads the arbitrary block of 32-bit floating point numbers in its response. If
+     * setWriteTerminator() was called with a non-null string, the terminator will be appended to the string before
+     * sending it to the instrument.
+     *
+     * @param command string to send to the instrument
+     * @param byteOrder order of the bytes of each number which the instrument sends
+     * @return the numbers in the block
+     * @throws JVisaException if the write operation fails or the read operation fails
+     * @see #readFloatBlock(ByteOrder)
+     */
+    public float[] queryFloatBlock(String command, ByteOrder byteOrder) throws JVisaException {
+        write(command);
+        return readFloatBlock(byteOrder);
+    }
+
+    /**
+     * Sends a command and reads the arbitrary block of 64-bit floating point numbers in its response.
+     *
+     * @see #queryFloatBlock(String, ByteOrder)
+     * @see #readDoubleBlock(ByteOrder)
+     */
+    public double[] queryDoubleBlock(String command, ByteOrder byteOrder) throws JVisaException {
+        write(command);
+        return readDoubleBlock(byteOrder);
+    }
+
+    /**
+     * Sends a command and reads the arbitrary block of 16-bit integers in its response.
+     *
+     * @see #queryFloatBlock(String, ByteOrder)
+     * @see #readShortBlock(ByteOrder)
+     */
+    public short[] queryShortBlock(String command, ByteOrder byteOrder) throws JVisaException {
+        write(command);
+        return readShortBlock(byteOrder);
+    }
+
+    /**
+     * Sends a command and reads the arbitrary block of 32-bit integers in its response.
+     *
+     * @see #queryFloatBlock(String, ByteOrder)
+     * @see #readIntBlock(ByteOrder)
+     */
+    public int[] queryIntBlock(String command, ByteOrder byteOrder) throws JVisaException {
+        write(command);
+        return readIntBlock(byteOrder);
+    }
+
+    /**
+     * Sends a command and passes the binary block in its response to the consumer one chunk at a time. If
+     * setWriteTerminator() was called with a non-null string, the terminator will be appended to the string before
+     * sending it to the instrument.
+     *
+     * @param command string to send to the instrument
+     * @param consumer receives the data of the block
+     * @return how many bytes of data the block had
+     * @throws JVisaException if the write operation fails or the read operation fails
+     * @see #readBinaryBlock(JVisaBinaryBlockConsumer)
+     */
+    public long queryBinaryBlock(String command, JVisaBinaryBlockConsumer consumer) throws JVisaException {
+        write(command);
+        return readBinaryBlock(consumer);
+    }
+
+    /**
+     * Sends several commands and receives their responses. If setWriteTerminator() was called with a non-null string,
+     * the terminator will be appended to every command.
+     * <p>
+     * If the instrument is a HiSLIP instrument in overlapped mode, opened with JVisaTcpipBackend, up to maxOutstanding
+     * commands are sent before their responses are read, so the instrument can work on the next command while the
+     * previous response is on its way. Otherwise the commands are sent one at a time with queryString().
+     *
+     * @param commands strings to send to the instrument
+     * @param maxOutstanding how many commands can wait for a response at the same time
+     * @return responses from the instrument, in the same order as the commands
+     * @throws JVisaException if a write operation fails or a read operation fails. If the commands were sent in
+     * overlapped mode, the session was cleared first, so late responses don't get mixed up with later queries.
+     * @throws IllegalArgumentException if maxOutstanding is less than 1
+     * @see JVisaTcpipBackend#queryOverlapped(int, ByteBuffer[], int, byte[][])
+     */
+    public String[] queryPipelined(String[] commands, int maxOutstanding) throws JVisaException {
+        if (maxOutstanding < 1) {
+            throw new IllegalArgumentException("maxOutstanding must be at least 1, got " + maxOutstanding);
+        }
+        final String[] responses = new String[commands.length];
+        if (BACKEND instanceof JVisaTcpipBackend) {
+            final ByteBuffer[] commandBuffers = new ByteBuffer[commands.length];
+            final byte[][] responseBytes = new byte[commands.length][];
+            final int status;
+            try {
+                for (int i = 0; i < commands.length; i++) {
+                    commandBuffers[i] = encodeCommand(commands[i]);
+                }
+                status = ((JVisaTcpipBackend) BACKEND).queryOverlapped(INSTRUMENT_HANDLE, commandBuffers, maxOutstanding, responseBytes);
+            } finally {
+                for (ByteBuffer commandBuffer : commandBuffers) {
+                    if (commandBuffer != null) {
+                        BUFFER_POOL.release(commandBuffer);
+                    }
+                }
+            }
+            if (status != JVisaLibrary.VI_ERROR_NSUP_OPER) {
+                try {
+                    RESOURCE_MANAGER.checkError(status, "queryOverlapped");
+                } catch (JVisaException ex) {
+                    // Responses to the commands which were already sent can still arrive, so throw them away.
+                    try {
+                        clear();
+                    } catch (JVisaException clearException) {
+                        ex.addSuppressed(clearException);
+                    }
+                    throw ex;
+                }
+                for (int i = 0; i < commands.length; i++) {
+                    responses[i] = decodeTrimmed(ByteBuffer.wrap(responseBytes[i]), responseBytes[i].length);
+                }
+                return responses;
+            }
+        }
+        for (int i = 0; i < commands.length; i++) {
+            responses[i] = queryString(commands[i]);
+        }
+        return responses;
+    }
+
+    /**
+     * Starts a pipeline, which sends many SCPI commands and queries as one message and reads all their responses at
+     * once, to save round trips.
+     *
+     * @return an empty pipeline for this instrument
+     */
+    public JVisaPipeline pipeline() {
+        return new JVisaPipeline(this);
+    }
+
+    /**
+     * Starts reading data from the instrument with viReadAsync() and returns right away. The future is completed from
+     * the thread of the VISA library when the read is done, so one thread can wait for many instruments. Cancelling the
+     * future aborts the read with viTerminate().
+     * <p>
+     * If the backend doesn't support VI_EVENT_IO_COMPLETION, like the backends which don't call native code, the read
+     * is done synchronously and the future is already completed.
+     *
+     * @param byteCount how many bytes to read
+     * @return response from instrument as bytes, or the JVisaException if the read operation fails
+     * @see #readBytes(int)
+     * @see <a href="https://www.ni.com/docs/en-US/bundle/ni-visa/page/ni-visa/vireadasync.html">viReadAsync</a>
+     */
+    public CompletableFuture<ByteBuffer> readAsync(int byteCount) {
+        try {
+            if (!ASYNC_IO.start()) {
+                return CompletableFuture.completedFuture(readBytes(byteCount));
+            }
+            return ASYNC_IO.read(byteCount);
+        } catch (JVisaException ex) {
+            return CompletableFuture.failedFuture(ex);
+        }
+    }
+
+    /**
+     * Starts sending a command with viWriteAsync() and returns right away. If setWriteTerminator() was called with a
+     * non-null string, the terminator will be appended to the string before sending it to the instrument. Cancelling
+     * the future aborts the write with viTerminate().
+     * <p>
+     * If the backend doesn't support VI_EVENT_IO_COMPLETION, the write is done synchronously and the future is already
+     * completed.
+     *
+     * @param command the command to send to the instrument
+     * @return completed when every byte was written, or with the JVisaException if the write operation fails
+     * @see #write(String)
+     * @see <a href="https://www.ni.com/docs/en-US/bundle/ni-visa/page/ni-visa/viwriteasync.html">viWriteAsync</a>
+     */
+    public CompletableFuture<Void> writeAsync(String command) {
+        try {
+            if (!ASYNC_IO.start()) {
+                write(command);
+                return CompletableFuture.completedFuture(null);
+            }
+            return ASYNC_IO.write(encodeCommand(command));
+        } catch (JVisaException ex) {
+            return CompletableFuture.failedFuture(ex);
+        }
+    }
+
+    /**
+     * Starts sending bytes with viWriteAsync() and returns right away. No write terminator is added.
+     *
+     * @param bytes the command to send to the instrument
+     * @return completed when every byte was written, or with the JVisaException if the write operation fails
+     * @see #writeAsync(String)
+     */
+    public CompletableFuture<Void> writeAsync(byte[] bytes) {
+        try {
+            if (!ASYNC_IO.start()) {
+                write(bytes);
+                return CompletableFuture.completedFuture(null);
+            }
+            return ASYNC_IO.write(BUFFER_POOL.acquire(bytes.length).put(bytes).flip());
+        } catch (JVisaException ex) {
+            return CompletableFuture.failedFuture(ex);
+        }
+    }
+
+    /**
+     * Starts sending a command and reading its whole response, and returns right away. The first read is as big as
+     * the responses to earlier commands with the same header, like with queryString(). Cancelling the future aborts
+     * the write or read which is in progress with viTerminate().
+     * <p>
+     * If the backend doesn't support VI_EVENT_IO_COMPLETION, the query is done synchronously and the future is already
+     * completed.
+     *
+     * @param command string to send to the instrument
+     * @return response from instrument as a String, without whitespace at the start and end, or the JVisaException if
+     * the write operation fails or a read operation fails
+     * @see #queryString(String)
+     */
+    public CompletableFuture<String> queryAsync(String command) {
+        try {
+            if (!ASYNC_IO.start()) {
+                return CompletableFuture.completedFuture(queryString(command));
+            }
+            final String header = JVisaReadSizeCache.header(command);
+            final int readSize = READ_SIZE_CACHE.getReadSize(header);
+            final CompletableFuture<ByteBuffer> response = ASYNC_IO.query(encodeCommand(command), readSize);
+            return JVisaAsyncIo.cancelWith(response.thenApply(responseData -> {
+                final int responseSize = responseData.remaining();
+                READ_SIZE_CACHE.recordResponseSize(header, responseSize, responseSize >= readSize);
+                // This runs on the thread of the VISA library, so decode from the response's own array instead of
+                // copying it to responseBytes.
+                return decodeTrimmed(responseData.array(), responseSize);
+            }), response);
+        } catch (JVisaException ex) {
+            return CompletableFuture.failedFuture(ex);
+        }
+    }
+
     /**
      * Sends a command to the instrument. If setWriteTerminator() was called with a non-null string,
      * the terminator will be appended to the string before sending it to the instrument.
@@ -187,13 +536,32 @@ public class JVisaInstrument implements AutoCloseable {
      * @see <a href="https://www.ni.com/docs/en-US/bundle/ni-visa/page/ni-visa/viwrite.html">viWrite</a>
      */
     public void write(String command) throws JVisaException {
-        final String commandWithTerminator;
-        if (writeTerminator != null) {
-            commandWithTerminator = command + writeTerminator;
-        } else {
-            commandWithTerminator = command;
+        final ByteBuffer directBuffer = encodeCommand(command);
+        try {
+            writeAll(directBuffer);
+        } finally {
+            BUFFER_POOL.release(directBuffer);
+        }
+    }
+
+    /**
+     * @return a direct buffer from the buffer pool with the command and the write terminator, from position zero to
+     * the limit
+     */
+    private ByteBuffer encodeCommand(String command) {
+        final byte[] terminator = writeTerminatorBytes;
+        final ByteBuffer directBuffer = BUFFER_POOL.acquire(command.length() + (terminator == null ? 0 : terminator.length));
+        if (!JVisaUtils.putAscii(directBuffer, command)) {
+            // Other characters can take more than one byte in the default charset.
+            BUFFER_POOL.release(directBuffer);
+            final String commandWithTerminator = writeTerminator == null ? command : command + writeTerminator;
+            final byte[] bytes = commandWithTerminator.getBytes();
+            return BUFFER_POOL.acquire(bytes.length).put(bytes).flip();
         }
-        write(JVisaUtils.stringToByteBuffer(commandWithTerminator));
+        if (terminator != null) {
+            directBuffer.put(terminator);
+        }
+        return directBuffer.flip();
     }
 
     /**
@@ -205,35 +573,315 @@ public class JVisaInstrument implements AutoCloseable {
      * @see <a href="https://www.ni.com/docs/en-US/bundle/ni-visa/page/ni-visa/viwrite.html">viWrite</a>
      */
     public void write(byte[] bytes) throws JVisaException {
-        write(ByteBuffer.wrap(bytes));
+        writeAll(ByteBuffer.wrap(bytes));
     }
 
     /**
-     * Sends a command to the instrument. No write terminator is added.
-     *
-     * @param command the command to send to the instrument
+     * Sends the bytes from the position of the buffer to its limit. No write terminator is added. The position of the
+     * buffer is advanced by how many bytes were written.
+     * <p>
+     * A direct buffer is passed to the VISA library as-is, so nothing is allocated or copied.
      *
+     * @param buffer bytes to send to the instrument
+     * @return how many bytes were written
      * @throws JVisaException if the write operation fails
      * @see <a href="https://www.ni.com/docs/en-US/bundle/ni-visa/page/ni-visa/viwrite.html">viWrite</a>
      */
-    private void write(ByteBuffer buffer) throws JVisaException {
-        final int commandLength = buffer.limit();
-
-        final NativeLongByReference returnCount = new NativeLongByReference();
-        final NativeLong errorCode = VISA_LIBRARY.viWrite(INSTRUMENT_HANDLE,
-                buffer,
-                new NativeLong(commandLength),
-                returnCount
-        );
-        RESOURCE_MANAGER.checkError(errorCode, "viWrite");
+    public int write(ByteBuffer buffer) throws JVisaException {
+        final int byteCount = buffer.remaining();
+        final int count;
+        if (buffer.isDirect()) {
+            // The VISA library writes from the address of the buffer, not from its position.
+            count = write(buffer.position() == 0 ? buffer : buffer.slice(), byteCount);
+        } else {
+            final ByteBuffer directBuffer = BUFFER_POOL.acquire(byteCount);
+            try {
+                directBuffer.put(buffer.duplicate()).flip();
+                count = write(directBuffer, byteCount);
+            } finally {
+                BUFFER_POOL.release(directBuffer);
+            }
+        }
+        buffer.position(buffer.position() + count);
+        return count;
+    }
 
-        final long count = returnCount.getValue().longValue();
+    /**
+     * Sends every byte from the position of the buffer to its limit.
+     *
+     * @throws JVisaException if the write operation fails or if not every byte was written
+     */
+    private void writeAll(ByteBuffer buffer) throws JVisaException {
+        final int commandLength = buffer.remaining();
+        final int count = write(buffer);
         if (count != commandLength) {
             throw new JVisaException(String.format("Could only write %d instead of %d bytes.",
                     count, commandLength));
         }
     }
 
+    /**
+     * @param buffer direct buffer whose position is zero
+     * @return how many bytes were written
+     */
+    private int write(ByteBuffer buffer, int byteCount) throws JVisaException {
+        final int errorCode = BACKEND.viWrite(INSTRUMENT_HANDLE, buffer, byteCount, RETURN_COUNT);
+        RESOURCE_MANAGER.checkError(errorCode, "viWrite");
+        return RETURN_COUNT[0];
+    }
+
+    /**
+     * Sends a command followed by a definite length arbitrary block, like {@code "DATA #3512"} followed by 512 bytes.
+     * If setWriteTerminator() was called with a non-null string, the terminator is sent after the block.
+     * <p>
+     * The header and the data are sent with separate viWrite() calls, so the data is never copied into one big array
+     * with the header. A direct buffer is passed to the VISA library as-is. A heap buffer is copied one chunk at a time.
+     * The END indicator is only sent after the last part, if VI_ATTR_SEND_END_EN is enabled.
+     * <p>
+     * The position of the buffer is advanced to its limit.
+     *
+     * @param commandPrefix command before the block, like {@code "DATA "}
+     * @param data bytes from the position of the buffer to its limit are the data of the block
+     * @throws JVisaException if a write operation fails, or if the data is too big for a definite length block
+     * @see <a href="https://www.ni.com/docs/en-US/bundle/ni-visa/page/ni-visa/viwrite.html">viWrite</a>
+     */
+    public void writeBinaryBlock(String commandPrefix, ByteBuffer data) throws JVisaException {
+        final byte[] header = binaryBlockHeader(commandPrefix, data.remaining());
+        if (!data.isDirect()) {
+            final ByteBuffer source = data.duplicate();
+            writeBinaryBlock(header, data.remaining(), chunk -> {
+                final int count = chunk.remaining();
+                chunk.put(source.slice().limit(count));
+                source.position(source.position() + count);
+            });
+            data.position(data.limit());
+            return;
+        }
+        final byte[] terminator = writeTerminatorBytes;
+        final boolean isSendEndWanted = isSendEndEnabled();
+        boolean isSendEndDisabled = false;
+        final ByteBuffer headerBuffer = BUFFER_POOL.acquire(header.length);
+        try {
+            headerBuffer.put(header).flip();
+            isSendEndDisabled = setSendEndForPart(false, isSendEndWanted, isSendEndDisabled);
+            writeAll(headerBuffer);
+            isSendEndDisabled = setSendEndForPart(terminator == null, isSendEndWanted, isSendEndDisabled);
+            writeAll(data);
+            if (terminator != null) {
+                headerBuffer.clear();
+                headerBuffer.put(terminator).flip();
+                isSendEndDisabled = setSendEndForPart(true, isSendEndWanted, isSendEndDisabled);
+                writeAll(headerBuffer);
+            }
+        } finally {
+            restoreSendEnd(isSendEndDisabled);
+            BUFFER_POOL.release(headerBuffer);
+        }
+    }
+
+    /**
+     * Sends a command followed by a definite length arbitrary block which contains floats, like a waveform to upload
+     * to an arbitrary waveform generator. The floats are converted one chunk at a time.
+     *
+     * @param commandPrefix command before the block, like {@code "DATA "}
+     * @param data the data of the block
+     * @param byteOrder whether the instrument expects the most significant byte first (big-endian) or last
+     * (little-endian)
+     * @throws JVisaException if a write operation fails, or if the data is too big for a definite length block
+     * @see #writeBinaryBlock(String, ByteBuffer)
+     */
+    public void writeBinaryBlock(String commandPrefix, float[] data, ByteOrder byteOrder) throws JVisaException {
+        final long dataLength = (long) data.length * Float.BYTES;
+        final FloatBuffer source = FloatBuffer.wrap(data);
+        writeBinaryBlock(binaryBlockHeader(commandPrefix, dataLength), dataLength, chunk -> {
+            final int count = chunk.remaining() / Float.BYTES;
+            chunk.slice().order(byteOrder).asFloatBuffer().put(source.slice().limit(count));
+            source.position(source.position() + count);
+            chunk.position(chunk.position() + count * Float.BYTES);
+        });
+    }
+
+    /**
+     * Sends a command followed by a definite length arbitrary block which contains a file, read one chunk at a time.
+     *
+     * @param commandPrefix command before the block, like {@code "MMEM:DATA 'wave.bin',"}
+     * @param path file to send
+     * @throws JVisaException if a write operation fails, if the file couldn't be read, or if it's too big for a
+     * definite length block
+     * @see #writeBinaryBlock(String, ByteBuffer)
+     * @see #writeBinaryBlockWithVisa(String, Path)
+     */
+    public void writeBinaryBlock(String commandPrefix, Path path) throws JVisaException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            final long dataLength = channel.size();
+            writeBinaryBlock(binaryBlockHeader(commandPrefix, dataLength), dataLength, chunk -> {
+                if (channel.read(chunk) < 0) {
+                    throw new IOException("the file got shorter while it was sent");
+                }
+            });
+        } catch (IOException ex) {
+            throw new JVisaException("can't read binary block from file " + path, ex);
+        }
+    }
+
+    /**
+     * Sends a command followed by a definite length arbitrary block, and lets the VISA library read the data of the
+     * block from a file with viWriteFromFile(), without going through Java. The backend must support
+     * viWriteFromFile(), which the backends which use the native shared library do.
+     *
+     * @param commandPrefix command before the block, like {@code "MMEM:DATA 'wave.bin',"}
+     * @param path file to send
+     * @throws JVisaException if a write operation fails, if the backend doesn't support viWriteFromFile(), or if the
+     * file is too big for a definite length block
+     * @see #writeBinaryBlock(String, Path)
+     * @see <a href="https://www.ni.com/docs/en-US/bundle/ni-visa/page/ni-visa/viwritefromfile.html">viWriteFromFile</a>
+     */
+    public void writeBinaryBlockWithVisa(String commandPrefix, Path path) throws JVisaException {
+        final long dataLength;
+        try {
+            dataLength = Files.size(path);
+        } catch (IOException ex) {
+            throw new JVisaException("can't read binary block from file " + path, ex);
+        }
+        final byte[] header = binaryBlockHeader(commandPrefix, dataLength);
+        final byte[] terminator = writeTerminatorBytes;
+        final boolean isSendEndWanted = isSendEndEnabled();
+        boolean isSendEndDisabled = false;
+        final ByteBuffer headerBuffer = BUFFER_POOL.acquire(header.length);
+        try {
+            headerBuffer.put(header).flip();
+            isSendEndDisabled = setSendEndForPart(false, isSendEndWanted, isSendEndDisabled);
+            writeAll(headerBuffer);
+            isSendEndDisabled = setSendEndForPart(terminator == null, isSendEndWanted, isSendEndDisabled);
+            final int count = writeFromFile(path, (int) dataLength);
+            if (count != dataLength) {
+                throw new JVisaException(String.format("Could only write %d instead of %d bytes.", count, dataLength));
+            }
+            if (terminator != null) {
+                headerBuffer.clear();
+                headerBuffer.put(terminator).flip();
+                isSendEndDisabled = setSendEndForPart(true, isSendEndWanted, isSendEndDisabled);
+                writeAll(headerBuffer);
+            }
+        } finally {
+            restoreSendEnd(isSendEndDisabled);
+            BUFFER_POOL.release(headerBuffer);
+        }
+    }
+
+    /**
+     * Lets the VISA library read data from a file and send it to the instrument, without going through Java.
+     *
+     * @param path file to send
+     * @param byteCount how many bytes to send from the start of the file
+     * @return how many bytes were written
+     * @throws JVisaException if the write operation fails, or if the backend doesn't support viWriteFromFile()
+     * @see <a href="https://www.ni.com/docs/en-US/bundle/ni-visa/page/ni-visa/viwritefromfile.html">viWriteFromFile</a>
+     */
+    public int writeFromFile(Path path, int byteCount) throws JVisaException {
+        final int errorCode = BACKEND.viWriteFromFile(INSTRUMENT_HANDLE, path.toString(), byteCount, RETURN_COUNT);
+        RESOURCE_MANAGER.checkError(errorCode, "viWriteFromFile");
+        return RETURN_COUNT[0];
+    }
+
+    /**
+     * Sends a header and the data of a definite length arbitrary block in chunks of {@value #BINARY_BLOCK_CHUNK_SIZE}
+     * bytes, then the write terminator. The first chunk has the header and as much data as fits after it.
+     *
+     * @param header command prefix and arbitrary block header
+     * @param dataLength how many bytes of data the source has
+     * @param source puts the data into the chunks
+     */
+    private void writeBinaryBlock(byte[] header, long dataLength, ChunkSource source) throws JVisaException {
+        final byte[] terminator = writeTerminatorBytes;
+        final boolean isSendEndWanted = isSendEndEnabled();
+        boolean isSendEndDisabled = false;
+        final ByteBuffer chunk = BUFFER_POOL.acquire(Math.max(BINARY_BLOCK_CHUNK_SIZE, header.length));
+        try {
+            chunk.put(header);
+            long remainingCount = dataLength;
+            boolean isLastChunk = false;
+            while (!isLastChunk) {
+                if (remainingCount > 0) {
+                    final int start = chunk.position();
+                    chunk.limit(start + (int) Math.min(chunk.remaining(), remainingCount));
+                    try {
+                        source.fill(chunk);
+                    } catch (IOException ex) {
+                        throw new JVisaException("can't write binary block, the data couldn't be read", ex);
+                    }
+                    remainingCount -= chunk.position() - start;
+                    chunk.limit(chunk.capacity());
+                }
+                if (remainingCount == 0 && (terminator == null || terminator.length <= chunk.remaining())) {
+                    if (terminator != null) {
+                        chunk.put(terminator);
+                    }
+                    isLastChunk = true;
+                }
+                isSendEndDisabled = setSendEndForPart(isLastChunk, isSendEndWanted, isSendEndDisabled);
+                writeAll(chunk.flip());
+                chunk.clear();
+            }
+        } finally {
+            restoreSendEnd(isSendEndDisabled);
+            BUFFER_POOL.release(chunk);
+        }
+    }
+
+    /**
+     * @return the command prefix followed by {@code #}, how many digits the length has, and the length
+     * @throws JVisaException if the length doesn't fit in nine digits
+     */
+    private static byte[] binaryBlockHeader(String commandPrefix, long dataLength) throws JVisaException {
+        if (dataLength > MAX_DEFINITE_LENGTH) {
+            throw new JVisaException(String.format("%d bytes is too big for a definite length binary block, the most is %d",
+                    dataLength, MAX_DEFINITE_LENGTH));
+        }
+        final String length = Long.toString(dataLength);
+        return (commandPrefix + '#' + length.length() + length).getBytes();
+    }
+
+    /**
+     * Enables or disables VI_ATTR_SEND_END_EN before sending one part of a message which takes more than one
+     * viWrite(), so the END indicator is only sent after the last part.
+     *
+     * @param isLastPart whether the next part ends the message
+     * @param isSendEndWanted whether VI_ATTR_SEND_END_EN was enabled before the first part
+     * @param isSendEndDisabled whether this method disabled VI_ATTR_SEND_END_EN for an earlier part
+     * @return whether VI_ATTR_SEND_END_EN is disabled now
+     */
+    private boolean setSendEndForPart(boolean isLastPart, boolean isSendEndWanted, boolean isSendEndDisabled) throws JVisaException {
+        if (isSendEndWanted && isLastPart == isSendEndDisabled) {
+            setSendEndEnabled(isLastPart);
+            return !isLastPart;
+        }
+        return isSendEndDisabled;
+    }
+
+    /**
+     * Enables VI_ATTR_SEND_END_EN again if a message was abandoned after an earlier part disabled it. The status is
+     * ignored because the write which failed is more interesting.
+     */
+    private void restoreSendEnd(boolean isSendEndDisabled) {
+        if (isSendEndDisabled) {
+            BACKEND.viSetAttribute(INSTRUMENT_HANDLE, JVisaLibrary.VI_ATTR_SEND_END_EN, 1);
+        }
+    }
+
+    /**
+     * Puts the next bytes of a binary block into a chunk which is being sent.
+     */
+    @FunctionalInterface
+    private interface ChunkSource {
+
+        /**
+         * @param chunk buffer to put data into, up to its limit
+         * @throws IOException if the data couldn't be read
+         */
+        void fill(ByteBuffer chunk) throws IOException;
+    }
+
     /**
      * Reads data from the instrument, e.g. a command response or data.
      *
@@ -243,23 +891,65 @@ public class JVisaInstrument implements AutoCloseable {
      * @see <a href="https://www.ni.com/docs/en-US/bundle/ni-visa/page/ni-visa/viread.html">viRead</a>
      */
     public ByteBuffer readBytes(int byteCount) throws JVisaException {
-        final NativeLongByReference readCountNative = new NativeLongByReference();
-        final ByteBuffer responseBuf = ByteBuffer.allocate(byteCount);
+        final ByteBuffer directBuffer = BUFFER_POOL.acquire(byteCount);
+        try {
+            directBuffer.limit(read(directBuffer, byteCount));
+            final ByteBuffer responseBuf = ByteBuffer.allocate(byteCount);
+            responseBuf.put(directBuffer).flip();
+            return responseBuf;
+        } finally {
+            BUFFER_POOL.release(directBuffer);
+        }
+    }
 
-        final NativeLong errorCode = VISA_LIBRARY.viRead(INSTRUMENT_HANDLE,
-                responseBuf,
-                new NativeLong(byteCount),
-                readCountNative
-        );
-        RESOURCE_MANAGER.checkError(errorCode, "viRead");
+    /**
+     * Reads data from the instrument into the buffer, from its position up to its limit. The position of the buffer is
+     * advanced by how many bytes were read.
+     * <p>
+     * A direct buffer is passed to the VISA library as-is, so nothing is allocated or copied. A heap buffer is read
+     * through a direct buffer from the buffer pool, at most {@value JVisaBufferPool#MAX_POOLED_CAPACITY} bytes at a
+     * time. Fewer bytes than the buffer has room for are also read if the instrument sends an END indicator or the
+     * termination character.
+     *
+     * @param buffer where to put the bytes read from the instrument
+     * @return how many bytes were read
+     * @throws JVisaException if the read operation fails
+     * @see <a href="https://www.ni.com/docs/en-US/bundle/ni-visa/page/ni-visa/viread.html">viRead</a>
+     */
+    public int readInto(ByteBuffer buffer) throws JVisaException {
+        final int count;
+        if (buffer.isDirect()) {
+            // The VISA library reads to the address of the buffer, not to its position.
+            count = read(buffer.position() == 0 ? buffer : buffer.slice(), buffer.remaining());
+            buffer.position(buffer.position() + count);
+        } else {
+            final int byteCount = Math.min(buffer.remaining(), JVisaBufferPool.MAX_POOLED_CAPACITY);
+            final ByteBuffer directBuffer = BUFFER_POOL.acquire(byteCount);
+            try {
+                count = read(directBuffer, byteCount);
+                directBuffer.limit(count);
+                buffer.put(directBuffer);
+            } finally {
+                BUFFER_POOL.release(directBuffer);
+            }
+        }
+        return count;
+    }
 
-        final long readCount = readCountNative.getValue().longValue();
-        responseBuf.limit((int) readCount);
-        return responseBuf;
+    /**
+     * @param buffer direct buffer whose position is zero
+     * @return how many bytes were read
+     */
+    private int read(ByteBuffer buffer, int byteCount) throws JVisaException {
+        final int errorCode = BACKEND.viRead(INSTRUMENT_HANDLE, buffer, byteCount, RETURN_COUNT);
+        RESOURCE_MANAGER.checkError(errorCode, "viRead");
+        lastReadStatus = errorCode;
+        return RETURN_COUNT[0];
     }
 
     /**
-     * Reads a string from the instrument, e.g. a command response.
+     * Reads a string from the instrument, e.g. a command response. If the response is longer than the buffer, the rest
+     * isn't read. Use readResponseString() to read all of it.
      *
      * @param bufferSize size of response buffer in bytes
      * @return response from the instrument as a String
@@ -267,9 +957,178 @@ public class JVisaInstrument implements AutoCloseable {
      * @see <a href="https://www.ni.com/docs/en-US/bundle/ni-visa/page/ni-visa/viread.html">viRead</a>
      */
     public String readString(int bufferSize) throws JVisaException {
-        final ByteBuffer buf = readBytes(bufferSize);
-        // TODO check for off-by-one error
-        return new String(buf.array(), 0, buf.limit()).trim();
+        final ByteBuffer directBuffer = BUFFER_POOL.acquire(bufferSize);
+        try {
+            return decodeTrimmed(directBuffer, read(directBuffer, bufferSize));
+        } finally {
+            BUFFER_POOL.release(directBuffer);
+        }
+    }
+
+    /**
+     * Decodes bytes from index zero to the end, without whitespace at the start and end.
+     */
+    private String decodeTrimmed(ByteBuffer buffer, int end) {
+        int start = 0;
+        // Same as String.trim(), without making a second String.
+        while (start < end && (buffer.get(start) & 0xFF) <= ' ') {
+            start++;
+        }
+        while (end > start && (buffer.get(end - 1) & 0xFF) <= ' ') {
+            end--;
+        }
+        final int length = end - start;
+        if (responseBytes.length < length) {
+            responseBytes = new byte[Math.max(length, 2 * responseBytes.length)];
+        }
+        buffer.position(start);
+        buffer.get(responseBytes, 0, length);
+        return new String(responseBytes, 0, length);
+    }
+
+    /**
+     * Like {@link #decodeTrimmed(ByteBuffer, int)}, for bytes which are already in an array, so they're decoded
+     * without being copied first.
+     */
+    private static String decodeTrimmed(byte[] bytes, int end) {
+        int start = 0;
+        while (start < end && (bytes[start] & 0xFF) <= ' ') {
+            start++;
+        }
+        while (end > start && (bytes[end - 1] & 0xFF) <= ' ') {
+            end--;
+        }
+        return new String(bytes, start, end - start);
+    }
+
+    /**
+     * Reads a whole response, however long it is. Unlike readBytes() and readString(), which stop when their buffer is
+     * full, this keeps reading while viRead() returns VI_SUCCESS_MAX_CNT, until the instrument sends the END indicator
+     * or the termination character.
+     * <p>
+     * The response is read into a direct buffer from the buffer pool, which doubles in size whenever it's full. A
+     * read-only view of that buffer is returned instead of a copy, so it's only valid until the next call to
+     * readResponse() or queryResponse(). The buffer is kept for the next response, unless it grew bigger than
+     * {@value JVisaBufferPool#MAX_POOLED_CAPACITY} bytes.
+     *
+     * @return the response, from position zero to the limit
+     * @throws JVisaException if a read operation fails, or if the response doesn't fit in a ByteBuffer. Then use
+     * readChunks() instead.
+     * @see <a href="https://www.ni.com/docs/en-US/bundle/ni-visa/page/ni-visa/viread.html">viRead</a>
+     */
+    public ByteBuffer readResponse() throws JVisaException {
+        ByteBuffer buffer = responseBuffer;
+        responseBuffer = null;
+        if (buffer == null || buffer.capacity() > JVisaBufferPool.MAX_POOLED_CAPACITY) {
+            if (buffer != null) {
+                BUFFER_POOL.release(buffer);
+            }
+            buffer = BUFFER_POOL.acquire(DEFAULT_BUFFER_SIZE);
+        }
+        buffer.clear();
+        buffer = readUntilEnd(buffer);
+        responseBuffer = buffer;
+        return buffer.asReadOnlyBuffer();
+    }
+
+    /**
+     * Reads a whole response with a first read as big as the learned size for the command header, then learns from
+     * the size of the response.
+     */
+    private String readLearnedString(String header) throws JVisaException {
+        final int readSize = READ_SIZE_CACHE.getReadSize(header);
+        ByteBuffer buffer = BUFFER_POOL.acquire(readSize);
+        // The pooled buffer can be bigger than what was asked for, and the extra room is free.
+        final int firstReadSize = buffer.capacity();
+        buffer.limit(firstReadSize);
+        buffer = readUntilEnd(buffer);
+        try {
+            final int responseSize = buffer.limit();
+            READ_SIZE_CACHE.recordResponseSize(header, responseSize, responseSize >= firstReadSize);
+            return decodeTrimmed(buffer, responseSize);
+        } finally {
+            BUFFER_POOL.release(buffer);
+        }
+    }
+
+    /**
+     * Reads into a pooled buffer from its position until the instrument ends the response, moving to a pooled buffer
+     * twice as big whenever it's full.
+     *
+     * @param buffer direct buffer from the buffer pool, which this method releases if a read fails
+     * @return the buffer which has the response, from position zero to the limit. If it isn't the buffer which was
+     * passed, that one was released.
+     */
+    private ByteBuffer readUntilEnd(ByteBuffer buffer) throws JVisaException {
+        try {
+            do {
+                if (!buffer.hasRemaining()) {
+                    buffer = growResponseBuffer(buffer);
+                }
+                // The VISA library reads to the address of the buffer, not to its position.
+                final int count = read(buffer.position() == 0 ? buffer : buffer.slice(), buffer.remaining());
+                buffer.position(buffer.position() + count);
+            } while (lastReadStatus == JVisaLibrary.VI_SUCCESS_MAX_CNT);
+        } catch (JVisaException ex) {
+            BUFFER_POOL.release(buffer);
+            throw ex;
+        }
+        return buffer.flip();
+    }
+
+    /**
+     * Reads a whole response as a String, however long it is, without whitespace at the start and end.
+     *
+     * @return response from the instrument as a String
+     * @throws JVisaException if a read operation fails
+     * @see #readResponse()
+     */
+    public String readResponseString() throws JVisaException {
+        final ByteBuffer response = readResponse();
+        return decodeTrimmed(response, response.limit());
+    }
+
+    /**
+     * Sends a command and reads its whole response, however long it is.
+     *
+     * @param command string to send to the instrument
+     * @return a read-only view of the response, which is valid until the next call to readResponse() or queryResponse()
+     * @throws JVisaException if the write operation fails or a read operation fails
+     * @see #readResponse()
+     */
+    public ByteBuffer queryResponse(String command) throws JVisaException {
+        write(command);
+        return readResponse();
+    }
+
+    /**
+     * Sends a command and reads its whole response as a String, however long it is, like a long CSV list.
+     *
+     * @param command string to send to the instrument
+     * @return response from the instrument as a String
+     * @throws JVisaException if the write operation fails or a read operation fails
+     * @see #readResponse()
+     */
+    public String queryResponseString(String command) throws JVisaException {
+        write(command);
+        return readResponseString();
+    }
+
+    /**
+     * Moves a full response buffer to one twice as big.
+     *
+     * @return the new buffer, whose position is after the bytes which were copied
+     */
+    private ByteBuffer growResponseBuffer(ByteBuffer buffer) throws JVisaException {
+        final int capacity = buffer.capacity();
+        if (capacity >= Integer.MAX_VALUE / 2) {
+            throw new JVisaException("the response is too big for a ByteBuffer, read it with readChunks() instead");
+        }
+        final ByteBuffer biggerBuffer = BUFFER_POOL.acquire(2 * capacity);
+        biggerBuffer.limit(biggerBuffer.capacity());
+        biggerBuffer.put(buffer.flip());
+        BUFFER_POOL.release(buffer);
+        return biggerBuffer;
     }
 
     /**
@@ -287,6 +1146,8 @@ public class JVisaInstrument implements AutoCloseable {
      * @see "section 7.7.6 &lt;ARBITRARY BLOCK PROGRAM DATA&gt; of IEEE Std 488.2-1992"
      * @see "section 8.7.9 &lt;DEFINITE LENGTH ARBITRARY BLOCK RESPONSE DATA&gt; of IEEE Std
      * 488.2-1992"
+     * @see "section 8.7.10 &lt;INDEFINITE LENGTH ARBITRARY BLOCK RESPONSE DATA&gt; of IEEE Std
+     * 488.2-1992"
      * @see
      * <a href="https://github.com/pyvisa/pyvisa/blob/e01a7093b1df28f907631d96ba8699a8f0287023/pyvisa/resources/messagebased.py#L533">Function
      * <code>read_binary_values</code> in PyVISA</a>
@@ -324,8 +1185,375 @@ public class JVisaInstrument implements AutoCloseable {
             Response from "display:data?":
             #9 001152054 BM6\94\11...
         */
+        final ByteBuffer firstChunk = BUFFER_POOL.acquire(BINARY_BLOCK_FIRST_READ_SIZE);
+        final byte[] data;
+        final int copiedCount;
+        final boolean isTerminatorRead;
+        try {
+            final int dataLength = readBinaryBlockHeader(firstChunk);
+            if (dataLength == INDEFINITE_LENGTH) {
+                final GrowableByteArray array = new GrowableByteArray();
+                readIndefiniteLengthBlockData(firstChunk, array, null);
+                return array.toByteArray();
+            }
+            data = new byte[dataLength];
+            isTerminatorRead = firstChunk.remaining() > dataLength;
+            copiedCount = Math.min(firstChunk.remaining(), data.length);
+            firstChunk.get(data, 0, copiedCount);
+        } finally {
+            BUFFER_POOL.release(firstChunk);
+        }
+        readBinaryBlockData(ByteBuffer.wrap(data, copiedCount, data.length - copiedCount), isTerminatorRead);
+        return data;
+    }
+
+    /**
+     * Reads an arbitrary block into the buffer, from its position. The position of the buffer is advanced to the end of
+     * the data. If the buffer is direct, the data is read into it without a copy, except for the start of the data
+     * which was read with the header.
+     *
+     * @param buffer where to put the data of the block
+     * @return how many bytes of data the block had
+     * @throws JVisaException if the read operation fails, if the response isn't an arbitrary block, or if the data
+     * doesn't fit in the remaining space of the buffer
+     * @see #readBinaryBlock()
+     */
+    public int readBinaryBlock(ByteBuffer buffer) throws JVisaException {
+        final ByteBuffer firstChunk = BUFFER_POOL.acquire(BINARY_BLOCK_FIRST_READ_SIZE);
+        final int dataLength;
+        final int copiedCount;
+        final boolean isTerminatorRead;
+        try {
+            dataLength = readBinaryBlockHeader(firstChunk);
+            if (dataLength == INDEFINITE_LENGTH) {
+                return readIndefiniteLengthBlockData(firstChunk, buffer);
+            }
+            if (dataLength > buffer.remaining()) {
+                throw new JVisaException(String.format(
+                        "can't read binary block, it has %d bytes of data but the buffer only has room for %d",
+                        dataLength, buffer.remaining()));
+            }
+            isTerminatorRead = firstChunk.remaining() > dataLength;
+            copiedCount = Math.min(firstChunk.remaining(), dataLength);
+            firstChunk.limit(firstChunk.position() + copiedCount);
+            buffer.put(firstChunk);
+        } finally {
+            BUFFER_POOL.release(firstChunk);
+        }
+        final int originalLimit = buffer.limit();
+        buffer.limit(buffer.position() + dataLength - copiedCount);
+        try {
+            readBinaryBlockData(buffer, isTerminatorRead);
+        } finally {
+            buffer.limit(originalLimit);
+        }
+        return dataLength;
+    }
+
+    /**
+     * Reads an arbitrary block and passes its data to the consumer one chunk at a time, so only one chunk is in memory
+     * at once. The length of an indefinite length block doesn't need to be known before the consumer gets the first
+     * chunk.
+     *
+     * @param consumer receives the data of the block in chunks of at most {@value #BINARY_BLOCK_CHUNK_SIZE} bytes
+     * @return how many bytes of data the block had
+     * @throws JVisaException if the read operation fails, if the response isn't an arbitrary block, or if the consumer
+     * throws an IOException
+     * @see #readBinaryBlock()
+     */
+    public long readBinaryBlock(JVisaBinaryBlockConsumer consumer) throws JVisaException {
+        return readBinaryBlock(consumer, null);
+    }
+
+    /**
+     * Reads an arbitrary block and passes its data to the consumer one chunk at a time, and tells the listener after
+     * every chunk. Indefinite length blocks can be bigger than 2 GB.
+     * <p>
+     * Like readBinaryBlock(), the header is read exactly on sessions which don't send the END indicator, so the first
+     * read doesn't wait for the timeout when the block is shorter than a chunk.
+     *
+     * @param consumer receives the data of the block in chunks of at most {@value #BINARY_BLOCK_CHUNK_SIZE} bytes
+     * @param listener is told how many bytes were read so far, or null
+     * @return how many bytes of data the block had
+     * @throws JVisaException if the read operation fails, if the response isn't an arbitrary block, or if the consumer
+     * throws an IOException
+     * @see #readBinaryBlock(JVisaBinaryBlockConsumer)
+     */
+    public long readBinaryBlock(JVisaBinaryBlockConsumer consumer, JVisaProgressListener listener) throws JVisaException {
+        final ByteBuffer chunk = BUFFER_POOL.acquire(BINARY_BLOCK_CHUNK_SIZE);
+        try {
+            final int dataLength = readBinaryBlockHeader(chunk);
+            if (dataLength == INDEFINITE_LENGTH) {
+                return readIndefiniteLengthBlockData(chunk, consumer, listener);
+            }
+            if (consumer instanceof JVisaBlockDecoder) {
+                ((JVisaBlockDecoder) consumer).setDataLength(dataLength);
+            }
+            int remainingCount = dataLength;
+            boolean isTerminatorRead = false;
+            while (true) {
+                isTerminatorRead = chunk.remaining() > remainingCount;
+                chunk.limit(chunk.position() + Math.min(chunk.remaining(), remainingCount));
+                remainingCount -= chunk.remaining();
+                if (chunk.hasRemaining()) {
+                    accept(consumer, chunk);
+                }
+                if (listener != null) {
+                    listener.onProgress(dataLength - remainingCount, dataLength);
+                }
+                if (remainingCount == 0) {
+                    break;
+                }
+                if (lastReadStatus == 0) {
+                    throw new JVisaException(String.format(
+                            "can't read binary block, the response ended %d bytes before the end of the data", remainingCount));
+                }
+                chunk.clear();
+                chunk.limit(read(chunk, Math.min(chunk.capacity(), remainingCount)));
+            }
+            skipRestOfResponse(isTerminatorRead);
+            return dataLength;
+        } finally {
+            BUFFER_POOL.release(chunk);
+        }
+    }
+
+    /**
+     * Reads an arbitrary block of 32-bit floating point numbers, like a waveform in REAL,32 format.
+     * <p>
+     * The numbers are converted one chunk at a time while the block is read, so the data is never in memory as a byte
+     * array.
+     *
+     * @param byteOrder ByteOrder.BIG_ENDIAN if the instrument sends the most significant byte first, which is the
+     * default of most instruments, or ByteOrder.LITTLE_ENDIAN if it sends the least significant byte first
+     * @return the numbers in the block
+     * @throws JVisaException if the read operation fails, if the response isn't an arbitrary block, or if its length
+     * isn't a multiple of four bytes
+     */
+    public float[] readFloatBlock(ByteOrder byteOrder) throws JVisaException {
+        final JVisaBlockDecoder.FloatDecoder decoder = new JVisaBlockDecoder.FloatDecoder(byteOrder);
+        readBinaryBlock(decoder);
+        return decoder.toArray();
+    }
+
+    /**
+     * Reads an arbitrary block of 64-bit floating point numbers, like a waveform in REAL,64 format.
+     *
+     * @param byteOrder order of the bytes of each number which the instrument sends
+     * @return the numbers in the block
+     * @throws JVisaException if the read operation fails, if the response isn't an arbitrary block, or if its length
+     * isn't a multiple of eight bytes
+     * @see #readFloatBlock(ByteOrder)
+     */
+    public double[] readDoubleBlock(ByteOrder byteOrder) throws JVisaException {
+        final JVisaBlockDecoder.DoubleDecoder decoder = new JVisaBlockDecoder.DoubleDecoder(byteOrder);
+        readBinaryBlock(decoder);
+        return decoder.toArray();
+    }
+
+    /**
+     * Reads an arbitrary block of 16-bit integers, like a waveform in INT,16 or WORD format. Use
+     * {@link Short#toUnsignedInt(short)} if the instrument sends unsigned integers.
+     *
+     * @param byteOrder order of the bytes of each number which the instrument sends
+     * @return the numbers in the block
+     * @throws JVisaException if the read operation fails, if the response isn't an arbitrary block, or if its length
+     * isn't a multiple of two bytes
+     * @see #readFloatBlock(ByteOrder)
+     */
+    public short[] readShortBlock(ByteOrder byteOrder) throws JVisaException {
+        final JVisaBlockDecoder.ShortDecoder decoder = new JVisaBlockDecoder.ShortDecoder(byteOrder);
+        readBinaryBlock(decoder);
+        return decoder.toArray();
+    }
+
+    /**
+     * Reads an arbitrary block of 32-bit integers, like a waveform in INT,32 format.
+     *
+     * @param byteOrder order of the bytes of each number which the instrument sends
+     * @return the numbers in the block
+     * @throws JVisaException if the read operation fails, if the response isn't an arbitrary block, or if its length
+     * isn't a multiple of four bytes
+     * @see #readFloatBlock(ByteOrder)
+     */
+    public int[] readIntBlock(ByteOrder byteOrder) throws JVisaException {
+        final JVisaBlockDecoder.IntDecoder decoder = new JVisaBlockDecoder.IntDecoder(byteOrder);
+        readBinaryBlock(decoder);
+        return decoder.toArray();
+    }
+
+    /**
+     * Reads an arbitrary block and writes its data to a file, one chunk at a time, so only one chunk is in memory at
+     * once. The file is created, or replaced if it exists.
+     *
+     * @param path file to write the data to
+     * @return how many bytes of data the block had
+     * @throws JVisaException if the read operation fails, if the response isn't an arbitrary block, or if the file
+     * couldn't be written. Then the file might have some of the data.
+     * @see #readBinaryBlockToFileWithVisa(Path)
+     */
+    public long readBinaryBlockToFile(Path path) throws JVisaException {
+        return readBinaryBlockToFile(path, null);
+    }
+
+    /**
+     * Reads an arbitrary block and writes its data to a file, one chunk at a time, and tells the listener after every
+     * chunk. Indefinite length blocks can be bigger than 2 GB.
+     *
+     * @param path file to write the data to
+     * @param listener is told how many bytes were written so far, or null
+     * @return how many bytes of data the block had
+     * @throws JVisaException if the read operation fails, if the response isn't an arbitrary block, or if the file
+     * couldn't be written. Then the file might have some of the data.
+     * @see #readBinaryBlockToFile(Path)
+     */
+    public long readBinaryBlockToFile(Path path, JVisaProgressListener listener) throws JVisaException {
+        try (FileChannel channel = FileChannel.open(path,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            return readBinaryBlock(chunk -> {
+                while (chunk.hasRemaining()) {
+                    channel.write(chunk);
+                }
+            }, listener);
+        } catch (IOException ex) {
+            throw new JVisaException("can't write binary block to file " + path, ex);
+        }
+    }
+
+    /**
+     * Reads a definite length arbitrary block and lets the VISA library write its data to a file with viReadToFile(),
+     * so the data doesn't go through Java at all. The file is created, or replaced if it exists.
+     * <p>
+     * Only the header is read by JVisa, which takes a few more reads than readBinaryBlockToFile() because the data
+     * can't be read with it. The backend must support viReadToFile(), which the backends which use the native shared
+     * library do.
+     *
+     * @param path file to write the data to
+     * @return how many bytes of data the block had
+     * @throws JVisaException if the read operation fails, if the response isn't a definite length arbitrary block, or if
+     * the backend doesn't support viReadToFile()
+     * @see <a href="https://www.ni.com/docs/en-US/bundle/ni-visa/page/ni-visa/vireadtofile.html">viReadToFile</a>
+     */
+    public int readBinaryBlockToFileWithVisa(Path path) throws JVisaException {
+        final ByteBuffer header = BUFFER_POOL.acquire(2);
+        final int dataLength;
+        try {
+            dataLength = readBinaryBlockHeader(header);
+        } finally {
+            BUFFER_POOL.release(header);
+        }
+        if (dataLength == INDEFINITE_LENGTH) {
+            throw new JVisaException("can't read an indefinite length binary block with viReadToFile, use readBinaryBlockToFile() instead");
+        }
+        final int count = readToFile(path, dataLength);
+        if (count != dataLength) {
+            throw new JVisaException(String.format(
+                    "can't read binary block, the response ended %d bytes before the end of the data", dataLength - count));
+        }
+        skipRestOfResponse(false);
+        return dataLength;
+    }
+
+    /**
+     * Sends a command and writes the binary block in its response to a file, one chunk at a time. If
+     * setWriteTerminator() was called with a non-null string, the terminator will be appended to the string before
+     * sending it to the instrument.
+     *
+     * @param command string to send to the instrument
+     * @param path file to write the data to
+     * @return how many bytes of data the block had
+     * @throws JVisaException if the write operation fails, the read operation fails, or the file couldn't be written
+     * @see #readBinaryBlockToFile(Path)
+     */
+    public long queryBinaryBlockToFile(String command, Path path) throws JVisaException {
+        write(command);
+        return readBinaryBlockToFile(path);
+    }
+
+    /**
+     * Sends a command and writes the binary block in its response to a file, one chunk at a time, and tells the
+     * listener after every chunk.
+     *
+     * @see #queryBinaryBlockToFile(String, Path)
+     * @see #readBinaryBlockToFile(Path, JVisaProgressListener)
+     */
+    public long queryBinaryBlockToFile(String command, Path path, JVisaProgressListener listener) throws JVisaException {
+        write(command);
+        return readBinaryBlockToFile(path, listener);
+    }
+
+    /**
+     * Reads a response of any length and passes it to the consumer one chunk at a time, and tells the listener after
+     * every chunk. Unlike readBytes(), the byte count is a long, so responses bigger than 2 GB can be read, like a
+     * segmented-memory capture which isn't in an arbitrary block.
+     * <p>
+     * Like viRead(), it stops early at the END indicator or the termination character.
+     *
+     * @param byteCount most bytes to read
+     * @param consumer receives the data in chunks of at most {@value #BINARY_BLOCK_CHUNK_SIZE} bytes
+     * @param listener is told how many bytes were read so far, or null
+     * @return how many bytes were read
+     * @throws JVisaException if the read operation fails, or if the consumer throws an IOException
+     * @see <a href="https://www.ni.com/docs/en-US/bundle/ni-visa/page/ni-visa/viread.html">viRead</a>
+     */
+    public long readChunks(long byteCount, JVisaBinaryBlockConsumer consumer, JVisaProgressListener listener) throws JVisaException {
+        final ByteBuffer chunk = BUFFER_POOL.acquire(BINARY_BLOCK_CHUNK_SIZE);
+        try {
+            long readCount = 0;
+            while (readCount < byteCount) {
+                chunk.clear();
+                chunk.limit(read(chunk, (int) Math.min(chunk.capacity(), byteCount - readCount)));
+                readCount += chunk.remaining();
+                accept(consumer, chunk);
+                if (listener != null) {
+                    listener.onProgress(readCount, byteCount);
+                }
+                if (lastReadStatus != JVisaLibrary.VI_SUCCESS_MAX_CNT) {
+                    break;
+                }
+            }
+            return readCount;
+        } finally {
+            BUFFER_POOL.release(chunk);
+        }
+    }
+
+    /**
+     * Reads data from the instrument and lets the VISA library write it to a file, without going through Java. Like
+     * viRead(), it stops early at the END indicator or the termination character. The file is replaced unless
+     * VI_ATTR_FILE_APPEND_EN is enabled.
+     *
+     * @param path file to write the data to
+     * @param byteCount how many bytes to read
+     * @return how many bytes were read
+     * @throws JVisaException if the read operation fails, or if the backend doesn't support viReadToFile()
+     * @see <a href="https://www.ni.com/docs/en-US/bundle/ni-visa/page/ni-visa/vireadtofile.html">viReadToFile</a>
+     */
+    public int readToFile(Path path, int byteCount) throws JVisaException {
+        final int errorCode = BACKEND.viReadToFile(INSTRUMENT_HANDLE, path.toString(), byteCount, RETURN_COUNT);
+        RESOURCE_MANAGER.checkError(errorCode, "viReadToFile");
+        lastReadStatus = errorCode;
+        return RETURN_COUNT[0];
+    }
+
+    /**
+     * Reads the first chunk of an arbitrary block and parses the header from it. On sessions which send the END
+     * indicator, reading a whole chunk at once instead of the header one piece at a time saves round trips to the
+     * instrument. On other sessions a read only returns early at the termination character, so asking for more than
+     * the header could wait for the timeout: there the first two bytes and then the digits are read exactly.
+     *
+     * @param chunk direct buffer whose limit is how much to read at once
+     * @return how many bytes of data the block has, or INDEFINITE_LENGTH. Then the position of the chunk is at the start
+     * of the data and its limit is after the last byte which was read.
+     */
+    private int readBinaryBlockHeader(ByteBuffer chunk) throws JVisaException {
+        if (!isEndIndicatorSent()) {
+            chunk.limit(Math.min(chunk.limit(), 2));
+        }
+        readAtLeast(chunk, 2);
+
         final byte EXPECTED_FIRST_BYTE = '#';
-        final byte actualFirstByte = readBytes(1).get(0);
+        final byte actualFirstByte = chunk.get(0);
         if (actualFirstByte != EXPECTED_FIRST_BYTE) {
             throw new JVisaException(String.format(
                     "can't read binary block, the first byte is %d (0x%02X) ('%c'), expected %d (0x%02X) ('%c')",
@@ -334,27 +1562,239 @@ public class JVisaInstrument implements AutoCloseable {
             ));
         }
 
-        final byte secondByte = readBytes(1).get(0);
+        final byte secondByte = chunk.get(1);
         if (secondByte == '0') {
-            throw new UnsupportedOperationException("can't read binary block, indefinite-length not supported");
+            chunk.limit(chunk.position());
+            chunk.position(2);
+            return INDEFINITE_LENGTH;
         }
-        if (!Character.isDigit(secondByte)) {
+        if (secondByte < '1' || secondByte > '9') {
             throw new JVisaException(String.format(
-                    "can't read binary block, the second byte is %d (0x%02X) ('%c'), expected a nonzero ASCII digit (49 - 57) (0x31 - 0x39)",
+                    "can't read binary block, the second byte is %d (0x%02X) ('%c'), expected an ASCII digit (48 - 57) (0x30 - 0x39)",
                     Byte.toUnsignedInt(secondByte), secondByte, (char) secondByte
             ));
         }
 
         final int firstCount = secondByte - '0';
-        final String secondCountString = new String(readBytes(firstCount).array());
-        final int secondCount;
+        final int headerLength = 2 + firstCount;
+        readAtLeast(chunk, headerLength);
+        // At most nine digits, so it fits in an int.
+        int secondCount = 0;
+        for (int i = 2; i < headerLength; i++) {
+            final byte digit = chunk.get(i);
+            if (digit < '0' || digit > '9') {
+                final byte[] countBytes = new byte[firstCount];
+                chunk.get(2, countBytes);
+                throw new JVisaException("can't read binary block, couldn't parse an integer from string \""
+                        + new String(countBytes, StandardCharsets.US_ASCII) + "\"");
+            }
+            secondCount = 10 * secondCount + (digit - '0');
+        }
+
+        chunk.limit(chunk.position());
+        chunk.position(headerLength);
+        return secondCount;
+    }
+
+    /**
+     * Whether every response on this session ends with the END indicator. GPIB, VXI, USBTMC, VXI-11, and HiSLIP INSTR
+     * sessions send it with the last byte. TCPIP SOCKET, USB RAW, and serial sessions don't, so a read there which asks
+     * for more bytes than the instrument sends waits for the timeout, unless the termination character stops it.
+     */
+    private boolean isEndIndicatorSent() {
+        if (isEndIndicatorSent == null) {
+            boolean isSent;
+            try {
+                final int interfaceType = ByteBuffer.wrap(getAttributeBytes(JVisaLibrary.VI_ATTR_INTF_TYPE, 2))
+                        .order(ByteOrder.nativeOrder()).getShort();
+                isSent = interfaceType != JVisaLibrary.VI_INTF_ASRL
+                        && getAttributeString(JVisaLibrary.VI_ATTR_RSRC_CLASS).equals("INSTR");
+            } catch (JVisaException ex) {
+                // Reading exactly always works, it's only slower.
+                isSent = false;
+            }
+            isEndIndicatorSent = isSent;
+        }
+        return isEndIndicatorSent;
+    }
+
+    /**
+     * Reads until the position of the chunk is at least the byte count. If the limit of the chunk is less than the byte
+     * count, it's moved to the byte count, so nothing after it is read.
+     */
+    private void readAtLeast(ByteBuffer chunk, int byteCount) throws JVisaException {
+        if (chunk.limit() < byteCount) {
+            chunk.limit(byteCount);
+        }
+        while (chunk.position() < byteCount) {
+            readInto(chunk);
+            if (chunk.position() < byteCount && lastReadStatus == 0) {
+                throw new JVisaException(String.format(
+                        "can't read binary block, the response ended after %d bytes", chunk.position()));
+            }
+        }
+    }
+
+    /**
+     * Reads the rest of the data of a definite length block, which fills the buffer up to its limit, then the end of
+     * the response after the block.
+     *
+     * @param isTerminatorRead whether the first chunk had bytes after the data
+     */
+    private void readBinaryBlockData(ByteBuffer buffer, boolean isTerminatorRead) throws JVisaException {
+        while (buffer.hasRemaining()) {
+            isTerminatorRead = false;
+            if (lastReadStatus == 0) {
+                throw new JVisaException(String.format(
+                        "can't read binary block, the response ended %d bytes before the end of the data", buffer.remaining()));
+            }
+            readInto(buffer);
+        }
+        skipRestOfResponse(isTerminatorRead);
+    }
+
+    /**
+     * Passes the data of an indefinite length block to the consumer until the END indicator, in chunks of at most
+     * {@value #BINARY_BLOCK_CHUNK_SIZE} bytes. The termination character can't be used to find the end, because the
+     * data could have it too.
+     *
+     * @param firstChunk direct buffer which has the start of the data from its position to its limit
+     * @return how many bytes of data the block had
+     */
+    private long readIndefiniteLengthBlockData(ByteBuffer firstChunk, JVisaBinaryBlockConsumer consumer,
+                                               JVisaProgressListener listener) throws JVisaException {
+        long dataLength = 0;
+        ByteBuffer chunk = firstChunk;
         try {
-            secondCount = Integer.parseInt(secondCountString);
-        } catch (NumberFormatException ex) {
-            throw new JVisaException("can't read binary block, couldn't parse an integer from string \"" + secondCountString + "\"", ex);
+            while (true) {
+                final boolean isLastChunk = lastReadStatus == 0;
+                if (isLastChunk) {
+                    removeTrailingNewline(chunk);
+                }
+                dataLength += chunk.remaining();
+                accept(consumer, chunk);
+                if (listener != null) {
+                    listener.onProgress(dataLength, isLastChunk ? dataLength : -1);
+                }
+                if (isLastChunk) {
+                    return dataLength;
+                }
+                if (chunk == firstChunk && chunk.capacity() < BINARY_BLOCK_CHUNK_SIZE) {
+                    chunk = BUFFER_POOL.acquire(BINARY_BLOCK_CHUNK_SIZE);
+                }
+                chunk.clear();
+                chunk.limit(read(chunk, chunk.capacity()));
+            }
+        } finally {
+            if (chunk != firstChunk) {
+                BUFFER_POOL.release(chunk);
+            }
         }
+    }
 
-        return readBytes(secondCount).array();
+    /**
+     * Reads the data of an indefinite length block into the buffer until the END indicator. The buffer needs room for
+     * the newline at the end too.
+     *
+     * @param firstChunk direct buffer which has the start of the data from its position to its limit
+     * @return how many bytes of data the block had
+     */
+    private int readIndefiniteLengthBlockData(ByteBuffer firstChunk, ByteBuffer buffer) throws JVisaException {
+        final int start = buffer.position();
+        if (firstChunk.remaining() > buffer.remaining()) {
+            throw new JVisaException(String.format(
+                    "can't read binary block, it has more bytes of data than the buffer has room for (%d)", buffer.remaining()));
+        }
+        buffer.put(firstChunk);
+        while (lastReadStatus != 0) {
+            if (!buffer.hasRemaining()) {
+                throw new JVisaException(String.format(
+                        "can't read binary block, it has more bytes of data than the buffer has room for (%d)", buffer.position() - start));
+            }
+            readInto(buffer);
+        }
+        final ByteBuffer data = buffer.duplicate().flip().position(start);
+        removeTrailingNewline(data);
+        buffer.position(data.limit());
+        return data.remaining();
+    }
+
+    /**
+     * An indefinite length block ends with a newline and the END indicator. The newline isn't part of the data.
+     *
+     * @param data from its position to its limit, and the limit is moved back before the newline
+     */
+    private static void removeTrailingNewline(ByteBuffer data) {
+        if (data.hasRemaining() && data.get(data.limit() - 1) == '\n') {
+            data.limit(data.limit() - 1);
+        }
+    }
+
+    private static void accept(JVisaBinaryBlockConsumer consumer, ByteBuffer chunk) throws JVisaException {
+        try {
+            consumer.accept(chunk);
+        } catch (IOException ex) {
+            throw new JVisaException("can't read binary block, the consumer threw an exception", ex);
+        }
+    }
+
+    /**
+     * Collects an indefinite length block into a byte array.
+     */
+    private static final class GrowableByteArray implements JVisaBinaryBlockConsumer {
+        /**
+         * Some JVMs can't allocate an array of exactly Integer.MAX_VALUE elements.
+         */
+        private static final int MAX_ARRAY_LENGTH = Integer.MAX_VALUE - 8;
+
+        private byte[] bytes = new byte[BINARY_BLOCK_CHUNK_SIZE];
+        private int length = 0;
+
+        @Override
+        public void accept(ByteBuffer chunk) throws IOException {
+            final int chunkLength = chunk.remaining();
+            if (length + chunkLength > MAX_ARRAY_LENGTH || length + chunkLength < 0) {
+                throw new IOException("the block is too big for a byte array, read it with a JVisaBinaryBlockConsumer or to a file instead");
+            }
+            if (length + chunkLength > bytes.length) {
+                bytes = Arrays.copyOf(bytes, (int) Math.min(Math.max(length + chunkLength, 2L * bytes.length), MAX_ARRAY_LENGTH));
+            }
+            chunk.get(bytes, length, chunkLength);
+            length += chunkLength;
+        }
+
+        byte[] toByteArray() {
+            return bytes.length == length ? bytes : Arrays.copyOf(bytes, length);
+        }
+    }
+
+    /**
+     * Reads and ignores everything after the data of a definite length block until the END indicator or the termination
+     * character, like the newline after the block.
+     *
+     * @param isTerminatorRead whether the last read got bytes after the data, so if it stopped at the termination
+     * character, that was the one after the block
+     */
+    private void skipRestOfResponse(boolean isTerminatorRead) throws JVisaException {
+        if (lastReadStatus == JVisaLibrary.VI_SUCCESS_TERM_CHAR) {
+            if (isTerminatorRead) {
+                return;
+            }
+            // The last byte of the data is the termination character, so the one after the block is still waiting.
+        } else if (lastReadStatus != JVisaLibrary.VI_SUCCESS_MAX_CNT) {
+            return;
+        } else if (!isEndIndicatorSent() && !isReadTerminationCharacterEnabled()) {
+            // Nothing marks the end of the response, so another read would wait for the timeout.
+            return;
+        }
+        final ByteBuffer discardBuffer = BUFFER_POOL.acquire(JVisaBufferPool.MIN_CAPACITY);
+        try {
+            do {
+                read(discardBuffer, discardBuffer.limit());
+            } while (lastReadStatus == JVisaLibrary.VI_SUCCESS_MAX_CNT);
+        } finally {
+            BUFFER_POOL.release(discardBuffer);
+        }
     }
 
     /**
@@ -365,10 +1805,27 @@ public class JVisaInstrument implements AutoCloseable {
      * @see <a href="https://www.ni.com/docs/en-US/bundle/ni-visa/page/ni-visa/viclear.html">viClear</a>
      */
     public void clear() throws JVisaException {
-        final NativeLong errorCode = VISA_LIBRARY.viClear(INSTRUMENT_HANDLE);
+        final int errorCode = BACKEND.viClear(INSTRUMENT_HANDLE);
         RESOURCE_MANAGER.checkError(errorCode, "viClear");
     }
 
+    /**
+     * Reads the status byte of the instrument with a serial poll. On GPIB, USBTMC, VXI-11, and HiSLIP this doesn't send a
+     * message to the instrument, so it's much faster than a query like {@code *STB?} and doesn't disturb the output
+     * queue.
+     *
+     * @return the status byte. See the STATUS_BYTE_ constants for what some of its bits mean.
+     * @throws JVisaException if the serial poll failed, with status VI_ERROR_NSUP_OPER if the session doesn't support
+     * it
+     * @see <a href="https://www.ni.com/docs/en-US/bundle/ni-visa/page/ni-visa/vireadstb.html">viReadSTB</a>
+     */
+    public int readStatusByte() throws JVisaException {
+        final short[] statusByte = new short[1];
+        final int errorCode = BACKEND.viReadSTB(INSTRUMENT_HANDLE, statusByte);
+        RESOURCE_MANAGER.checkError(errorCode, "viReadSTB");
+        return statusByte[0] & 0xFF;
+    }
+
     /**
      * Closes an instrument session.
      *
@@ -377,7 +1834,10 @@ public class JVisaInstrument implements AutoCloseable {
      */
     @Override
     public void close() throws JVisaException {
-        final NativeLong errorCode = VISA_LIBRARY.viClose(INSTRUMENT_HANDLE);
+        responseBuffer = null;
+        BUFFER_POOL.clear();
+        final int errorCode = BACKEND.viClose(INSTRUMENT_HANDLE);
+        ASYNC_IO.close();
         RESOURCE_MANAGER.checkError(errorCode, "viClose");
     }
 
@@ -469,7 +1929,7 @@ public class JVisaInstrument implements AutoCloseable {
     private Memory getAttributeMemory(int attr, int bufferSize) throws JVisaException {
         final Memory rv = new Memory(bufferSize);
 
-        final NativeLong errorCode = VISA_LIBRARY.viGetAttribute(INSTRUMENT_HANDLE, new NativeLong(attr), rv);
+        final int errorCode = BACKEND.viGetAttribute(INSTRUMENT_HANDLE, attr, rv.getByteBuffer(0, bufferSize));
         RESOURCE_MANAGER.checkError(errorCode, "viGetAttribute");
 
         // apparently we can't dispose or free or finalize a Memory, just need to let JVM call finalize()
@@ -480,11 +1940,7 @@ public class JVisaInstrument implements AutoCloseable {
      * @see <a href="https://www.ni.com/docs/en-US/bundle/ni-visa/page/ni-visa/visetattribute.html">viSetAttribute</a>
      */
     public void setAttribute(int attr, long value) throws JVisaException {
-        final NativeLong status = VISA_LIBRARY.viSetAttribute(
-                INSTRUMENT_HANDLE,
-                new NativeLong(attr),
-                new NativeLong(value)
-        );
+        final int status = BACKEND.viSetAttribute(INSTRUMENT_HANDLE, attr, value);
         RESOURCE_MANAGER.checkError(status, "viSetAttribute");
     }
 
@@ -513,8 +1969,8 @@ public class JVisaInstrument implements AutoCloseable {
      * @see <a href="https://www.ni.com/docs/en-US/bundle/ni-visa/page/ni-visa/viinstallhandler.html">viInstallHandler</a>
      */
     public void addEventHandler(JVisaEventHandler handle) throws JVisaException {
-        final NativeLong errorCode = VISA_LIBRARY.viInstallHandler(INSTRUMENT_HANDLE,
-                new NativeLong(handle.EVENT_TYPE.VALUE),
+        final int errorCode = BACKEND.viInstallHandler(INSTRUMENT_HANDLE,
+                handle.EVENT_TYPE.VALUE,
                 handle.CALLBACK,
                 handle.USER_DATA
         );
@@ -525,8 +1981,8 @@ public class JVisaInstrument implements AutoCloseable {
      * @see <a href="https://www.ni.com/docs/en-US/bundle/ni-visa/page/ni-visa/viuninstallhandler.html">viUninstallHandler</a>
      */
     public void removeEventHandler(JVisaEventHandler handle) throws JVisaException {
-        final NativeLong statusUninstall = VISA_LIBRARY.viUninstallHandler(INSTRUMENT_HANDLE,
-                new NativeLong(handle.EVENT_TYPE.VALUE),
+        final int statusUninstall = BACKEND.viUninstallHandler(INSTRUMENT_HANDLE,
+                handle.EVENT_TYPE.VALUE,
                 handle.CALLBACK,
                 handle.USER_DATA
         );
@@ -538,11 +1994,11 @@ public class JVisaInstrument implements AutoCloseable {
      */
     public void enableEvent(JVisaEventType eventType) throws JVisaException {
 
-        final NativeLong statusEnableEvent = VISA_LIBRARY.viEnableEvent(
+        final int statusEnableEvent = BACKEND.viEnableEvent(
                 INSTRUMENT_HANDLE,
-                new NativeLong(eventType.VALUE),
+                eventType.VALUE,
                 (short) JVisaLibrary.VI_HNDLR, //mechanism
-                new NativeLong(0) //context
+                0 //context
         );
         RESOURCE_MANAGER.checkError(statusEnableEvent, "viEnableEvent");
     }
@@ -552,9 +2008,9 @@ public class JVisaInstrument implements AutoCloseable {
      */
     public void disableEvent(JVisaEventType eventType) throws JVisaException {
 
-        final NativeLong statusEnableEvent = VISA_LIBRARY.viDisableEvent(
+        final int statusEnableEvent = BACKEND.viDisableEvent(
                 INSTRUMENT_HANDLE,
-                new NativeLong(eventType.VALUE),
+                eventType.VALUE,
                 (short) JVisaLibrary.VI_HNDLR //mechanism
         );
         RESOURCE_MANAGER.checkError(statusEnableEvent, "viDisableEvent");
@@ -564,9 +2020,9 @@ public class JVisaInstrument implements AutoCloseable {
      * @see <a href="https://www.ni.com/docs/en-US/bundle/ni-visa/page/ni-visa/vidiscardevents.html">viDiscardEvents</a>
      */
     public void discardEvents(JVisaEventType eventType) throws JVisaException {
-        final NativeLong status = VISA_LIBRARY.viDiscardEvents(
+        final int status = BACKEND.viDiscardEvents(
                 INSTRUMENT_HANDLE,
-                new NativeLong(eventType.VALUE),
+                eventType.VALUE,
                 (short) JVisaLibrary.VI_ALL_MECH //mechanism
         );
         RESOURCE_MANAGER.checkError(status, "viDiscardEvents");
@@ -628,6 +2084,21 @@ public class JVisaInstrument implements AutoCloseable {
         return getAttributeBytes(JVisaLibrary.VI_ATTR_TERMCHAR_EN, 1)[0] == 1;
     }
 
+    /**
+     * VI_ATTR_SEND_END_EN is whether to assert END during the transfer of the last byte of every write. The default is
+     * true.
+     *
+     * @see
+     * <a href="https://www.ni.com/docs/en-US/bundle/ni-visa/page/ni-visa/vi_attr_send_end_en.html">VI_ATTR_SEND_END_EN</a>
+     */
+    public void setSendEndEnabled(boolean isSendEndEnabled) throws JVisaException {
+        setAttribute(JVisaLibrary.VI_ATTR_SEND_END_EN, isSendEndEnabled ? 1 : 0);
+    }
+
+    public boolean isSendEndEnabled() throws JVisaException {
+        return getAttributeBytes(JVisaLibrary.VI_ATTR_SEND_END_EN, 1)[0] == 1;
+    }
+
     /**
      * Specify a string which will be appended to all commands sent to the instrument, or null to not append a
      * terminator.
@@ -637,10 +2108,25 @@ public class JVisaInstrument implements AutoCloseable {
      */
     public void setWriteTerminator(String writeTerminator) {
         this.writeTerminator = writeTerminator;
+        writeTerminatorBytes = writeTerminator == null ? null : writeTerminator.getBytes();
     }
 
     public String getWriteTerminator() {
         return writeTerminator;
     }
 
+    /**
+     * @return the direct buffers which this instrument reuses for reading and writing, to check its statistics
+     */
+    public JVisaBufferPool getBufferPool() {
+        return BUFFER_POOL;
+    }
+
+    /**
+     * @return the response sizes which queryString() learned for each command header, to check or clear them
+     */
+    public JVisaReadSizeCache getReadSizeCache() {
+        return READ_SIZE_CACHE;
+    }
+
 }
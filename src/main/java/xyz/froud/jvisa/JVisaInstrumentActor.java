@@ -0,0 +1,253 @@
+/**
+ * @license Copyright 2018-2020 Peter Froud
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package xyz.froud.jvisa;
+
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Lets many threads share one JVisaInstrument, by running everything they submit on one thread, one operation at a
+ * time.
+ * <p>
+ * JVisaInstrument isn't thread-safe: if two threads call queryString() at the same time, the writes and reads can
+ * interleave and each thread can get the other's response. Here each operation, like a write followed by a read, runs
+ * completely before the next one starts, in the order they were submitted. Operations are submitted to a lock-free
+ * queue, so submitting never waits for a monitor or for the instrument; the result comes back in a CompletableFuture.
+ * <p>
+ * After the actor is created, the instrument must only be used through it.
+ *
+ * @author Peter Froud
+ */
+public final class JVisaInstrumentActor implements AutoCloseable {
+
+    /**
+     * Something to do with the instrument, which no other thread can use while it runs.
+     *
+     * @param <T> type of the result
+     */
+    @FunctionalInterface
+    public interface Operation<T> {
+
+        T apply(JVisaInstrument instrument) throws JVisaException;
+    }
+
+    private final JVisaInstrument INSTRUMENT;
+
+    /**
+     * Any thread adds to it, only CONSUMER removes from it while running.
+     */
+    private final Queue<Task<?>> QUEUE = new ConcurrentLinkedQueue<>();
+
+    private final Thread CONSUMER;
+
+    /**
+     * Completed by CONSUMER after it closed the instrument, so the instrument is only closed once, after the last
+     * operation.
+     */
+    private final CompletableFuture<Void> INSTRUMENT_CLOSED = new CompletableFuture<>();
+
+    /**
+     * Whether CONSUMER might be parked, so a producer needs to unpark it.
+     */
+    private volatile boolean isConsumerParked = false;
+
+    /**
+     * Set by close(). Operations which were already submitted still run.
+     */
+    private volatile boolean isClosed = false;
+
+    /**
+     * Set when CONSUMER exits, so operations submitted after that are failed instead of waiting forever.
+     */
+    private volatile boolean isStopped = false;
+
+    /**
+     * Starts the thread which runs the operations.
+     *
+     * @param instrument the instrument which only this actor will use from now on
+     */
+    public JVisaInstrumentActor(JVisaInstrument instrument) {
+        INSTRUMENT = instrument;
+        CONSUMER = new Thread(this::runOperations, "JVisa " + instrument.RESOURCE_NAME);
+        CONSUMER.setDaemon(true);
+        CONSUMER.start();
+    }
+
+    /**
+     * Adds an operation to the end of the queue.
+     *
+     * @return completed with the result of the operation, or with the exception it threw. Cancelling the future before
+     * the operation starts skips the operation.
+     */
+    public <T> CompletableFuture<T> submit(Operation<T> operation) {
+        final Task<T> task = new Task<>(operation);
+        if (isClosed) {
+            task.FUTURE.completeExceptionally(new JVisaException("the actor for " + INSTRUMENT.RESOURCE_NAME + " is closed"));
+            return task.FUTURE;
+        }
+        QUEUE.offer(task);
+        if (isConsumerParked) {
+            LockSupport.unpark(CONSUMER);
+        }
+        if (isStopped) {
+            failRemainingTasks();
+        }
+        return task.FUTURE;
+    }
+
+    /**
+     * Runs an operation after the operations which were already submitted, and waits for it. When called from an
+     * operation, it runs right away.
+     *
+     * @return the result of the operation
+     * @throws JVisaException if the operation threw it, if the actor is closed, or if the thread was interrupted while
+     * waiting
+     */
+    public <T> T call(Operation<T> operation) throws JVisaException {
+        if (Thread.currentThread() == CONSUMER) {
+            return operation.apply(INSTRUMENT);
+        }
+        try {
+            return submit(operation).get();
+        } catch (ExecutionException ex) {
+            final Throwable cause = ex.getCause();
+            if (cause instanceof JVisaException) {
+                throw (JVisaException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new JVisaException("operation on " + INSTRUMENT.RESOURCE_NAME + " failed", cause);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new JVisaException("interrupted while waiting for " + INSTRUMENT.RESOURCE_NAME, ex);
+        }
+    }
+
+    /**
+     * Sends a command and receives its response, without any other operation in between.
+     *
+     * @see JVisaInstrument#queryString(String)
+     */
+    public CompletableFuture<String> queryString(String command) {
+        return submit(instrument -> instrument.queryString(command));
+    }
+
+    /**
+     * Sends a command.
+     *
+     * @see JVisaInstrument#write(String)
+     */
+    public CompletableFuture<Void> write(String command) {
+        return submit(instrument -> {
+            instrument.write(command);
+            return null;
+        });
+    }
+
+    /**
+     * Runs the operations which were already submitted, stops the thread, and closes the instrument. Operations
+     * submitted after this fail. Calling it again only waits for the first call.
+     * <p>
+     * When called from an operation, it returns right away, and the instrument is closed after the operations which are
+     * still in the queue.
+     *
+     * @throws JVisaException if the instrument couldn't be closed, or if the thread was interrupted while waiting
+     */
+    @Override
+    public void close() throws JVisaException {
+        isClosed = true;
+        LockSupport.unpark(CONSUMER);
+        if (Thread.currentThread() == CONSUMER) {
+            return;
+        }
+        try {
+            INSTRUMENT_CLOSED.get();
+        } catch (ExecutionException ex) {
+            final Throwable cause = ex.getCause();
+            if (cause instanceof JVisaException) {
+                throw (JVisaException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new JVisaException("couldn't close " + INSTRUMENT.RESOURCE_NAME, cause);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new JVisaException("interrupted while waiting for the operations on " + INSTRUMENT.RESOURCE_NAME, ex);
+        }
+    }
+
+    private void runOperations() {
+        while (true) {
+            final Task<?> task = QUEUE.poll();
+            if (task != null) {
+                task.run(INSTRUMENT);
+                continue;
+            }
+            if (isClosed) {
+                break;
+            }
+            isConsumerParked = true;
+            // Check again after setting the flag, so an operation offered in between isn't missed.
+            if (QUEUE.isEmpty() && !isClosed) {
+                LockSupport.park(this);
+            }
+            isConsumerParked = false;
+        }
+        isStopped = true;
+        failRemainingTasks();
+        try {
+            INSTRUMENT.close();
+            INSTRUMENT_CLOSED.complete(null);
+        } catch (Throwable t) {
+            INSTRUMENT_CLOSED.completeExceptionally(t);
+        }
+    }
+
+    private void failRemainingTasks() {
+        Task<?> task;
+        while ((task = QUEUE.poll()) != null) {
+            task.FUTURE.completeExceptionally(new JVisaException("the actor for " + INSTRUMENT.RESOURCE_NAME + " is closed"));
+        }
+    }
+
+    private static final class Task<T> {
+
+        final Operation<T> OPERATION;
+        final CompletableFuture<T> FUTURE = new CompletableFuture<>();
+
+        Task(Operation<T> operation) {
+            OPERATION = operation;
+        }
+
+        void run(JVisaInstrument instrument) {
+            if (FUTURE.isDone()) {
+                // It was cancelled.
+                return;
+            }
+            try {
+                FUTURE.complete(OPERATION.apply(instrument));
+            } catch (Throwable t) {
+                FUTURE.completeExceptionally(t);
+            }
+        }
+    }
+
+}
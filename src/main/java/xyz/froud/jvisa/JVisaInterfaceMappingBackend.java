@@ -0,0 +1,239 @@
+/**
+ * @license Copyright 2018-2020 Peter Froud
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package xyz.froud.jvisa;
+
+import com.sun.jna.Native;
+import com.sun.jna.NativeLong;
+import com.sun.jna.Pointer;
+import com.sun.jna.ptr.NativeLongByReference;
+import xyz.froud.jvisa.eventhandling.JVisaEventCallback;
+
+import java.nio.ByteBuffer;
+import java.nio.ShortBuffer;
+
+/**
+ * Calls the native library through the JVisaLibrary interface proxy.
+ * <p>
+ * The other native backends extend this class and only override the calls JVisaInstrument makes for every read,
+ * write, and attribute access.
+ *
+ * @author Peter Froud
+ * @see JVisaBinding#INTERFACE_MAPPING
+ */
+class JVisaInterfaceMappingBackend implements JVisaBackend {
+
+    final JVisaLibrary VISA_LIBRARY;
+
+    JVisaInterfaceMappingBackend(JVisaLibrary visaLibrary) {
+        VISA_LIBRARY = visaLibrary;
+    }
+
+    /**
+     * ViSession and ViUInt32 are unsigned, so don't sign-extend them when widening to a NativeLong.
+     */
+    private static NativeLong unsigned(int value) {
+        return new NativeLong(Integer.toUnsignedLong(value));
+    }
+
+    @Override
+    public String getName() {
+        return "interface_mapping";
+    }
+
+    @Override
+    public int viOpenDefaultRM(int[] session) {
+        final NativeLongByReference sessionNative = new NativeLongByReference();
+        final int status = VISA_LIBRARY.viOpenDefaultRM(sessionNative).intValue();
+        session[0] = sessionNative.getValue().intValue();
+        return status;
+    }
+
+    @Override
+    public int viOpen(int rmSession, String resourceName, int accessMode, int openTimeout, int[] session) {
+        final NativeLongByReference sessionNative = new NativeLongByReference();
+        final int status = VISA_LIBRARY.viOpen(unsigned(rmSession),
+                JVisaUtils.stringToByteBuffer(resourceName),
+                unsigned(accessMode),
+                unsigned(openTimeout),
+                sessionNative
+        ).intValue();
+        session[0] = sessionNative.getValue().intValue();
+        return status;
+    }
+
+    @Override
+    public int viFindRsrc(int rmSession, String expression, int[] findList, int[] returnCount, ByteBuffer description) {
+        final NativeLongByReference findListNative = new NativeLongByReference();
+        final NativeLongByReference returnCountNative = new NativeLongByReference();
+        final int status = VISA_LIBRARY.viFindRsrc(unsigned(rmSession),
+                JVisaUtils.stringToByteBuffer(expression),
+                findListNative,
+                returnCountNative,
+                description
+        ).intValue();
+        findList[0] = findListNative.getValue().intValue();
+        returnCount[0] = returnCountNative.getValue().intValue();
+        return status;
+    }
+
+    @Override
+    public int viFindNext(int findList, ByteBuffer description) {
+        return VISA_LIBRARY.viFindNext(unsigned(findList), description).intValue();
+    }
+
+    @Override
+    public int viParseRsrc(int rmSession, String resourceName, short[] interfaceType, short[] interfaceNumber) {
+        final ShortBuffer interfaceTypeNative = ShortBuffer.allocate(1);
+        final ShortBuffer interfaceNumberNative = ShortBuffer.allocate(1);
+        final int status = VISA_LIBRARY.viParseRsrc(unsigned(rmSession),
+                JVisaUtils.stringToByteBuffer(resourceName),
+                interfaceTypeNative,
+                interfaceNumberNative
+        ).intValue();
+        interfaceType[0] = interfaceTypeNative.get(0);
+        interfaceNumber[0] = interfaceNumberNative.get(0);
+        return status;
+    }
+
+    @Override
+    public int viParseRsrcEx(int rmSession, String resourceName, short[] interfaceType, short[] interfaceNumber,
+                             ByteBuffer resourceClass, ByteBuffer expandedUnaliasedName, ByteBuffer aliasIfExists) {
+        final ShortBuffer interfaceTypeNative = ShortBuffer.allocate(1);
+        final ShortBuffer interfaceNumberNative = ShortBuffer.allocate(1);
+        final int status = VISA_LIBRARY.viParseRsrcEx(unsigned(rmSession),
+                JVisaUtils.stringToByteBuffer(resourceName),
+                interfaceTypeNative,
+                interfaceNumberNative,
+                resourceClass,
+                expandedUnaliasedName,
+                aliasIfExists
+        ).intValue();
+        interfaceType[0] = interfaceTypeNative.get(0);
+        interfaceNumber[0] = interfaceNumberNative.get(0);
+        return status;
+    }
+
+    @Override
+    public int viStatusDesc(int vi, int status, ByteBuffer description) {
+        return VISA_LIBRARY.viStatusDesc(unsigned(vi), new NativeLong(status), description).intValue();
+    }
+
+    @Override
+    public int viClose(int vi) {
+        return VISA_LIBRARY.viClose(unsigned(vi)).intValue();
+    }
+
+    @Override
+    public int viSetAttribute(int vi, int attribute, long value) {
+        return VISA_LIBRARY.viSetAttribute(unsigned(vi), unsigned(attribute), new NativeLong(value)).intValue();
+    }
+
+    @Override
+    public int viGetAttribute(int vi, int attribute, ByteBuffer value) {
+        return VISA_LIBRARY.viGetAttribute(unsigned(vi), unsigned(attribute), Native.getDirectBufferPointer(value)).intValue();
+    }
+
+    @Override
+    public int viRead(int vi, ByteBuffer buffer, int count, int[] returnCount) {
+        final NativeLongByReference returnCountNative = new NativeLongByReference();
+        final int status = VISA_LIBRARY.viRead(unsigned(vi), buffer, unsigned(count), returnCountNative).intValue();
+        returnCount[0] = returnCountNative.getValue().intValue();
+        return status;
+    }
+
+    @Override
+    public int viWrite(int vi, ByteBuffer buffer, int count, int[] returnCount) {
+        final NativeLongByReference returnCountNative = new NativeLongByReference();
+        final int status = VISA_LIBRARY.viWrite(unsigned(vi), buffer, unsigned(count), returnCountNative).intValue();
+        returnCount[0] = returnCountNative.getValue().intValue();
+        return status;
+    }
+
+    @Override
+    public int viClear(int vi) {
+        return VISA_LIBRARY.viClear(unsigned(vi)).intValue();
+    }
+
+    @Override
+    public int viReadSTB(int vi, short[] statusByte) {
+        return VISA_LIBRARY.viReadSTB(unsigned(vi), ShortBuffer.wrap(statusByte)).intValue();
+    }
+
+    @Override
+    public int viReadToFile(int vi, String fileName, int count, int[] returnCount) {
+        final NativeLongByReference returnCountNative = new NativeLongByReference();
+        final int status = VISA_LIBRARY.viReadToFile(unsigned(vi), JVisaUtils.stringToByteBuffer(fileName),
+                unsigned(count), returnCountNative).intValue();
+        returnCount[0] = returnCountNative.getValue().intValue();
+        return status;
+    }
+
+    @Override
+    public int viWriteFromFile(int vi, String fileName, int count, int[] returnCount) {
+        final NativeLongByReference returnCountNative = new NativeLongByReference();
+        final int status = VISA_LIBRARY.viWriteFromFile(unsigned(vi), JVisaUtils.stringToByteBuffer(fileName),
+                unsigned(count), returnCountNative).intValue();
+        returnCount[0] = returnCountNative.getValue().intValue();
+        return status;
+    }
+
+    @Override
+    public int viReadAsync(int vi, ByteBuffer buffer, int count, int[] jobId) {
+        final NativeLongByReference jobIdNative = new NativeLongByReference();
+        final int status = VISA_LIBRARY.viReadAsync(unsigned(vi), buffer, unsigned(count), jobIdNative).intValue();
+        jobId[0] = jobIdNative.getValue().intValue();
+        return status;
+    }
+
+    @Override
+    public int viWriteAsync(int vi, ByteBuffer buffer, int count, int[] jobId) {
+        final NativeLongByReference jobIdNative = new NativeLongByReference();
+        final int status = VISA_LIBRARY.viWriteAsync(unsigned(vi), buffer, unsigned(count), jobIdNative).intValue();
+        jobId[0] = jobIdNative.getValue().intValue();
+        return status;
+    }
+
+    @Override
+    public int viTerminate(int vi, short degree, int jobId) {
+        return VISA_LIBRARY.viTerminate(unsigned(vi), degree, unsigned(jobId)).intValue();
+    }
+
+    @Override
+    public int viInstallHandler(int vi, int eventType, JVisaEventCallback handler, Pointer userHandle) {
+        return VISA_LIBRARY.viInstallHandler(unsigned(vi), unsigned(eventType), handler, userHandle).intValue();
+    }
+
+    @Override
+    public int viUninstallHandler(int vi, int eventType, JVisaEventCallback handler, Pointer userHandle) {
+        return VISA_LIBRARY.viUninstallHandler(unsigned(vi), unsigned(eventType), handler, userHandle).intValue();
+    }
+
+    @Override
+    public int viEnableEvent(int vi, int eventType, short mechanism, int context) {
+        return VISA_LIBRARY.viEnableEvent(unsigned(vi), unsigned(eventType), mechanism, unsigned(context)).intValue();
+    }
+
+    @Override
+    public int viDisableEvent(int vi, int eventType, short mechanism) {
+        return VISA_LIBRARY.viDisableEvent(unsigned(vi), unsigned(eventType), mechanism).intValue();
+    }
+
+    @Override
+    public int viDiscardEvents(int vi, int eventType, short mechanism) {
+        return VISA_LIBRARY.viDiscardEvents(unsigned(vi), unsigned(eventType), mechanism).intValue();
+    }
+
+}
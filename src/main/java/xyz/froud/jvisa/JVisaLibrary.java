@@ -1638,9 +1638,11 @@ public interface JVisaLibrary extends Library {
      * @param aliasIfExists name alias
      * @return status of the operation
      */
-//    NativeLong viParseRsrcEx(NativeLong rmSession, ByteBuffer rsrcName, ShortBuffer intfType, ShortBuffer intfNum, ByteBuffer rsrcClass, ByteBuffer expandedUnaliasedName, ByteBuffer aliasIfExists);
+    NativeLong viParseRsrcEx(NativeLong rmSession, ByteBuffer rsrcName, ShortBuffer intfType, ShortBuffer intfNum, ByteBuffer rsrcClass, ByteBuffer expandedUnaliasedName, ByteBuffer aliasIfExists);
+
     // pretty sure some of these should be integer types, not a buffer. PF
     // http://zone.ni.com/reference/en-XX/help/370131S-01/ni-visa/viparsersrcex/
+    // The overload above matches visa.h: ViPUInt16 intfType, ViPUInt16 intfNum, ViChar rsrcClass[].
     NativeLong viParseRsrcEx(NativeLong rmSession, ByteBuffer rsrcName, NativeLongByReference intfType, NativeLongByReference intfNum, NativeLongByReference rsrcClass, ByteBuffer expandedUnaliasedName, ByteBuffer aliasIfExists);
 
     /**
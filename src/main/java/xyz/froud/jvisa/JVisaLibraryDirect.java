@@ -0,0 +1,134 @@
+/**
+ * @license Copyright 2018-2020 Peter Froud
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package xyz.froud.jvisa;
+
+import com.sun.jna.Native;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Direct-mapped binding for the {@code visa.h} functions which JVisaInstrument calls for every read, write, and
+ * attribute access.
+ * <p>
+ * JVisaLibrary is an interface, so JNA implements it with a proxy which uses reflection and converts every argument on
+ * every call. The static native methods in this class are registered with {@link Native#register(Class, String)}
+ * instead, which is much cheaper per call. Direct mapping only allows one native library per class, so the class can
+ * only be registered once.
+ * <p>
+ * The argument types follow visa.h instead of JVisaLibrary: ViSession, ViStatus, ViAttr, and ViUInt32 are 32 bits, so
+ * they are Java {@code int}s here. ViAttrState is 64 bits on 64-bit VISA implementations and 32 bits otherwise, so
+ * viSetAttribute() has one overload for each.
+ *
+ * @author Peter Froud
+ * @see <a href="https://github.com/java-native-access/jna/blob/master/www/DirectMapping.md">JNA Direct Mapping</a>
+ */
+final class JVisaLibraryDirect {
+
+    private static String registeredLibraryName = null;
+
+    private JVisaLibraryDirect() {
+    }
+
+    /**
+     * Binds the native methods of this class to a native shared library. Calling it again with the same library name
+     * does nothing.
+     *
+     * @param nativeLibraryName VISA native library name
+     * @throws IllegalStateException if this class was already registered with a different library
+     * @throws UnsatisfiedLinkError if the native shared library (.dll or .so or .dylib file) couldn't be loaded
+     */
+    static synchronized void register(String nativeLibraryName) throws UnsatisfiedLinkError {
+        if (registeredLibraryName == null) {
+            Native.register(JVisaLibraryDirect.class, nativeLibraryName);
+            registeredLibraryName = nativeLibraryName;
+        } else if (!registeredLibraryName.equals(nativeLibraryName)) {
+            throw new IllegalStateException(String.format(
+                    "the direct binding is already registered with library \"%s\", can't register it with \"%s\"",
+                    registeredLibraryName, nativeLibraryName));
+        }
+    }
+
+    /**
+     * Original signature : <code>ViStatus viClose(ViObject)</code>
+     *
+     * @param vi handle for instrument session
+     * @return status of the operation
+     */
+    static native int viClose(int vi);
+
+    /**
+     * Original signature : <code>ViStatus viSetAttribute(ViObject, ViAttr, ViAttrState)</code>, where ViAttrState is
+     * 64 bits.
+     *
+     * @param vi handle for instrument session
+     * @param attrName type / key of attribute
+     * @param attrValue value of attribute
+     * @return status of the operation
+     */
+    static native int viSetAttribute(int vi, int attrName, long attrValue);
+
+    /**
+     * Original signature : <code>ViStatus viSetAttribute(ViObject, ViAttr, ViAttrState)</code>, where ViAttrState is
+     * 32 bits.
+     *
+     * @param vi handle for instrument session
+     * @param attrName type / key of attribute
+     * @param attrValue value of attribute
+     * @return status of the operation
+     */
+    static native int viSetAttribute(int vi, int attrName, int attrValue);
+
+    /**
+     * Original signature : <code>ViStatus viGetAttribute(ViObject, ViAttr, void*)</code>
+     *
+     * @param vi handle for instrument session
+     * @param attrName type / key of attribute
+     * @param attrValue direct buffer the value of the attribute is written to
+     * @return status of the operation
+     */
+    static native int viGetAttribute(int vi, int attrName, ByteBuffer attrValue);
+
+    /**
+     * Original signature : <code>ViStatus viRead(ViSession, ViPBuf, ViUInt32, ViPUInt32)</code>
+     *
+     * @param vi handle for instrument session
+     * @param buf read buffer
+     * @param cnt number of bytes to read
+     * @param retCnt element zero is set to the number of bytes read
+     * @return status of the operation
+     */
+    static native int viRead(int vi, ByteBuffer buf, int cnt, int[] retCnt);
+
+    /**
+     * Original signature : <code>ViStatus viWrite(ViSession, ViBuf, ViUInt32, ViPUInt32)</code>
+     *
+     * @param vi handle for instrument session
+     * @param buf write buffer
+     * @param cnt number of bytes to write
+     * @param retCnt element zero is set to the number of bytes written
+     * @return status of the operation
+     */
+    static native int viWrite(int vi, ByteBuffer buf, int cnt, int[] retCnt);
+
+    /**
+     * Original signature : <code>ViStatus viClear(ViSession)</code>
+     *
+     * @param vi handle for instrument session
+     * @return status of the operation
+     */
+    static native int viClear(int vi);
+
+}
@@ -0,0 +1,315 @@
+/**
+ * @license Copyright 2018-2020 Peter Froud
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package xyz.froud.jvisa;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * Collects SCPI commands and queries, then sends them joined with semicolons as one message and splits the combined
+ * response back into one reply per query. Every queryString() is a whole write and read round trip, which is slow on
+ * links with a lot of latency like USB-TMC or VXI-11 over a VPN; a pipeline of ten queries needs only one.
+ * <p>
+ * For example:
+ * <pre>{@code
+ * JVisaPipeline pipeline = instrument.pipeline();
+ * pipeline.write("CONF:VOLT:DC 10");
+ * JVisaPipeline.Reply<Double> volts = pipeline.queryDouble("READ?");
+ * JVisaPipeline.Reply<String> errors = pipeline.queryString("SYST:ERR?");
+ * pipeline.execute(); // sends "CONF:VOLT:DC 10;:READ?;:SYST:ERR?"
+ * System.out.println(volts.get());
+ * }</pre>
+ * Commands after the first one are prefixed with a colon unless they start with a colon or an asterisk, so each one
+ * starts from the root of the command tree like it would if it was sent alone.
+ * <p>
+ * Instruments can only buffer so much of a response, so the queries are split into several messages when the
+ * estimated size of their responses would be more than {@link #setMaxResponseSize(int)}. The size of a response is
+ * estimated from the size learned for its header by the {@link JVisaReadSizeCache} of the instrument, and the sizes of
+ * the responses to a pipeline are learned too.
+ * <p>
+ * The combined response is split at semicolons which aren't inside a quoted string, so queries whose response is an
+ * arbitrary block, like {@code CURV?}, can't be pipelined.
+ *
+ * @author Peter Froud
+ * @see JVisaInstrument#pipeline()
+ */
+public final class JVisaPipeline {
+
+    /**
+     * Default for setMaxResponseSize().
+     */
+    public static final int DEFAULT_MAX_RESPONSE_SIZE = 4096;
+
+    /**
+     * Estimated response size for a query whose header wasn't learned yet, which is enough for a number.
+     */
+    public static final int DEFAULT_ESTIMATED_RESPONSE_SIZE = 32;
+
+    /**
+     * The reply to one query in a pipeline, which is set by execute().
+     *
+     * @param <T> type of the parsed response
+     */
+    public static final class Reply<T> {
+
+        private final String QUERY;
+        private final Function<String, T> PARSER;
+        private final int ESTIMATED_SIZE;
+        private T value;
+        private boolean isSet = false;
+
+        private Reply(String query, Function<String, T> parser, int estimatedSize) {
+            QUERY = query;
+            PARSER = parser;
+            ESTIMATED_SIZE = estimatedSize;
+        }
+
+        /**
+         * @return the parsed response
+         * @throws IllegalStateException if the pipeline wasn't executed yet
+         */
+        public T get() {
+            if (!isSet) {
+                throw new IllegalStateException("the pipeline with \"" + QUERY + "\" wasn't executed yet");
+            }
+            return value;
+        }
+
+        public boolean isDone() {
+            return isSet;
+        }
+
+        @Override
+        public String toString() {
+            return QUERY + " -> " + (isSet ? value : "?");
+        }
+    }
+
+    private final JVisaInstrument INSTRUMENT;
+
+    /**
+     * Commands and queries in the order they were added. A query is its Reply, a command is its String.
+     */
+    private final List<Object> ENTRIES = new ArrayList<>();
+
+    private int maxResponseSize = DEFAULT_MAX_RESPONSE_SIZE;
+
+    JVisaPipeline(JVisaInstrument instrument) {
+        INSTRUMENT = instrument;
+    }
+
+    /**
+     * Sets how many bytes the combined response to one message can have, before the queries are split into another
+     * message. A single query whose response is longer is still sent in a message of its own.
+     *
+     * @param maxResponseSize in bytes
+     * @return this pipeline
+     */
+    public JVisaPipeline setMaxResponseSize(int maxResponseSize) {
+        if (maxResponseSize < 1) {
+            throw new IllegalArgumentException("maxResponseSize must be at least 1, got " + maxResponseSize);
+        }
+        this.maxResponseSize = maxResponseSize;
+        return this;
+    }
+
+    /**
+     * Adds a command which has no response.
+     *
+     * @param command the command, without a terminator
+     * @return this pipeline
+     */
+    public JVisaPipeline write(String command) {
+        ENTRIES.add(command.trim());
+        return this;
+    }
+
+    /**
+     * Adds a query whose response is parsed with a function.
+     *
+     * @param <T> type of the parsed response
+     * @param query the query, without a terminator
+     * @param parser called by execute() with the response, without whitespace at the start and end
+     * @return the reply, which is set by execute()
+     */
+    public <T> Reply<T> query(String query, Function<String, T> parser) {
+        final String trimmedQuery = query.trim();
+        final int learnedSize = INSTRUMENT.getReadSizeCache().getLearnedSize(JVisaReadSizeCache.header(trimmedQuery));
+        return query(trimmedQuery, learnedSize < 0 ? DEFAULT_ESTIMATED_RESPONSE_SIZE : learnedSize, parser);
+    }
+
+    /**
+     * Adds a query whose response is parsed with a function.
+     *
+     * @param <T> type of the parsed response
+     * @param query the query, without a terminator
+     * @param estimatedResponseSize how many bytes the response will have, used to split the pipeline instead of the
+     * learned size
+     * @param parser called by execute() with the response, without whitespace at the start and end
+     * @return the reply, which is set by execute()
+     */
+    public <T> Reply<T> query(String query, int estimatedResponseSize, Function<String, T> parser) {
+        final Reply<T> reply = new Reply<>(query.trim(), parser, estimatedResponseSize);
+        ENTRIES.add(reply);
+        return reply;
+    }
+
+    public Reply<String> queryString(String query) {
+        return query(query, Function.identity());
+    }
+
+    public Reply<Double> queryDouble(String query) {
+        return query(query, Double::valueOf);
+    }
+
+    /**
+     * Adds a query whose response is an integer. Responses in NR2 or NR3 format like {@code +1.000E+00} are accepted
+     * too, since some instruments send every number that way.
+     */
+    public Reply<Long> queryLong(String query) {
+        return query(query, response -> {
+            try {
+                return Long.valueOf(response);
+            } catch (NumberFormatException ex) {
+                return (long) Double.parseDouble(response);
+            }
+        });
+    }
+
+    /**
+     * Adds a query whose response is a boolean, which SCPI sends as 1 or 0, or as ON or OFF.
+     */
+    public Reply<Boolean> queryBoolean(String query) {
+        return query(query, response -> {
+            if (response.equals("1") || response.equalsIgnoreCase("ON")) {
+                return true;
+            } else if (response.equals("0") || response.equalsIgnoreCase("OFF")) {
+                return false;
+            }
+            throw new IllegalArgumentException("not a boolean: \"" + response + "\"");
+        });
+    }
+
+    /**
+     * @return how many commands and queries were added since the last execute()
+     */
+    public int size() {
+        return ENTRIES.size();
+    }
+
+    /**
+     * Sends the commands and queries, reads the responses, and sets the replies. Afterwards the pipeline is empty, so
+     * it can be used again.
+     *
+     * @return how many messages were sent, which is how many round trips were needed
+     * @throws JVisaException if a write operation or a read operation fails, if the number of responses doesn't match
+     * the number of queries, or if a response couldn't be parsed
+     */
+    public int execute() throws JVisaException {
+        int messageCount = 0;
+        try {
+            final StringBuilder message = new StringBuilder();
+            final List<Reply<?>> messageReplies = new ArrayList<>();
+            int estimatedResponseSize = 0;
+            for (Object entry : ENTRIES) {
+                if (entry instanceof Reply) {
+                    final Reply<?> reply = (Reply<?>) entry;
+                    // Plus one for the semicolon between responses.
+                    if (!messageReplies.isEmpty() && estimatedResponseSize + 1L + reply.ESTIMATED_SIZE > maxResponseSize) {
+                        send(message, messageReplies);
+                        messageCount++;
+                        message.setLength(0);
+                        messageReplies.clear();
+                        estimatedResponseSize = 0;
+                    }
+                    append(message, reply.QUERY);
+                    messageReplies.add(reply);
+                    estimatedResponseSize += (messageReplies.size() > 1 ? 1 : 0) + reply.ESTIMATED_SIZE;
+                } else {
+                    append(message, (String) entry);
+                }
+            }
+            if (message.length() > 0) {
+                send(message, messageReplies);
+                messageCount++;
+            }
+        } finally {
+            ENTRIES.clear();
+        }
+        return messageCount;
+    }
+
+    private static void append(StringBuilder message, String command) {
+        if (message.length() > 0) {
+            message.append(';');
+            if (!command.startsWith(":") && !command.startsWith("*")) {
+                message.append(':');
+            }
+        }
+        message.append(command);
+    }
+
+    private void send(StringBuilder message, List<Reply<?>> replies) throws JVisaException {
+        if (replies.isEmpty()) {
+            INSTRUMENT.write(message.toString());
+            return;
+        }
+        final String response = INSTRUMENT.queryResponseString(message.toString());
+        final List<String> responses = split(response);
+        if (responses.size() != replies.size()) {
+            throw new JVisaException(String.format("sent %d queries in \"%s\" but got %d responses in \"%s\"",
+                    replies.size(), message, responses.size(), response));
+        }
+        final JVisaReadSizeCache readSizeCache = INSTRUMENT.getReadSizeCache();
+        for (int i = 0; i < replies.size(); i++) {
+            final String oneResponse = responses.get(i);
+            readSizeCache.recordResponseSize(JVisaReadSizeCache.header(replies.get(i).QUERY), oneResponse.length(), false);
+            set(replies.get(i), oneResponse);
+        }
+    }
+
+    private static <T> void set(Reply<T> reply, String response) throws JVisaException {
+        try {
+            reply.value = reply.PARSER.apply(response);
+        } catch (RuntimeException ex) {
+            throw new JVisaException("couldn't parse the response to \"" + reply.QUERY + "\": \"" + response + "\"", ex);
+        }
+        reply.isSet = true;
+    }
+
+    /**
+     * Splits a combined response at semicolons which aren't inside a quoted string. A doubled quote inside a string
+     * toggles twice, so it's handled too.
+     */
+    static List<String> split(String response) {
+        final List<String> responses = new ArrayList<>();
+        boolean isInString = false;
+        int start = 0;
+        for (int i = 0; i < response.length(); i++) {
+            final char c = response.charAt(i);
+            if (c == '"') {
+                isInString = !isInString;
+            } else if (c == ';' && !isInString) {
+                responses.add(response.substring(start, i).trim());
+                start = i + 1;
+            }
+        }
+        responses.add(response.substring(start).trim());
+        return responses;
+    }
+
+}
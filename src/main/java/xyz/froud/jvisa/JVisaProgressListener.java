@@ -0,0 +1,37 @@
+/**
+ * @license Copyright 2018-2020 Peter Froud
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package xyz.froud.jvisa;
+
+/**
+ * Is told how much of a long transfer is done, for example to show a progress bar while a deep-memory waveform is
+ * read.
+ *
+ * @author Peter Froud
+ * @see JVisaInstrument#readBinaryBlock(JVisaBinaryBlockConsumer, JVisaProgressListener)
+ */
+@FunctionalInterface
+public interface JVisaProgressListener {
+
+    /**
+     * Called after every chunk, on the thread which is reading.
+     *
+     * @param transferredByteCount how many bytes were transferred so far
+     * @param totalByteCount how many bytes will be transferred in total, or -1 if it isn't known yet, like for an
+     * indefinite length block
+     */
+    void onProgress(long transferredByteCount, long totalByteCount);
+
+}
@@ -0,0 +1,182 @@
+/**
+ * @license Copyright 2018-2020 Peter Froud
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package xyz.froud.jvisa;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * How many bytes a JVisaInstrument expects the response to each query to have, learned from earlier responses.
+ * <p>
+ * queryString() without a buffer size looks up the header of the command, like {@code MEAS:VOLT?} for
+ * {@code MEAS:VOLT? 10,0.001}, and reads a little more than the learned size at once. A response which is longer than
+ * that is not truncated: the rest is read into a bigger buffer, and the learned size goes up. When responses get
+ * shorter, the learned size comes down slowly, so one long response doesn't make every later read big.
+ * <p>
+ * Headers are compared as they're written, so {@code meas:volt?} and {@code MEAS:VOLT?} are learned separately.
+ *
+ * @author Peter Froud
+ * @see JVisaInstrument#getReadSizeCache()
+ */
+public final class JVisaReadSizeCache {
+
+    /**
+     * How many bytes to read for a header which wasn't seen yet.
+     */
+    public static final int INITIAL_READ_SIZE = 1024;
+
+    /**
+     * How many headers are learned. Queries with other headers use INITIAL_READ_SIZE, so commands which are built
+     * with changing headers can't fill memory.
+     */
+    public static final int MAX_HEADER_COUNT = 256;
+
+    /**
+     * A shorter response moves the learned size 1/2^DECAY_SHIFT of the way down to it.
+     */
+    private static final int DECAY_SHIFT = 3;
+
+    /**
+     * Element zero of each array is the learned size, so it can be updated without boxing.
+     */
+    private final Map<String, int[]> LEARNED_SIZES = new HashMap<>();
+
+    private long lookupCount;
+    private long hitCount;
+    private long overflowCount;
+
+    JVisaReadSizeCache() {
+    }
+
+    /**
+     * @return the command header, which is everything before the first whitespace character
+     */
+    static String header(String command) {
+        int end = 0;
+        while (end < command.length() && command.charAt(end) > ' ') {
+            end++;
+        }
+        return command.substring(0, end);
+    }
+
+    /**
+     * @return the command header, which is everything before the first whitespace byte
+     */
+    static String header(byte[] command) {
+        int end = 0;
+        while (end < command.length && (command[end] & 0xFF) > ' ') {
+            end++;
+        }
+        return new String(command, 0, end, StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * @return how many bytes to read at once for the response to a command with this header
+     */
+    synchronized int getReadSize(String header) {
+        lookupCount++;
+        final int[] learnedSize = LEARNED_SIZES.get(header);
+        if (learnedSize == null) {
+            return INITIAL_READ_SIZE;
+        }
+        hitCount++;
+        // One more byte than the learned size, so a response of exactly that size ends with END instead of
+        // VI_SUCCESS_MAX_CNT.
+        return (int) Math.min(learnedSize[0] + 1L, JVisaBufferPool.MAX_POOLED_CAPACITY);
+    }
+
+    /**
+     * Looks up a header without counting it as a lookup.
+     *
+     * @return the learned response size for the header, or -1 if it wasn't learned
+     */
+    synchronized int getLearnedSize(String header) {
+        final int[] learnedSize = LEARNED_SIZES.get(header);
+        return learnedSize == null ? -1 : learnedSize[0];
+    }
+
+    /**
+     * Learns from a response which was read.
+     *
+     * @param header command header which the response was for
+     * @param responseSize how many bytes the response had
+     * @param isOverflow whether the first read was too small, so more reads were needed
+     */
+    synchronized void recordResponseSize(String header, int responseSize, boolean isOverflow) {
+        if (isOverflow) {
+            overflowCount++;
+        }
+        final int[] learnedSize = LEARNED_SIZES.get(header);
+        if (learnedSize == null) {
+            if (LEARNED_SIZES.size() < MAX_HEADER_COUNT) {
+                LEARNED_SIZES.put(header, new int[]{responseSize});
+            }
+        } else if (responseSize >= learnedSize[0]) {
+            learnedSize[0] = responseSize;
+        } else {
+            learnedSize[0] -= (learnedSize[0] - responseSize) >> DECAY_SHIFT;
+        }
+    }
+
+    /**
+     * @return the learned response size in bytes for each command header, sorted by header
+     */
+    public synchronized Map<String, Integer> getLearnedSizes() {
+        final Map<String, Integer> copy = new TreeMap<>();
+        for (Map.Entry<String, int[]> entry : LEARNED_SIZES.entrySet()) {
+            copy.put(entry.getKey(), entry.getValue()[0]);
+        }
+        return Collections.unmodifiableMap(copy);
+    }
+
+    /**
+     * @return how many times a read size was looked up
+     */
+    public synchronized long getLookupCount() {
+        return lookupCount;
+    }
+
+    /**
+     * @return how many lookups found a learned size
+     */
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    /**
+     * @return how many responses were longer than the read size, so they needed more than one read
+     */
+    public synchronized long getOverflowCount() {
+        return overflowCount;
+    }
+
+    /**
+     * Forgets every learned size, for example after switching the instrument to a different mode.
+     */
+    public synchronized void clear() {
+        LEARNED_SIZES.clear();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("JVisaReadSizeCache[headers=%d, lookups=%d, hits=%d, overflows=%d]",
+                LEARNED_SIZES.size(), lookupCount, hitCount, overflowCount);
+    }
+
+}
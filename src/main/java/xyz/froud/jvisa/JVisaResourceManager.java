@@ -20,10 +20,13 @@ package xyz.froud.jvisa;
 import com.sun.jna.Native;
 import com.sun.jna.NativeLong;
 import com.sun.jna.Platform;
-import com.sun.jna.ptr.NativeLongByReference;
+import xyz.froud.jvisa.tcpip.JVisaTcpipBackend;
 
 import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.ServiceLoader;
 import java.util.Set;
+import java.util.function.Consumer;
 
 /**
  * The Visa resource manager "scans the system to find all the devices connected to it through the various interface buses and then controls the access to them."
@@ -37,23 +40,53 @@ public class JVisaResourceManager implements AutoCloseable {
     /**
      * A unique logical identifier to the Visa session. In the C API, this is called ViSession.
      */
-    private final NativeLong RESOURCE_MANAGER_HANDLE;
+    private final int RESOURCE_MANAGER_HANDLE;
 
+    /**
+     * The interface to the native shared library, or null if this resource manager uses a backend which doesn't call
+     * the native library.
+     */
     public final JVisaLibrary VISA_LIBRARY;
 
+    /**
+     * Every call from this resource manager and its instruments goes through here.
+     */
+    final JVisaBackend BACKEND;
+
+    /**
+     * Opens TCPIP resources without the native library. It's created the first time it's needed.
+     */
+    private JVisaTcpipBackend tcpipBackend = null;
+
+    /**
+     * The resource manager session from tcpipBackend.
+     */
+    private int tcpipResourceManagerHandle;
+
+    /**
+     * How many threads the scheduler from getBusScheduler() uses.
+     */
+    public static final int DEFAULT_SCHEDULER_CONCURRENCY = 16;
+
+    private JVisaBusScheduler busScheduler = null;
+
     /**
      * Creates a session for a default resource manager.
+     * <p>
+     * If the {@value JVisaBackend#SYSTEM_PROPERTY} system property is set, the backend with that name is found using
+     * ServiceLoader. Otherwise, the native shared library is loaded with the binding chosen by
+     * {@link JVisaBinding#getDefault()}.
      *
-     * @throws JVisaException if the resource manager couldn't be opened
+     * @throws JVisaException if the resource manager couldn't be opened, or if no backend has the name in the system property
      * @throws UnsatisfiedLinkError if the native shared library (.dll or .so or .dylib file) couldn't be loaded
      * @see <a href="https://www.ni.com/docs/en-US/bundle/ni-visa/page/ni-visa/viopendefaultrm.html">viOpenDefaultRM</a>
      */
     public JVisaResourceManager() throws JVisaException, UnsatisfiedLinkError {
-        this(null);
+        this(createDefaultBackend());
     }
 
     /**
-     * Creates a session for a default resource manager.
+     * Creates a session for a default resource manager. The binding is chosen by {@link JVisaBinding#getDefault()}.
      *
      * @param nativeLibraryName VISA native library name
      * @throws JVisaException if the resource manager couldn't be opened
@@ -61,6 +94,59 @@ public class JVisaResourceManager implements AutoCloseable {
      * @see <a href="https://www.ni.com/docs/en-US/bundle/ni-visa/page/ni-visa/viopendefaultrm.html">viOpenDefaultRM</a>
      */
     public JVisaResourceManager(String nativeLibraryName) throws JVisaException, UnsatisfiedLinkError {
+        this(nativeLibraryName, JVisaBinding.getDefault());
+    }
+
+    /**
+     * Creates a session for a default resource manager.
+     *
+     * @param nativeLibraryName VISA native library name, or null to infer it from the operating system
+     * @param binding how the native library is called for reads, writes, and attributes
+     * @throws JVisaException if the resource manager couldn't be opened
+     * @throws UnsatisfiedLinkError if the native shared library (.dll or .so or .dylib file) couldn't be loaded
+     * @see <a href="https://www.ni.com/docs/en-US/bundle/ni-visa/page/ni-visa/viopendefaultrm.html">viOpenDefaultRM</a>
+     */
+    public JVisaResourceManager(String nativeLibraryName, JVisaBinding binding) throws JVisaException, UnsatisfiedLinkError {
+        this(createNativeBackend(nativeLibraryName, binding));
+    }
+
+    /**
+     * Creates a session for a default resource manager of any VISA implementation.
+     *
+     * @param backend the VISA implementation to call
+     * @throws JVisaException if the resource manager couldn't be opened
+     * @see <a href="https://www.ni.com/docs/en-US/bundle/ni-visa/page/ni-visa/viopendefaultrm.html">viOpenDefaultRM</a>
+     */
+    public JVisaResourceManager(JVisaBackend backend) throws JVisaException {
+        BACKEND = backend;
+        if (backend instanceof JVisaInterfaceMappingBackend) {
+            VISA_LIBRARY = ((JVisaInterfaceMappingBackend) backend).VISA_LIBRARY;
+        } else {
+            VISA_LIBRARY = null;
+        }
+
+        final int[] resourceManagerHandle = new int[1];
+        final int errorCode = BACKEND.viOpenDefaultRM(resourceManagerHandle);
+        checkError(errorCode, "viOpenDefaultRM");
+
+        RESOURCE_MANAGER_HANDLE = resourceManagerHandle[0];
+    }
+
+    private static JVisaBackend createDefaultBackend() throws JVisaException, UnsatisfiedLinkError {
+        final String backendName = System.getProperty(JVisaBackend.SYSTEM_PROPERTY);
+        if (backendName == null) {
+            return createNativeBackend(null, JVisaBinding.getDefault());
+        }
+        for (JVisaBackend backend : ServiceLoader.load(JVisaBackend.class)) {
+            if (backend.getName().equals(backendName)) {
+                return backend;
+            }
+        }
+        throw new JVisaException(String.format("the %s system property is \"%s\", but ServiceLoader didn't find a JVisaBackend with that name",
+                JVisaBackend.SYSTEM_PROPERTY, backendName));
+    }
+
+    private static JVisaBackend createNativeBackend(String nativeLibraryName, JVisaBinding binding) throws UnsatisfiedLinkError {
 
         /*
         You do NOT need to include the file extension when passing the library name to JNA.
@@ -96,13 +182,17 @@ public class JVisaResourceManager implements AutoCloseable {
             }
         }
 
-        VISA_LIBRARY = Native.load(nativeLibraryName, JVisaLibrary.class);
-
-        final NativeLongByReference pointerToResourceManagerHandle = new NativeLongByReference();
-        final NativeLong errorCode = VISA_LIBRARY.viOpenDefaultRM(pointerToResourceManagerHandle);
-        checkError(errorCode, "viOpenDefaultRM");
+        final JVisaLibrary visaLibrary = Native.load(nativeLibraryName, JVisaLibrary.class);
 
-        RESOURCE_MANAGER_HANDLE = pointerToResourceManagerHandle.getValue();
+        switch (binding) {
+            case DIRECT_MAPPING:
+                return new JVisaDirectMappingBackend(visaLibrary, nativeLibraryName);
+            case FOREIGN_FUNCTION:
+                return new JVisaForeignBackend(visaLibrary, nativeLibraryName);
+            case INTERFACE_MAPPING:
+            default:
+                return new JVisaInterfaceMappingBackend(visaLibrary);
+        }
     }
 
     /**
@@ -113,10 +203,30 @@ public class JVisaResourceManager implements AutoCloseable {
      */
     @Override
     public void close() throws JVisaException {
-        final NativeLong errorCode = VISA_LIBRARY.viClose(RESOURCE_MANAGER_HANDLE);
+        synchronized (this) {
+            if (busScheduler != null) {
+                busScheduler.close();
+                busScheduler = null;
+            }
+        }
+        synchronized (this) {
+            if (tcpipBackend != null) {
+                final int errorCodeTcpip = tcpipBackend.viClose(tcpipResourceManagerHandle);
+                tcpipBackend = null;
+                checkError(errorCodeTcpip, "viClose");
+            }
+        }
+        final int errorCode = BACKEND.viClose(RESOURCE_MANAGER_HANDLE);
         checkError(errorCode, "viClose");
     }
 
+    /**
+     * @return the VISA implementation this resource manager calls
+     */
+    public JVisaBackend getBackend() {
+        return BACKEND;
+    }
+
     /**
      * Returns the alias for a resource. The resource does not need to be opened.
      * <p>
@@ -131,22 +241,108 @@ public class JVisaResourceManager implements AutoCloseable {
      * @see <a href="https://www.ni.com/docs/en-US/bundle/ni-visa/page/ni-visa/viparsersrcex.html">viParseRsrcEx</a>
      */
     public String getInstrumentAlias(String resourceName) throws JVisaException {
-        final ByteBuffer aliasBuf = ByteBuffer.allocate(128);
-
-        final NativeLong errorCode = VISA_LIBRARY.viParseRsrcEx(RESOURCE_MANAGER_HANDLE,
-                JVisaUtils.stringToByteBuffer(resourceName), // ViRsrc rsrcName
-                new NativeLongByReference(), //ViPUInt16 intfType
-                new NativeLongByReference(), //ViPUInt16 intfNum
-                new NativeLongByReference(), //ViChar rsrcClass[]
-                ByteBuffer.allocate(128), //ViChar expandedUnaliasedName[]
+        final ByteBuffer aliasBuf = ByteBuffer.allocate(JVisaLibrary.VI_FIND_BUFLEN);
+
+        final int errorCode = BACKEND.viParseRsrcEx(RESOURCE_MANAGER_HANDLE,
+                resourceName, // ViRsrc rsrcName
+                new short[1], //ViPUInt16 intfType
+                new short[1], //ViPUInt16 intfNum
+                ByteBuffer.allocate(JVisaLibrary.VI_FIND_BUFLEN), //ViChar rsrcClass[]
+                ByteBuffer.allocate(JVisaLibrary.VI_FIND_BUFLEN), //ViChar expandedUnaliasedName[]
                 aliasBuf //ViChar aliasIfExists[]
         );
         checkError(errorCode, "viParseRsrcEx");
         return JVisaUtils.byteBufferToString(aliasBuf);
     }
 
+    /**
+     * Returns the bus a resource is connected to, which tells which resources can't transfer data at the same time.
+     * The resource does not need to be opened.
+     *
+     * @param resourceName resource name to parse
+     *
+     * @return the interface type and board number of the resource
+     * @throws JVisaException if the resource name couldn't be parsed
+     * @see <a href="https://www.ni.com/docs/en-US/bundle/ni-visa/page/ni-visa/viparsersrc.html">viParseRsrc</a>
+     */
+    public JVisaBus getBus(String resourceName) throws JVisaException {
+        final short[] interfaceType = new short[1];
+        final short[] interfaceNumber = new short[1];
+        final int errorCode = BACKEND.viParseRsrc(RESOURCE_MANAGER_HANDLE,
+                resourceName, // ViRsrc rsrcName
+                interfaceType, //ViPUInt16 intfType
+                interfaceNumber //ViPUInt16 intfNum
+        );
+        checkError(errorCode, "viParseRsrc");
+        return new JVisaBus(Short.toUnsignedInt(interfaceType[0]), Short.toUnsignedInt(interfaceNumber[0]));
+    }
+
+    /**
+     * Returns a scheduler shared by everything using this resource manager, which runs tasks with a separate queue and
+     * concurrency limit for each bus. It's created the first time this method is called, with
+     * {@value #DEFAULT_SCHEDULER_CONCURRENCY} threads, and closed when the resource manager is closed.
+     *
+     * @return the shared scheduler
+     */
+    public synchronized JVisaBusScheduler getBusScheduler() {
+        if (busScheduler == null) {
+            busScheduler = new JVisaBusScheduler(this, DEFAULT_SCHEDULER_CONCURRENCY);
+        }
+        return busScheduler;
+    }
+
+    /**
+     * Opens each resource, runs an operation on it, and closes it, using several threads. Use this to talk to many
+     * instruments at once, like sending *IDN? to everything findResources() found.
+     * <p>
+     * At most maxConcurrency resources are used at the same time. The resources are scheduled with a new
+     * {@link JVisaBusScheduler}, so resources on the same GPIB board or serial port are used one at a time, because
+     * the bus can only talk to one of them at a time anyway. Resources on other interfaces, like TCPIP and USB, have no
+     * extra limit.
+     * <p>
+     * A failure on one resource doesn't stop the others: it's reported in the result for that resource.
+     *
+     * @param <T> type of the result of the operation
+     * @param resourceNames resources to run the operation on
+     * @param operation what to do with each instrument
+     * @param maxConcurrency how many threads to use
+     * @param timeoutMilliseconds I/O timeout to set on each instrument before running the operation
+     * @param listener called from a worker thread with each result as soon as it's ready, or null
+     * @return one result for each resource, in the same order as resourceNames
+     * @throws JVisaException if the calling thread was interrupted, in which case resources which weren't started yet
+     * are skipped
+     */
+    public <T> List<JVisaFanOutResult<T>> runOnEach(String[] resourceNames, JVisaInstrumentActor.Operation<T> operation,
+                                                    int maxConcurrency, long timeoutMilliseconds,
+                                                    Consumer<JVisaFanOutResult<T>> listener) throws JVisaException {
+        return new JVisaFanOut<>(this, operation, timeoutMilliseconds, listener).run(resourceNames, maxConcurrency);
+    }
+
+    /**
+     * Sends a query to each resource, using several threads.
+     *
+     * @param resourceNames resources to query
+     * @param command the command to send, like "*IDN?"
+     * @param maxConcurrency how many threads to use
+     * @param timeoutMilliseconds I/O timeout for each instrument
+     * @return the response from each resource, in the same order as resourceNames
+     * @throws JVisaException if the calling thread was interrupted
+     * @see #runOnEach(String[], JVisaInstrumentActor.Operation, int, long, Consumer)
+     */
+    public List<JVisaFanOutResult<String>> queryEach(String[] resourceNames, String command, int maxConcurrency,
+                                                     long timeoutMilliseconds) throws JVisaException {
+        return runOnEach(resourceNames, instrument -> instrument.queryString(command), maxConcurrency,
+                timeoutMilliseconds, null);
+    }
+
     /**
      * Opens an instrument session.
+     * <p>
+     * When this resource manager uses the native shared library, TCPIP SOCKET resources are opened with
+     * {@link JVisaTcpipBackend}, which talks to the instrument from Java instead. Set the
+     * {@value JVisaTcpipBackend#SYSTEM_PROPERTY} system property to {@code false} to open them with the native library,
+     * or to {@value JVisaTcpipBackend#SYSTEM_PROPERTY_INSTR} to open VXI-11 and HiSLIP INSTR resources from Java too.
+     * Other backends open every resource themselves.
      *
      * @param resourceName resource name to open
      *
@@ -156,16 +352,36 @@ public class JVisaResourceManager implements AutoCloseable {
      */
     public JVisaInstrument openInstrument(String resourceName) throws JVisaException {
 
-        final NativeLongByReference instrumentHandle = new NativeLongByReference();
+        final JVisaBackend backend;
+        final int resourceManagerHandle;
+        if (BACKEND instanceof JVisaInterfaceMappingBackend && JVisaTcpipBackend.isEnabledFor(resourceName)) {
+            // Instruments may be opened from several threads, like in runOnEach().
+            synchronized (this) {
+                if (tcpipBackend == null) {
+                    final JVisaTcpipBackend newTcpipBackend = new JVisaTcpipBackend();
+                    final int[] tcpipResourceManagerHandleArray = new int[1];
+                    checkError(newTcpipBackend.viOpenDefaultRM(tcpipResourceManagerHandleArray), "viOpenDefaultRM");
+                    tcpipResourceManagerHandle = tcpipResourceManagerHandleArray[0];
+                    tcpipBackend = newTcpipBackend;
+                }
+                backend = tcpipBackend;
+                resourceManagerHandle = tcpipResourceManagerHandle;
+            }
+        } else {
+            backend = BACKEND;
+            resourceManagerHandle = RESOURCE_MANAGER_HANDLE;
+        }
+
+        final int[] instrumentHandle = new int[1];
 
-        final NativeLong errorCode = VISA_LIBRARY.viOpen(RESOURCE_MANAGER_HANDLE,
-                JVisaUtils.stringToByteBuffer(resourceName),
-                new NativeLong(0), // ViAccessMode accessMode - 0 (VI_NULL) for default access mode
-                new NativeLong(0), // ViUInt32 openTimeout - how long to wait before returning error. Only when the access mode equals locking?
+        final int errorCode = backend.viOpen(resourceManagerHandle,
+                resourceName,
+                0, // ViAccessMode accessMode - 0 (VI_NULL) for default access mode
+                0, // ViUInt32 openTimeout - how long to wait before returning error. Only when the access mode equals locking?
                 instrumentHandle
         );
         checkError(errorCode, "viOpen");
-        return new JVisaInstrument(this, instrumentHandle, resourceName);
+        return new JVisaInstrument(this, backend, instrumentHandle[0], resourceName);
     }
 
     /**
@@ -231,10 +447,10 @@ public class JVisaResourceManager implements AutoCloseable {
     public String[] findResources(String filterExpression) throws JVisaException {
 
         // Will be set to the number of resources found.
-        final NativeLongByReference countPtr = new NativeLongByReference();
+        final int[] countPtr = new int[1];
 
         // Will be set to "a handle identifying this search session".
-        final NativeLongByReference findListPtr = new NativeLongByReference();
+        final int[] findListPtr = new int[1];
 
         // The resource name gets repeatledly populated in this buffer.
         ByteBuffer resourceNameBuf = ByteBuffer.allocate(JVisaLibrary.VI_FIND_BUFLEN);
@@ -243,15 +459,15 @@ public class JVisaResourceManager implements AutoCloseable {
         The viFindRsrc() function only populates the buffer with the first resource name found.
         If more than one resource is found, you have to repeatedly call viFindNext().
          */
-        final NativeLong errorCodeFindRsrc = VISA_LIBRARY.viFindRsrc(RESOURCE_MANAGER_HANDLE,
-                JVisaUtils.stringToByteBuffer(filterExpression), //ViString expr
+        final int errorCodeFindRsrc = BACKEND.viFindRsrc(RESOURCE_MANAGER_HANDLE,
+                filterExpression, //ViString expr
                 findListPtr, // ViPFindList findList
                 countPtr, //ViPUInt32 retcnt
                 resourceNameBuf //ViChar instrDesc[]
         );
         checkError(errorCodeFindRsrc, "viFindRsrc");
 
-        final int resourcesFoundCount = (int) countPtr.getValue().longValue();
+        final int resourcesFoundCount = countPtr[0];
         final String[] rv = new String[resourcesFoundCount];
 
         if (resourcesFoundCount > 0) {
@@ -262,8 +478,8 @@ public class JVisaResourceManager implements AutoCloseable {
         for (int i = 1; i < resourcesFoundCount; i++) {
             // Now we need to call viFindNext() for all remaining resources.
             resourceNameBuf = ByteBuffer.allocate(JVisaLibrary.VI_FIND_BUFLEN);
-            final NativeLong errorCodeFindNext = VISA_LIBRARY.viFindNext(
-                    findListPtr.getValue(), //ViFindList findList
+            final int errorCodeFindNext = BACKEND.viFindNext(
+                    findListPtr[0], //ViFindList findList
                     resourceNameBuf //ViChar instrDesc[]
             );
             checkError(errorCodeFindNext, "viFindNext");
@@ -271,7 +487,7 @@ public class JVisaResourceManager implements AutoCloseable {
         }
 
         // Close the findList after use.
-        final NativeLong errorCodeClose = VISA_LIBRARY.viClose(findListPtr.getValue());
+        final int errorCodeClose = BACKEND.viClose(findListPtr[0]);
         checkError(errorCodeClose, "viClose");
 
         return rv;
@@ -285,18 +501,17 @@ public class JVisaResourceManager implements AutoCloseable {
      * @return human-readable description about the error code
      * @see <a href="https://www.ni.com/docs/en-US/bundle/ni-visa/page/ni-visa/vistatusdesc.html">viStatusDesc</a>
      */
-    private String getMessageForErrorCode(NativeLong errorCodeToGetDescriptionFor) {
+    private String getMessageForErrorCode(int errorCodeToGetDescriptionFor) {
 
         // "Note  The size of the desc parameter should be at least 256 bytes."
         final ByteBuffer messageBuf = ByteBuffer.allocate(256);
 
-        final NativeLong errorCodeFromViStatusDesc = VISA_LIBRARY.viStatusDesc(RESOURCE_MANAGER_HANDLE, errorCodeToGetDescriptionFor, messageBuf);
+        final int errorCodeFromViStatusDesc = BACKEND.viStatusDesc(RESOURCE_MANAGER_HANDLE, errorCodeToGetDescriptionFor, messageBuf);
 
-        long errorCode2Long = errorCodeFromViStatusDesc.longValue();
-        if (errorCode2Long != 0) {
+        if (errorCodeFromViStatusDesc != 0) {
             System.err.printf("viStatusDesc() returned 0x%H while trying to get description for code 0x%H\n",
-                    errorCode2Long, errorCodeToGetDescriptionFor.longValue());
-            return String.format("<couldn't get description for the status code %d>", errorCodeToGetDescriptionFor.longValue());
+                    errorCodeFromViStatusDesc, errorCodeToGetDescriptionFor);
+            return String.format("<couldn't get description for the status code %d>", errorCodeToGetDescriptionFor);
         }
         return JVisaUtils.byteBufferToString(messageBuf);
     }
@@ -355,10 +570,25 @@ public class JVisaResourceManager implements AutoCloseable {
      * @throws JVisaException if the status code means the call failed
      */
     protected final void checkError(NativeLong errorCode, String cFunctionName) throws JVisaException {
-        final long statusCode = errorCode.longValue();
-        if (statusCode != 0 && !SUCCESS_CODES.contains((int)statusCode)) {
-            final String messageForErrorCode = getMessageForErrorCode(errorCode);
-            throw new JVisaException(statusCode, cFunctionName, messageForErrorCode);
+        checkError(errorCode.intValue(), cFunctionName);
+    }
+
+    /**
+     * If the status code indicates an error, this method will get a human-readable message for the
+     * error code and throw a JVisaException.
+     *
+     * @param statusCode the value returned by a JVisaBackend call
+     * @param cFunctionName name of the C function corresponding to the call to the native shared library (.dll or .so or .dylib file)
+     * @throws JVisaException if the status code means the call failed
+     */
+    protected final void checkError(int statusCode, String cFunctionName) throws JVisaException {
+        // Checking the read completion codes first avoids boxing the status code on almost every viRead().
+        if (statusCode != 0
+                && statusCode != JVisaLibrary.VI_SUCCESS_TERM_CHAR
+                && statusCode != JVisaLibrary.VI_SUCCESS_MAX_CNT
+                && !SUCCESS_CODES.contains(statusCode)) {
+            final String messageForErrorCode = getMessageForErrorCode(statusCode);
+            throw new JVisaException(Integer.toUnsignedLong(statusCode), cFunctionName, messageForErrorCode);
         }
     }
 
@@ -37,12 +37,34 @@ public class JVisaUtils {
      * @return Java string converted to C-type string (0 terminated)
      */
     protected static ByteBuffer stringToByteBuffer(String source) {
-        final ByteBuffer rv = ByteBuffer.allocate(source.length() + 1);
-        rv.put(source.getBytes());
+        final byte[] bytes = source.getBytes();
+        final ByteBuffer rv = ByteBuffer.allocate(bytes.length + 1);
+        rv.put(bytes);
         rv.position(0);
         return rv;
     }
 
+    /**
+     * Puts a string in a buffer with one byte per character, if every character is ASCII. Unlike String.getBytes(),
+     * nothing is allocated.
+     *
+     * @param buffer must have room for every character of the string
+     * @param source string to convert
+     * @return false if the string has a character which isn't ASCII. Then only the characters before it were put in the
+     * buffer.
+     */
+    static boolean putAscii(ByteBuffer buffer, String source) {
+        final int length = source.length();
+        for (int i = 0; i < length; i++) {
+            final char c = source.charAt(i);
+            if (c >= 0x80) {
+                return false;
+            }
+            buffer.put((byte) c);
+        }
+        return true;
+    }
+
     protected static String byteBufferToString(ByteBuffer buf){
         return new String(buf.array()).trim();
     }
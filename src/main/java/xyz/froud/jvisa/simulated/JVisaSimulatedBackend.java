@@ -0,0 +1,427 @@
+/**
+ * @license Copyright 2018-2020 Peter Froud
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package xyz.froud.jvisa.simulated;
+
+import xyz.froud.jvisa.JVisaBackend;
+import xyz.froud.jvisa.JVisaLibrary;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import static java.util.Map.entry;
+
+/**
+ * VISA implementation with simulated instruments instead of real ones, for trying JVisa and for benchmarks and load
+ * tests without hardware. Nothing is loaded from the native shared library (.dll or .so or .dylib file).
+ * <p>
+ * Instruments are added with {@link #addInstrument(String)} and then configured with the responses to their commands.
+ * They can be found with viFindRsrc() and opened with viOpen() like real instruments:
+ * <pre>{@code
+ * JVisaSimulatedBackend backend = new JVisaSimulatedBackend();
+ * SimulatedInstrument supply = backend.addInstrument("USB0::0x1234::0x5678::SN1::INSTR");
+ * supply.setResponse("*IDN?", "ACME,PS1000,SN1,1.0");
+ * supply.setResponder("MEAS:VOLT?", command -> "12.001");
+ * supply.setLatency(50_000, 10_000);
+ * JVisaResourceManager rm = new JVisaResourceManager(backend);
+ * }</pre>
+ * <p>
+ * A new backend already has one instrument, {@value #DEFAULT_RESOURCE_NAME}, which answers the IEEE 488.2 common
+ * queries. It's what the examples use when the {@value JVisaBackend#SYSTEM_PROPERTY} system property is
+ * {@code simulated}.
+ * <p>
+ * Events, locking, and register access aren't supported.
+ *
+ * @author Peter Froud
+ */
+public final class JVisaSimulatedBackend implements JVisaBackend {
+
+    /**
+     * Resource name of the instrument every new backend has.
+     */
+    public static final String DEFAULT_RESOURCE_NAME = "USB0::0x0000::0x0000::SIMULATED::INSTR";
+
+    /**
+     * Descriptions for the status codes this backend returns, copied from the NI-VISA documentation.
+     *
+     * @see <a href="https://www.ni.com/docs/en-US/bundle/ni-visa/page/ni-visa/completion_codes.html">Completion Codes</a>
+     * @see <a href="https://www.ni.com/docs/en-US/bundle/ni-visa/page/ni-visa/error_codes.html">Error Codes</a>
+     */
+    private static final Map<Integer, String> STATUS_DESCRIPTIONS = Map.ofEntries(
+            entry(0, "Operation completed successfully."),
+            entry(JVisaLibrary.VI_SUCCESS_TERM_CHAR, "The specified termination character was read."),
+            entry(JVisaLibrary.VI_SUCCESS_MAX_CNT, "The number of bytes read is equal to the input count."),
+            entry(JVisaLibrary.VI_ERROR_INV_OBJECT, "The given session or object reference is invalid."),
+            entry(JVisaLibrary.VI_ERROR_INV_EXPR, "Invalid expression specified for search."),
+            entry(JVisaLibrary.VI_ERROR_RSRC_NFOUND, "Insufficient location information or the requested device or resource is not present in the system."),
+            entry(JVisaLibrary.VI_ERROR_INV_RSRC_NAME, "Invalid resource reference specified. Parsing error."),
+            entry(JVisaLibrary.VI_ERROR_TMO, "Timeout expired before operation completed."),
+            entry(JVisaLibrary.VI_ERROR_NSUP_ATTR, "The specified attribute is not defined or supported by the referenced session, event, or find list."),
+            entry(JVisaLibrary.VI_ERROR_NSUP_ATTR_STATE, "The specified state of the attribute is not valid, or is not supported as defined by the session, event, or find list."),
+            entry(JVisaLibrary.VI_ERROR_ATTR_READONLY, "The specified attribute is Read Only."),
+            entry(JVisaLibrary.VI_ERROR_FILE_IO, "An error occurred while performing I/O on the specified file."),
+            entry(JVisaLibrary.VI_ERROR_NSUP_OPER, "The given session or object reference does not support this operation.")
+    );
+
+    /**
+     * Sorted without case, like resource names are compared.
+     */
+    private final ConcurrentSkipListMap<String, SimulatedInstrument> INSTRUMENTS = new ConcurrentSkipListMap<>(String.CASE_INSENSITIVE_ORDER);
+
+    /**
+     * Resource manager sessions, instrument sessions, and find lists.
+     */
+    private final Map<Integer, Object> SESSIONS = new ConcurrentHashMap<>();
+
+    /**
+     * Handles count up and aren't reused, so a handle which was already closed can't reach a session opened later.
+     */
+    private final AtomicInteger NEXT_HANDLE = new AtomicInteger(1);
+
+    /**
+     * Value in SESSIONS for a resource manager session.
+     */
+    private static final class ResourceManagerSession {
+    }
+
+    /**
+     * Value in SESSIONS for the result of viFindRsrc().
+     */
+    private static final class FindList {
+        final int RESOURCE_MANAGER_SESSION;
+        final String[] RESOURCE_NAMES;
+
+        /**
+         * viFindRsrc() returns the first resource name, so viFindNext() starts with the second.
+         */
+        int nextIndex = 1;
+
+        FindList(int resourceManagerSession, String[] resourceNames) {
+            RESOURCE_MANAGER_SESSION = resourceManagerSession;
+            RESOURCE_NAMES = resourceNames;
+        }
+    }
+
+    /**
+     * Creates a backend with one instrument, {@value #DEFAULT_RESOURCE_NAME}.
+     */
+    public JVisaSimulatedBackend() {
+        final SimulatedInstrument instrument = addInstrument(DEFAULT_RESOURCE_NAME);
+        instrument.setResponse("*IDN?", "JVisa,Simulated Instrument,SIMULATED,1.0");
+        instrument.setResponse("*OPC?", "1");
+        instrument.setResponse("*ESR?", "0");
+        instrument.setResponse("*STB?", "0");
+        instrument.setResponse("SYST:ERR?", "0,\"No error\"");
+        instrument.setAttribute(JVisaLibrary.VI_ATTR_MANF_NAME, "JVisa");
+        instrument.setAttribute(JVisaLibrary.VI_ATTR_MODEL_NAME, "Simulated Instrument");
+        instrument.setAttribute(JVisaLibrary.VI_ATTR_USB_SERIAL_NUM, "SIMULATED");
+        instrument.setAttribute(JVisaLibrary.VI_ATTR_MANF_ID, 0);
+        instrument.setAttribute(JVisaLibrary.VI_ATTR_MODEL_CODE, 0);
+    }
+
+    /**
+     * Adds an instrument, or replaces the instrument with the same resource name. Sessions which are already open keep
+     * using the old instrument.
+     *
+     * @param resourceName like {@code "USB0::0x1234::0x5678::SN1::INSTR"}
+     * @return the new instrument, to set its responses
+     * @throws IllegalArgumentException if the resource name doesn't start with a VISA interface type like USB or TCPIP
+     */
+    public SimulatedInstrument addInstrument(String resourceName) {
+        if (SimulatedResourceName.parse(resourceName) == null) {
+            throw new IllegalArgumentException("not a VISA resource name: " + resourceName);
+        }
+        final SimulatedInstrument instrument = new SimulatedInstrument();
+        INSTRUMENTS.put(resourceName.trim(), instrument);
+        return instrument;
+    }
+
+    /**
+     * @return the instrument, or null if there isn't one with the resource name
+     */
+    public SimulatedInstrument getInstrument(String resourceName) {
+        return INSTRUMENTS.get(resourceName.trim());
+    }
+
+    /**
+     * Removes an instrument, so it can't be found or opened anymore. Sessions which are already open keep working.
+     */
+    public void removeInstrument(String resourceName) {
+        INSTRUMENTS.remove(resourceName.trim());
+    }
+
+    @Override
+    public String getName() {
+        return "simulated";
+    }
+
+    private int addSession(Object session) {
+        while (true) {
+            // After 2^31 sessions, start over from 1 and skip handles which are still open.
+            final int handle = NEXT_HANDLE.getAndIncrement() & Integer.MAX_VALUE;
+            if (handle != 0 && SESSIONS.putIfAbsent(handle, session) == null) {
+                return handle;
+            }
+        }
+    }
+
+    private SimulatedSession getInstrumentSession(int vi) {
+        final Object session = SESSIONS.get(vi);
+        return session instanceof SimulatedSession ? (SimulatedSession) session : null;
+    }
+
+    ////////////////////////////// resource manager //////////////////////////////
+
+    @Override
+    public int viOpenDefaultRM(int[] session) {
+        session[0] = addSession(new ResourceManagerSession());
+        return 0;
+    }
+
+    /**
+     * The access mode and open timeout are ignored.
+     */
+    @Override
+    public int viOpen(int rmSession, String resourceName, int accessMode, int openTimeout, int[] session) {
+        if (!(SESSIONS.get(rmSession) instanceof ResourceManagerSession)) {
+            return JVisaLibrary.VI_ERROR_INV_OBJECT;
+        }
+        final Map.Entry<String, SimulatedInstrument> instrumentEntry = INSTRUMENTS.ceilingEntry(resourceName.trim());
+        if (instrumentEntry == null || !instrumentEntry.getKey().equalsIgnoreCase(resourceName.trim())) {
+            return SimulatedResourceName.parse(resourceName) == null
+                    ? JVisaLibrary.VI_ERROR_INV_RSRC_NAME : JVisaLibrary.VI_ERROR_RSRC_NFOUND;
+        }
+        final String canonicalName = instrumentEntry.getKey();
+        session[0] = addSession(new SimulatedSession(rmSession, canonicalName,
+                SimulatedResourceName.parse(canonicalName), instrumentEntry.getValue()));
+        return 0;
+    }
+
+    /**
+     * @see xyz.froud.jvisa.JVisaResourceManager#findResources(String) for the expression syntax
+     */
+    @Override
+    public int viFindRsrc(int rmSession, String expression, int[] findList, int[] returnCount, ByteBuffer description) {
+        returnCount[0] = 0;
+        if (!(SESSIONS.get(rmSession) instanceof ResourceManagerSession)) {
+            return JVisaLibrary.VI_ERROR_INV_OBJECT;
+        }
+        final Pattern pattern;
+        try {
+            pattern = compileExpression(expression);
+        } catch (PatternSyntaxException ex) {
+            return JVisaLibrary.VI_ERROR_INV_EXPR;
+        }
+        final String[] resourceNames = INSTRUMENTS.keySet().stream()
+                .filter(resourceName -> pattern.matcher(resourceName).matches())
+                .toArray(String[]::new);
+        if (resourceNames.length == 0) {
+            return JVisaLibrary.VI_ERROR_RSRC_NFOUND;
+        }
+        findList[0] = addSession(new FindList(rmSession, resourceNames));
+        returnCount[0] = resourceNames.length;
+        SimulatedSession.putString(description, resourceNames[0]);
+        return 0;
+    }
+
+    /**
+     * Converts a viFindRsrc() expression to a regular expression. They're alike, except {@code ?} matches any
+     * character and other characters have no special meaning.
+     */
+    static Pattern compileExpression(String expression) {
+        final StringBuilder regex = new StringBuilder();
+        boolean isInBrackets = false;
+        for (int i = 0; i < expression.length(); i++) {
+            final char c = expression.charAt(i);
+            if (c == '\\' && i + 1 < expression.length()) {
+                i++;
+                regex.append(Pattern.quote(String.valueOf(expression.charAt(i))));
+            } else if (isInBrackets) {
+                if (c == ']') {
+                    isInBrackets = false;
+                } else if (c == '[' || c == '&') {
+                    regex.append('\\');
+                }
+                regex.append(c);
+            } else if (c == '?') {
+                regex.append('.');
+            } else if (c == '*' || c == '+' || c == '|' || c == '(' || c == ')') {
+                regex.append(c);
+            } else if (c == '[') {
+                isInBrackets = true;
+                regex.append(c);
+            } else if (Character.isLetterOrDigit(c)) {
+                regex.append(c);
+            } else {
+                regex.append('\\').append(c);
+            }
+        }
+        return Pattern.compile(regex.toString(), Pattern.CASE_INSENSITIVE);
+    }
+
+    @Override
+    public int viFindNext(int findList, ByteBuffer description) {
+        final Object session = SESSIONS.get(findList);
+        if (!(session instanceof FindList)) {
+            return JVisaLibrary.VI_ERROR_INV_OBJECT;
+        }
+        final FindList list = (FindList) session;
+        if (list.nextIndex >= list.RESOURCE_NAMES.length) {
+            return JVisaLibrary.VI_ERROR_RSRC_NFOUND;
+        }
+        SimulatedSession.putString(description, list.RESOURCE_NAMES[list.nextIndex++]);
+        return 0;
+    }
+
+    /**
+     * Resources which weren't added can be parsed too. Aliases aren't supported, so the alias is always empty.
+     */
+    @Override
+    public int viParseRsrcEx(int rmSession, String resourceName, short[] interfaceType, short[] interfaceNumber,
+                             ByteBuffer resourceClass, ByteBuffer expandedUnaliasedName, ByteBuffer aliasIfExists) {
+        final SimulatedResourceName parsedName = SimulatedResourceName.parse(resourceName);
+        if (parsedName == null) {
+            return JVisaLibrary.VI_ERROR_INV_RSRC_NAME;
+        }
+        interfaceType[0] = parsedName.INTERFACE_TYPE;
+        interfaceNumber[0] = parsedName.BOARD;
+        SimulatedSession.putString(resourceClass, parsedName.RESOURCE_CLASS);
+        final String addedName = INSTRUMENTS.ceilingKey(resourceName.trim());
+        SimulatedSession.putString(expandedUnaliasedName, addedName != null && addedName.equalsIgnoreCase(resourceName.trim())
+                ? addedName : resourceName.trim());
+        SimulatedSession.putString(aliasIfExists, "");
+        return 0;
+    }
+
+    @Override
+    public int viStatusDesc(int vi, int status, ByteBuffer description) {
+        final String statusDescription = STATUS_DESCRIPTIONS.get(status);
+        if (statusDescription == null) {
+            SimulatedSession.putString(description, String.format("Unknown status code 0x%08X.", status));
+        } else {
+            SimulatedSession.putString(description, statusDescription);
+        }
+        return 0;
+    }
+
+    /**
+     * Closing a resource manager session also closes the sessions and find lists opened from it.
+     */
+    @Override
+    public int viClose(int vi) {
+        final Object session = SESSIONS.remove(vi);
+        if (session == null) {
+            return JVisaLibrary.VI_ERROR_INV_OBJECT;
+        }
+        if (session instanceof ResourceManagerSession) {
+            SESSIONS.values().removeIf(value
+                    -> (value instanceof SimulatedSession && ((SimulatedSession) value).RESOURCE_MANAGER_SESSION == vi)
+                    || (value instanceof FindList && ((FindList) value).RESOURCE_MANAGER_SESSION == vi));
+        }
+        return 0;
+    }
+
+    ////////////////////////////// attributes //////////////////////////////
+
+    @Override
+    public int viSetAttribute(int vi, int attribute, long value) {
+        final SimulatedSession session = getInstrumentSession(vi);
+        if (session == null) {
+            return SESSIONS.containsKey(vi) ? JVisaLibrary.VI_ERROR_NSUP_ATTR : JVisaLibrary.VI_ERROR_INV_OBJECT;
+        }
+        return session.setAttribute(attribute, value);
+    }
+
+    @Override
+    public int viGetAttribute(int vi, int attribute, ByteBuffer value) {
+        final SimulatedSession session = getInstrumentSession(vi);
+        if (session == null) {
+            return SESSIONS.containsKey(vi) ? JVisaLibrary.VI_ERROR_NSUP_ATTR : JVisaLibrary.VI_ERROR_INV_OBJECT;
+        }
+        return session.getAttribute(attribute, value);
+    }
+
+    ////////////////////////////// basic I/O //////////////////////////////
+
+    @Override
+    public int viRead(int vi, ByteBuffer buffer, int count, int[] returnCount) {
+        final SimulatedSession session = getInstrumentSession(vi);
+        if (session == null) {
+            returnCount[0] = 0;
+            return JVisaLibrary.VI_ERROR_INV_OBJECT;
+        }
+        return session.read(buffer, count, returnCount);
+    }
+
+    @Override
+    public int viWrite(int vi, ByteBuffer buffer, int count, int[] returnCount) {
+        final SimulatedSession session = getInstrumentSession(vi);
+        if (session == null) {
+            returnCount[0] = 0;
+            return JVisaLibrary.VI_ERROR_INV_OBJECT;
+        }
+        return session.write(buffer, count, returnCount);
+    }
+
+    /**
+     * Unlike with the native library, the bytes go through Java, so this is only useful to try code which calls it.
+     */
+    @Override
+    public int viReadToFile(int vi, String fileName, int count, int[] returnCount) {
+        final SimulatedSession session = getInstrumentSession(vi);
+        if (session == null) {
+            returnCount[0] = 0;
+            return JVisaLibrary.VI_ERROR_INV_OBJECT;
+        }
+        return session.readToFile(fileName, count, returnCount);
+    }
+
+    /**
+     * Unlike with the native library, the bytes go through Java, so this is only useful to try code which calls it.
+     */
+    @Override
+    public int viWriteFromFile(int vi, String fileName, int count, int[] returnCount) {
+        final SimulatedSession session = getInstrumentSession(vi);
+        if (session == null) {
+            returnCount[0] = 0;
+            return JVisaLibrary.VI_ERROR_INV_OBJECT;
+        }
+        return session.writeFromFile(fileName, count, returnCount);
+    }
+
+    @Override
+    public int viClear(int vi) {
+        final SimulatedSession session = getInstrumentSession(vi);
+        if (session == null) {
+            return JVisaLibrary.VI_ERROR_INV_OBJECT;
+        }
+        return session.clear();
+    }
+
+    @Override
+    public int viReadSTB(int vi, short[] statusByte) {
+        final SimulatedSession session = getInstrumentSession(vi);
+        if (session == null) {
+            return JVisaLibrary.VI_ERROR_INV_OBJECT;
+        }
+        return session.readStatusByte(statusByte);
+    }
+
+}
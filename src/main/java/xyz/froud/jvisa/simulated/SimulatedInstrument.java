@@ -0,0 +1,295 @@
+/**
+ * @license Copyright 2018-2020 Peter Froud
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package xyz.froud.jvisa.simulated;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A simulated message-based instrument which responds to SCPI commands.
+ * <p>
+ * Commands are matched by their header, which is everything before the first space, without case and without a leading
+ * colon. For example, a response for {@code "MEAS:VOLT?"} is also used for {@code ":meas:volt?"}, and a responder for
+ * {@code "VOLT"} is called for {@code "VOLT 1.5"}. Short forms aren't expanded, so {@code "MEAS:VOLT?"} and
+ * {@code "MEASURE:VOLTAGE?"} are different headers. Fixed responses are found without allocating, so a benchmark
+ * measures JVisa instead of the simulator.
+ * <p>
+ * Configure the instrument before opening it. Changes made later are seen by open sessions, except attribute values
+ * which are copied when the session is opened.
+ *
+ * @author Peter Froud
+ * @see JVisaSimulatedBackend#addInstrument(String)
+ */
+public final class SimulatedInstrument {
+
+    /**
+     * Delays longer than this park the thread, then spin for the rest, because parkNanos() usually oversleeps.
+     */
+    private static final long SPIN_NANOSECONDS = TimeUnit.MICROSECONDS.toNanos(100);
+
+    /**
+     * A command header and what to do when it's received.
+     */
+    static final class Command {
+
+        /**
+         * Upper case ASCII.
+         */
+        final byte[] HEADER;
+
+        /**
+         * Null if RESPONDER is used instead.
+         */
+        final byte[] RESPONSE;
+        final SimulatedResponder RESPONDER;
+
+        Command(byte[] header, byte[] response, SimulatedResponder responder) {
+            HEADER = header;
+            RESPONSE = response;
+            RESPONDER = responder;
+        }
+    }
+
+    /**
+     * Hash table with linear probing, keyed by header. It's replaced instead of changed, so sessions can look up
+     * commands while another thread adds one.
+     */
+    private volatile Command[] commands = new Command[16];
+    private int commandCount = 0;
+
+    private volatile SimulatedResponder defaultResponder = null;
+
+    final Map<Integer, String> STRING_ATTRIBUTES = new ConcurrentHashMap<>();
+    final Map<Integer, Long> INTEGER_ATTRIBUTES = new ConcurrentHashMap<>();
+
+    private volatile long latencyNanoseconds = 0;
+    private volatile long jitterNanoseconds = 0;
+    private volatile int statusByte = 0;
+
+    /**
+     * Sets a fixed response for a query.
+     *
+     * @param header command header, like {@code "*IDN?"}
+     * @param response the response without a terminator
+     */
+    public void setResponse(String header, String response) {
+        setResponse(header, response.getBytes(StandardCharsets.ISO_8859_1));
+    }
+
+    /**
+     * Sets a fixed response for a query.
+     *
+     * @param header command header, like {@code "CURV?"}
+     * @param response the response without a terminator
+     */
+    public void setResponse(String header, byte[] response) {
+        putCommand(new Command(normalizeHeader(header), response.clone(), null));
+    }
+
+    /**
+     * Sets a fixed response which is an IEEE 488.2 definite length arbitrary block, like {@code #3512} followed by 512
+     * bytes.
+     *
+     * @param header command header, like {@code "CURV?"}
+     * @param data contents of the block
+     */
+    public void setBinaryBlockResponse(String header, byte[] data) {
+        putCommand(new Command(normalizeHeader(header), binaryBlock(data), null));
+    }
+
+    /**
+     * Calls a responder for a command. Use it for queries whose response changes, and for commands which change the
+     * state of the simulation.
+     *
+     * @param header command header, like {@code "VOLT"} or {@code "VOLT?"}
+     */
+    public void setResponder(String header, SimulatedResponder responder) {
+        putCommand(new Command(normalizeHeader(header), null, responder));
+    }
+
+    /**
+     * @param responder called for commands which don't have a response or responder for their header, or null to
+     * ignore them
+     */
+    public void setDefaultResponder(SimulatedResponder responder) {
+        defaultResponder = responder;
+    }
+
+    /**
+     * Sets a string attribute, like VI_ATTR_MANF_NAME.
+     */
+    public void setAttribute(int attribute, String value) {
+        STRING_ATTRIBUTES.put(attribute, value);
+    }
+
+    /**
+     * Sets an integer attribute, like VI_ATTR_MANF_ID.
+     */
+    public void setAttribute(int attribute, long value) {
+        INTEGER_ATTRIBUTES.put(attribute, value);
+    }
+
+    /**
+     * Makes every read, write, clear, and status byte read take some time, like a real bus.
+     *
+     * @param latencyNanoseconds how long every call takes
+     * @param jitterNanoseconds a random delay from zero to this is added to every call
+     */
+    public void setLatency(long latencyNanoseconds, long jitterNanoseconds) {
+        if (latencyNanoseconds < 0 || jitterNanoseconds < 0) {
+            throw new IllegalArgumentException("latency and jitter can't be negative");
+        }
+        this.latencyNanoseconds = latencyNanoseconds;
+        this.jitterNanoseconds = jitterNanoseconds;
+    }
+
+    /**
+     * @param statusByte returned from viReadSTB(). The MAV bit (0x10) is also set while a response is waiting to be
+     * read.
+     */
+    public void setStatusByte(int statusByte) {
+        this.statusByte = statusByte & 0xFF;
+    }
+
+    int getStatusByte() {
+        return statusByte;
+    }
+
+    SimulatedResponder getDefaultResponder() {
+        return defaultResponder;
+    }
+
+    /**
+     * Encodes an IEEE 488.2 definite length arbitrary block.
+     *
+     * @param data contents of the block
+     * @return {@code #}, the number of length digits, the length, then the data
+     * @see "section 8.7.9 &lt;DEFINITE LENGTH ARBITRARY BLOCK RESPONSE DATA&gt; of IEEE Std 488.2-1992"
+     */
+    public static byte[] binaryBlock(byte[] data) {
+        final String length = Integer.toString(data.length);
+        if (length.length() > 9) {
+            throw new IllegalArgumentException("a definite length block can have at most 999999999 bytes");
+        }
+        final byte[] block = new byte[2 + length.length() + data.length];
+        block[0] = '#';
+        block[1] = (byte) ('0' + length.length());
+        for (int i = 0; i < length.length(); i++) {
+            block[2 + i] = (byte) length.charAt(i);
+        }
+        System.arraycopy(data, 0, block, 2 + length.length(), data.length);
+        return block;
+    }
+
+    private static byte[] normalizeHeader(String header) {
+        String normalized = header.trim();
+        if (normalized.startsWith(":")) {
+            normalized = normalized.substring(1);
+        }
+        if (normalized.isEmpty()) {
+            throw new IllegalArgumentException("the header is empty");
+        }
+        return normalized.toUpperCase(Locale.ROOT).getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private synchronized void putCommand(Command command) {
+        Command[] table = commands.clone();
+        int index = find(table, command.HEADER, 0, command.HEADER.length);
+        if (table[index] == null) {
+            commandCount++;
+            if (commandCount * 2 > table.length) {
+                final Command[] oldTable = table;
+                table = new Command[oldTable.length * 2];
+                for (Command oldCommand : oldTable) {
+                    if (oldCommand != null) {
+                        table[find(table, oldCommand.HEADER, 0, oldCommand.HEADER.length)] = oldCommand;
+                    }
+                }
+                index = find(table, command.HEADER, 0, command.HEADER.length);
+            }
+        }
+        table[index] = command;
+        commands = table;
+    }
+
+    /**
+     * @param header array containing the header, in any case
+     * @return the command, or null if there isn't one for the header
+     */
+    Command getCommand(byte[] header, int offset, int length) {
+        final Command[] table = commands;
+        return table[find(table, header, offset, length)];
+    }
+
+    /**
+     * @return index of the command with the header, or of the empty slot where it would go
+     */
+    private static int find(Command[] table, byte[] header, int offset, int length) {
+        int hash = 0;
+        for (int i = 0; i < length; i++) {
+            hash = 31 * hash + toUpperCase(header[offset + i]);
+        }
+        final int mask = table.length - 1;
+        int index = (hash ^ (hash >>> 16)) & mask;
+        while (table[index] != null && !headerEquals(table[index].HEADER, header, offset, length)) {
+            index = (index + 1) & mask;
+        }
+        return index;
+    }
+
+    private static boolean headerEquals(byte[] upperCaseHeader, byte[] header, int offset, int length) {
+        if (upperCaseHeader.length != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (upperCaseHeader[i] != toUpperCase(header[offset + i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static byte toUpperCase(byte b) {
+        return b >= 'a' && b <= 'z' ? (byte) (b - ('a' - 'A')) : b;
+    }
+
+    /**
+     * Waits for the latency plus a random part of the jitter.
+     */
+    void simulateLatency() {
+        long delay = latencyNanoseconds;
+        final long jitter = jitterNanoseconds;
+        if (jitter > 0) {
+            delay += ThreadLocalRandom.current().nextLong(jitter);
+        }
+        if (delay <= 0) {
+            return;
+        }
+        final long deadline = System.nanoTime() + delay;
+        if (delay > SPIN_NANOSECONDS) {
+            LockSupport.parkNanos(delay - SPIN_NANOSECONDS);
+        }
+        while (System.nanoTime() - deadline < 0) {
+            Thread.onSpinWait();
+        }
+    }
+
+}
@@ -0,0 +1,88 @@
+/**
+ * @license Copyright 2018-2020 Peter Froud
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package xyz.froud.jvisa.simulated;
+
+import xyz.froud.jvisa.JVisaLibrary;
+
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The parts of a resource name which viParseRsrcEx() returns.
+ *
+ * @author Peter Froud
+ * @see <a href="https://www.ni.com/docs/en-US/bundle/ni-visa/page/ni-visa/visaresourcesyntaxandexamples.html">VISA
+ * Resource Syntax and Examples</a>
+ */
+final class SimulatedResourceName {
+
+    private static final Pattern PATTERN = Pattern.compile(
+            "(GPIB-VXI|GPIB|VXI|ASRL|PXI|TCPIP|USB)(\\d*)(?:::.*?)?(?:::(INSTR|SOCKET|RAW|INTFC|BACKPLANE|MEMACC|SERVANT))?",
+            Pattern.CASE_INSENSITIVE);
+
+    final short INTERFACE_TYPE;
+    final short BOARD;
+    final String RESOURCE_CLASS;
+
+    private SimulatedResourceName(short interfaceType, short board, String resourceClass) {
+        INTERFACE_TYPE = interfaceType;
+        BOARD = board;
+        RESOURCE_CLASS = resourceClass;
+    }
+
+    /**
+     * @return the parsed resource name, or null if it doesn't start with an interface type
+     */
+    static SimulatedResourceName parse(String resourceName) {
+        final Matcher matcher = PATTERN.matcher(resourceName.trim());
+        if (!matcher.matches()) {
+            return null;
+        }
+        final short interfaceType;
+        switch (matcher.group(1).toUpperCase(Locale.ROOT)) {
+            case "GPIB-VXI":
+                interfaceType = JVisaLibrary.VI_INTF_GPIB_VXI;
+                break;
+            case "GPIB":
+                interfaceType = JVisaLibrary.VI_INTF_GPIB;
+                break;
+            case "VXI":
+                interfaceType = JVisaLibrary.VI_INTF_VXI;
+                break;
+            case "ASRL":
+                interfaceType = JVisaLibrary.VI_INTF_ASRL;
+                break;
+            case "PXI":
+                interfaceType = JVisaLibrary.VI_INTF_PXI;
+                break;
+            case "TCPIP":
+                interfaceType = JVisaLibrary.VI_INTF_TCPIP;
+                break;
+            case "USB":
+            default:
+                interfaceType = JVisaLibrary.VI_INTF_USB;
+                break;
+        }
+        final String board = matcher.group(2);
+        if (board.length() > 4) {
+            return null;
+        }
+        final String resourceClass = matcher.group(3) == null ? "INSTR" : matcher.group(3).toUpperCase(Locale.ROOT);
+        return new SimulatedResourceName(interfaceType, board.isEmpty() ? 0 : Short.parseShort(board), resourceClass);
+    }
+
+}
@@ -0,0 +1,36 @@
+/**
+ * @license Copyright 2018-2020 Peter Froud
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package xyz.froud.jvisa.simulated;
+
+/**
+ * Computes the response to a command sent to a SimulatedInstrument.
+ *
+ * @author Peter Froud
+ */
+@FunctionalInterface
+public interface SimulatedResponder {
+
+    /**
+     * Called for every program message unit with a matching header. A compound message like
+     * {@code "VOLT 1.5;MEAS:CURR?"} has two program message units.
+     *
+     * @param command one program message unit, like {@code "VOLT 1.5"} or {@code "MEAS:CURR?"}, without the terminator
+     * @return the response without a terminator, or null if the command doesn't have a response. Characters are sent
+     * as ISO-8859-1, so a char from 0 to 255 is one byte.
+     */
+    String respond(String command);
+
+}
@@ -0,0 +1,482 @@
+/**
+ * @license Copyright 2018-2020 Peter Froud
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package xyz.froud.jvisa.simulated;
+
+import xyz.froud.jvisa.JVisaLibrary;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * An open session to a SimulatedInstrument. Like a session in a native VISA library, it should only be used by one
+ * thread at a time.
+ * <p>
+ * Bytes written are collected until END, which is sent at the end of every write if VI_ATTR_SEND_END_EN is true, or
+ * until a newline outside of a string or block. Then every program message unit is answered. The responses of a
+ * compound query are joined with semicolons, and a newline is added at the end, like IEEE 488.2 instruments do. A new
+ * message throws away a response which wasn't read yet.
+ *
+ * @author Peter Froud
+ */
+final class SimulatedSession {
+
+    /**
+     * Message available bit of the status byte.
+     */
+    private static final int MAV = 0x10;
+
+    private static final int VI_TRUE = 1;
+    private static final int VI_FALSE = 0;
+
+    final int RESOURCE_MANAGER_SESSION;
+    private final String RESOURCE_NAME;
+    private final SimulatedResourceName PARSED_RESOURCE_NAME;
+    private final SimulatedInstrument INSTRUMENT;
+    private final Map<Integer, String> STRING_ATTRIBUTES;
+    private final Map<Integer, Long> INTEGER_ATTRIBUTES;
+
+    private long timeoutMilliseconds = 2000;
+    private byte terminationCharacter = '\n';
+    private boolean isTerminationCharacterEnabled = false;
+    private boolean isSendEndEnabled = true;
+
+    /**
+     * The start of the message being received, which is always at index zero.
+     */
+    private byte[] input = new byte[256];
+    private int inputLength = 0;
+
+    /**
+     * Where to continue looking for the end of the message.
+     */
+    private int scanPosition = 0;
+
+    private byte[] output = new byte[256];
+    private int outputPosition = 0;
+    private int outputLength = 0;
+
+    SimulatedSession(int resourceManagerSession, String resourceName, SimulatedResourceName parsedResourceName,
+                     SimulatedInstrument instrument) {
+        RESOURCE_MANAGER_SESSION = resourceManagerSession;
+        RESOURCE_NAME = resourceName;
+        PARSED_RESOURCE_NAME = parsedResourceName;
+        INSTRUMENT = instrument;
+        STRING_ATTRIBUTES = new HashMap<>(instrument.STRING_ATTRIBUTES);
+        INTEGER_ATTRIBUTES = new HashMap<>(instrument.INTEGER_ATTRIBUTES);
+    }
+
+    ////////////////////////////// basic I/O //////////////////////////////
+
+    int write(ByteBuffer buffer, int count, int[] returnCount) {
+        INSTRUMENT.simulateLatency();
+        final int start = buffer.position();
+        final int length = Math.min(count, buffer.limit() - start);
+        if (inputLength + length > input.length) {
+            final byte[] biggerInput = new byte[Math.max(inputLength + length, input.length * 2)];
+            System.arraycopy(input, 0, biggerInput, 0, inputLength);
+            input = biggerInput;
+        }
+        buffer.get(input, inputLength, length);
+        buffer.position(start);
+        inputLength += length;
+
+        int i = scanPosition;
+        while (i < inputLength) {
+            if (input[i] == '\n') {
+                processMessage(i);
+                inputLength -= i + 1;
+                System.arraycopy(input, i + 1, input, 0, inputLength);
+                i = 0;
+                continue;
+            }
+            final int next = skipElement(input, i, inputLength);
+            if (next > inputLength) {
+                // The rest of a string or block hasn't been written yet.
+                break;
+            }
+            i = next;
+        }
+        scanPosition = i;
+        if (isSendEndEnabled && inputLength > 0) {
+            processMessage(inputLength);
+            inputLength = 0;
+            scanPosition = 0;
+        }
+
+        returnCount[0] = length;
+        return 0;
+    }
+
+    /**
+     * Without a response to read, this returns VI_ERROR_TMO right away instead of waiting for the timeout.
+     */
+    int read(ByteBuffer buffer, int count, int[] returnCount) {
+        INSTRUMENT.simulateLatency();
+        if (outputPosition == outputLength) {
+            returnCount[0] = 0;
+            return JVisaLibrary.VI_ERROR_TMO;
+        }
+        final int start = buffer.position();
+        int length = Math.min(Math.min(count, buffer.limit() - start), outputLength - outputPosition);
+        boolean isTerminated = false;
+        if (isTerminationCharacterEnabled) {
+            for (int i = 0; i < length; i++) {
+                if (output[outputPosition + i] == terminationCharacter) {
+                    length = i + 1;
+                    isTerminated = true;
+                    break;
+                }
+            }
+        }
+        buffer.put(output, outputPosition, length);
+        buffer.position(start);
+        outputPosition += length;
+        returnCount[0] = length;
+
+        if (outputPosition == outputLength) {
+            outputPosition = 0;
+            outputLength = 0;
+            return 0;
+        }
+        return isTerminated ? JVisaLibrary.VI_SUCCESS_TERM_CHAR : JVisaLibrary.VI_SUCCESS_MAX_CNT;
+    }
+
+    /**
+     * Reads like read() and writes the bytes to a file instead of a buffer.
+     */
+    int readToFile(String fileName, int count, int[] returnCount) {
+        final ByteBuffer buffer = ByteBuffer.allocate(count);
+        final int status = read(buffer, count, returnCount);
+        if (status < 0) {
+            return status;
+        }
+        buffer.limit(returnCount[0]);
+        final boolean isAppend = INTEGER_ATTRIBUTES.getOrDefault(JVisaLibrary.VI_ATTR_FILE_APPEND_EN, (long) VI_FALSE) != VI_FALSE;
+        try (FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                isAppend ? StandardOpenOption.APPEND : StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        } catch (IOException ex) {
+            return JVisaLibrary.VI_ERROR_FILE_IO;
+        }
+        return status;
+    }
+
+    int writeFromFile(String fileName, int count, int[] returnCount) {
+        final ByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ)) {
+            buffer = ByteBuffer.allocate((int) Math.min(count, channel.size()));
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer) < 0) {
+                    break;
+                }
+            }
+        } catch (IOException ex) {
+            returnCount[0] = 0;
+            return JVisaLibrary.VI_ERROR_FILE_IO;
+        }
+        return write(buffer.flip(), buffer.remaining(), returnCount);
+    }
+
+    int clear() {
+        INSTRUMENT.simulateLatency();
+        inputLength = 0;
+        scanPosition = 0;
+        outputPosition = 0;
+        outputLength = 0;
+        return 0;
+    }
+
+    int readStatusByte(short[] statusByte) {
+        INSTRUMENT.simulateLatency();
+        statusByte[0] = (short) (INSTRUMENT.getStatusByte() | (outputPosition < outputLength ? MAV : 0));
+        return 0;
+    }
+
+    ////////////////////////////// command parsing //////////////////////////////
+
+    /**
+     * @return the index after the element which starts at the index: a quoted string, a definite length block, or
+     * else one byte. It's more than the end if the element doesn't end before the end.
+     */
+    private static int skipElement(byte[] bytes, int index, int end) {
+        final byte first = bytes[index];
+        if (first == '"' || first == '\'') {
+            // A doubled quote inside a string works like two strings in a row.
+            for (int i = index + 1; i < end; i++) {
+                if (bytes[i] == first) {
+                    return i + 1;
+                }
+            }
+            return end + 1;
+        }
+        if (first == '#') {
+            if (index + 1 >= end) {
+                return end + 1;
+            }
+            final int digitCount = bytes[index + 1] - '0';
+            if (digitCount < 1 || digitCount > 9) {
+                // An indefinite length block or a number like #HFF
+                return index + 1;
+            }
+            final int dataStart = index + 2 + digitCount;
+            if (dataStart > end) {
+                return end + 1;
+            }
+            long dataLength = 0;
+            for (int i = index + 2; i < dataStart; i++) {
+                final int digit = bytes[i] - '0';
+                if (digit < 0 || digit > 9) {
+                    return index + 1;
+                }
+                dataLength = 10 * dataLength + digit;
+            }
+            final long dataEnd = dataStart + dataLength;
+            return dataEnd > end ? end + 1 : (int) dataEnd;
+        }
+        return index + 1;
+    }
+
+    /**
+     * Answers every program message unit of the message which ends at the index, not including the newline.
+     */
+    private void processMessage(int end) {
+        if (isBlank(input, end)) {
+            // Like the NUL after the newline from JVisaInstrument.write(String), which shouldn't discard the response.
+            return;
+        }
+        outputPosition = 0;
+        outputLength = 0;
+        int unitStart = 0;
+        int i = 0;
+        while (i < end) {
+            if (input[i] == ';') {
+                processUnit(unitStart, i);
+                unitStart = i + 1;
+                i++;
+            } else {
+                i = skipElement(input, i, end);
+            }
+        }
+        processUnit(unitStart, end);
+        if (outputLength > 0) {
+            appendOutput('\n');
+        }
+    }
+
+    private static boolean isBlank(byte[] bytes, int end) {
+        for (int i = 0; i < end; i++) {
+            if ((bytes[i] & 0xFF) > ' ') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void processUnit(int start, int end) {
+        // Bytes up to a space are whitespace. The NUL which some callers send at the end is too.
+        while (start < end && (input[start] & 0xFF) <= ' ') {
+            start++;
+        }
+        while (end > start && (input[end - 1] & 0xFF) <= ' ') {
+            end--;
+        }
+        if (start < end && input[start] == ':') {
+            start++;
+        }
+        if (start == end) {
+            return;
+        }
+        int headerEnd = start;
+        while (headerEnd < end && (input[headerEnd] & 0xFF) > ' ') {
+            headerEnd++;
+        }
+
+        final SimulatedInstrument.Command command = INSTRUMENT.getCommand(input, start, headerEnd - start);
+        final byte[] response;
+        if (command != null && command.RESPONSE != null) {
+            response = command.RESPONSE;
+        } else {
+            final SimulatedResponder responder = command != null ? command.RESPONDER : INSTRUMENT.getDefaultResponder();
+            if (responder == null) {
+                return;
+            }
+            final String responseString = responder.respond(new String(input, start, end - start, StandardCharsets.ISO_8859_1));
+            if (responseString == null) {
+                return;
+            }
+            response = responseString.getBytes(StandardCharsets.ISO_8859_1);
+        }
+        if (outputLength > 0) {
+            appendOutput(';');
+        }
+        ensureOutputCapacity(response.length);
+        System.arraycopy(response, 0, output, outputLength, response.length);
+        outputLength += response.length;
+    }
+
+    private void appendOutput(char c) {
+        ensureOutputCapacity(1);
+        output[outputLength++] = (byte) c;
+    }
+
+    private void ensureOutputCapacity(int count) {
+        if (outputLength + count > output.length) {
+            final byte[] biggerOutput = new byte[Math.max(outputLength + count, output.length * 2)];
+            System.arraycopy(output, 0, biggerOutput, 0, outputLength);
+            output = biggerOutput;
+        }
+    }
+
+    ////////////////////////////// attributes //////////////////////////////
+
+    int getAttribute(int attribute, ByteBuffer value) {
+        switch (attribute) {
+            case JVisaLibrary.VI_ATTR_TMO_VALUE:
+                putInteger(value, timeoutMilliseconds, 4);
+                return 0;
+            case JVisaLibrary.VI_ATTR_TERMCHAR:
+                putInteger(value, Byte.toUnsignedLong(terminationCharacter), 1);
+                return 0;
+            case JVisaLibrary.VI_ATTR_TERMCHAR_EN:
+                putInteger(value, isTerminationCharacterEnabled ? VI_TRUE : VI_FALSE, 2);
+                return 0;
+            case JVisaLibrary.VI_ATTR_SEND_END_EN:
+                putInteger(value, isSendEndEnabled ? VI_TRUE : VI_FALSE, 2);
+                return 0;
+            case JVisaLibrary.VI_ATTR_INTF_TYPE:
+                putInteger(value, PARSED_RESOURCE_NAME.INTERFACE_TYPE, 2);
+                return 0;
+            case JVisaLibrary.VI_ATTR_INTF_NUM:
+                putInteger(value, PARSED_RESOURCE_NAME.BOARD, 2);
+                return 0;
+            case JVisaLibrary.VI_ATTR_RSRC_CLASS:
+                putString(value, PARSED_RESOURCE_NAME.RESOURCE_CLASS);
+                return 0;
+            case JVisaLibrary.VI_ATTR_RSRC_NAME:
+                putString(value, RESOURCE_NAME);
+                return 0;
+            default:
+                final String stringValue = STRING_ATTRIBUTES.get(attribute);
+                if (stringValue != null) {
+                    putString(value, stringValue);
+                    return 0;
+                }
+                final Long integerValue = INTEGER_ATTRIBUTES.get(attribute);
+                if (integerValue != null) {
+                    putInteger(value, integerValue, sizeOf(attribute));
+                    return 0;
+                }
+                return JVisaLibrary.VI_ERROR_NSUP_ATTR;
+        }
+    }
+
+    /**
+     * Integer attributes which the instrument doesn't have are added, so serial port settings and such can be set
+     * and read back.
+     */
+    int setAttribute(int attribute, long value) {
+        switch (attribute) {
+            case JVisaLibrary.VI_ATTR_TMO_VALUE:
+                if (value < 0 || value > JVisaLibrary.VI_TMO_INFINITE) {
+                    return JVisaLibrary.VI_ERROR_NSUP_ATTR_STATE;
+                }
+                timeoutMilliseconds = value;
+                return 0;
+            case JVisaLibrary.VI_ATTR_TERMCHAR:
+                if (value < 0 || value > 0xFF) {
+                    return JVisaLibrary.VI_ERROR_NSUP_ATTR_STATE;
+                }
+                terminationCharacter = (byte) value;
+                return 0;
+            case JVisaLibrary.VI_ATTR_TERMCHAR_EN:
+                if (value != VI_TRUE && value != VI_FALSE) {
+                    return JVisaLibrary.VI_ERROR_NSUP_ATTR_STATE;
+                }
+                isTerminationCharacterEnabled = value == VI_TRUE;
+                return 0;
+            case JVisaLibrary.VI_ATTR_SEND_END_EN:
+                if (value != VI_TRUE && value != VI_FALSE) {
+                    return JVisaLibrary.VI_ERROR_NSUP_ATTR_STATE;
+                }
+                isSendEndEnabled = value == VI_TRUE;
+                return 0;
+            case JVisaLibrary.VI_ATTR_INTF_TYPE:
+            case JVisaLibrary.VI_ATTR_INTF_NUM:
+            case JVisaLibrary.VI_ATTR_RSRC_CLASS:
+            case JVisaLibrary.VI_ATTR_RSRC_NAME:
+                return JVisaLibrary.VI_ERROR_ATTR_READONLY;
+            default:
+                if (STRING_ATTRIBUTES.containsKey(attribute)) {
+                    return JVisaLibrary.VI_ERROR_ATTR_READONLY;
+                }
+                INTEGER_ATTRIBUTES.put(attribute, value);
+                return 0;
+        }
+    }
+
+    /**
+     * @return how many bytes the attribute has in visa.h. Most integer attributes are ViUInt32.
+     */
+    private static int sizeOf(int attribute) {
+        switch (attribute) {
+            case JVisaLibrary.VI_ATTR_MANF_ID:
+            case JVisaLibrary.VI_ATTR_MODEL_CODE:
+            case JVisaLibrary.VI_ATTR_ASRL_DATA_BITS:
+            case JVisaLibrary.VI_ATTR_ASRL_PARITY:
+            case JVisaLibrary.VI_ATTR_ASRL_STOP_BITS:
+            case JVisaLibrary.VI_ATTR_ASRL_FLOW_CNTRL:
+                return 2;
+            default:
+                return 4;
+        }
+    }
+
+    /**
+     * Writes an unsigned integer in native byte order. Only the bytes which fit in the buffer are written.
+     */
+    private static void putInteger(ByteBuffer value, long attributeValue, int size) {
+        final int byteCount = Math.min(size, value.limit());
+        final boolean isLittleEndian = ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN;
+        for (int i = 0; i < byteCount; i++) {
+            final int shift = 8 * (isLittleEndian ? i : size - 1 - i);
+            value.put(i, (byte) (attributeValue >>> shift));
+        }
+    }
+
+    /**
+     * Writes a zero-terminated string, cut off if the buffer is too small.
+     */
+    static void putString(ByteBuffer value, String attributeValue) {
+        final byte[] bytes = attributeValue.getBytes(StandardCharsets.ISO_8859_1);
+        final int length = Math.min(bytes.length, value.limit() - 1);
+        for (int i = 0; i < length; i++) {
+            value.put(i, bytes[i]);
+        }
+        if (length >= 0) {
+            value.put(length, (byte) 0);
+        }
+    }
+
+}
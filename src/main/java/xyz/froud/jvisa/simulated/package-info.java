@@ -0,0 +1,4 @@
+/**
+ * VISA implementation with simulated instruments, for trying JVisa and for benchmarks without hardware.
+ */
+package xyz.froud.jvisa.simulated;
@@ -0,0 +1,855 @@
+/**
+ * @license Copyright 2018-2020 Peter Froud
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package xyz.froud.jvisa.tcpip;
+
+import com.sun.jna.NativeLong;
+import com.sun.jna.Pointer;
+import xyz.froud.jvisa.JVisaLibrary;
+import xyz.froud.jvisa.eventhandling.JVisaEventCallback;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.InterruptedByTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A TCPIP INSTR session using HiSLIP, the High-Speed LAN Instrument Protocol.
+ * <p>
+ * HiSLIP uses two TCP connections to the same port. Data goes over the synchronous channel, and the asynchronous
+ * channel carries device clear, status queries, and service requests. A daemon thread reads the asynchronous channel,
+ * so service requests are delivered to event handlers as soon as they arrive.
+ * <p>
+ * In overlapped mode the instrument accepts more queries before the first response was read, and tags every response
+ * with the message ID of its query. {@link #queryOverlapped(ByteBuffer[], int, byte[][])} uses that to keep several
+ * queries in flight, which hides the network round trip.
+ *
+ * @author Peter Froud
+ * @see <a href="https://www.ivifoundation.org/downloads/Protocol%20Specifications/IVI-6.1_HiSLIP-2.0-2020-04-23.pdf">IVI-6.1:
+ * High-Speed LAN Instrument Protocol (HiSLIP)</a>
+ * @see <a href="https://github.com/pyvisa/pyvisa-py/blob/main/pyvisa_py/protocols/hislip.py">hislip.py in
+ * PyVISA-py</a>
+ */
+final class HislipSession extends TcpipSession {
+
+    // message types
+    private static final int INITIALIZE = 0;
+    private static final int INITIALIZE_RESPONSE = 1;
+    private static final int FATAL_ERROR = 2;
+    private static final int ERROR = 3;
+    private static final int DATA = 6;
+    private static final int DATA_END = 7;
+    private static final int DEVICE_CLEAR_COMPLETE = 8;
+    private static final int DEVICE_CLEAR_ACKNOWLEDGE = 9;
+    private static final int ASYNC_MAXIMUM_MESSAGE_SIZE = 15;
+    private static final int ASYNC_MAXIMUM_MESSAGE_SIZE_RESPONSE = 16;
+    private static final int ASYNC_INITIALIZE = 17;
+    private static final int ASYNC_INITIALIZE_RESPONSE = 18;
+    private static final int ASYNC_DEVICE_CLEAR = 19;
+    private static final int ASYNC_SERVICE_REQUEST = 20;
+    private static final int ASYNC_STATUS_QUERY = 21;
+    private static final int ASYNC_STATUS_RESPONSE = 22;
+    private static final int ASYNC_DEVICE_CLEAR_ACKNOWLEDGE = 23;
+
+    /**
+     * "HS" in ASCII, the first two bytes of every message.
+     */
+    private static final short PROLOGUE = 0x4853;
+    private static final int HEADER_SIZE = 16;
+
+    /**
+     * Version 1.0, in the upper 16 bits of the Initialize parameter.
+     */
+    private static final int PROTOCOL_VERSION = 0x0100;
+
+    /**
+     * The two-character vendor ID in the lower 16 bits of the Initialize parameter.
+     */
+    private static final int VENDOR_ID = ('J' << 8) | 'V';
+
+    private static final int FIRST_MESSAGE_ID = 0xFFFFFF00;
+
+    /**
+     * Control code bit in InitializeResponse, DeviceClearComplete, and DeviceClearAcknowledge.
+     */
+    private static final int OVERLAP_MODE = 0x01;
+
+    /**
+     * Control code bit in Data, DataEnd, and AsyncStatusQuery, meaning a whole response was read since the last one.
+     */
+    private static final int RMT_DELIVERED = 0x01;
+
+    /**
+     * The biggest message payload this side accepts and sends.
+     */
+    private static final long MAX_MESSAGE_SIZE = 1024 * 1024;
+
+    private static final int BUFFER_SIZE = 16 * 1024;
+    private static final int ASYNC_BUFFER_SIZE = 256;
+
+    /**
+     * The type, control code, message parameter, and payload length of a message.
+     */
+    private static final class Header {
+        int type;
+        int controlCode;
+        int parameter;
+        long payloadLength;
+    }
+
+    /**
+     * A response from the asynchronous channel. The responses this side asks for after opening have no payload.
+     */
+    private static final class AsyncMessage {
+        final int TYPE;
+        final int CONTROL_CODE;
+
+        AsyncMessage(int type, int controlCode) {
+            TYPE = type;
+            CONTROL_CODE = controlCode;
+        }
+    }
+
+    /**
+     * Put into ASYNC_RESPONSES when the asynchronous channel is closed.
+     */
+    private static final AsyncMessage ASYNC_CHANNEL_CLOSED = new AsyncMessage(-1, 0);
+
+    private static final class ServiceRequestHandler {
+        final JVisaEventCallback CALLBACK;
+        final Pointer USER_HANDLE;
+
+        ServiceRequestHandler(JVisaEventCallback callback, Pointer userHandle) {
+            CALLBACK = callback;
+            USER_HANDLE = userHandle;
+        }
+    }
+
+    private final TcpipReceiveBuffer RECEIVER;
+    private final Header RECEIVED_HEADER = new Header();
+    private final ByteBuffer SEND_HEADER;
+
+    /**
+     * SEND_HEADER and a payload, so a message is sent with one gathering write.
+     */
+    private final ByteBuffer[] GATHER;
+
+    private final TcpipConnection ASYNC_CONNECTION;
+    private final TcpipReceiveBuffer ASYNC_RECEIVER;
+
+    /**
+     * Also the lock for sending on the asynchronous channel and waiting for the response.
+     */
+    private final ByteBuffer ASYNC_SEND_BUFFER;
+
+    /**
+     * Messages from the asynchronous channel, except service requests.
+     */
+    private final BlockingQueue<AsyncMessage> ASYNC_RESPONSES = new LinkedBlockingQueue<>();
+    private final Thread ASYNC_READER;
+    private volatile boolean isAsyncChannelClosed = false;
+
+    private final List<ServiceRequestHandler> SERVICE_REQUEST_HANDLERS = new CopyOnWriteArrayList<>();
+    private volatile boolean isServiceRequestEnabled = false;
+
+    private final int SERVER_PROTOCOL_VERSION;
+
+    /**
+     * The biggest payload the instrument accepts, from AsyncMaximumMessageSizeResponse.
+     */
+    private final long MAX_SEND_PAYLOAD;
+
+    private boolean isOverlapped;
+
+    /**
+     * VI_ATTR_TCPIP_HISLIP_OVERLAP_EN, sent in the next DeviceClearComplete.
+     */
+    private boolean isOverlapRequested;
+
+    private int messageId = FIRST_MESSAGE_ID;
+    private int lastSentMessageId = FIRST_MESSAGE_ID - 2;
+    private boolean isResponseDelivered = false;
+
+    /**
+     * Payload bytes of the current Data or DataEnd message which weren't read yet.
+     */
+    private long payloadRemaining = 0;
+    private boolean isEndMessage = false;
+
+    private HislipSession(int resourceManagerSession, TcpipResourceName resourceName,
+                          TcpipConnection syncConnection, TcpipReceiveBuffer receiver, ByteBuffer sendHeader,
+                          TcpipConnection asyncConnection, TcpipReceiveBuffer asyncReceiver, ByteBuffer asyncSendBuffer,
+                          int serverProtocolVersion, boolean isOverlapped, long maxSendPayload) {
+        super(resourceManagerSession, resourceName, syncConnection);
+        RECEIVER = receiver;
+        SEND_HEADER = sendHeader;
+        GATHER = new ByteBuffer[]{sendHeader, null};
+        ASYNC_CONNECTION = asyncConnection;
+        ASYNC_RECEIVER = asyncReceiver;
+        ASYNC_SEND_BUFFER = asyncSendBuffer;
+        SERVER_PROTOCOL_VERSION = serverProtocolVersion;
+        this.isOverlapped = isOverlapped;
+        isOverlapRequested = isOverlapped;
+        MAX_SEND_PAYLOAD = maxSendPayload;
+        ASYNC_READER = new Thread(this::readAsyncMessages, "JVisa HiSLIP " + resourceName);
+        ASYNC_READER.setDaemon(true);
+    }
+
+    /**
+     * Connects and initializes the synchronous channel, then the asynchronous channel, then asks for the maximum
+     * message size.
+     *
+     * @param status element zero is set to the VISA status if the session couldn't be opened
+     * @return the session, or null if it couldn't be opened
+     * @throws IOException if a connection failed
+     */
+    static HislipSession open(int resourceManagerSession, TcpipResourceName resourceName, int connectTimeout,
+                              int[] status) throws IOException {
+        final long deadline = TcpipConnection.deadline(connectTimeout);
+        final Header header = new Header();
+
+        final TcpipConnection syncConnection = TcpipConnection.open(resourceName.HOST, resourceName.PORT, connectTimeout);
+        TcpipConnection asyncConnection = null;
+        try {
+            final TcpipReceiveBuffer receiver = new TcpipReceiveBuffer(syncConnection, BUFFER_SIZE);
+            final ByteBuffer sendHeader = ByteBuffer.allocateDirect(HEADER_SIZE);
+            final ByteBuffer subAddress = ByteBuffer.wrap(resourceName.HISLIP_SUB_ADDRESS.getBytes(StandardCharsets.US_ASCII));
+            putHeader(sendHeader, INITIALIZE, 0, (PROTOCOL_VERSION << 16) | VENDOR_ID, subAddress.remaining());
+            sendHeader.flip();
+            syncConnection.write(new ByteBuffer[]{sendHeader, subAddress}, deadline);
+
+            readHeader(receiver, header, deadline);
+            receiver.skip(header.payloadLength, deadline);
+            if (header.type == FATAL_ERROR || header.type == ERROR) {
+                // For example, the sub-address doesn't exist.
+                syncConnection.close();
+                status[0] = JVisaLibrary.VI_ERROR_RSRC_NFOUND;
+                return null;
+            }
+            if (header.type != INITIALIZE_RESPONSE) {
+                throw new ProtocolException("expected a HiSLIP InitializeResponse message but got type " + header.type);
+            }
+            final boolean isOverlapped = (header.controlCode & OVERLAP_MODE) != 0;
+            final int serverProtocolVersion = header.parameter >>> 16;
+            final int sessionId = header.parameter & 0xFFFF;
+
+            asyncConnection = TcpipConnection.open(resourceName.HOST, resourceName.PORT, connectTimeout);
+            final TcpipReceiveBuffer asyncReceiver = new TcpipReceiveBuffer(asyncConnection, ASYNC_BUFFER_SIZE);
+            final ByteBuffer asyncSendBuffer = ByteBuffer.allocateDirect(HEADER_SIZE + 8);
+
+            putHeader(asyncSendBuffer.clear(), ASYNC_INITIALIZE, 0, sessionId, 0);
+            asyncConnection.write(asyncSendBuffer.flip(), deadline);
+            expectAsyncMessage(asyncReceiver, header, ASYNC_INITIALIZE_RESPONSE, deadline);
+            asyncReceiver.skip(header.payloadLength, deadline);
+
+            putHeader(asyncSendBuffer.clear(), ASYNC_MAXIMUM_MESSAGE_SIZE, 0, 0, 8);
+            asyncSendBuffer.putLong(MAX_MESSAGE_SIZE);
+            asyncConnection.write(asyncSendBuffer.flip(), deadline);
+            expectAsyncMessage(asyncReceiver, header, ASYNC_MAXIMUM_MESSAGE_SIZE_RESPONSE, deadline);
+            long maxSendPayload = MAX_MESSAGE_SIZE;
+            if (header.payloadLength == 8) {
+                asyncReceiver.ensure(8, deadline);
+                final long serverMaxMessageSize = asyncReceiver.BUFFER.getLong();
+                if (serverMaxMessageSize > HEADER_SIZE) {
+                    // Some servers count the header in the maximum message size and some don't, so assume they do.
+                    maxSendPayload = Math.min(serverMaxMessageSize - HEADER_SIZE, MAX_MESSAGE_SIZE);
+                }
+            } else {
+                asyncReceiver.skip(header.payloadLength, deadline);
+            }
+
+            final HislipSession session = new HislipSession(resourceManagerSession, resourceName,
+                    syncConnection, receiver, sendHeader, asyncConnection, asyncReceiver, asyncSendBuffer,
+                    serverProtocolVersion, isOverlapped, maxSendPayload);
+            session.ASYNC_READER.start();
+            return session;
+        } catch (IOException | RuntimeException ex) {
+            try {
+                if (asyncConnection != null) {
+                    asyncConnection.close();
+                }
+            } finally {
+                syncConnection.close();
+            }
+            throw ex;
+        }
+    }
+
+    private static void putHeader(ByteBuffer buffer, int type, int controlCode, int parameter, long payloadLength) {
+        buffer.putShort(PROLOGUE)
+                .put((byte) type)
+                .put((byte) controlCode)
+                .putInt(parameter)
+                .putLong(payloadLength);
+    }
+
+    /**
+     * Reads a message header. The caller must then read or skip the payload.
+     *
+     * @throws ProtocolException if it isn't a HiSLIP message
+     */
+    private static void readHeader(TcpipReceiveBuffer receiver, Header header, long deadline) throws IOException {
+        receiver.ensure(HEADER_SIZE, deadline);
+        final ByteBuffer buffer = receiver.BUFFER;
+        if (buffer.getShort() != PROLOGUE) {
+            throw new ProtocolException("received a message which doesn't start with the HiSLIP prologue");
+        }
+        header.type = Byte.toUnsignedInt(buffer.get());
+        header.controlCode = Byte.toUnsignedInt(buffer.get());
+        header.parameter = buffer.getInt();
+        header.payloadLength = buffer.getLong();
+        if (header.payloadLength < 0) {
+            throw new ProtocolException("received a HiSLIP message with a negative payload length");
+        }
+    }
+
+    /**
+     * Reads the asynchronous channel before the reader thread is started.
+     */
+    private static void expectAsyncMessage(TcpipReceiveBuffer receiver, Header header, int type, long deadline) throws IOException {
+        while (true) {
+            readHeader(receiver, header, deadline);
+            if (header.type == type) {
+                return;
+            }
+            if (header.type == FATAL_ERROR || header.type == ERROR) {
+                throw new ProtocolException("the instrument sent a HiSLIP error message instead of type " + type);
+            }
+            receiver.skip(header.payloadLength, deadline);
+        }
+    }
+
+    ////////////////////////////// synchronous channel //////////////////////////////
+
+    private void send(int type, int controlCode, int parameter, ByteBuffer payload, long deadline) throws IOException {
+        SEND_HEADER.clear();
+        putHeader(SEND_HEADER, type, controlCode, parameter, payload == null ? 0 : payload.remaining());
+        SEND_HEADER.flip();
+        if (payload == null) {
+            CONNECTION.write(SEND_HEADER, deadline);
+        } else {
+            GATHER[1] = payload;
+            try {
+                CONNECTION.write(GATHER, deadline);
+            } finally {
+                GATHER[1] = null;
+            }
+        }
+    }
+
+    /**
+     * Sends the buffer from its position to its limit as Data messages no bigger than the instrument accepts.
+     *
+     * @param isEnd if the last message should be DataEnd
+     * @return the message ID of the last message
+     */
+    private int sendData(ByteBuffer payload, boolean isEnd, long deadline) throws IOException {
+        final int end = payload.limit();
+        try {
+            do {
+                final int chunkEnd = payload.position() + (int) Math.min(end - payload.position(), MAX_SEND_PAYLOAD);
+                payload.limit(chunkEnd);
+                final int type = chunkEnd == end && isEnd ? DATA_END : DATA;
+                send(type, isResponseDelivered ? RMT_DELIVERED : 0, messageId, payload, deadline);
+                isResponseDelivered = false;
+                lastSentMessageId = messageId;
+                messageId += 2;
+            } while (payload.position() < end);
+        } finally {
+            payload.limit(end);
+        }
+        return lastSentMessageId;
+    }
+
+    /**
+     * Sends Data messages, with DataEnd last if VI_ATTR_SEND_END_EN is true.
+     */
+    @Override
+    int write(ByteBuffer buffer, int count, int[] returnCount) {
+        final int start = buffer.position();
+        final int originalLimit = buffer.limit();
+        buffer.limit(start + Math.min(count, originalLimit - start));
+        try {
+            sendData(buffer, isSendEndEnabled, deadline());
+            return 0;
+        } catch (IOException ex) {
+            return statusFor(ex);
+        } finally {
+            returnCount[0] = buffer.position() - start;
+            buffer.limit(originalLimit);
+            buffer.position(start);
+        }
+    }
+
+    @Override
+    int read(ByteBuffer buffer, int count, int[] returnCount) {
+        final int start = buffer.position();
+        final int originalLimit = buffer.limit();
+        buffer.limit(start + Math.min(count, originalLimit - start));
+        try {
+            return readUntilDone(buffer);
+        } catch (IOException ex) {
+            return statusFor(ex);
+        } finally {
+            returnCount[0] = buffer.position() - start;
+            buffer.limit(originalLimit);
+            buffer.position(start);
+        }
+    }
+
+    /**
+     * Copies payloads of Data and DataEnd messages. A message can be split across reads if the buffer fills up or the
+     * termination character is found in the middle.
+     */
+    private int readUntilDone(ByteBuffer buffer) throws IOException {
+        final long deadline = deadline();
+        while (true) {
+            if (payloadRemaining > 0) {
+                if (!buffer.hasRemaining()) {
+                    return JVisaLibrary.VI_SUCCESS_MAX_CNT;
+                }
+                if (transferPayload(buffer, deadline) && !(isEndMessage && payloadRemaining == 0)) {
+                    return JVisaLibrary.VI_SUCCESS_TERM_CHAR;
+                }
+                continue;
+            }
+            if (isEndMessage) {
+                isEndMessage = false;
+                isResponseDelivered = true;
+                return 0;
+            }
+            if (!buffer.hasRemaining()) {
+                return JVisaLibrary.VI_SUCCESS_MAX_CNT;
+            }
+
+            readHeader(RECEIVER, RECEIVED_HEADER, deadline);
+            switch (RECEIVED_HEADER.type) {
+                case DATA:
+                case DATA_END:
+                    payloadRemaining = RECEIVED_HEADER.payloadLength;
+                    isEndMessage = RECEIVED_HEADER.type == DATA_END;
+                    break;
+                case ERROR:
+                    RECEIVER.skip(RECEIVED_HEADER.payloadLength, deadline);
+                    return JVisaLibrary.VI_ERROR_IO;
+                case FATAL_ERROR:
+                    RECEIVER.skip(RECEIVED_HEADER.payloadLength, deadline);
+                    return JVisaLibrary.VI_ERROR_CONN_LOST;
+                default:
+                    // Interrupted, or something this side doesn't use
+                    RECEIVER.skip(RECEIVED_HEADER.payloadLength, deadline);
+            }
+        }
+    }
+
+    /**
+     * Moves payload bytes to the caller's buffer, stopping after the termination character if it's enabled.
+     *
+     * @return true if the termination character was moved
+     */
+    private boolean transferPayload(ByteBuffer buffer, long deadline) throws IOException {
+        if (!isTerminationCharacterEnabled) {
+            final int originalLimit = buffer.limit();
+            final int start = buffer.position();
+            buffer.limit(start + (int) Math.min(buffer.remaining(), payloadRemaining));
+            try {
+                RECEIVER.read(buffer, deadline);
+            } finally {
+                payloadRemaining -= buffer.position() - start;
+                buffer.limit(originalLimit);
+            }
+            return false;
+        }
+
+        RECEIVER.ensure(1, deadline);
+        final ByteBuffer received = RECEIVER.BUFFER;
+        final int start = received.position();
+        int length = (int) Math.min(Math.min(received.remaining(), buffer.remaining()), payloadRemaining);
+        boolean isTerminated = false;
+        for (int i = 0; i < length; i++) {
+            if (received.get(start + i) == terminationCharacter) {
+                length = i + 1;
+                isTerminated = true;
+                break;
+            }
+        }
+        final int receivedLimit = received.limit();
+        received.limit(start + length);
+        buffer.put(received);
+        received.limit(receivedLimit);
+        payloadRemaining -= length;
+        return isTerminated;
+    }
+
+    /**
+     * Sends every command as a DataEnd message without waiting for the responses in between, as long as fewer than
+     * maxOutstanding responses haven't arrived yet. Responses are matched to commands by message ID, so they can arrive
+     * in any order.
+     * <p>
+     * If this fails, responses to the commands which were already sent can still arrive, so the session should be
+     * cleared.
+     *
+     * @return VI_ERROR_NSUP_OPER if the session isn't in overlapped mode
+     */
+    @Override
+    int queryOverlapped(ByteBuffer[] commands, int maxOutstanding, byte[][] responses) {
+        if (!isOverlapped) {
+            return JVisaLibrary.VI_ERROR_NSUP_OPER;
+        }
+        try {
+            // Throw away the rest of a response which wasn't read completely.
+            RECEIVER.skip(payloadRemaining, deadline());
+            payloadRemaining = 0;
+            isEndMessage = false;
+
+            final Map<Integer, Integer> commandIndexes = new HashMap<>();
+            final ByteArrayOutputStream[] partialResponses = new ByteArrayOutputStream[commands.length];
+            int sentCount = 0;
+            int receivedCount = 0;
+            while (receivedCount < commands.length) {
+                while (sentCount < commands.length && sentCount - receivedCount < maxOutstanding) {
+                    final ByteBuffer command = commands[sentCount];
+                    final int position = command.position();
+                    try {
+                        commandIndexes.put(sendData(command, true, deadline()), sentCount);
+                    } finally {
+                        command.position(position);
+                    }
+                    sentCount++;
+                }
+
+                final long deadline = deadline();
+                readHeader(RECEIVER, RECEIVED_HEADER, deadline);
+                final int type = RECEIVED_HEADER.type;
+                if (type == ERROR || type == FATAL_ERROR) {
+                    RECEIVER.skip(RECEIVED_HEADER.payloadLength, deadline);
+                    return type == ERROR ? JVisaLibrary.VI_ERROR_IO : JVisaLibrary.VI_ERROR_CONN_LOST;
+                }
+                final Integer index = commandIndexes.get(RECEIVED_HEADER.parameter);
+                if ((type != DATA && type != DATA_END) || index == null) {
+                    RECEIVER.skip(RECEIVED_HEADER.payloadLength, deadline);
+                    continue;
+                }
+                if (RECEIVED_HEADER.payloadLength > Integer.MAX_VALUE - 8) {
+                    throw new ProtocolException("a HiSLIP response is too big for an array");
+                }
+                final byte[] payload = new byte[(int) RECEIVED_HEADER.payloadLength];
+                RECEIVER.read(ByteBuffer.wrap(payload), deadline);
+
+                final ByteArrayOutputStream partialResponse = partialResponses[index];
+                if (type == DATA) {
+                    if (partialResponse == null) {
+                        partialResponses[index] = new ByteArrayOutputStream();
+                    }
+                    partialResponses[index].write(payload, 0, payload.length);
+                } else {
+                    if (partialResponse == null) {
+                        responses[index] = payload;
+                    } else {
+                        partialResponse.write(payload, 0, payload.length);
+                        responses[index] = partialResponse.toByteArray();
+                        partialResponses[index] = null;
+                    }
+                    isResponseDelivered = true;
+                    receivedCount++;
+                }
+            }
+            return 0;
+        } catch (IOException ex) {
+            return statusFor(ex);
+        }
+    }
+
+    ////////////////////////////// asynchronous channel //////////////////////////////
+
+    /**
+     * Runs in ASYNC_READER until the channel is closed.
+     */
+    private void readAsyncMessages() {
+        final Header header = new Header();
+        try {
+            while (true) {
+                readHeader(ASYNC_RECEIVER, header, TcpipConnection.NO_DEADLINE);
+                ASYNC_RECEIVER.skip(header.payloadLength, TcpipConnection.NO_DEADLINE);
+                if (header.type == ASYNC_SERVICE_REQUEST) {
+                    dispatchServiceRequest();
+                } else {
+                    ASYNC_RESPONSES.add(new AsyncMessage(header.type, header.controlCode));
+                }
+            }
+        } catch (IOException | RuntimeException ex) {
+            // Closed by close() or by the instrument. Selector methods throw ClosedSelectorException.
+            isAsyncChannelClosed = true;
+            ASYNC_RESPONSES.add(ASYNC_CHANNEL_CLOSED);
+        }
+    }
+
+    private void dispatchServiceRequest() {
+        if (!isServiceRequestEnabled) {
+            return;
+        }
+        final NativeLong instrumentHandle = new NativeLong(handle);
+        final NativeLong eventType = new NativeLong(JVisaLibrary.VI_EVENT_SERVICE_REQ);
+        final NativeLong eventContext = new NativeLong(0);
+        RuntimeException handlerException = null;
+        for (ServiceRequestHandler handler : SERVICE_REQUEST_HANDLERS) {
+            try {
+                handler.CALLBACK.invoke(instrumentHandle, eventType, eventContext, handler.USER_HANDLE);
+            } catch (RuntimeException ex) {
+                // Like a native VISA library, keep delivering events if a handler throws.
+                if (handlerException == null) {
+                    handlerException = ex;
+                } else {
+                    handlerException.addSuppressed(ex);
+                }
+            }
+        }
+        if (handlerException != null) {
+            // Report it without stopping ASYNC_READER, which treats exceptions as a closed channel.
+            final Thread thread = Thread.currentThread();
+            thread.getUncaughtExceptionHandler().uncaughtException(thread, handlerException);
+        }
+    }
+
+    /**
+     * Sends a message on the asynchronous channel and waits for the response.
+     *
+     * @throws ProtocolException if the instrument sent an error message
+     * @throws IOException if the connection failed or the deadline expired
+     */
+    private AsyncMessage asyncRequest(int type, int controlCode, int parameter, int responseType, long deadline) throws IOException {
+        synchronized (ASYNC_SEND_BUFFER) {
+            // Throw away responses which arrived after their request timed out.
+            ASYNC_RESPONSES.clear();
+            if (isAsyncChannelClosed) {
+                throw new EOFException("the HiSLIP asynchronous channel was closed");
+            }
+            ASYNC_SEND_BUFFER.clear();
+            putHeader(ASYNC_SEND_BUFFER, type, controlCode, parameter, 0);
+            ASYNC_SEND_BUFFER.flip();
+            ASYNC_CONNECTION.write(ASYNC_SEND_BUFFER, deadline);
+            while (true) {
+                final AsyncMessage response;
+                try {
+                    if (deadline == TcpipConnection.NO_DEADLINE) {
+                        response = ASYNC_RESPONSES.take();
+                    } else {
+                        response = ASYNC_RESPONSES.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                    }
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("interrupted while waiting for a HiSLIP response");
+                }
+                if (response == null) {
+                    throw new InterruptedByTimeoutException();
+                }
+                if (response == ASYNC_CHANNEL_CLOSED) {
+                    throw new EOFException("the HiSLIP asynchronous channel was closed");
+                }
+                if (response.TYPE == responseType) {
+                    return response;
+                }
+                if (response.TYPE == ERROR || response.TYPE == FATAL_ERROR) {
+                    throw new ProtocolException("the instrument sent a HiSLIP error message instead of type " + responseType);
+                }
+            }
+        }
+    }
+
+    /**
+     * Sends AsyncStatusQuery. The status byte comes back in the control code of AsyncStatusResponse.
+     */
+    @Override
+    int readStatusByte(short[] statusByte) {
+        try {
+            final AsyncMessage response = asyncRequest(ASYNC_STATUS_QUERY, isResponseDelivered ? RMT_DELIVERED : 0,
+                    lastSentMessageId, ASYNC_STATUS_RESPONSE, deadline());
+            isResponseDelivered = false;
+            statusByte[0] = (short) response.CONTROL_CODE;
+            return 0;
+        } catch (IOException ex) {
+            return statusFor(ex);
+        }
+    }
+
+    /**
+     * Sends AsyncDeviceClear, then DeviceClearComplete when the instrument acknowledges it, then throws away everything
+     * on the synchronous channel up to DeviceClearAcknowledge. Overlapped mode is negotiated again and message IDs
+     * start over.
+     */
+    @Override
+    int clear() {
+        try {
+            final long deadline = deadline();
+            asyncRequest(ASYNC_DEVICE_CLEAR, 0, 0, ASYNC_DEVICE_CLEAR_ACKNOWLEDGE, deadline);
+            RECEIVER.skip(payloadRemaining, deadline);
+            payloadRemaining = 0;
+            isEndMessage = false;
+            send(DEVICE_CLEAR_COMPLETE, isOverlapRequested ? OVERLAP_MODE : 0, 0, null, deadline);
+            do {
+                readHeader(RECEIVER, RECEIVED_HEADER, deadline);
+                RECEIVER.skip(RECEIVED_HEADER.payloadLength, deadline);
+            } while (RECEIVED_HEADER.type != DEVICE_CLEAR_ACKNOWLEDGE);
+            isOverlapped = (RECEIVED_HEADER.controlCode & OVERLAP_MODE) != 0;
+            messageId = FIRST_MESSAGE_ID;
+            lastSentMessageId = FIRST_MESSAGE_ID - 2;
+            isResponseDelivered = false;
+            return 0;
+        } catch (IOException ex) {
+            return statusFor(ex);
+        }
+    }
+
+    ////////////////////////////// events //////////////////////////////
+
+    @Override
+    int installHandler(int eventType, JVisaEventCallback handler, Pointer userHandle) {
+        if (eventType != JVisaLibrary.VI_EVENT_SERVICE_REQ) {
+            return JVisaLibrary.VI_ERROR_INV_EVENT;
+        }
+        SERVICE_REQUEST_HANDLERS.add(new ServiceRequestHandler(handler, userHandle));
+        return 0;
+    }
+
+    /**
+     * A null handler uninstalls every handler, like VI_ANY_HNDLR.
+     */
+    @Override
+    int uninstallHandler(int eventType, JVisaEventCallback handler, Pointer userHandle) {
+        if (eventType != JVisaLibrary.VI_EVENT_SERVICE_REQ) {
+            return JVisaLibrary.VI_ERROR_INV_EVENT;
+        }
+        final boolean isRemoved = SERVICE_REQUEST_HANDLERS.removeIf(installed -> handler == null
+                || (installed.CALLBACK == handler && Objects.equals(installed.USER_HANDLE, userHandle)));
+        return isRemoved ? 0 : JVisaLibrary.VI_ERROR_INV_HNDLR_REF;
+    }
+
+    /**
+     * Only VI_EVENT_SERVICE_REQ with the VI_HNDLR mechanism is supported.
+     */
+    @Override
+    int enableEvent(int eventType, short mechanism) {
+        if (eventType != JVisaLibrary.VI_EVENT_SERVICE_REQ) {
+            return JVisaLibrary.VI_ERROR_INV_EVENT;
+        }
+        if (mechanism != JVisaLibrary.VI_HNDLR) {
+            return JVisaLibrary.VI_ERROR_NSUP_MECH;
+        }
+        if (isServiceRequestEnabled) {
+            return JVisaLibrary.VI_SUCCESS_EVENT_EN;
+        }
+        isServiceRequestEnabled = true;
+        return 0;
+    }
+
+    @Override
+    int disableEvent(int eventType, short mechanism) {
+        if (eventType != JVisaLibrary.VI_EVENT_SERVICE_REQ && eventType != JVisaLibrary.VI_ALL_ENABLED_EVENTS) {
+            return JVisaLibrary.VI_ERROR_INV_EVENT;
+        }
+        if (!isServiceRequestEnabled) {
+            return JVisaLibrary.VI_SUCCESS_EVENT_DIS;
+        }
+        isServiceRequestEnabled = false;
+        return 0;
+    }
+
+    /**
+     * Events are never queued, since only the handler mechanism is supported.
+     */
+    @Override
+    int discardEvents(int eventType, short mechanism) {
+        if (eventType != JVisaLibrary.VI_EVENT_SERVICE_REQ && eventType != JVisaLibrary.VI_ALL_ENABLED_EVENTS) {
+            return JVisaLibrary.VI_ERROR_INV_EVENT;
+        }
+        return JVisaLibrary.VI_SUCCESS_QUEUE_EMPTY;
+    }
+
+    ////////////////////////////// attributes //////////////////////////////
+
+    @Override
+    int getAttribute(int attribute, ByteBuffer value) {
+        switch (attribute) {
+            case JVisaLibrary.VI_ATTR_TCPIP_IS_HISLIP:
+                putBoolean(value, true);
+                return 0;
+            case JVisaLibrary.VI_ATTR_TCPIP_HISLIP_OVERLAP_EN:
+                putBoolean(value, isOverlapped);
+                return 0;
+            case JVisaLibrary.VI_ATTR_TCPIP_HISLIP_VERSION:
+                putInteger(value, SERVER_PROTOCOL_VERSION, 4);
+                return 0;
+            case JVisaLibrary.VI_ATTR_TCPIP_HISLIP_MAX_MESSAGE_KB:
+                putInteger(value, MAX_MESSAGE_SIZE / 1024, 4);
+                return 0;
+            case JVisaLibrary.VI_ATTR_TCPIP_DEVICE_NAME:
+                putString(value, RESOURCE_NAME.DEVICE_NAME);
+                return 0;
+            case JVisaLibrary.VI_ATTR_TCPIP_PORT:
+                putInteger(value, RESOURCE_NAME.PORT, 2);
+                return 0;
+            default:
+                return super.getAttribute(attribute, value);
+        }
+    }
+
+    /**
+     * Changing VI_ATTR_TCPIP_HISLIP_OVERLAP_EN clears the device, because that's when the mode is negotiated.
+     */
+    @Override
+    int setAttribute(int attribute, long value) {
+        switch (attribute) {
+            case JVisaLibrary.VI_ATTR_TCPIP_HISLIP_OVERLAP_EN:
+                if (!isBoolean(value)) {
+                    return JVisaLibrary.VI_ERROR_NSUP_ATTR_STATE;
+                }
+                isOverlapRequested = value == VI_TRUE;
+                return isOverlapRequested == isOverlapped ? 0 : clear();
+            case JVisaLibrary.VI_ATTR_TCPIP_IS_HISLIP:
+            case JVisaLibrary.VI_ATTR_TCPIP_HISLIP_VERSION:
+            case JVisaLibrary.VI_ATTR_TCPIP_HISLIP_MAX_MESSAGE_KB:
+            case JVisaLibrary.VI_ATTR_TCPIP_DEVICE_NAME:
+            case JVisaLibrary.VI_ATTR_TCPIP_PORT:
+                return JVisaLibrary.VI_ERROR_ATTR_READONLY;
+            default:
+                return super.setAttribute(attribute, value);
+        }
+    }
+
+    /**
+     * Closes both channels, which also stops the reader thread.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            ASYNC_CONNECTION.close();
+        } finally {
+            CONNECTION.close();
+        }
+    }
+
+}
@@ -0,0 +1,434 @@
+/**
+ * @license Copyright 2018-2020 Peter Froud
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package xyz.froud.jvisa.tcpip;
+
+import com.sun.jna.Pointer;
+import xyz.froud.jvisa.JVisaBackend;
+import xyz.froud.jvisa.JVisaLibrary;
+import xyz.froud.jvisa.eventhandling.JVisaEventCallback;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.InterruptedByTimeoutException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.util.Map.entry;
+
+/**
+ * VISA implementation for LAN instruments written in Java, so TCPIP resources can be used without the native shared
+ * library (.dll or .so or .dylib file) or a vendor VISA installation.
+ * <p>
+ * {@code TCPIP[board]::host::port::SOCKET} resources are raw TCP connections.
+ * {@code TCPIP[board]::host[::LAN device name][::INSTR]} resources use HiSLIP if the LAN device name is like
+ * {@code hislip0} or {@code hislip0,4880}, otherwise VXI-11.
+ * JVisaResourceManager opens SOCKET resources with this backend even when it uses the native library for everything
+ * else, unless the {@value #SYSTEM_PROPERTY} system property is {@code false}. INSTR resources are left to the native
+ * library, which might be a vendor VISA with its own VXI-11 and HiSLIP features, unless the property is
+ * {@value #SYSTEM_PROPERTY_INSTR}. To avoid the native library completely, pass an instance to
+ * {@link xyz.froud.jvisa.JVisaResourceManager#JVisaResourceManager(JVisaBackend)}.
+ * <p>
+ * Resources can't be discovered, so viFindRsrc() always returns VI_ERROR_RSRC_NFOUND. HiSLIP sessions support
+ * service request events with the handler mechanism.
+ *
+ * @author Peter Froud
+ * @see <a href="https://github.com/pyvisa/pyvisa-py">PyVISA-py</a>, a VISA implementation written in Python
+ */
+public final class JVisaTcpipBackend implements JVisaBackend {
+
+    /**
+     * Name of a system property which chooses the TCPIP resources JVisaResourceManager opens with this backend instead
+     * of its own backend. If it's {@code false}, none of them. If it's {@value #SYSTEM_PROPERTY_INSTR}, SOCKET and INSTR
+     * resources. Otherwise, only SOCKET resources.
+     */
+    public static final String SYSTEM_PROPERTY = "jvisa.tcpip";
+
+    /**
+     * Value of the {@value #SYSTEM_PROPERTY} system property which makes JVisaResourceManager open VXI-11 and HiSLIP
+     * resources with this backend too.
+     */
+    public static final String SYSTEM_PROPERTY_INSTR = "instr";
+
+    /**
+     * The value for viOpen() arguments which weren't specified.
+     */
+    private static final int VI_NULL = 0;
+
+    /**
+     * Descriptions for the status codes this backend returns, copied from the NI-VISA documentation.
+     *
+     * @see <a href="https://www.ni.com/docs/en-US/bundle/ni-visa/page/ni-visa/completion_codes.html">Completion Codes</a>
+     * @see <a href="https://www.ni.com/docs/en-US/bundle/ni-visa/page/ni-visa/error_codes.html">Error Codes</a>
+     */
+    private static final Map<Integer, String> STATUS_DESCRIPTIONS = Map.ofEntries(
+            entry(0, "Operation completed successfully."),
+            entry(JVisaLibrary.VI_SUCCESS_TERM_CHAR, "The specified termination character was read."),
+            entry(JVisaLibrary.VI_SUCCESS_MAX_CNT, "The number of bytes read is equal to the input count."),
+            entry(JVisaLibrary.VI_SUCCESS_EVENT_EN, "Specified event is already enabled for at least one of the specified mechanisms."),
+            entry(JVisaLibrary.VI_SUCCESS_EVENT_DIS, "Specified event is already disabled for at least one of the specified mechanisms."),
+            entry(JVisaLibrary.VI_SUCCESS_QUEUE_EMPTY, "Operation completed successfully, but queue was already empty."),
+            entry(JVisaLibrary.VI_ERROR_SYSTEM_ERROR, "Unknown system error (miscellaneous error)."),
+            entry(JVisaLibrary.VI_ERROR_INV_OBJECT, "The given session or object reference is invalid."),
+            entry(JVisaLibrary.VI_ERROR_RSRC_NFOUND, "Insufficient location information or the requested device or resource is not present in the system."),
+            entry(JVisaLibrary.VI_ERROR_INV_RSRC_NAME, "Invalid resource reference specified. Parsing error."),
+            entry(JVisaLibrary.VI_ERROR_TMO, "Timeout expired before operation completed."),
+            entry(JVisaLibrary.VI_ERROR_CLOSING_FAILED, "Unable to deallocate the previously allocated data structures corresponding to this session or object reference."),
+            entry(JVisaLibrary.VI_ERROR_NSUP_ATTR, "The specified attribute is not defined or supported by the referenced session, event, or find list."),
+            entry(JVisaLibrary.VI_ERROR_NSUP_ATTR_STATE, "The specified state of the attribute is not valid, or is not supported as defined by the session, event, or find list."),
+            entry(JVisaLibrary.VI_ERROR_ATTR_READONLY, "The specified attribute is Read Only."),
+            entry(JVisaLibrary.VI_ERROR_IO, "Could not perform operation because of I/O error."),
+            entry(JVisaLibrary.VI_ERROR_NSUP_OPER, "The given session or object reference does not support this operation."),
+            entry(JVisaLibrary.VI_ERROR_RSRC_LOCKED, "Specified type of lock cannot be obtained, or specified operation cannot be performed, because the resource is locked."),
+            entry(JVisaLibrary.VI_ERROR_ABORT, "User abort occurred during transfer."),
+            entry(JVisaLibrary.VI_ERROR_ALLOC, "Insufficient system resources to perform necessary memory allocation."),
+            entry(JVisaLibrary.VI_ERROR_INV_EVENT, "Specified event type is not supported by the resource."),
+            entry(JVisaLibrary.VI_ERROR_NSUP_MECH, "The specified mechanism is not supported for the given event type."),
+            entry(JVisaLibrary.VI_ERROR_INV_HNDLR_REF, "Either the specified handler reference or the user context value (or both) does not match any installed handler."),
+            entry(JVisaLibrary.VI_ERROR_INV_PARAMETER, "The value of some parameter (which parameter is not known) is invalid."),
+            entry(JVisaLibrary.VI_ERROR_SESN_NLOCKED, "The current session did not have a lock on the resource."),
+            entry(JVisaLibrary.VI_ERROR_CONN_LOST, "The connection for the given session has been lost.")
+    );
+
+    /**
+     * Resource manager sessions and instrument sessions.
+     */
+    private final Map<Integer, Object> SESSIONS = new ConcurrentHashMap<>();
+
+    /**
+     * Handles count up and aren't reused, so a handle which was already closed can't reach a session opened later.
+     */
+    private final AtomicInteger NEXT_HANDLE = new AtomicInteger(1);
+
+    /**
+     * The clientId argument of the VXI-11 create_link call.
+     */
+    private final AtomicInteger VXI11_CLIENT_ID = new AtomicInteger();
+
+    /**
+     * Value in SESSIONS for a resource manager session.
+     */
+    private static final class ResourceManagerSession {
+    }
+
+    /**
+     * @param resourceName a VISA resource name
+     * @return true if the {@value #SYSTEM_PROPERTY} system property says JVisaResourceManager should open the resource
+     * with this backend instead of the native library
+     */
+    public static boolean isEnabledFor(String resourceName) {
+        final String property = System.getProperty(SYSTEM_PROPERTY);
+        if ("false".equalsIgnoreCase(property)) {
+            return false;
+        }
+        final TcpipResourceName parsedName = TcpipResourceName.parse(resourceName);
+        if (parsedName == null) {
+            return false;
+        }
+        return parsedName.DEVICE_NAME == null || SYSTEM_PROPERTY_INSTR.equalsIgnoreCase(property);
+    }
+
+    /**
+     * @param resourceName a VISA resource name
+     * @return true if this backend can open the resource
+     */
+    public static boolean canOpen(String resourceName) {
+        return TcpipResourceName.parse(resourceName) != null;
+    }
+
+    @Override
+    public String getName() {
+        return "tcpip";
+    }
+
+    private int addSession(Object session) {
+        while (true) {
+            // After 2^31 sessions, start over from 1 and skip handles which are still open.
+            final int handle = NEXT_HANDLE.getAndIncrement() & Integer.MAX_VALUE;
+            if (handle != 0 && SESSIONS.putIfAbsent(handle, session) == null) {
+                return handle;
+            }
+        }
+    }
+
+    private TcpipSession getInstrumentSession(int vi) {
+        final Object session = SESSIONS.get(vi);
+        return session instanceof TcpipSession ? (TcpipSession) session : null;
+    }
+
+    ////////////////////////////// resource manager //////////////////////////////
+
+    @Override
+    public int viOpenDefaultRM(int[] session) {
+        session[0] = addSession(new ResourceManagerSession());
+        return 0;
+    }
+
+    /**
+     * The access mode is ignored because locking isn't supported. The open timeout is used as the TCP connect timeout;
+     * if it's zero, the default VI_ATTR_TMO_VALUE is used instead.
+     */
+    @Override
+    public int viOpen(int rmSession, String resourceName, int accessMode, int openTimeout, int[] session) {
+        if (!(SESSIONS.get(rmSession) instanceof ResourceManagerSession)) {
+            return JVisaLibrary.VI_ERROR_INV_OBJECT;
+        }
+        final TcpipResourceName parsedName = TcpipResourceName.parse(resourceName);
+        if (parsedName == null) {
+            return JVisaLibrary.VI_ERROR_RSRC_NFOUND;
+        }
+        final int connectTimeout = openTimeout == VI_NULL ? (int) TcpipSession.DEFAULT_TIMEOUT_MILLISECONDS : openTimeout;
+
+        final TcpipSession newSession;
+        try {
+            if (parsedName.DEVICE_NAME == null) {
+                newSession = new SocketSession(rmSession, parsedName,
+                        TcpipConnection.open(parsedName.HOST, parsedName.PORT, connectTimeout));
+            } else if (parsedName.HISLIP_SUB_ADDRESS != null) {
+                final int[] status = new int[1];
+                newSession = HislipSession.open(rmSession, parsedName, connectTimeout, status);
+                if (newSession == null) {
+                    return status[0];
+                }
+            } else {
+                final int[] status = new int[1];
+                newSession = Vxi11Session.open(rmSession, parsedName, connectTimeout, VXI11_CLIENT_ID.incrementAndGet(), status);
+                if (newSession == null) {
+                    return status[0];
+                }
+            }
+        } catch (SocketTimeoutException | InterruptedByTimeoutException ex) {
+            return JVisaLibrary.VI_ERROR_TMO;
+        } catch (IOException ex) {
+            return JVisaLibrary.VI_ERROR_RSRC_NFOUND;
+        }
+        newSession.handle = addSession(newSession);
+        session[0] = newSession.handle;
+        return 0;
+    }
+
+    @Override
+    public int viFindRsrc(int rmSession, String expression, int[] findList, int[] returnCount, ByteBuffer description) {
+        returnCount[0] = 0;
+        return JVisaLibrary.VI_ERROR_RSRC_NFOUND;
+    }
+
+    @Override
+    public int viFindNext(int findList, ByteBuffer description) {
+        return JVisaLibrary.VI_ERROR_INV_OBJECT;
+    }
+
+    @Override
+    public int viParseRsrcEx(int rmSession, String resourceName, short[] interfaceType, short[] interfaceNumber,
+                             ByteBuffer resourceClass, ByteBuffer expandedUnaliasedName, ByteBuffer aliasIfExists) {
+        final TcpipResourceName parsedName = TcpipResourceName.parse(resourceName);
+        if (parsedName == null) {
+            return JVisaLibrary.VI_ERROR_RSRC_NFOUND;
+        }
+        interfaceType[0] = JVisaLibrary.VI_INTF_TCPIP;
+        interfaceNumber[0] = (short) parsedName.BOARD;
+        TcpipSession.putString(resourceClass, parsedName.RESOURCE_CLASS);
+        TcpipSession.putString(expandedUnaliasedName, parsedName.toString());
+        TcpipSession.putString(aliasIfExists, "");
+        return 0;
+    }
+
+    @Override
+    public int viStatusDesc(int vi, int status, ByteBuffer description) {
+        final String statusDescription = STATUS_DESCRIPTIONS.get(status);
+        if (statusDescription == null) {
+            TcpipSession.putString(description, String.format("Unknown status code 0x%08X.", status));
+        } else {
+            TcpipSession.putString(description, statusDescription);
+        }
+        return 0;
+    }
+
+    /**
+     * Closing a resource manager session also closes the instrument sessions opened from it.
+     */
+    @Override
+    public int viClose(int vi) {
+        final Object session = SESSIONS.remove(vi);
+        if (session instanceof TcpipSession) {
+            return closeInstrumentSession((TcpipSession) session);
+        }
+        if (session instanceof ResourceManagerSession) {
+            int status = 0;
+            for (Map.Entry<Integer, Object> entry : SESSIONS.entrySet()) {
+                final Object value = entry.getValue();
+                if (value instanceof TcpipSession && ((TcpipSession) value).RESOURCE_MANAGER_SESSION == vi
+                        && SESSIONS.remove(entry.getKey(), value)) {
+                    final int closeStatus = closeInstrumentSession((TcpipSession) value);
+                    if (closeStatus != 0) {
+                        status = closeStatus;
+                    }
+                }
+            }
+            return status;
+        }
+        return JVisaLibrary.VI_ERROR_INV_OBJECT;
+    }
+
+    private static int closeInstrumentSession(TcpipSession session) {
+        try {
+            session.close();
+            return 0;
+        } catch (IOException ex) {
+            return JVisaLibrary.VI_ERROR_CLOSING_FAILED;
+        }
+    }
+
+    ////////////////////////////// attributes //////////////////////////////
+
+    @Override
+    public int viSetAttribute(int vi, int attribute, long value) {
+        final TcpipSession session = getInstrumentSession(vi);
+        if (session == null) {
+            return SESSIONS.containsKey(vi) ? JVisaLibrary.VI_ERROR_NSUP_ATTR : JVisaLibrary.VI_ERROR_INV_OBJECT;
+        }
+        return session.setAttribute(attribute, value);
+    }
+
+    @Override
+    public int viGetAttribute(int vi, int attribute, ByteBuffer value) {
+        final TcpipSession session = getInstrumentSession(vi);
+        if (session == null) {
+            return SESSIONS.containsKey(vi) ? JVisaLibrary.VI_ERROR_NSUP_ATTR : JVisaLibrary.VI_ERROR_INV_OBJECT;
+        }
+        return session.getAttribute(attribute, value);
+    }
+
+    ////////////////////////////// basic I/O //////////////////////////////
+
+    @Override
+    public int viRead(int vi, ByteBuffer buffer, int count, int[] returnCount) {
+        final TcpipSession session = getInstrumentSession(vi);
+        if (session == null) {
+            returnCount[0] = 0;
+            return JVisaLibrary.VI_ERROR_INV_OBJECT;
+        }
+        return session.read(buffer, count, returnCount);
+    }
+
+    @Override
+    public int viWrite(int vi, ByteBuffer buffer, int count, int[] returnCount) {
+        final TcpipSession session = getInstrumentSession(vi);
+        if (session == null) {
+            returnCount[0] = 0;
+            return JVisaLibrary.VI_ERROR_INV_OBJECT;
+        }
+        return session.write(buffer, count, returnCount);
+    }
+
+    @Override
+    public int viClear(int vi) {
+        final TcpipSession session = getInstrumentSession(vi);
+        if (session == null) {
+            return JVisaLibrary.VI_ERROR_INV_OBJECT;
+        }
+        return session.clear();
+    }
+
+    @Override
+    public int viReadSTB(int vi, short[] statusByte) {
+        final TcpipSession session = getInstrumentSession(vi);
+        if (session == null) {
+            return JVisaLibrary.VI_ERROR_INV_OBJECT;
+        }
+        return session.readStatusByte(statusByte);
+    }
+
+    ////////////////////////////// events //////////////////////////////
+
+    @Override
+    public int viInstallHandler(int vi, int eventType, JVisaEventCallback handler, Pointer userHandle) {
+        final TcpipSession session = getInstrumentSession(vi);
+        if (session == null) {
+            return JVisaLibrary.VI_ERROR_INV_OBJECT;
+        }
+        return session.installHandler(eventType, handler, userHandle);
+    }
+
+    @Override
+    public int viUninstallHandler(int vi, int eventType, JVisaEventCallback handler, Pointer userHandle) {
+        final TcpipSession session = getInstrumentSession(vi);
+        if (session == null) {
+            return JVisaLibrary.VI_ERROR_INV_OBJECT;
+        }
+        return session.uninstallHandler(eventType, handler, userHandle);
+    }
+
+    /**
+     * The context argument is ignored, because it's always VI_NULL.
+     */
+    @Override
+    public int viEnableEvent(int vi, int eventType, short mechanism, int context) {
+        final TcpipSession session = getInstrumentSession(vi);
+        if (session == null) {
+            return JVisaLibrary.VI_ERROR_INV_OBJECT;
+        }
+        return session.enableEvent(eventType, mechanism);
+    }
+
+    @Override
+    public int viDisableEvent(int vi, int eventType, short mechanism) {
+        final TcpipSession session = getInstrumentSession(vi);
+        if (session == null) {
+            return JVisaLibrary.VI_ERROR_INV_OBJECT;
+        }
+        return session.disableEvent(eventType, mechanism);
+    }
+
+    @Override
+    public int viDiscardEvents(int vi, int eventType, short mechanism) {
+        final TcpipSession session = getInstrumentSession(vi);
+        if (session == null) {
+            return JVisaLibrary.VI_ERROR_INV_OBJECT;
+        }
+        return session.discardEvents(eventType, mechanism);
+    }
+
+    ////////////////////////////// pipelining //////////////////////////////
+
+    /**
+     * Sends several queries to a HiSLIP instrument in overlapped mode, without waiting for each response before sending
+     * the next query. With a few queries in flight, the network round trip is only paid once instead of once per query.
+     * <p>
+     * This isn't in visa.h. If it fails, responses to queries which were already sent can still arrive, so the session
+     * should be cleared with viClear().
+     *
+     * @param vi handle for instrument session
+     * @param commands each one is sent with END, from its position to its limit. The positions aren't changed.
+     * @param maxOutstanding how many queries can wait for a response at the same time
+     * @param responses element i is set to the response to commands[i]
+     * @return status of the operation. It's VI_ERROR_NSUP_OPER if the session isn't HiSLIP in overlapped mode, so the
+     * caller should send the queries one at a time instead.
+     * @see <a href="https://www.ni.com/docs/en-US/bundle/ni-visa/page/ni-visa/vi_attr_tcpip_hislip_overlap_en.html">VI_ATTR_TCPIP_HISLIP_OVERLAP_EN</a>
+     */
+    public int queryOverlapped(int vi, ByteBuffer[] commands, int maxOutstanding, byte[][] responses) {
+        final TcpipSession session = getInstrumentSession(vi);
+        if (session == null) {
+            return JVisaLibrary.VI_ERROR_INV_OBJECT;
+        }
+        if (maxOutstanding < 1 || responses.length < commands.length) {
+            return JVisaLibrary.VI_ERROR_INV_PARAMETER;
+        }
+        return session.queryOverlapped(commands, maxOutstanding, responses);
+    }
+
+}
@@ -0,0 +1,269 @@
+/**
+ * @license Copyright 2018-2020 Peter Froud
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package xyz.froud.jvisa.tcpip;
+
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+
+/**
+ * Client for ONC RPC over TCP, enough to call VXI-11 procedures and the portmapper.
+ * <p>
+ * One call is outstanding at a time. Call arguments are XDR-encoded into a direct buffer which is reused for every
+ * call. Opaque data, like the payload of device_write, is sent straight from the caller's buffer, and opaque data in a
+ * reply is read straight into the caller's buffer, so big transfers aren't copied. Records can be split into fragments
+ * anywhere, so every read goes through the fragment bookkeeping.
+ * <p>
+ * If a call times out, its reply can still arrive later. Replies with an old transaction ID are skipped.
+ *
+ * @author Peter Froud
+ * @see <a href="https://www.rfc-editor.org/rfc/rfc5531">RFC 5531: RPC: Remote Procedure Call Protocol Specification
+ * Version 2</a>
+ * @see <a href="https://www.rfc-editor.org/rfc/rfc4506">RFC 4506: XDR: External Data Representation Standard</a>
+ */
+final class OncRpcClient implements AutoCloseable {
+
+    private static final int MESSAGE_TYPE_CALL = 0;
+    private static final int MESSAGE_TYPE_REPLY = 1;
+    private static final int RPC_VERSION = 2;
+    private static final int AUTH_NONE = 0;
+    private static final int REPLY_ACCEPTED = 0;
+    private static final int ACCEPT_SUCCESS = 0;
+
+    /**
+     * The high bit of a record marking header means this is the last fragment of the record.
+     */
+    private static final int LAST_FRAGMENT = 0x80000000;
+
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    private final TcpipConnection CONNECTION;
+    private final int PROGRAM;
+    private final int VERSION;
+
+    /**
+     * Call header and arguments, after four bytes for the record marking header.
+     */
+    private final ByteBuffer SEND_BUFFER = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+    private final TcpipReceiveBuffer RECEIVER;
+
+    private final ByteBuffer PADDING = ByteBuffer.allocateDirect(4);
+
+    /**
+     * SEND_BUFFER, the opaque data, and PADDING, so a call is sent with one gathering write.
+     */
+    private final ByteBuffer[] GATHER = {SEND_BUFFER, null, PADDING};
+
+    private int transactionId = (int) System.nanoTime();
+
+    /**
+     * Bytes left in the current fragment of the reply.
+     */
+    private int fragmentRemaining = 0;
+    private boolean isLastFragment = true;
+
+    /**
+     * True if the start of a reply was read but the rest wasn't, for example because a read timed out in the middle.
+     */
+    private boolean isInRecord = false;
+
+    OncRpcClient(TcpipConnection connection, int program, int version) {
+        CONNECTION = connection;
+        PROGRAM = program;
+        VERSION = version;
+        RECEIVER = new TcpipReceiveBuffer(connection, BUFFER_SIZE);
+    }
+
+    /**
+     * Encodes the call header. The caller then puts the arguments into the returned buffer.
+     *
+     * @return the reused buffer to put XDR-encoded arguments into
+     */
+    ByteBuffer startCall(int procedure) {
+        transactionId++;
+        SEND_BUFFER.clear();
+        SEND_BUFFER.position(4);
+        SEND_BUFFER.putInt(transactionId)
+                .putInt(MESSAGE_TYPE_CALL)
+                .putInt(RPC_VERSION)
+                .putInt(PROGRAM)
+                .putInt(VERSION)
+                .putInt(procedure)
+                .putInt(AUTH_NONE).putInt(0) // credential
+                .putInt(AUTH_NONE).putInt(0); // verifier
+        return SEND_BUFFER;
+    }
+
+    /**
+     * Sends the call and waits for the reply header. The caller then reads the results with {@link #getInt(long)} and
+     * {@link #getOpaque(ByteBuffer, int, long)}, and finishes with {@link #endReply(long)}.
+     *
+     * @param opaqueData sent after the arguments in the buffer from startCall(), from its position to its limit, or
+     * null. The arguments must already end with its length.
+     * @throws ProtocolException if the call was rejected
+     * @throws IOException if the connection failed or the deadline expired
+     */
+    void call(ByteBuffer opaqueData, long deadline) throws IOException {
+        final int opaqueLength = opaqueData == null ? 0 : opaqueData.remaining();
+        final int paddingLength = paddingFor(opaqueLength);
+        SEND_BUFFER.putInt(0, LAST_FRAGMENT | (SEND_BUFFER.position() - 4 + opaqueLength + paddingLength));
+        SEND_BUFFER.flip();
+        if (opaqueData == null) {
+            CONNECTION.write(SEND_BUFFER, deadline);
+        } else {
+            PADDING.clear().limit(paddingLength);
+            GATHER[1] = opaqueData;
+            try {
+                CONNECTION.write(GATHER, deadline);
+            } finally {
+                GATHER[1] = null;
+            }
+        }
+
+        while (true) {
+            if (isInRecord) {
+                skipRecord(deadline);
+            }
+            isLastFragment = false;
+            nextFragment(deadline);
+            isInRecord = true;
+            if (getInt(deadline) == transactionId) {
+                break;
+            }
+            // the reply to an earlier call which timed out
+        }
+        if (getInt(deadline) != MESSAGE_TYPE_REPLY) {
+            throw new ProtocolException("expected an RPC reply");
+        }
+        if (getInt(deadline) != REPLY_ACCEPTED) {
+            throw new ProtocolException("the RPC call was denied");
+        }
+        getInt(deadline); // verifier flavor
+        skipInRecord(padded(getInt(deadline)), deadline); // verifier body
+        final int acceptStatus = getInt(deadline);
+        if (acceptStatus != ACCEPT_SUCCESS) {
+            throw new ProtocolException(String.format("RPC call to program %d procedure %d failed with accept_stat %d",
+                    PROGRAM, SEND_BUFFER.getInt(24), acceptStatus));
+        }
+    }
+
+    /**
+     * Reads an XDR int or unsigned int from the reply.
+     */
+    int getInt(long deadline) throws IOException {
+        if (fragmentRemaining >= 4) {
+            RECEIVER.ensure(4, deadline);
+            fragmentRemaining -= 4;
+            return RECEIVER.BUFFER.getInt();
+        }
+        // The int is split between fragments.
+        int value = 0;
+        for (int i = 0; i < 4; i++) {
+            if (fragmentRemaining == 0) {
+                nextFragment(deadline);
+            }
+            RECEIVER.ensure(1, deadline);
+            fragmentRemaining--;
+            value = (value << 8) | Byte.toUnsignedInt(RECEIVER.BUFFER.get());
+        }
+        return value;
+    }
+
+    /**
+     * Reads the bytes of variable-length opaque data, whose length was already read, and skips the padding after it.
+     *
+     * @param destination receives the bytes at its position
+     */
+    void getOpaque(ByteBuffer destination, int length, long deadline) throws IOException {
+        final int originalLimit = destination.limit();
+        destination.limit(destination.position() + length);
+        try {
+            while (destination.hasRemaining()) {
+                if (fragmentRemaining == 0) {
+                    nextFragment(deadline);
+                }
+                final int fragmentLimit = destination.limit();
+                destination.limit(destination.position() + Math.min(destination.remaining(), fragmentRemaining));
+                final int start = destination.position();
+                try {
+                    RECEIVER.read(destination, deadline);
+                } finally {
+                    fragmentRemaining -= destination.position() - start;
+                    destination.limit(fragmentLimit);
+                }
+            }
+        } finally {
+            destination.limit(originalLimit);
+        }
+        skipInRecord(paddingFor(length), deadline);
+    }
+
+    /**
+     * Skips anything left in the reply.
+     */
+    void endReply(long deadline) throws IOException {
+        skipRecord(deadline);
+    }
+
+    private static int paddingFor(int length) {
+        return (4 - (length & 3)) & 3;
+    }
+
+    private static int padded(int length) {
+        return length + paddingFor(length);
+    }
+
+    private void nextFragment(long deadline) throws IOException {
+        if (isLastFragment) {
+            throw new ProtocolException("the RPC reply is shorter than expected");
+        }
+        RECEIVER.ensure(4, deadline);
+        final int header = RECEIVER.BUFFER.getInt();
+        isLastFragment = (header & LAST_FRAGMENT) != 0;
+        fragmentRemaining = header & ~LAST_FRAGMENT;
+    }
+
+    private void skipInRecord(int count, long deadline) throws IOException {
+        while (count > 0) {
+            if (fragmentRemaining == 0) {
+                nextFragment(deadline);
+            }
+            final int skipCount = Math.min(count, fragmentRemaining);
+            RECEIVER.skip(skipCount, deadline);
+            fragmentRemaining -= skipCount;
+            count -= skipCount;
+        }
+    }
+
+    private void skipRecord(long deadline) throws IOException {
+        while (true) {
+            RECEIVER.skip(fragmentRemaining, deadline);
+            fragmentRemaining = 0;
+            if (isLastFragment) {
+                break;
+            }
+            nextFragment(deadline);
+        }
+        isInRecord = false;
+    }
+
+    @Override
+    public void close() throws IOException {
+        CONNECTION.close();
+    }
+
+}
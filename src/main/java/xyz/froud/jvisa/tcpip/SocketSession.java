@@ -0,0 +1,189 @@
+/**
+ * @license Copyright 2018-2020 Peter Froud
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package xyz.froud.jvisa.tcpip;
+
+import xyz.froud.jvisa.JVisaLibrary;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A TCPIP SOCKET session, which sends and receives raw bytes over a TCP connection.
+ * <p>
+ * A read returns when the termination character is received (if VI_ATTR_TERMCHAR_EN is true), when the count is
+ * reached, or when the timeout expires. TCP has no END indicator. Bytes received after the termination character are
+ * kept for the next read.
+ *
+ * @author Peter Froud
+ * @see <a href="https://www.ni.com/docs/en-US/bundle/ni-visa/page/ni-visa/tcpipsocketresource.html">TCPIP SOCKET
+ * Resource</a>
+ * @see <a href="https://github.com/pyvisa/pyvisa-py/blob/main/pyvisa_py/tcpip.py">TCPIPSocketSession in
+ * PyVISA-py</a>
+ */
+final class SocketSession extends TcpipSession {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Bytes received but not returned yet, between the position and the limit.
+     */
+    private final ByteBuffer RECEIVE_BUFFER = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+    /**
+     * Heap buffers are copied here before writing. Otherwise, SocketChannel copies them into a temporary direct buffer
+     * as big as the whole write.
+     */
+    private final ByteBuffer SEND_BUFFER = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+    SocketSession(int resourceManagerSession, TcpipResourceName resourceName, TcpipConnection connection) {
+        super(resourceManagerSession, resourceName, connection);
+        RECEIVE_BUFFER.limit(0);
+    }
+
+    @Override
+    int read(ByteBuffer buffer, int count, int[] returnCount) {
+        final int start = buffer.position();
+        final int originalLimit = buffer.limit();
+        buffer.limit(start + Math.min(count, originalLimit - start));
+        try {
+            return readUntilDone(buffer);
+        } catch (IOException ex) {
+            return statusFor(ex);
+        } finally {
+            returnCount[0] = buffer.position() - start;
+            buffer.limit(originalLimit);
+            buffer.position(start);
+        }
+    }
+
+    private int readUntilDone(ByteBuffer buffer) throws IOException {
+        final long deadline = deadline();
+        while (true) {
+            if (RECEIVE_BUFFER.hasRemaining()) {
+                if (transferReceivedBytes(buffer)) {
+                    return JVisaLibrary.VI_SUCCESS_TERM_CHAR;
+                }
+            }
+            if (!buffer.hasRemaining()) {
+                return JVisaLibrary.VI_SUCCESS_MAX_CNT;
+            }
+            if (isTerminationCharacterEnabled) {
+                RECEIVE_BUFFER.clear();
+                try {
+                    CONNECTION.read(RECEIVE_BUFFER, deadline);
+                } finally {
+                    RECEIVE_BUFFER.flip();
+                }
+            } else {
+                // Without a termination character nothing needs to be kept for the next read, so skip the copy.
+                CONNECTION.read(buffer, deadline);
+            }
+        }
+    }
+
+    /**
+     * Moves bytes from RECEIVE_BUFFER to the caller's buffer, stopping after the termination character if it's enabled.
+     *
+     * @return true if the termination character was moved
+     */
+    private boolean transferReceivedBytes(ByteBuffer buffer) {
+        final int start = RECEIVE_BUFFER.position();
+        int length = Math.min(RECEIVE_BUFFER.remaining(), buffer.remaining());
+        boolean isTerminated = false;
+        if (isTerminationCharacterEnabled) {
+            for (int i = 0; i < length; i++) {
+                if (RECEIVE_BUFFER.get(start + i) == terminationCharacter) {
+                    length = i + 1;
+                    isTerminated = true;
+                    break;
+                }
+            }
+        }
+        final int receivedLimit = RECEIVE_BUFFER.limit();
+        RECEIVE_BUFFER.limit(start + length);
+        buffer.put(RECEIVE_BUFFER);
+        RECEIVE_BUFFER.limit(receivedLimit);
+        return isTerminated;
+    }
+
+    @Override
+    int write(ByteBuffer buffer, int count, int[] returnCount) {
+        final int start = buffer.position();
+        final int originalLimit = buffer.limit();
+        buffer.limit(start + Math.min(count, originalLimit - start));
+        try {
+            final long deadline = deadline();
+            if (buffer.isDirect()) {
+                CONNECTION.write(buffer, deadline);
+            } else {
+                while (buffer.hasRemaining()) {
+                    SEND_BUFFER.clear();
+                    final int chunkLimit = buffer.limit();
+                    buffer.limit(buffer.position() + Math.min(buffer.remaining(), SEND_BUFFER.capacity()));
+                    SEND_BUFFER.put(buffer);
+                    buffer.limit(chunkLimit);
+                    SEND_BUFFER.flip();
+                    CONNECTION.write(SEND_BUFFER, deadline);
+                }
+            }
+            return 0;
+        } catch (IOException ex) {
+            if (!buffer.isDirect()) {
+                // Bytes copied to SEND_BUFFER but not sent shouldn't be counted.
+                buffer.position(buffer.position() - SEND_BUFFER.remaining());
+            }
+            return statusFor(ex);
+        } finally {
+            returnCount[0] = buffer.position() - start;
+            buffer.limit(originalLimit);
+            buffer.position(start);
+        }
+    }
+
+    @Override
+    int getAttribute(int attribute, ByteBuffer value) {
+        if (attribute == JVisaLibrary.VI_ATTR_TCPIP_PORT) {
+            putInteger(value, RESOURCE_NAME.PORT, 2);
+            return 0;
+        }
+        return super.getAttribute(attribute, value);
+    }
+
+    @Override
+    int setAttribute(int attribute, long value) {
+        if (attribute == JVisaLibrary.VI_ATTR_TCPIP_PORT) {
+            return JVisaLibrary.VI_ERROR_ATTR_READONLY;
+        }
+        return super.setAttribute(attribute, value);
+    }
+
+    /**
+     * Throws away bytes which were received but not read. Raw sockets have no device clear message.
+     */
+    @Override
+    int clear() {
+        RECEIVE_BUFFER.clear();
+        try {
+            CONNECTION.discardInput(RECEIVE_BUFFER);
+            return 0;
+        } catch (IOException ex) {
+            return statusFor(ex);
+        } finally {
+            RECEIVE_BUFFER.limit(0);
+        }
+    }
+
+}
@@ -0,0 +1,250 @@
+/**
+ * @license Copyright 2018-2020 Peter Froud
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package xyz.froud.jvisa.tcpip;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.InterruptedByTimeoutException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A non-blocking SocketChannel with a Selector, so reads and writes can give up when a VISA timeout expires.
+ * <p>
+ * A blocking SocketChannel ignores SO_TIMEOUT, so the channel is non-blocking and the Selector is only used when the
+ * channel isn't ready. The read methods try the channel first, which means a response which has already arrived costs
+ * one system call.
+ * <p>
+ * Reads and writes wait on separate selectors, so one thread can read while another thread writes.
+ *
+ * @author Peter Froud
+ */
+final class TcpipConnection implements AutoCloseable {
+
+    /**
+     * Deadline which never expires, for VI_TMO_INFINITE.
+     */
+    static final long NO_DEADLINE = Long.MAX_VALUE;
+
+    private final SocketChannel CHANNEL;
+    private final Selector READ_SELECTOR;
+    private final SelectionKey READ_KEY;
+
+    /**
+     * Created the first time a write has to wait, which is rare.
+     */
+    private Selector writeSelector = null;
+    private SelectionKey writeKey = null;
+
+    private TcpipConnection(SocketChannel channel, Selector readSelector, SelectionKey readKey) {
+        CHANNEL = channel;
+        READ_SELECTOR = readSelector;
+        READ_KEY = readKey;
+    }
+
+    /**
+     * Connects to a TCP port and turns on TCP_NODELAY, since instruments exchange lots of small messages.
+     *
+     * @param connectTimeoutMilliseconds how long to wait for the connection, zero to wait forever
+     * @throws java.net.SocketTimeoutException if the timeout expired
+     * @throws IOException if the connection couldn't be made
+     */
+    static TcpipConnection open(String host, int port, int connectTimeoutMilliseconds) throws IOException {
+        final SocketChannel channel = SocketChannel.open();
+        try {
+            channel.socket().connect(new InetSocketAddress(host, port), connectTimeoutMilliseconds);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            channel.configureBlocking(false);
+            final Selector selector = Selector.open();
+            return new TcpipConnection(channel, selector, channel.register(selector, 0));
+        } catch (IOException | RuntimeException ex) {
+            channel.close();
+            throw ex;
+        }
+    }
+
+    /**
+     * @param timeoutMilliseconds a VISA timeout value, like VI_ATTR_TMO_VALUE
+     * @return a System.nanoTime() value after which an operation should stop waiting
+     */
+    static long deadline(long timeoutMilliseconds) {
+        if (timeoutMilliseconds >= 0xFFFFFFFFL) {
+            return NO_DEADLINE;
+        }
+        return System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMilliseconds);
+    }
+
+    /**
+     * Reads at least one byte unless the deadline expires.
+     *
+     * @param destination receives bytes from its position up to its limit
+     * @return how many bytes were read
+     * @throws InterruptedByTimeoutException if nothing arrived before the deadline
+     * @throws EOFException if the other end closed the connection
+     * @throws IOException if the read failed
+     */
+    int read(ByteBuffer destination, long deadline) throws IOException {
+        while (true) {
+            final int count = CHANNEL.read(destination);
+            if (count < 0) {
+                throw new EOFException("the connection was closed by the instrument");
+            }
+            if (count > 0 || !destination.hasRemaining()) {
+                return count;
+            }
+            await(READ_SELECTOR, READ_KEY, SelectionKey.OP_READ, deadline);
+        }
+    }
+
+    /**
+     * Writes everything from the position to the limit of the source buffer.
+     *
+     * @throws InterruptedByTimeoutException if the deadline expired first
+     * @throws IOException if the write failed
+     */
+    void write(ByteBuffer source, long deadline) throws IOException {
+        while (source.hasRemaining()) {
+            if (CHANNEL.write(source) == 0) {
+                awaitWritable(deadline);
+            }
+        }
+    }
+
+    /**
+     * Writes everything from the positions to the limits of the source buffers. It's one system call when the socket
+     * buffer has room, so with TCP_NODELAY a protocol header and its payload usually go out in one segment instead of
+     * two.
+     *
+     * @throws InterruptedByTimeoutException if the deadline expired first
+     * @throws IOException if the write failed
+     */
+    void write(ByteBuffer[] sources, long deadline) throws IOException {
+        long remaining = 0;
+        for (ByteBuffer source : sources) {
+            remaining += source.remaining();
+        }
+        while (remaining > 0) {
+            final long count = CHANNEL.write(sources);
+            if (count == 0) {
+                awaitWritable(deadline);
+            }
+            remaining -= count;
+        }
+    }
+
+    private void awaitWritable(long deadline) throws IOException {
+        synchronized (this) {
+            if (writeSelector == null) {
+                writeSelector = Selector.open();
+                writeKey = CHANNEL.register(writeSelector, 0);
+            }
+        }
+        await(writeSelector, writeKey, SelectionKey.OP_WRITE, deadline);
+    }
+
+    /**
+     * Throws away bytes which have already arrived, without waiting.
+     *
+     * @param scratch a buffer to read into
+     * @throws IOException if the read failed
+     */
+    void discardInput(ByteBuffer scratch) throws IOException {
+        do {
+            scratch.clear();
+        } while (CHANNEL.read(scratch) > 0);
+        scratch.clear();
+    }
+
+    private static void await(Selector selector, SelectionKey key, int operation, long deadline) throws IOException {
+        key.interestOps(operation);
+        try {
+            while (true) {
+                final int readyCount;
+                if (deadline == NO_DEADLINE) {
+                    readyCount = selector.select();
+                } else {
+                    final long remainingNanos = deadline - System.nanoTime();
+                    if (remainingNanos <= 0) {
+                        readyCount = selector.selectNow();
+                        if (readyCount == 0) {
+                            throw new InterruptedByTimeoutException();
+                        }
+                    } else {
+                        // select() takes milliseconds and zero means forever, so round up.
+                        readyCount = selector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(remainingNanos + 999_999)));
+                    }
+                }
+                selector.selectedKeys().clear();
+                if (readyCount > 0) {
+                    return;
+                }
+            }
+        } finally {
+            if (key.isValid()) {
+                key.interestOps(0);
+            }
+        }
+    }
+
+    /**
+     * @see <a href="https://www.ni.com/docs/en-US/bundle/ni-visa/page/ni-visa/vi_attr_tcpip_nodelay.html">VI_ATTR_TCPIP_NODELAY</a>
+     */
+    boolean isNoDelay() throws IOException {
+        return CHANNEL.getOption(StandardSocketOptions.TCP_NODELAY);
+    }
+
+    void setNoDelay(boolean noDelay) throws IOException {
+        CHANNEL.setOption(StandardSocketOptions.TCP_NODELAY, noDelay);
+    }
+
+    /**
+     * @see <a href="https://www.ni.com/docs/en-US/bundle/ni-visa/page/ni-visa/vi_attr_tcpip_keepalive.html">VI_ATTR_TCPIP_KEEPALIVE</a>
+     */
+    boolean isKeepAlive() throws IOException {
+        return CHANNEL.getOption(StandardSocketOptions.SO_KEEPALIVE);
+    }
+
+    void setKeepAlive(boolean keepAlive) throws IOException {
+        CHANNEL.setOption(StandardSocketOptions.SO_KEEPALIVE, keepAlive);
+    }
+
+    /**
+     * @return the IP address of the instrument, as text
+     */
+    String getRemoteAddress() {
+        return CHANNEL.socket().getInetAddress().getHostAddress();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            READ_SELECTOR.close();
+            synchronized (this) {
+                if (writeSelector != null) {
+                    writeSelector.close();
+                }
+            }
+        } finally {
+            CHANNEL.close();
+        }
+    }
+
+}
@@ -0,0 +1,83 @@
+/**
+ * @license Copyright 2018-2020 Peter Froud
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package xyz.froud.jvisa.tcpip;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Buffers bytes from a TcpipConnection so protocol headers can be parsed without a system call for every field. Big
+ * reads skip the buffer and go straight into the caller's buffer.
+ *
+ * @author Peter Froud
+ */
+final class TcpipReceiveBuffer {
+
+    private final TcpipConnection CONNECTION;
+
+    /**
+     * Bytes received but not consumed yet, between the position and the limit. It's big-endian, like network protocols.
+     */
+    final ByteBuffer BUFFER;
+
+    TcpipReceiveBuffer(TcpipConnection connection, int size) {
+        CONNECTION = connection;
+        BUFFER = ByteBuffer.allocateDirect(size);
+        BUFFER.limit(0);
+    }
+
+    /**
+     * Makes sure BUFFER has at least the count of bytes between its position and limit.
+     */
+    void ensure(int count, long deadline) throws IOException {
+        while (BUFFER.remaining() < count) {
+            BUFFER.compact();
+            try {
+                CONNECTION.read(BUFFER, deadline);
+            } finally {
+                BUFFER.flip();
+            }
+        }
+    }
+
+    /**
+     * Reads until the destination is full.
+     */
+    void read(ByteBuffer destination, long deadline) throws IOException {
+        while (destination.hasRemaining()) {
+            if (BUFFER.hasRemaining()) {
+                final int receivedLimit = BUFFER.limit();
+                BUFFER.limit(BUFFER.position() + Math.min(BUFFER.remaining(), destination.remaining()));
+                destination.put(BUFFER);
+                BUFFER.limit(receivedLimit);
+            } else if (destination.remaining() >= BUFFER.capacity()) {
+                CONNECTION.read(destination, deadline);
+            } else {
+                ensure(1, deadline);
+            }
+        }
+    }
+
+    void skip(long count, long deadline) throws IOException {
+        while (count > 0) {
+            ensure(1, deadline);
+            final int skipCount = (int) Math.min(count, BUFFER.remaining());
+            BUFFER.position(BUFFER.position() + skipCount);
+            count -= skipCount;
+        }
+    }
+
+}
@@ -0,0 +1,156 @@
+/**
+ * @license Copyright 2018-2020 Peter Froud
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package xyz.froud.jvisa.tcpip;
+
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The parts of a TCPIP resource name.
+ *
+ * @author Peter Froud
+ * @see <a href="https://www.ni.com/docs/en-US/bundle/ni-visa/page/ni-visa/visaresourcesyntaxandexamples.html">VISA
+ * Resource Syntax and Examples</a>
+ */
+final class TcpipResourceName {
+
+    /**
+     * TCPIP[board]::host address::port::SOCKET. An IPv6 address is written in square brackets.
+     */
+    private static final Pattern SOCKET_PATTERN = Pattern.compile(
+            "TCPIP(\\d{0,4})::(\\[[^\\]]+\\]|[^:]+)::(\\d{1,5})::SOCKET", Pattern.CASE_INSENSITIVE);
+
+    /**
+     * TCPIP[board]::host address[::LAN device name][::INSTR]. The LAN device name can't be "INSTR", so that case is
+     * handled after matching.
+     */
+    private static final Pattern INSTR_PATTERN = Pattern.compile(
+            "TCPIP(\\d{0,4})::(\\[[^\\]]+\\]|[^:]+)(?:::([^:]+))?(?:::INSTR)?", Pattern.CASE_INSENSITIVE);
+
+    /**
+     * The LAN device name when the resource name doesn't have one.
+     */
+    private static final String DEFAULT_DEVICE_NAME = "inst0";
+
+    /**
+     * A HiSLIP LAN device name is "hislip" and a number, optionally followed by a comma and a port number.
+     */
+    private static final Pattern HISLIP_DEVICE_NAME_PATTERN = Pattern.compile("(hislip\\d+)(?:,(\\d{1,5}))?", Pattern.CASE_INSENSITIVE);
+
+    private static final int DEFAULT_HISLIP_PORT = 4880;
+
+    /**
+     * Board number, zero if the resource name doesn't have one.
+     */
+    final int BOARD;
+
+    /**
+     * Host name or IP address, without square brackets.
+     */
+    final String HOST;
+
+    /**
+     * TCP port of a SOCKET or HiSLIP resource, zero for VXI-11 resources.
+     */
+    final int PORT;
+
+    /**
+     * LAN device name of an INSTR resource, like "inst0" or "gpib0,5" or "hislip0,4880", or null for SOCKET resources.
+     */
+    final String DEVICE_NAME;
+
+    /**
+     * For HiSLIP resources, the LAN device name without the port number, which is sent in the Initialize message.
+     * Null for other resources.
+     */
+    final String HISLIP_SUB_ADDRESS;
+
+    /**
+     * Resource class, for example "SOCKET".
+     */
+    final String RESOURCE_CLASS;
+
+    private TcpipResourceName(int board, String host, int port, String deviceName, String hislipSubAddress, String resourceClass) {
+        BOARD = board;
+        HOST = host;
+        PORT = port;
+        DEVICE_NAME = deviceName;
+        HISLIP_SUB_ADDRESS = hislipSubAddress;
+        RESOURCE_CLASS = resourceClass;
+    }
+
+    /**
+     * @param resourceName a VISA resource name
+     * @return the parsed resource name, or null if it isn't a resource name which JVisaTcpipBackend can open
+     */
+    static TcpipResourceName parse(String resourceName) {
+        if (resourceName == null) {
+            return null;
+        }
+        final Matcher socketMatcher = SOCKET_PATTERN.matcher(resourceName.trim());
+        if (socketMatcher.matches()) {
+            final int port = Integer.parseInt(socketMatcher.group(3));
+            if (port > 0xFFFF) {
+                return null;
+            }
+            return new TcpipResourceName(parseBoard(socketMatcher.group(1)), unbracket(socketMatcher.group(2)), port, null, null, "SOCKET");
+        }
+        final Matcher instrMatcher = INSTR_PATTERN.matcher(resourceName.trim());
+        if (instrMatcher.matches()) {
+            String deviceName = instrMatcher.group(3);
+            if (deviceName == null || deviceName.equalsIgnoreCase("INSTR")) {
+                deviceName = DEFAULT_DEVICE_NAME;
+            }
+            final int board = parseBoard(instrMatcher.group(1));
+            final String host = unbracket(instrMatcher.group(2));
+            final Matcher hislipMatcher = HISLIP_DEVICE_NAME_PATTERN.matcher(deviceName);
+            if (hislipMatcher.matches()) {
+                final int port = hislipMatcher.group(2) == null ? DEFAULT_HISLIP_PORT : Integer.parseInt(hislipMatcher.group(2));
+                if (port > 0xFFFF) {
+                    return null;
+                }
+                return new TcpipResourceName(board, host, port, deviceName, hislipMatcher.group(1), "INSTR");
+            }
+            return new TcpipResourceName(board, host, 0, deviceName, null, "INSTR");
+        }
+        return null;
+    }
+
+    private static int parseBoard(String board) {
+        return board.isEmpty() ? 0 : Integer.parseInt(board);
+    }
+
+    private static String unbracket(String host) {
+        if (host.startsWith("[")) {
+            return host.substring(1, host.length() - 1);
+        }
+        return host;
+    }
+
+    /**
+     * @return the canonical form of the resource name, like what viParseRsrcEx() returns for expandedUnaliasedName
+     */
+    @Override
+    public String toString() {
+        final String host = HOST.indexOf(':') >= 0 ? "[" + HOST + "]" : HOST;
+        if (DEVICE_NAME == null) {
+            return String.format(Locale.ROOT, "TCPIP%d::%s::%d::%s", BOARD, host, PORT, RESOURCE_CLASS);
+        }
+        return String.format(Locale.ROOT, "TCPIP%d::%s::%s::%s", BOARD, host, DEVICE_NAME, RESOURCE_CLASS);
+    }
+
+}
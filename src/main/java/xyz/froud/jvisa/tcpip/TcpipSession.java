@@ -0,0 +1,328 @@
+/**
+ * @license Copyright 2018-2020 Peter Froud
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package xyz.froud.jvisa.tcpip;
+
+import com.sun.jna.Pointer;
+import xyz.froud.jvisa.JVisaLibrary;
+import xyz.froud.jvisa.eventhandling.JVisaEventCallback;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.InterruptedByTimeoutException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * An instrument session opened by JVisaTcpipBackend. This class handles the attributes which every TCPIP session has,
+ * and subclasses implement the protocol.
+ * <p>
+ * The methods return VISA status codes like the functions in visa.h.
+ *
+ * @author Peter Froud
+ */
+abstract class TcpipSession implements AutoCloseable {
+
+    /**
+     * The default value of VI_ATTR_TMO_VALUE in NI-VISA.
+     */
+    static final long DEFAULT_TIMEOUT_MILLISECONDS = 2000;
+
+    static final int VI_TRUE = 1;
+    static final int VI_FALSE = 0;
+
+    final int RESOURCE_MANAGER_SESSION;
+    final TcpipResourceName RESOURCE_NAME;
+    final TcpipConnection CONNECTION;
+
+    /**
+     * VI_ATTR_TMO_VALUE. VI_TMO_INFINITE is 0xFFFFFFFF.
+     */
+    long timeoutMilliseconds = DEFAULT_TIMEOUT_MILLISECONDS;
+
+    /**
+     * VI_ATTR_TERMCHAR.
+     */
+    byte terminationCharacter = '\n';
+
+    /**
+     * VI_ATTR_TERMCHAR_EN.
+     */
+    boolean isTerminationCharacterEnabled = false;
+
+    /**
+     * VI_ATTR_SEND_END_EN. TCP doesn't have an END indicator, so only the protocols on top of it use this.
+     */
+    boolean isSendEndEnabled = true;
+
+    /**
+     * The handle JVisaTcpipBackend gave this session, which is passed to event handlers.
+     */
+    volatile int handle;
+
+    TcpipSession(int resourceManagerSession, TcpipResourceName resourceName, TcpipConnection connection) {
+        RESOURCE_MANAGER_SESSION = resourceManagerSession;
+        RESOURCE_NAME = resourceName;
+        CONNECTION = connection;
+    }
+
+    /**
+     * @see <a href="https://www.ni.com/docs/en-US/bundle/ni-visa/page/ni-visa/viread.html">viRead</a>
+     */
+    abstract int read(ByteBuffer buffer, int count, int[] returnCount);
+
+    /**
+     * @see <a href="https://www.ni.com/docs/en-US/bundle/ni-visa/page/ni-visa/viwrite.html">viWrite</a>
+     */
+    abstract int write(ByteBuffer buffer, int count, int[] returnCount);
+
+    /**
+     * @see <a href="https://www.ni.com/docs/en-US/bundle/ni-visa/page/ni-visa/viclear.html">viClear</a>
+     */
+    abstract int clear();
+
+    /**
+     * @param statusByte element zero is set to the status byte
+     * @see <a href="https://www.ni.com/docs/en-US/bundle/ni-visa/page/ni-visa/vireadstb.html">viReadSTB</a>
+     */
+    int readStatusByte(short[] statusByte) {
+        return JVisaLibrary.VI_ERROR_NSUP_OPER;
+    }
+
+    /**
+     * @see <a href="https://www.ni.com/docs/en-US/bundle/ni-visa/page/ni-visa/viinstallhandler.html">viInstallHandler</a>
+     */
+    int installHandler(int eventType, JVisaEventCallback handler, Pointer userHandle) {
+        return JVisaLibrary.VI_ERROR_NSUP_OPER;
+    }
+
+    /**
+     * @see <a href="https://www.ni.com/docs/en-US/bundle/ni-visa/page/ni-visa/viuninstallhandler.html">viUninstallHandler</a>
+     */
+    int uninstallHandler(int eventType, JVisaEventCallback handler, Pointer userHandle) {
+        return JVisaLibrary.VI_ERROR_NSUP_OPER;
+    }
+
+    /**
+     * @see <a href="https://www.ni.com/docs/en-US/bundle/ni-visa/page/ni-visa/vienableevent.html">viEnableEvent</a>
+     */
+    int enableEvent(int eventType, short mechanism) {
+        return JVisaLibrary.VI_ERROR_NSUP_OPER;
+    }
+
+    /**
+     * @see <a href="https://www.ni.com/docs/en-US/bundle/ni-visa/page/ni-visa/vidisableevent.html">viDisableEvent</a>
+     */
+    int disableEvent(int eventType, short mechanism) {
+        return JVisaLibrary.VI_ERROR_NSUP_OPER;
+    }
+
+    /**
+     * @see <a href="https://www.ni.com/docs/en-US/bundle/ni-visa/page/ni-visa/vidiscardevents.html">viDiscardEvents</a>
+     */
+    int discardEvents(int eventType, short mechanism) {
+        return JVisaLibrary.VI_ERROR_NSUP_OPER;
+    }
+
+    /**
+     * Sends queries without waiting for the responses in between.
+     *
+     * @see JVisaTcpipBackend#queryOverlapped(int, ByteBuffer[], int, byte[][])
+     */
+    int queryOverlapped(ByteBuffer[] commands, int maxOutstanding, byte[][] responses) {
+        return JVisaLibrary.VI_ERROR_NSUP_OPER;
+    }
+
+    @Override
+    public void close() throws IOException {
+        CONNECTION.close();
+    }
+
+    /**
+     * @return a deadline for an operation starting now, from VI_ATTR_TMO_VALUE
+     */
+    final long deadline() {
+        return TcpipConnection.deadline(timeoutMilliseconds);
+    }
+
+    /**
+     * @see <a href="https://www.ni.com/docs/en-US/bundle/ni-visa/page/ni-visa/vigetattribute.html">viGetAttribute</a>
+     */
+    int getAttribute(int attribute, ByteBuffer value) {
+        try {
+            switch (attribute) {
+                case JVisaLibrary.VI_ATTR_TMO_VALUE:
+                    putInteger(value, timeoutMilliseconds, 4);
+                    return 0;
+                case JVisaLibrary.VI_ATTR_TERMCHAR:
+                    putInteger(value, Byte.toUnsignedLong(terminationCharacter), 1);
+                    return 0;
+                case JVisaLibrary.VI_ATTR_TERMCHAR_EN:
+                    putBoolean(value, isTerminationCharacterEnabled);
+                    return 0;
+                case JVisaLibrary.VI_ATTR_SEND_END_EN:
+                    putBoolean(value, isSendEndEnabled);
+                    return 0;
+                case JVisaLibrary.VI_ATTR_INTF_TYPE:
+                    putInteger(value, JVisaLibrary.VI_INTF_TCPIP, 2);
+                    return 0;
+                case JVisaLibrary.VI_ATTR_INTF_NUM:
+                    putInteger(value, RESOURCE_NAME.BOARD, 2);
+                    return 0;
+                case JVisaLibrary.VI_ATTR_RSRC_CLASS:
+                    putString(value, RESOURCE_NAME.RESOURCE_CLASS);
+                    return 0;
+                case JVisaLibrary.VI_ATTR_RSRC_NAME:
+                    putString(value, RESOURCE_NAME.toString());
+                    return 0;
+                case JVisaLibrary.VI_ATTR_TCPIP_ADDR:
+                    putString(value, CONNECTION.getRemoteAddress());
+                    return 0;
+                case JVisaLibrary.VI_ATTR_TCPIP_HOSTNAME:
+                    putString(value, RESOURCE_NAME.HOST);
+                    return 0;
+                case JVisaLibrary.VI_ATTR_TCPIP_NODELAY:
+                    putBoolean(value, CONNECTION.isNoDelay());
+                    return 0;
+                case JVisaLibrary.VI_ATTR_TCPIP_KEEPALIVE:
+                    putBoolean(value, CONNECTION.isKeepAlive());
+                    return 0;
+                case JVisaLibrary.VI_ATTR_TCPIP_IS_HISLIP:
+                    putBoolean(value, false);
+                    return 0;
+                default:
+                    return JVisaLibrary.VI_ERROR_NSUP_ATTR;
+            }
+        } catch (IOException ex) {
+            return statusFor(ex);
+        }
+    }
+
+    /**
+     * @see <a href="https://www.ni.com/docs/en-US/bundle/ni-visa/page/ni-visa/visetattribute.html">viSetAttribute</a>
+     */
+    int setAttribute(int attribute, long value) {
+        try {
+            switch (attribute) {
+                case JVisaLibrary.VI_ATTR_TMO_VALUE:
+                    if (value < 0 || value > JVisaLibrary.VI_TMO_INFINITE) {
+                        return JVisaLibrary.VI_ERROR_NSUP_ATTR_STATE;
+                    }
+                    timeoutMilliseconds = value;
+                    return 0;
+                case JVisaLibrary.VI_ATTR_TERMCHAR:
+                    if (value < 0 || value > 0xFF) {
+                        return JVisaLibrary.VI_ERROR_NSUP_ATTR_STATE;
+                    }
+                    terminationCharacter = (byte) value;
+                    return 0;
+                case JVisaLibrary.VI_ATTR_TERMCHAR_EN:
+                    if (!isBoolean(value)) {
+                        return JVisaLibrary.VI_ERROR_NSUP_ATTR_STATE;
+                    }
+                    isTerminationCharacterEnabled = value == VI_TRUE;
+                    return 0;
+                case JVisaLibrary.VI_ATTR_SEND_END_EN:
+                    if (!isBoolean(value)) {
+                        return JVisaLibrary.VI_ERROR_NSUP_ATTR_STATE;
+                    }
+                    isSendEndEnabled = value == VI_TRUE;
+                    return 0;
+                case JVisaLibrary.VI_ATTR_TCPIP_NODELAY:
+                    if (!isBoolean(value)) {
+                        return JVisaLibrary.VI_ERROR_NSUP_ATTR_STATE;
+                    }
+                    CONNECTION.setNoDelay(value == VI_TRUE);
+                    return 0;
+                case JVisaLibrary.VI_ATTR_TCPIP_KEEPALIVE:
+                    if (!isBoolean(value)) {
+                        return JVisaLibrary.VI_ERROR_NSUP_ATTR_STATE;
+                    }
+                    CONNECTION.setKeepAlive(value == VI_TRUE);
+                    return 0;
+                case JVisaLibrary.VI_ATTR_INTF_TYPE:
+                case JVisaLibrary.VI_ATTR_INTF_NUM:
+                case JVisaLibrary.VI_ATTR_RSRC_CLASS:
+                case JVisaLibrary.VI_ATTR_RSRC_NAME:
+                case JVisaLibrary.VI_ATTR_TCPIP_ADDR:
+                case JVisaLibrary.VI_ATTR_TCPIP_HOSTNAME:
+                case JVisaLibrary.VI_ATTR_TCPIP_IS_HISLIP:
+                    return JVisaLibrary.VI_ERROR_ATTR_READONLY;
+                default:
+                    return JVisaLibrary.VI_ERROR_NSUP_ATTR;
+            }
+        } catch (IOException ex) {
+            return statusFor(ex);
+        }
+    }
+
+    static boolean isBoolean(long value) {
+        return value == VI_TRUE || value == VI_FALSE;
+    }
+
+    /**
+     * Converts an exception from TcpipConnection to a VISA status code.
+     */
+    static int statusFor(IOException ex) {
+        if (ex instanceof InterruptedByTimeoutException || ex instanceof SocketTimeoutException) {
+            return JVisaLibrary.VI_ERROR_TMO;
+        }
+        if (ex instanceof EOFException || ex instanceof ClosedChannelException || ex instanceof SocketException) {
+            return JVisaLibrary.VI_ERROR_CONN_LOST;
+        }
+        return JVisaLibrary.VI_ERROR_IO;
+    }
+
+    /**
+     * Writes an unsigned integer attribute in native byte order. JVisaInstrument reads some attributes into a buffer
+     * smaller than the attribute, for example a one-byte buffer for a ViBoolean, so only the bytes which fit are written.
+     *
+     * @param size how many bytes the attribute type has in visa.h
+     */
+    static void putInteger(ByteBuffer value, long attributeValue, int size) {
+        final int byteCount = Math.min(size, value.limit());
+        final boolean isLittleEndian = ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN;
+        for (int i = 0; i < byteCount; i++) {
+            final int shift = 8 * (isLittleEndian ? i : size - 1 - i);
+            value.put(i, (byte) (attributeValue >>> shift));
+        }
+    }
+
+    /**
+     * Writes a ViBoolean, which is two bytes.
+     */
+    static void putBoolean(ByteBuffer value, boolean attributeValue) {
+        putInteger(value, attributeValue ? VI_TRUE : VI_FALSE, 2);
+    }
+
+    /**
+     * Writes a zero-terminated string, cut off if the buffer is too small.
+     */
+    static void putString(ByteBuffer value, String attributeValue) {
+        final byte[] bytes = attributeValue.getBytes(StandardCharsets.US_ASCII);
+        final int length = Math.min(bytes.length, value.limit() - 1);
+        for (int i = 0; i < length; i++) {
+            value.put(i, bytes[i]);
+        }
+        if (length >= 0) {
+            value.put(length, (byte) 0);
+        }
+    }
+
+}
@@ -0,0 +1,437 @@
+/**
+ * @license Copyright 2018-2020 Peter Froud
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package xyz.froud.jvisa.tcpip;
+
+import xyz.froud.jvisa.JVisaLibrary;
+
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.InterruptedByTimeoutException;
+
+/**
+ * A TCPIP INSTR session using VXI-11, which is ONC RPC over TCP.
+ * <p>
+ * The core channel is used for every operation. The abort channel stays open too, so an operation which timed out on
+ * this side can be aborted on the instrument side without waiting for the instrument's I/O timeout.
+ *
+ * @author Peter Froud
+ * @see <a href="https://www.lxistandard.org/members/Adopted%20Specifications/Latest%20Version%20of%20Standards_/LXI%20Standard%201.5%20Specifications/TCP-IP%20Instrument%20Protocol%20Specification%20VXI-11%20v1.0.pdf">VXI-11
+ * TCP/IP Instrument Protocol Specification</a>
+ * @see <a href="https://github.com/pyvisa/pyvisa-py/blob/main/pyvisa_py/protocols/vxi11.py">vxi11.py in
+ * PyVISA-py</a>
+ */
+final class Vxi11Session extends TcpipSession {
+
+    private static final int PORTMAPPER_PORT = 111;
+    private static final int PORTMAPPER_PROGRAM = 100000;
+    private static final int PORTMAPPER_VERSION = 2;
+    private static final int PORTMAPPER_GETPORT = 3;
+    private static final int IPPROTO_TCP = 6;
+
+    private static final int DEVICE_CORE_PROGRAM = 0x0607AF;
+    private static final int DEVICE_CORE_VERSION = 1;
+    private static final int CREATE_LINK = 10;
+    private static final int DEVICE_WRITE = 11;
+    private static final int DEVICE_READ = 12;
+    private static final int DEVICE_READSTB = 13;
+    private static final int DEVICE_CLEAR = 15;
+    private static final int DESTROY_LINK = 23;
+
+    private static final int DEVICE_ASYNC_PROGRAM = 0x0607B0;
+    private static final int DEVICE_ASYNC_VERSION = 1;
+    private static final int DEVICE_ABORT = 1;
+
+    // Device_Flags
+    private static final int FLAG_END = 0x08;
+    private static final int FLAG_TERMCHRSET = 0x80;
+
+    // reason bits in Device_ReadResp
+    private static final int REASON_CHR = 0x02;
+    private static final int REASON_END = 0x04;
+
+    // Device_ErrorCode values
+    private static final int ERROR_NONE = 0;
+    private static final int ERROR_DEVICE_NOT_ACCESSIBLE = 3;
+    private static final int ERROR_INVALID_LINK_IDENTIFIER = 4;
+    private static final int ERROR_PARAMETER = 5;
+    private static final int ERROR_OPERATION_NOT_SUPPORTED = 8;
+    private static final int ERROR_OUT_OF_RESOURCES = 9;
+    private static final int ERROR_DEVICE_LOCKED = 11;
+    private static final int ERROR_NO_LOCK_HELD = 12;
+    private static final int ERROR_IO_TIMEOUT = 15;
+    private static final int ERROR_IO = 17;
+    private static final int ERROR_INVALID_ADDRESS = 21;
+    private static final int ERROR_ABORT = 23;
+
+    /**
+     * How much longer than the VXI-11 io_timeout to wait for a reply, so the instrument's timeout error arrives before
+     * this side gives up.
+     */
+    private static final long REPLY_TIMEOUT_MARGIN_MILLISECONDS = 1000;
+
+    /**
+     * How long to wait for the abort channel and for destroy_link.
+     */
+    private static final long SHORT_TIMEOUT_MILLISECONDS = 1000;
+
+    private final OncRpcClient CORE;
+    private final OncRpcClient ABORT;
+    private final int LINK_ID;
+
+    /**
+     * The biggest device_write payload the instrument accepts.
+     */
+    private final int MAX_RECEIVE_SIZE;
+
+    private Vxi11Session(int resourceManagerSession, TcpipResourceName resourceName, TcpipConnection coreConnection,
+                         OncRpcClient core, OncRpcClient abort, int linkId, int maxReceiveSize) {
+        super(resourceManagerSession, resourceName, coreConnection);
+        CORE = core;
+        ABORT = abort;
+        LINK_ID = linkId;
+        MAX_RECEIVE_SIZE = maxReceiveSize;
+    }
+
+    /**
+     * Asks the portmapper for the core channel port, connects the core channel, creates a link, then connects the
+     * abort channel.
+     *
+     * @param status element zero is set to the VISA status if the session couldn't be opened
+     * @return the session, or null if it couldn't be opened
+     * @throws IOException if a connection failed
+     */
+    static Vxi11Session open(int resourceManagerSession, TcpipResourceName resourceName, int connectTimeout,
+                             int clientId, int[] status) throws IOException {
+        return open(resourceManagerSession, resourceName, connectTimeout, clientId, PORTMAPPER_PORT, status);
+    }
+
+    /**
+     * Like {@link #open(int, TcpipResourceName, int, int, int[])}, but the portmapper can be on another port, for
+     * example a stand-in server in a test.
+     */
+    static Vxi11Session open(int resourceManagerSession, TcpipResourceName resourceName, int connectTimeout,
+                             int clientId, int portmapperPort, int[] status) throws IOException {
+        final long deadline = TcpipConnection.deadline(connectTimeout);
+
+        final int corePort;
+        try (OncRpcClient portmapper = new OncRpcClient(
+                TcpipConnection.open(resourceName.HOST, portmapperPort, connectTimeout), PORTMAPPER_PROGRAM, PORTMAPPER_VERSION)) {
+            portmapper.startCall(PORTMAPPER_GETPORT)
+                    .putInt(DEVICE_CORE_PROGRAM)
+                    .putInt(DEVICE_CORE_VERSION)
+                    .putInt(IPPROTO_TCP)
+                    .putInt(0);
+            portmapper.call(null, deadline);
+            corePort = portmapper.getInt(deadline);
+        }
+        if (corePort == 0) {
+            status[0] = JVisaLibrary.VI_ERROR_RSRC_NFOUND;
+            return null;
+        }
+
+        final TcpipConnection coreConnection = TcpipConnection.open(resourceName.HOST, corePort, connectTimeout);
+        try {
+            final OncRpcClient core = new OncRpcClient(coreConnection, DEVICE_CORE_PROGRAM, DEVICE_CORE_VERSION);
+            final ByteBuffer arguments = core.startCall(CREATE_LINK)
+                    .putInt(clientId)
+                    .putInt(0) // lockDevice
+                    .putInt(0) // lock_timeout
+                    .putInt(resourceName.DEVICE_NAME.length());
+            putPaddedAscii(arguments, resourceName.DEVICE_NAME);
+            core.call(null, deadline);
+            final int error = core.getInt(deadline);
+            final int linkId = core.getInt(deadline);
+            final int abortPort = core.getInt(deadline);
+            final int maxReceiveSize = core.getInt(deadline);
+            core.endReply(deadline);
+            if (error != ERROR_NONE) {
+                coreConnection.close();
+                status[0] = error == ERROR_DEVICE_NOT_ACCESSIBLE || error == ERROR_INVALID_ADDRESS
+                        ? JVisaLibrary.VI_ERROR_RSRC_NFOUND : statusForDeviceError(error);
+                return null;
+            }
+
+            final OncRpcClient abort = new OncRpcClient(
+                    TcpipConnection.open(resourceName.HOST, abortPort, connectTimeout), DEVICE_ASYNC_PROGRAM, DEVICE_ASYNC_VERSION);
+
+            // Some instruments report 0 or a huge number, so keep writes within one RPC at a sensible size.
+            final int writeSize = maxReceiveSize <= 0 ? 1024 * 1024 : Math.min(maxReceiveSize, 1024 * 1024);
+            return new Vxi11Session(resourceManagerSession, resourceName, coreConnection, core, abort, linkId, writeSize);
+        } catch (IOException | RuntimeException ex) {
+            coreConnection.close();
+            throw ex;
+        }
+    }
+
+    private static void putPaddedAscii(ByteBuffer buffer, String string) {
+        for (int i = 0; i < string.length(); i++) {
+            buffer.put((byte) string.charAt(i));
+        }
+        for (int i = string.length(); (i & 3) != 0; i++) {
+            buffer.put((byte) 0);
+        }
+    }
+
+    /**
+     * @return the deadline for a reply to a call which sends VI_ATTR_TMO_VALUE as the io_timeout
+     */
+    private long replyDeadline() {
+        if (timeoutMilliseconds >= JVisaLibrary.VI_TMO_INFINITE) {
+            return TcpipConnection.NO_DEADLINE;
+        }
+        return TcpipConnection.deadline(timeoutMilliseconds + REPLY_TIMEOUT_MARGIN_MILLISECONDS);
+    }
+
+    /**
+     * Reads with device_read. The request size is the whole count, so the instrument can send a big block in one reply.
+     */
+    @Override
+    int read(ByteBuffer buffer, int count, int[] returnCount) {
+        final int start = buffer.position();
+        final int originalLimit = buffer.limit();
+        buffer.limit(start + Math.min(count, originalLimit - start));
+        try {
+            final long deadline = replyDeadline();
+            final int flags = isTerminationCharacterEnabled ? FLAG_TERMCHRSET : 0;
+            while (true) {
+                CORE.startCall(DEVICE_READ)
+                        .putInt(LINK_ID)
+                        .putInt(buffer.remaining()) // requestSize
+                        .putInt((int) timeoutMilliseconds) // io_timeout
+                        .putInt(0) // lock_timeout
+                        .putInt(flags)
+                        .putInt(Byte.toUnsignedInt(terminationCharacter));
+                CORE.call(null, deadline);
+                final int error = CORE.getInt(deadline);
+                final int reason = CORE.getInt(deadline);
+                final int dataLength = CORE.getInt(deadline);
+                if (dataLength < 0 || dataLength > buffer.remaining()) {
+                    throw new ProtocolException("device_read returned more data than requested");
+                }
+                CORE.getOpaque(buffer, dataLength, deadline);
+                CORE.endReply(deadline);
+
+                if (error != ERROR_NONE) {
+                    return statusForDeviceError(error);
+                }
+                if ((reason & REASON_END) != 0) {
+                    return 0;
+                }
+                if ((reason & REASON_CHR) != 0) {
+                    return JVisaLibrary.VI_SUCCESS_TERM_CHAR;
+                }
+                if (!buffer.hasRemaining()) {
+                    return JVisaLibrary.VI_SUCCESS_MAX_CNT;
+                }
+            }
+        } catch (IOException ex) {
+            return statusAfterFailedCall(ex);
+        } finally {
+            returnCount[0] = buffer.position() - start;
+            buffer.limit(originalLimit);
+            buffer.position(start);
+        }
+    }
+
+    /**
+     * Writes with device_write, in pieces no bigger than maxRecvSize from create_link. The END flag is only set on the
+     * last piece, and only if VI_ATTR_SEND_END_EN is true.
+     */
+    @Override
+    int write(ByteBuffer buffer, int count, int[] returnCount) {
+        final int start = buffer.position();
+        final int originalLimit = buffer.limit();
+        final int end = start + Math.min(count, originalLimit - start);
+        try {
+            final long deadline = replyDeadline();
+            do {
+                final int chunkStart = buffer.position();
+                final int chunkLength = Math.min(end - chunkStart, MAX_RECEIVE_SIZE);
+                final boolean isLastChunk = chunkStart + chunkLength == end;
+                CORE.startCall(DEVICE_WRITE)
+                        .putInt(LINK_ID)
+                        .putInt((int) timeoutMilliseconds) // io_timeout
+                        .putInt(0) // lock_timeout
+                        .putInt(isLastChunk && isSendEndEnabled ? FLAG_END : 0)
+                        .putInt(chunkLength);
+                buffer.limit(chunkStart + chunkLength);
+                CORE.call(buffer, deadline);
+                final int error = CORE.getInt(deadline);
+                final int size = CORE.getInt(deadline);
+                CORE.endReply(deadline);
+                buffer.position(chunkStart + Math.max(0, Math.min(size, chunkLength)));
+                if (error != ERROR_NONE) {
+                    return statusForDeviceError(error);
+                }
+            } while (buffer.position() < end);
+            return 0;
+        } catch (IOException ex) {
+            return statusAfterFailedCall(ex);
+        } finally {
+            returnCount[0] = buffer.position() - start;
+            buffer.limit(originalLimit);
+            buffer.position(start);
+        }
+    }
+
+    /**
+     * @see <a href="https://www.ni.com/docs/en-US/bundle/ni-visa/page/ni-visa/vireadstb.html">viReadSTB</a>
+     */
+    @Override
+    int readStatusByte(short[] statusByte) {
+        try {
+            final long deadline = replyDeadline();
+            putGenericParameters(CORE.startCall(DEVICE_READSTB));
+            CORE.call(null, deadline);
+            final int error = CORE.getInt(deadline);
+            final int stb = CORE.getInt(deadline);
+            CORE.endReply(deadline);
+            if (error != ERROR_NONE) {
+                return statusForDeviceError(error);
+            }
+            statusByte[0] = (short) (stb & 0xFF);
+            return 0;
+        } catch (IOException ex) {
+            return statusAfterFailedCall(ex);
+        }
+    }
+
+    /**
+     * Sends device_clear.
+     */
+    @Override
+    int clear() {
+        try {
+            final long deadline = replyDeadline();
+            putGenericParameters(CORE.startCall(DEVICE_CLEAR));
+            CORE.call(null, deadline);
+            final int error = CORE.getInt(deadline);
+            CORE.endReply(deadline);
+            return error == ERROR_NONE ? 0 : statusForDeviceError(error);
+        } catch (IOException ex) {
+            return statusAfterFailedCall(ex);
+        }
+    }
+
+    /**
+     * Device_GenericParms
+     */
+    private void putGenericParameters(ByteBuffer arguments) {
+        arguments.putInt(LINK_ID)
+                .putInt(0) // flags
+                .putInt(0) // lock_timeout
+                .putInt((int) timeoutMilliseconds); // io_timeout
+    }
+
+    /**
+     * Sends device_abort on the abort channel. The instrument then stops the operation in progress on the core channel,
+     * which replies with an abort error. That reply is skipped by the next call.
+     *
+     * @return a VISA status code
+     */
+    int abort() {
+        synchronized (ABORT) {
+            try {
+                final long deadline = TcpipConnection.deadline(SHORT_TIMEOUT_MILLISECONDS);
+                ABORT.startCall(DEVICE_ABORT).putInt(LINK_ID);
+                ABORT.call(null, deadline);
+                final int error = ABORT.getInt(deadline);
+                ABORT.endReply(deadline);
+                return error == ERROR_NONE ? 0 : statusForDeviceError(error);
+            } catch (IOException ex) {
+                return statusFor(ex);
+            }
+        }
+    }
+
+    /**
+     * If the reply didn't arrive in time, the instrument might still be busy with the call, so abort it.
+     */
+    private int statusAfterFailedCall(IOException ex) {
+        if (ex instanceof InterruptedByTimeoutException) {
+            abort();
+        }
+        return statusFor(ex);
+    }
+
+    @Override
+    int getAttribute(int attribute, ByteBuffer value) {
+        if (attribute == JVisaLibrary.VI_ATTR_TCPIP_DEVICE_NAME) {
+            putString(value, RESOURCE_NAME.DEVICE_NAME);
+            return 0;
+        }
+        return super.getAttribute(attribute, value);
+    }
+
+    @Override
+    int setAttribute(int attribute, long value) {
+        if (attribute == JVisaLibrary.VI_ATTR_TCPIP_DEVICE_NAME) {
+            return JVisaLibrary.VI_ERROR_ATTR_READONLY;
+        }
+        return super.setAttribute(attribute, value);
+    }
+
+    /**
+     * Sends destroy_link, then closes both channels.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            final long deadline = TcpipConnection.deadline(SHORT_TIMEOUT_MILLISECONDS);
+            CORE.startCall(DESTROY_LINK).putInt(LINK_ID);
+            CORE.call(null, deadline);
+            CORE.endReply(deadline);
+        } finally {
+            try {
+                ABORT.close();
+            } finally {
+                CORE.close();
+            }
+        }
+    }
+
+    /**
+     * Converts a VXI-11 Device_ErrorCode to a VISA status code.
+     */
+    private static int statusForDeviceError(int error) {
+        switch (error) {
+            case ERROR_IO_TIMEOUT:
+                return JVisaLibrary.VI_ERROR_TMO;
+            case ERROR_ABORT:
+                return JVisaLibrary.VI_ERROR_ABORT;
+            case ERROR_DEVICE_LOCKED:
+                return JVisaLibrary.VI_ERROR_RSRC_LOCKED;
+            case ERROR_NO_LOCK_HELD:
+                return JVisaLibrary.VI_ERROR_SESN_NLOCKED;
+            case ERROR_INVALID_LINK_IDENTIFIER:
+                return JVisaLibrary.VI_ERROR_CONN_LOST;
+            case ERROR_PARAMETER:
+                return JVisaLibrary.VI_ERROR_INV_PARAMETER;
+            case ERROR_OPERATION_NOT_SUPPORTED:
+                return JVisaLibrary.VI_ERROR_NSUP_OPER;
+            case ERROR_OUT_OF_RESOURCES:
+                return JVisaLibrary.VI_ERROR_ALLOC;
+            case ERROR_DEVICE_NOT_ACCESSIBLE:
+            case ERROR_INVALID_ADDRESS:
+                return JVisaLibrary.VI_ERROR_RSRC_NFOUND;
+            case ERROR_IO:
+            default:
+                return JVisaLibrary.VI_ERROR_IO;
+        }
+    }
+
+}
@@ -0,0 +1,8 @@
+/**
+ * VISA implementation for LAN instruments written in Java, which doesn't need the native shared library.
+ *
+ * @see <a href="https://www.ni.com/docs/en-US/bundle/ni-visa/page/ni-visa/tcpipsocketresource.html">TCPIP SOCKET Resource</a>
+ * @see <a href="https://www.ni.com/docs/en-US/bundle/ni-visa/page/ni-visa/tcpipinstrresource.html">TCPIP INSTR Resource</a>
+ * @see <a href="https://www.ni.com/docs/en-US/bundle/ni-visa/page/ni-visa/hislip.html">HiSLIP</a>
+ */
+package xyz.froud.jvisa.tcpip;
@@ -17,8 +17,13 @@ package xyz.froud.jvisa_example.abstraction;
 
 import xyz.froud.jvisa.JVisaException;
 import xyz.froud.jvisa.JVisaInstrument;
+import xyz.froud.jvisa.JVisaLibrary;
 import xyz.froud.jvisa.JVisaResourceManager;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
 /**
  * High-level abstraction around JVisaInstrument.
  * <p>
@@ -33,6 +38,67 @@ public abstract class AbstractInstrument {
     // Change this to private when you're done experimenting
     public final JVisaInstrument JVISA_INSTRUMENT;
 
+    /**
+     * Bits of the standard event status register which mean an error: query error, device-dependent error, execution
+     * error, and command error.
+     */
+    public static final int ESR_ERROR_BITS = 0b0011_1100;
+
+    /**
+     * How many errors to read from the error queue at most, in case an instrument never says "no error".
+     */
+    private static final int MAX_ERROR_COUNT = 32;
+
+    private boolean isStatusByteErrorCheckEnabled = true;
+    private boolean isEventStatusErrorCheckEnabled = false;
+
+    private ErrorCheckPolicy errorCheckPolicy = ErrorCheckPolicy.EVERY_COMMAND;
+    private int errorCheckInterval = 10;
+
+    /**
+     * Commands sent by set() or query() since the error state was last checked.
+     */
+    private final List<String> UNCHECKED_COMMANDS = new ArrayList<>();
+
+    /**
+     * How many batches are open, since they can be nested.
+     */
+    private int batchDepth = 0;
+
+    /**
+     * A group of commands whose errors are checked together when it's closed. Use it with try-with-resources:
+     * <pre>{@code
+     * try (AbstractInstrument.Batch ignored = instrument.beginBatch()) {
+     *     instrument.setVoltage(12);
+     *     instrument.setCurrent(0.75);
+     * }
+     * }</pre>
+     */
+    public final class Batch implements AutoCloseable {
+
+        private boolean isClosed = false;
+
+        private Batch() {
+        }
+
+        /**
+         * Checks the commands which weren't checked yet, if this is the outermost batch.
+         *
+         * @throws InstrumentException if checking for errors failed, or if a command caused an error
+         */
+        @Override
+        public void close() throws InstrumentException {
+            if (isClosed) {
+                return;
+            }
+            isClosed = true;
+            batchDepth--;
+            if (batchDepth == 0) {
+                checkPendingErrors();
+            }
+        }
+    }
+
     /**
      * Try to open an instrument from a VISA resource name.
      *
@@ -82,7 +148,7 @@ public abstract class AbstractInstrument {
      */
     protected void set(String command) throws InstrumentException {
         setWithoutCheckingErrorState(command);
-        queryErrorState();
+        afterCommand(command);
     }
 
     /**
@@ -127,7 +193,7 @@ public abstract class AbstractInstrument {
      */
     protected String query(String command) throws InstrumentException {
         final String response = queryWithoutCheckingErrorState(command);
-        queryErrorState();
+        afterCommand(command);
         return response;
     }
 
@@ -147,6 +213,165 @@ public abstract class AbstractInstrument {
 
     //////////////////////////////// error checking ////////////////////////////////
 
+    /**
+     * Sets when set() and query() check whether the instrument had an error. Commands which weren't checked yet are
+     * checked when the policy changes. Changing to {@link ErrorCheckPolicy#ESR_ERROR_BITS} reads "*ESR?" once, to
+     * clear bits which were set before.
+     *
+     * @param errorCheckPolicy the new policy
+     * @throws InstrumentException if checking for errors failed, or if a command caused an error
+     */
+    public void setErrorCheckPolicy(ErrorCheckPolicy errorCheckPolicy) throws InstrumentException {
+        checkPendingErrors();
+        if (errorCheckPolicy == ErrorCheckPolicy.ESR_ERROR_BITS && this.errorCheckPolicy != errorCheckPolicy) {
+            queryWithoutCheckingErrorState("*ESR?");
+        }
+        this.errorCheckPolicy = errorCheckPolicy;
+    }
+
+    public ErrorCheckPolicy getErrorCheckPolicy() {
+        return errorCheckPolicy;
+    }
+
+    /**
+     * @param errorCheckInterval how many commands to send between error checks with
+     * {@link ErrorCheckPolicy#EVERY_N_COMMANDS}
+     */
+    public void setErrorCheckInterval(int errorCheckInterval) {
+        if (errorCheckInterval < 1) {
+            throw new IllegalArgumentException("errorCheckInterval must be at least 1, got " + errorCheckInterval);
+        }
+        this.errorCheckInterval = errorCheckInterval;
+    }
+
+    /**
+     * Starts a batch of commands. With {@link ErrorCheckPolicy#END_OF_BATCH}, errors are checked once when the
+     * outermost batch is closed. With other policies, closing it checks the commands which weren't checked yet.
+     *
+     * @return the batch, which must be closed
+     */
+    public Batch beginBatch() {
+        batchDepth++;
+        return new Batch();
+    }
+
+    /**
+     * Checks the error state now if any command sent by set() or query() wasn't checked yet.
+     *
+     * @throws InstrumentException if checking for errors failed, or if a command caused an error
+     */
+    public void checkPendingErrors() throws InstrumentException {
+        if (UNCHECKED_COMMANDS.isEmpty()) {
+            return;
+        }
+        final List<String> commands = new ArrayList<>(UNCHECKED_COMMANDS);
+        UNCHECKED_COMMANDS.clear();
+        final int[] eventStatus = new int[1];
+        final List<String> errors = readErrors(true, eventStatus);
+        if (!errors.isEmpty()) {
+            throw new InstrumentException(describeErrors(errors, commands));
+        }
+        if ((eventStatus[0] & ESR_ERROR_BITS) != 0) {
+            throw new InstrumentException(describeEventStatus(eventStatus[0], commands));
+        }
+        if (!isStatusByteErrorCheckEnabled) {
+            // with the serial poll, readErrors() already sent "*OPC?"
+            checkOperationComplete();
+        }
+    }
+
+    /**
+     * Decides whether to check the error state after a command, depending on the error check policy.
+     */
+    private void afterCommand(String command) throws InstrumentException {
+        UNCHECKED_COMMANDS.add(command);
+        switch (errorCheckPolicy) {
+            case EVERY_COMMAND:
+                checkPendingErrors();
+                break;
+            case EVERY_N_COMMANDS:
+                if (UNCHECKED_COMMANDS.size() >= errorCheckInterval) {
+                    checkPendingErrors();
+                }
+                break;
+            case END_OF_BATCH:
+                if (batchDepth == 0) {
+                    checkPendingErrors();
+                }
+                break;
+            case ESR_ERROR_BITS:
+                UNCHECKED_COMMANDS.clear();
+                final int esr = readEventStatusRegister();
+                if ((esr & ESR_ERROR_BITS) != 0) {
+                    final List<String> errors = readErrorQueue();
+                    throw new InstrumentException(String.format("command \"%s\" set ESR to 0x%02X, errors %s",
+                            command, esr, errors));
+                }
+                break;
+        }
+    }
+
+    /**
+     * Reads and clears the standard event status register with "*ESR?".
+     * <p>
+     * The "*ESR?" command is a standard IEEE-488 (GPIB) command.
+     *
+     * @return the register value
+     * @throws InstrumentException if the register couldn't be read
+     */
+    protected int readEventStatusRegister() throws InstrumentException {
+        final String esrString = queryWithoutCheckingErrorState("*ESR?");
+        try {
+            return Integer.parseInt(esrString);
+        } catch (NumberFormatException ex) {
+            throw new InstrumentException("command \"*ESR?\" returned " + esrString, ex);
+        }
+    }
+
+    /**
+     * Reads errors with "system:error?" until the instrument says there are no more.
+     *
+     * @return the errors, oldest first, or an empty list if there were none
+     * @throws InstrumentException if an error couldn't be read
+     */
+    protected List<String> readErrorQueue() throws InstrumentException {
+        final List<String> errors = new ArrayList<>();
+        String error;
+        while (errors.size() < MAX_ERROR_COUNT && (error = readSystemError()) != null) {
+            errors.add(error);
+        }
+        return errors;
+    }
+
+    /**
+     * Blames errors on the last command whose header appears in the first error message. If no header appears, all the
+     * commands are listed.
+     */
+    private static String describeErrors(List<String> errors, List<String> commands) {
+        if (commands.size() == 1) {
+            return "command \"" + commands.get(0) + "\" caused " + errors;
+        }
+        final String firstError = errors.get(0).toUpperCase(Locale.ROOT);
+        for (int i = commands.size() - 1; i >= 0; i--) {
+            final String header = commands.get(i).trim().split("\\s+", 2)[0].toUpperCase(Locale.ROOT);
+            if (!header.isEmpty() && firstError.contains(header)) {
+                return "command \"" + commands.get(i) + "\" caused " + errors;
+            }
+        }
+        return "one of the commands " + commands + " caused " + errors;
+    }
+
+    /**
+     * For errors which only show in the event status register, because the error queue was empty.
+     */
+    private static String describeEventStatus(int eventStatus, List<String> commands) {
+        final String description = String.format("ESR 0x%02X, but the error queue is empty", eventStatus);
+        if (commands.size() == 1) {
+            return "command \"" + commands.get(0) + "\" set " + description;
+        }
+        return "one of the commands " + commands + " set " + description;
+    }
+
     /**
      * Checks SYSTEM:ERROR? and *OPC?
      *
@@ -154,27 +379,143 @@ public abstract class AbstractInstrument {
      */
     protected final void queryErrorState() throws InstrumentException {
         checkSystemError();
-        checkOperationComplete();
+        if (!isStatusByteErrorCheckEnabled) {
+            // with the serial poll, checkSystemError() already sent "*OPC?"
+            checkOperationComplete();
+        }
     }
 
     /**
-     * Queries whether the instrument for the most recent error message.
+     * Queries whether the instrument for the most recent error message, if a serial poll says there is an error.
      * <p>
      * Errors are stored in a FIFO queue in the hardware device.<br>
      * The SYSTem:ERRor? command remove the most recent error from the queue and returns it.<br>
      * There may be more errors in the device's queue after calling this method.
+     * <p>
+     * A serial poll isn't queued behind the commands which were sent before it, so "*OPC?" is sent first to wait until
+     * they were processed.
      *
      * @throws InstrumentException if the error couldn't be read
      */
     protected void checkSystemError() throws InstrumentException {
+        final int[] eventStatus = new int[1];
+        final List<String> errors = readErrors(false, eventStatus);
+        if (!errors.isEmpty()) {
+            throw new InstrumentException("command \"system:error?\" returned " + errors.get(0));
+        }
+        if ((eventStatus[0] & ESR_ERROR_BITS) != 0) {
+            throw new InstrumentException(String.format("ESR is 0x%02X, but the error queue is empty", eventStatus[0]));
+        }
+    }
+
+    /**
+     * Sets whether to check the status byte with a serial poll before reading "system:error?". The serial poll doesn't
+     * send a message, so when there's no error it's much faster than the query. It's enabled by default, and disabled
+     * automatically if the session doesn't support serial polls.
+     * <p>
+     * The serial poll is sent after "*OPC?", so the instrument has processed the commands before it. When there's no
+     * error, that's one query per check instead of two.
+     *
+     * @param isStatusByteErrorCheckEnabled false to always read "system:error?"
+     */
+    public void setStatusByteErrorCheckEnabled(boolean isStatusByteErrorCheckEnabled) {
+        this.isStatusByteErrorCheckEnabled = isStatusByteErrorCheckEnabled;
+    }
+
+    public boolean isStatusByteErrorCheckEnabled() {
+        return isStatusByteErrorCheckEnabled;
+    }
+
+    /**
+     * Sets whether the serial poll also looks at the ESB bit, for instruments which set the error bits of the event
+     * status register without setting the error queue bit. It's disabled by default.
+     * <p>
+     * Enabling it sends "*ESE" with ESR_ERROR_BITS, which replaces the event status enable mask the application may
+     * have set, for example to get a service request when "*OPC" completes. It then reads "*ESR?" once, to clear bits
+     * which were set before. Later, "*ESR?" is read whenever the ESB bit is set, which clears the register.
+     *
+     * @param isEventStatusErrorCheckEnabled true to send "*ESE" and check the ESB bit
+     * @throws InstrumentException if "*ESE" couldn't be sent or "*ESR?" couldn't be read
+     */
+    public void setEventStatusErrorCheckEnabled(boolean isEventStatusErrorCheckEnabled) throws InstrumentException {
+        if (isEventStatusErrorCheckEnabled && !this.isEventStatusErrorCheckEnabled) {
+            setWithoutCheckingErrorState("*ESE " + ESR_ERROR_BITS);
+            readEventStatusRegister();
+        }
+        this.isEventStatusErrorCheckEnabled = isEventStatusErrorCheckEnabled;
+    }
+
+    public boolean isEventStatusErrorCheckEnabled() {
+        return isEventStatusErrorCheckEnabled;
+    }
+
+    /**
+     * Reads the errors caused by the commands sent so far.
+     * <p>
+     * With the status byte error check, this sends "*OPC?", then reads the status byte, and only reads the error queue
+     * if the status byte shows an error. Otherwise it reads the error queue right away.
+     *
+     * @param isWholeQueueRead true to read every error, false to only read the oldest one
+     * @param eventStatus element 0 is set to the event status register if it was read, otherwise 0
+     * @return the errors, oldest first, or an empty list if there were none
+     * @throws InstrumentException if the status byte or an error couldn't be read
+     */
+    private List<String> readErrors(boolean isWholeQueueRead, int[] eventStatus) throws InstrumentException {
+        eventStatus[0] = 0;
+        if (isStatusByteErrorCheckEnabled) {
+            // A serial poll isn't queued behind the commands, so wait until they were processed.
+            checkOperationComplete();
+            final int statusByte = readStatusByte();
+            if (statusByte >= 0) {
+                if (isEventStatusErrorCheckEnabled && (statusByte & JVisaInstrument.STATUS_BYTE_ESB) != 0) {
+                    eventStatus[0] = readEventStatusRegister();
+                }
+                if ((statusByte & JVisaInstrument.STATUS_BYTE_ERROR_QUEUE) == 0 && (eventStatus[0] & ESR_ERROR_BITS) == 0) {
+                    return List.of();
+                }
+            }
+        }
+        if (isWholeQueueRead) {
+            return readErrorQueue();
+        }
+        final String error = readSystemError();
+        return error == null ? List.of() : List.of(error);
+    }
+
+    /**
+     * Reads the status byte with a serial poll.
+     *
+     * @return the status byte, or -1 if the session doesn't support serial polls
+     * @throws InstrumentException if the status byte couldn't be read
+     */
+    private int readStatusByte() throws InstrumentException {
+        try {
+            return JVISA_INSTRUMENT.readStatusByte();
+        } catch (JVisaException ex) {
+            if (ex.STATUS_CODE == JVisaLibrary.VI_ERROR_NSUP_OPER) {
+                isStatusByteErrorCheckEnabled = false;
+                return -1;
+            }
+            throw new InstrumentException(ex);
+        }
+    }
+
+    /**
+     * Removes the oldest error from the instrument's error queue.
+     *
+     * @return the error message, or null if the instrument says there is no error
+     * @throws InstrumentException if the error couldn't be read
+     */
+    protected String readSystemError() throws InstrumentException {
         final String errorMessage = queryWithoutCheckingErrorState("system:error?");
 
         // You might need to add variants of "no error" here, depending on what your instrument returns
         if (!errorMessage.equals("0, \"No error\"")
                 && !errorMessage.equals("0,\"No error\"")
                 && !errorMessage.equals("+0,\"NO ERROR\"")) {
-            throw new InstrumentException("command \"system:error?\" returned " + errorMessage);
+            return errorMessage;
         }
+        return null;
     }
 
     /**
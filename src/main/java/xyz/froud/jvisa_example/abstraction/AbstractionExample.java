@@ -62,6 +62,10 @@ public class AbstractionExample {
              */
             powerSupply.setVoltage(12);
             powerSupply.setCurrent(0.75);
+
+            // Check for errors once for both commands, instead of after each one.
+            powerSupply.setErrorCheckPolicy(ErrorCheckPolicy.END_OF_BATCH);
+            powerSupply.configure(12, 0.75);
             System.out.printf("Voltage: %.1f V\n", powerSupply.measureVoltage());
             System.out.printf("Current: %.1f A\n", powerSupply.measureCurrent());
             powerSupply.close();
@@ -0,0 +1,55 @@
+/**
+ * @license Copyright 2018-2020 Peter Froud
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package xyz.froud.jvisa_example.abstraction;
+
+/**
+ * When AbstractInstrument checks whether the instrument had an error.
+ * <p>
+ * Checking after every command is the safest, but it costs the "system:error?" and "*OPC?" round trips each time, which
+ * can take longer than the command itself. The other policies check less often. When several commands are checked at
+ * once, an error is blamed on the command whose header appears in the error message if there is one, like many
+ * instruments write in messages such as {@code -113,"Undefined header;SOUR:VOLTT"}. Otherwise the exception lists
+ * every command since the last check.
+ *
+ * @author Peter Froud
+ * @see AbstractInstrument#setErrorCheckPolicy(ErrorCheckPolicy)
+ */
+public enum ErrorCheckPolicy {
+
+    /**
+     * Checks "system:error?" and "*OPC?" after every command. This is the default.
+     */
+    EVERY_COMMAND,
+
+    /**
+     * Checks once every few commands, set with {@link AbstractInstrument#setErrorCheckInterval(int)}.
+     */
+    EVERY_N_COMMANDS,
+
+    /**
+     * Checks when the outermost {@link AbstractInstrument#beginBatch()} is closed. Commands which aren't in a batch are
+     * checked one at a time.
+     */
+    END_OF_BATCH,
+
+    /**
+     * Reads the standard event status register with "*ESR?" after every command, and only reads the error queue if
+     * one of the error bits is set. That's one round trip per command instead of two, and errors are always blamed on
+     * the right command.
+     */
+    ESR_ERROR_BITS
+
+}
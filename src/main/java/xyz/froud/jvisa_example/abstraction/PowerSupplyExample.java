@@ -72,6 +72,18 @@ public class PowerSupplyExample extends AbstractInstrument {
         set("source:current " + milliamps + "mA");
     }
 
+    /**
+     * Sets the voltage and current, checking for errors once at the end if the error check policy is
+     * {@link ErrorCheckPolicy#END_OF_BATCH}.
+     */
+    @SuppressWarnings("try") // the batch is only used to be closed
+    public void configure(int volts, double amps) throws InstrumentException {
+        try (Batch ignored = beginBatch()) {
+            setVoltage(volts);
+            setCurrent(amps);
+        }
+    }
+
     //////////////////////////// get ////////////////////////
     public double measureCurrent() throws InstrumentException {
         return Double.parseDouble(query("measure:current?"));
@@ -0,0 +1,228 @@
+/**
+ * @license Copyright 2018-2020 Peter Froud
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package xyz.froud.jvisa;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.FunctionDescriptor;
+import java.lang.foreign.Linker;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.SymbolLookup;
+import java.lang.foreign.ValueLayout;
+import java.lang.invoke.MethodHandle;
+import java.nio.ByteBuffer;
+
+import static java.lang.foreign.ValueLayout.ADDRESS;
+import static java.lang.foreign.ValueLayout.JAVA_INT;
+import static java.lang.foreign.ValueLayout.JAVA_LONG;
+
+/**
+ * Calls the native library with downcall handles from the Foreign Function &amp; Memory API for reads, writes, and
+ * attributes, and through the JVisaLibrary interface proxy for everything else.
+ * <p>
+ * Direct ByteBuffers are passed to the native library as-is, so reads land straight in native memory. Heap
+ * ByteBuffers are copied through a scratch segment owned by the calling thread, because the linker can't pass heap
+ * memory to a native function.
+ * <p>
+ * Errors and runtime exceptions from a downcall or a copy are thrown unchanged. MethodHandle.invokeExact() also
+ * declares Throwable, which a downcall doesn't throw, so that is wrapped in an AssertionError.
+ * <p>
+ * This class is only compiled by JDK 22 or newer, and it replaces the placeholder class with the same name in the
+ * multi-release jar.
+ *
+ * @author Peter Froud
+ * @see JVisaBinding#FOREIGN_FUNCTION
+ * @see <a href="https://openjdk.org/jeps/454">JEP 454: Foreign Function &amp; Memory API</a>
+ */
+final class JVisaForeignBackend extends JVisaInterfaceMappingBackend {
+
+    /**
+     * ViAttrState is ViUInt64 on 64-bit VISA implementations and ViUInt32 otherwise.
+     */
+    private static final boolean IS_ATTRIBUTE_STATE_64_BIT = ADDRESS.byteSize() == 8;
+
+    /**
+     * Scratch memory for each thread. The first four bytes receive the count from viRead() and viWrite(), the rest is
+     * used to copy heap buffers.
+     */
+    private static final ThreadLocal<Scratch> SCRATCH = ThreadLocal.withInitial(Scratch::new);
+
+    private final MethodHandle VI_CLOSE;
+    private final MethodHandle VI_SET_ATTRIBUTE;
+    private final MethodHandle VI_GET_ATTRIBUTE;
+    private final MethodHandle VI_READ;
+    private final MethodHandle VI_WRITE;
+    private final MethodHandle VI_CLEAR;
+
+    static boolean isAvailable() {
+        return true;
+    }
+
+    /**
+     * @param visaLibrary interface proxy for the calls which don't have a downcall handle
+     * @param nativeLibraryName VISA native library name, without the platform-specific prefix and extension
+     * @throws UnsatisfiedLinkError if the native shared library (.dll or .so or .dylib file) couldn't be loaded
+     */
+    JVisaForeignBackend(JVisaLibrary visaLibrary, String nativeLibraryName) throws UnsatisfiedLinkError {
+        super(visaLibrary);
+        final Linker linker = Linker.nativeLinker();
+        final SymbolLookup lookup;
+        try {
+            lookup = SymbolLookup.libraryLookup(System.mapLibraryName(nativeLibraryName), Arena.global());
+        } catch (IllegalArgumentException ex) {
+            final UnsatisfiedLinkError err = new UnsatisfiedLinkError(ex.getMessage());
+            err.initCause(ex);
+            throw err;
+        }
+
+        VI_CLOSE = downcall(linker, lookup, "viClose",
+                FunctionDescriptor.of(JAVA_INT, JAVA_INT));
+        VI_SET_ATTRIBUTE = downcall(linker, lookup, "viSetAttribute",
+                FunctionDescriptor.of(JAVA_INT, JAVA_INT, JAVA_INT, IS_ATTRIBUTE_STATE_64_BIT ? JAVA_LONG : JAVA_INT));
+        VI_GET_ATTRIBUTE = downcall(linker, lookup, "viGetAttribute",
+                FunctionDescriptor.of(JAVA_INT, JAVA_INT, JAVA_INT, ADDRESS));
+        VI_READ = downcall(linker, lookup, "viRead",
+                FunctionDescriptor.of(JAVA_INT, JAVA_INT, ADDRESS, JAVA_INT, ADDRESS));
+        VI_WRITE = downcall(linker, lookup, "viWrite",
+                FunctionDescriptor.of(JAVA_INT, JAVA_INT, ADDRESS, JAVA_INT, ADDRESS));
+        VI_CLEAR = downcall(linker, lookup, "viClear",
+                FunctionDescriptor.of(JAVA_INT, JAVA_INT));
+    }
+
+    @Override
+    public String getName() {
+        return "foreign_function";
+    }
+
+    private static MethodHandle downcall(Linker linker, SymbolLookup lookup, String functionName, FunctionDescriptor descriptor) {
+        final MemorySegment address = lookup.find(functionName).orElseThrow(
+                () -> new UnsatisfiedLinkError("can't find function " + functionName + " in the VISA library"));
+        return linker.downcallHandle(address, descriptor);
+    }
+
+    @Override
+    public int viClose(int vi) {
+        try {
+            return (int) VI_CLOSE.invokeExact(vi);
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable t) {
+            throw new AssertionError("downcall to viClose failed", t);
+        }
+    }
+
+    @Override
+    public int viSetAttribute(int vi, int attribute, long value) {
+        try {
+            if (IS_ATTRIBUTE_STATE_64_BIT) {
+                return (int) VI_SET_ATTRIBUTE.invokeExact(vi, attribute, value);
+            } else {
+                return (int) VI_SET_ATTRIBUTE.invokeExact(vi, attribute, (int) value);
+            }
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable t) {
+            throw new AssertionError("downcall to viSetAttribute failed", t);
+        }
+    }
+
+    @Override
+    public int viGetAttribute(int vi, int attribute, ByteBuffer value) {
+        try {
+            return (int) VI_GET_ATTRIBUTE.invokeExact(vi, attribute, MemorySegment.ofBuffer(value));
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable t) {
+            throw new AssertionError("downcall to viGetAttribute failed", t);
+        }
+    }
+
+    @Override
+    public int viRead(int vi, ByteBuffer buffer, int count, int[] returnCount) {
+        final Scratch scratch = SCRATCH.get();
+        final int status;
+        try {
+            if (buffer.isDirect()) {
+                status = (int) VI_READ.invokeExact(vi, MemorySegment.ofBuffer(buffer), count, scratch.RETURN_COUNT);
+            } else {
+                status = (int) VI_READ.invokeExact(vi, scratch.data(count), count, scratch.RETURN_COUNT);
+            }
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable t) {
+            throw new AssertionError("downcall to viRead failed", t);
+        }
+        final int readCount = scratch.RETURN_COUNT.get(JAVA_INT, 0);
+        if (!buffer.isDirect()) {
+            MemorySegment.ofBuffer(buffer).copyFrom(scratch.data(count).asSlice(0, readCount));
+        }
+        returnCount[0] = readCount;
+        return status;
+    }
+
+    @Override
+    public int viWrite(int vi, ByteBuffer buffer, int count, int[] returnCount) {
+        final Scratch scratch = SCRATCH.get();
+        final int status;
+        try {
+            if (buffer.isDirect()) {
+                status = (int) VI_WRITE.invokeExact(vi, MemorySegment.ofBuffer(buffer), count, scratch.RETURN_COUNT);
+            } else {
+                final MemorySegment data = scratch.data(count);
+                data.copyFrom(MemorySegment.ofBuffer(buffer).asSlice(0, count));
+                status = (int) VI_WRITE.invokeExact(vi, data, count, scratch.RETURN_COUNT);
+            }
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable t) {
+            throw new AssertionError("downcall to viWrite failed", t);
+        }
+        returnCount[0] = scratch.RETURN_COUNT.get(JAVA_INT, 0);
+        return status;
+    }
+
+    @Override
+    public int viClear(int vi) {
+        try {
+            return (int) VI_CLEAR.invokeExact(vi);
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable t) {
+            throw new AssertionError("downcall to viClear failed", t);
+        }
+    }
+
+    /**
+     * Native memory which belongs to one thread. It's allocated from an automatic arena, so it's freed when the thread
+     * is garbage collected.
+     */
+    private static final class Scratch {
+
+        private final Arena ARENA = Arena.ofAuto();
+        private final MemorySegment RETURN_COUNT = ARENA.allocate(JAVA_INT);
+        private MemorySegment data = MemorySegment.NULL;
+
+        /**
+         * @return a segment at least byteCount bytes long
+         */
+        private MemorySegment data(int byteCount) {
+            if (data.byteSize() < byteCount) {
+                data = ARENA.allocate(Math.max(byteCount, 2 * data.byteSize()));
+            }
+            return data;
+        }
+    }
+
+}
@@ -0,0 +1,228 @@
+/**
+ * @license Copyright 2018-2020 Peter Froud
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package xyz.froud.jvisa;
+
+import com.sun.jna.NativeLong;
+import com.sun.jna.Pointer;
+import org.junit.jupiter.api.Test;
+import xyz.froud.jvisa.eventhandling.JVisaEventCallback;
+import xyz.froud.jvisa.simulated.JVisaSimulatedBackend;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Tests JVisaInstrument.queryAsync() with a backend which does the simulated backend's reads and writes on another
+ * thread, and posts VI_EVENT_IO_COMPLETION events from there like the VISA library does.
+ *
+ * @author Peter Froud
+ */
+class JVisaAsyncIoTest {
+
+    private static final class AsyncSimulatedBackend implements JVisaBackend {
+
+        /**
+         * Event contexts are numbered from here, so they don't look like sessions of the simulated backend.
+         */
+        private static final int FIRST_EVENT_CONTEXT = 0x4000_0000;
+
+        private final JVisaSimulatedBackend SIMULATED;
+        private final ExecutorService VISA_THREAD = Executors.newSingleThreadExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "simulated VISA library");
+            thread.setDaemon(true);
+            return thread;
+        });
+        private final AtomicInteger NEXT_JOB_ID = new AtomicInteger(1);
+        private final AtomicInteger NEXT_EVENT_CONTEXT = new AtomicInteger(FIRST_EVENT_CONTEXT);
+
+        /**
+         * Job ID, status, and count of each event context.
+         */
+        private final Map<Integer, int[]> EVENTS = new ConcurrentHashMap<>();
+        private final Map<Integer, JVisaEventCallback> HANDLERS = new ConcurrentHashMap<>();
+
+        AsyncSimulatedBackend(JVisaSimulatedBackend simulated) {
+            SIMULATED = simulated;
+        }
+
+        @Override
+        public String getName() {
+            return "async simulated";
+        }
+
+        @Override
+        public int viOpenDefaultRM(int[] session) {
+            return SIMULATED.viOpenDefaultRM(session);
+        }
+
+        @Override
+        public int viOpen(int rmSession, String resourceName, int accessMode, int openTimeout, int[] session) {
+            return SIMULATED.viOpen(rmSession, resourceName, accessMode, openTimeout, session);
+        }
+
+        @Override
+        public int viFindRsrc(int rmSession, String expression, int[] findList, int[] returnCount, ByteBuffer description) {
+            return SIMULATED.viFindRsrc(rmSession, expression, findList, returnCount, description);
+        }
+
+        @Override
+        public int viFindNext(int findList, ByteBuffer description) {
+            return SIMULATED.viFindNext(findList, description);
+        }
+
+        @Override
+        public int viParseRsrcEx(int rmSession, String resourceName, short[] interfaceType, short[] interfaceNumber,
+                                 ByteBuffer resourceClass, ByteBuffer expandedUnaliasedName, ByteBuffer aliasIfExists) {
+            return SIMULATED.viParseRsrcEx(rmSession, resourceName, interfaceType, interfaceNumber, resourceClass,
+                    expandedUnaliasedName, aliasIfExists);
+        }
+
+        @Override
+        public int viStatusDesc(int vi, int status, ByteBuffer description) {
+            return SIMULATED.viStatusDesc(vi, status, description);
+        }
+
+        @Override
+        public int viClose(int vi) {
+            return SIMULATED.viClose(vi);
+        }
+
+        @Override
+        public int viSetAttribute(int vi, int attribute, long value) {
+            return SIMULATED.viSetAttribute(vi, attribute, value);
+        }
+
+        @Override
+        public int viGetAttribute(int vi, int attribute, ByteBuffer value) {
+            final int[] event = EVENTS.get(vi);
+            if (event == null) {
+                return SIMULATED.viGetAttribute(vi, attribute, value);
+            }
+            switch (attribute) {
+                case JVisaLibrary.VI_ATTR_JOB_ID:
+                    value.putInt(0, event[0]);
+                    return 0;
+                case JVisaLibrary.VI_ATTR_STATUS:
+                    value.putInt(0, event[1]);
+                    return 0;
+                case JVisaLibrary.VI_ATTR_RET_COUNT_32:
+                    value.putInt(0, event[2]);
+                    return 0;
+                default:
+                    return JVisaLibrary.VI_ERROR_NSUP_ATTR;
+            }
+        }
+
+        @Override
+        public int viRead(int vi, ByteBuffer buffer, int count, int[] returnCount) {
+            return SIMULATED.viRead(vi, buffer, count, returnCount);
+        }
+
+        @Override
+        public int viWrite(int vi, ByteBuffer buffer, int count, int[] returnCount) {
+            return SIMULATED.viWrite(vi, buffer, count, returnCount);
+        }
+
+        @Override
+        public int viClear(int vi) {
+            return SIMULATED.viClear(vi);
+        }
+
+        @Override
+        public int viReadAsync(int vi, ByteBuffer buffer, int count, int[] jobId) {
+            jobId[0] = NEXT_JOB_ID.getAndIncrement();
+            final int thisJobId = jobId[0];
+            VISA_THREAD.execute(() -> {
+                final int[] returnCount = new int[1];
+                final int status = SIMULATED.viRead(vi, buffer, count, returnCount);
+                postCompletion(vi, thisJobId, status, returnCount[0]);
+            });
+            return 0;
+        }
+
+        @Override
+        public int viWriteAsync(int vi, ByteBuffer buffer, int count, int[] jobId) {
+            jobId[0] = NEXT_JOB_ID.getAndIncrement();
+            final int thisJobId = jobId[0];
+            VISA_THREAD.execute(() -> {
+                final int[] returnCount = new int[1];
+                final int status = SIMULATED.viWrite(vi, buffer, count, returnCount);
+                postCompletion(vi, thisJobId, status, returnCount[0]);
+            });
+            return 0;
+        }
+
+        @Override
+        public int viTerminate(int vi, short degree, int jobId) {
+            return 0;
+        }
+
+        @Override
+        public int viInstallHandler(int vi, int eventType, JVisaEventCallback handler, Pointer userHandle) {
+            HANDLERS.put(vi, handler);
+            return 0;
+        }
+
+        @Override
+        public int viEnableEvent(int vi, int eventType, short mechanism, int context) {
+            return 0;
+        }
+
+        private void postCompletion(int vi, int jobId, int status, int count) {
+            final int eventContext = NEXT_EVENT_CONTEXT.getAndIncrement();
+            EVENTS.put(eventContext, new int[]{jobId, status, count});
+            HANDLERS.get(vi).invoke(new NativeLong(vi), new NativeLong(JVisaLibrary.VI_EVENT_IO_COMPLETION),
+                    new NativeLong(eventContext), Pointer.NULL);
+            EVENTS.remove(eventContext);
+        }
+    }
+
+    @Test
+    void queryAsyncTrimsResponse() throws Exception {
+        final JVisaSimulatedBackend simulated = new JVisaSimulatedBackend();
+        simulated.getInstrument(JVisaSimulatedBackend.DEFAULT_RESOURCE_NAME).setResponse("MEAS?", "  +1.25E+00 \r");
+
+        try (JVisaResourceManager resourceManager = new JVisaResourceManager(new AsyncSimulatedBackend(simulated));
+             JVisaInstrument instrument = resourceManager.openInstrument(JVisaSimulatedBackend.DEFAULT_RESOURCE_NAME)) {
+            assertEquals("+1.25E+00", instrument.queryAsync("MEAS?").get(10, TimeUnit.SECONDS));
+        }
+    }
+
+    @Test
+    void queryAsyncReadsLongResponseInSeveralReads() throws Exception {
+        final StringBuilder longResponse = new StringBuilder(" ");
+        for (int i = 0; i < 10_000; i++) {
+            longResponse.append((char) ('a' + i % 26));
+        }
+        final JVisaSimulatedBackend simulated = new JVisaSimulatedBackend();
+        simulated.getInstrument(JVisaSimulatedBackend.DEFAULT_RESOURCE_NAME).setResponse("CURV?", longResponse + " ");
+
+        try (JVisaResourceManager resourceManager = new JVisaResourceManager(new AsyncSimulatedBackend(simulated));
+             JVisaInstrument instrument = resourceManager.openInstrument(JVisaSimulatedBackend.DEFAULT_RESOURCE_NAME)) {
+            assertEquals(longResponse.toString().trim(), instrument.queryAsync("CURV?").get(10, TimeUnit.SECONDS));
+            // The read size cache learned the size, so this one is a single read.
+            assertEquals(longResponse.toString().trim(), instrument.queryAsync("CURV?").get(10, TimeUnit.SECONDS));
+        }
+    }
+
+}
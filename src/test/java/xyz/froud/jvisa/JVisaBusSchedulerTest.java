@@ -0,0 +1,67 @@
+/**
+ * @license Copyright 2018-2020 Peter Froud
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package xyz.froud.jvisa;
+
+import org.junit.jupiter.api.Test;
+import xyz.froud.jvisa.simulated.JVisaSimulatedBackend;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests JVisaBusScheduler with the simulated backend.
+ *
+ * @author Peter Froud
+ */
+class JVisaBusSchedulerTest {
+
+    @Test
+    void cancelledTaskIsRemovedFromTheQueue() throws Exception {
+        final JVisaSimulatedBackend backend = new JVisaSimulatedBackend();
+        final String resourceName = "GPIB0::5::INSTR";
+        backend.addInstrument(resourceName);
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+
+        try (JVisaResourceManager resourceManager = new JVisaResourceManager(backend);
+             JVisaBusScheduler scheduler = new JVisaBusScheduler(resourceManager, 2)) {
+            final CompletableFuture<String> running = scheduler.submit(resourceName, () -> {
+                started.countDown();
+                release.await();
+                return "first";
+            });
+            assertTrue(started.await(10, TimeUnit.SECONDS));
+
+            // GPIB runs one task at a time, so these wait for the first one.
+            final CompletableFuture<String> cancelled = scheduler.submit(resourceName, () -> "cancelled");
+            final CompletableFuture<String> queued = scheduler.submit(resourceName, () -> "queued");
+            assertEquals(2, scheduler.getQueuedCount());
+
+            assertTrue(cancelled.cancel(false));
+            assertEquals(1, scheduler.getQueuedCount());
+
+            release.countDown();
+            assertEquals("first", running.get(10, TimeUnit.SECONDS));
+            assertEquals("queued", queued.get(10, TimeUnit.SECONDS));
+            assertEquals(0, scheduler.getQueuedCount());
+        }
+    }
+
+}
@@ -0,0 +1,58 @@
+/**
+ * @license Copyright 2018-2020 Peter Froud
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package xyz.froud.jvisa;
+
+import org.junit.jupiter.api.Test;
+import xyz.froud.jvisa.simulated.JVisaSimulatedBackend;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests JVisaResourceManager.runOnEach() with the simulated backend.
+ *
+ * @author Peter Froud
+ */
+class JVisaFanOutTest {
+
+    @Test
+    void errorInOperationIsReportedInItsResult() throws Exception {
+        final JVisaSimulatedBackend backend = new JVisaSimulatedBackend();
+        final String failingResourceName = "TCPIP0::192.168.1.51::INSTR";
+        backend.addInstrument(failingResourceName);
+        final String[] resourceNames = {JVisaSimulatedBackend.DEFAULT_RESOURCE_NAME, failingResourceName};
+        final StackOverflowError error = new StackOverflowError();
+
+        try (JVisaResourceManager resourceManager = new JVisaResourceManager(backend)) {
+            final List<JVisaFanOutResult<String>> results = resourceManager.runOnEach(resourceNames, instrument -> {
+                if (instrument.RESOURCE_NAME.equals(failingResourceName)) {
+                    throw error;
+                }
+                return instrument.RESOURCE_NAME;
+            }, 2, 1000, null);
+
+            assertTrue(results.get(0).isSuccess());
+            assertEquals(JVisaSimulatedBackend.DEFAULT_RESOURCE_NAME, results.get(0).VALUE);
+            assertFalse(results.get(1).isSuccess());
+            assertEquals(failingResourceName, results.get(1).RESOURCE_NAME);
+            assertEquals(error, results.get(1).EXCEPTION.getCause());
+        }
+    }
+
+}
@@ -0,0 +1,68 @@
+/**
+ * @license Copyright 2018-2020 Peter Froud
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package xyz.froud.jvisa;
+
+import org.junit.jupiter.api.Test;
+import xyz.froud.jvisa.simulated.JVisaSimulatedBackend;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Tests JVisaInstrumentActor with the simulated backend.
+ *
+ * @author Peter Froud
+ */
+class JVisaInstrumentActorTest {
+
+    private static JVisaInstrumentActor openActor() throws JVisaException {
+        final JVisaSimulatedBackend backend = new JVisaSimulatedBackend();
+        backend.getInstrument(JVisaSimulatedBackend.DEFAULT_RESOURCE_NAME).setResponse("COUNT?", "1");
+        final JVisaInstrument instrument = new JVisaResourceManager(backend).openInstrument(JVisaSimulatedBackend.DEFAULT_RESOURCE_NAME);
+        instrument.setWriteTerminator("\n");
+        return new JVisaInstrumentActor(instrument);
+    }
+
+    @Test
+    void closeFromOperationClosesAfterQueuedOperations() throws Exception {
+        final JVisaInstrumentActor actor = openActor();
+        final CountDownLatch latch = new CountDownLatch(1);
+        final CompletableFuture<Void> closing = actor.submit(instrument -> {
+            try {
+                latch.await();
+            } catch (InterruptedException ex) {
+                throw new JVisaException("interrupted", ex);
+            }
+            actor.close();
+            return null;
+        });
+        final CompletableFuture<String> queued = actor.queryString("COUNT?");
+        latch.countDown();
+        closing.get();
+        assertEquals("1", queued.get());
+
+        actor.close();
+        // Closing again doesn't close the instrument again.
+        actor.close();
+        final ExecutionException ex = assertThrows(ExecutionException.class, () -> actor.queryString("COUNT?").get());
+        assertEquals(JVisaException.class, ex.getCause().getClass());
+    }
+
+}
@@ -0,0 +1,49 @@
+/**
+ * @license Copyright 2018-2020 Peter Froud
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package xyz.froud.jvisa.simulated;
+
+import org.junit.jupiter.api.Test;
+import xyz.froud.jvisa.JVisaLibrary;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+
+/**
+ * Tests JVisaSimulatedBackend through its JVisaBackend methods.
+ *
+ * @author Peter Froud
+ */
+class JVisaSimulatedBackendTest {
+
+    @Test
+    void closedHandleIsNotReused() {
+        final JVisaSimulatedBackend backend = new JVisaSimulatedBackend();
+        final int[] session = new int[1];
+        assertEquals(0, backend.viOpenDefaultRM(session));
+        final int resourceManagerSession = session[0];
+        assertEquals(0, backend.viOpen(resourceManagerSession, JVisaSimulatedBackend.DEFAULT_RESOURCE_NAME, 0, 0, session));
+        final int closedSession = session[0];
+        assertEquals(0, backend.viClose(closedSession));
+
+        assertEquals(0, backend.viOpen(resourceManagerSession, JVisaSimulatedBackend.DEFAULT_RESOURCE_NAME, 0, 0, session));
+        final int openSession = session[0];
+        assertNotEquals(closedSession, openSession);
+        assertEquals(JVisaLibrary.VI_ERROR_INV_OBJECT, backend.viClose(closedSession));
+        assertEquals(0, backend.viClose(openSession));
+        assertEquals(0, backend.viClose(resourceManagerSession));
+    }
+
+}
@@ -0,0 +1,138 @@
+/**
+ * @license Copyright 2018-2020 Peter Froud
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package xyz.froud.jvisa.tcpip;
+
+import org.junit.jupiter.api.Test;
+import xyz.froud.jvisa.JVisaException;
+import xyz.froud.jvisa.JVisaInstrument;
+import xyz.froud.jvisa.JVisaLibrary;
+import xyz.froud.jvisa.JVisaResourceManager;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests HislipSession against {@link HislipStandIn}.
+ *
+ * @author Peter Froud
+ */
+class HislipSessionTest {
+
+    private static byte[] answer(String command) {
+        return ("ANS " + command + "\n").getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static void write(TcpipSession session, String command) {
+        final byte[] bytes = command.getBytes(StandardCharsets.US_ASCII);
+        final int[] returnCount = new int[1];
+        assertEquals(0, session.write(ByteBuffer.wrap(bytes), bytes.length, returnCount));
+    }
+
+    @Test
+    void overlappedQueriesWithOutOfOrderResponses() throws Exception {
+        try (HislipStandIn standIn = new HislipStandIn(HislipSessionTest::answer, 50, 1024);
+             HislipSession session = standIn.openSession()) {
+            final ByteBuffer[] commands = new ByteBuffer[8];
+            for (int i = 0; i < commands.length; i++) {
+                commands[i] = ByteBuffer.wrap(("MEAS" + i + "?\n").getBytes(StandardCharsets.US_ASCII));
+            }
+            final byte[][] responses = new byte[commands.length][];
+            assertEquals(0, session.queryOverlapped(commands, 4, responses));
+            for (int i = 0; i < commands.length; i++) {
+                assertEquals("ANS MEAS" + i + "?\n", new String(responses[i], StandardCharsets.US_ASCII));
+            }
+            assertTrue(standIn.wasOutOfOrder());
+        }
+    }
+
+    @Test
+    void dataEndAcrossReads() throws Exception {
+        final byte[] response = new byte[1000];
+        for (int i = 0; i < response.length; i++) {
+            response[i] = (byte) i;
+        }
+        // Two Data messages and a DataEnd message, each bigger than one read.
+        try (HislipStandIn standIn = new HislipStandIn(command -> response, 0, 300);
+             HislipSession session = standIn.openSession()) {
+            write(session, "DATA?\n");
+            final ByteArrayOutputStream received = new ByteArrayOutputStream();
+            final ByteBuffer buffer = ByteBuffer.allocate(128);
+            final int[] returnCount = new int[1];
+            int status;
+            do {
+                buffer.clear();
+                status = session.read(buffer, buffer.capacity(), returnCount);
+                received.write(buffer.array(), 0, returnCount[0]);
+            } while (status == JVisaLibrary.VI_SUCCESS_MAX_CNT);
+            assertEquals(0, status);
+            assertArrayEquals(response, received.toByteArray());
+        }
+    }
+
+    @Test
+    void terminationCharacterInTheMiddleOfDataEnd() throws Exception {
+        try (HislipStandIn standIn = new HislipStandIn(command -> "1\n2\n".getBytes(StandardCharsets.US_ASCII), 0, 1024);
+             HislipSession session = standIn.openSession()) {
+            assertEquals(0, session.setAttribute(JVisaLibrary.VI_ATTR_TERMCHAR_EN, TcpipSession.VI_TRUE));
+            write(session, "LIST?\n");
+            final ByteBuffer buffer = ByteBuffer.allocate(64);
+            final int[] returnCount = new int[1];
+            assertEquals(JVisaLibrary.VI_SUCCESS_TERM_CHAR, session.read(buffer, buffer.capacity(), returnCount));
+            assertEquals("1\n", new String(buffer.array(), 0, returnCount[0], StandardCharsets.US_ASCII));
+            assertEquals(0, session.read(buffer, buffer.capacity(), returnCount));
+            assertEquals("2\n", new String(buffer.array(), 0, returnCount[0], StandardCharsets.US_ASCII));
+        }
+    }
+
+    @Test
+    void queryPipelinedWithLatency() throws Exception {
+        try (HislipStandIn standIn = new HislipStandIn(HislipSessionTest::answer, 20, 1024);
+             JVisaResourceManager resourceManager = new JVisaResourceManager(new JVisaTcpipBackend());
+             JVisaInstrument instrument = resourceManager.openInstrument(standIn.getResourceName())) {
+            instrument.setWriteTerminator("\n");
+            final String[] commands = new String[10];
+            for (int i = 0; i < commands.length; i++) {
+                commands[i] = "VOLT" + i + "?";
+            }
+            final String[] responses = instrument.queryPipelined(commands, 3);
+            for (int i = 0; i < commands.length; i++) {
+                assertEquals("ANS " + commands[i], responses[i]);
+            }
+            assertThrows(IllegalArgumentException.class, () -> instrument.queryPipelined(commands, 0));
+        }
+    }
+
+    @Test
+    void queryPipelinedClearsAfterTimeout() throws Exception {
+        try (HislipStandIn standIn = new HislipStandIn(
+                command -> command.equals("NOREPLY?") ? null : answer(command), 20, 1024);
+             JVisaResourceManager resourceManager = new JVisaResourceManager(new JVisaTcpipBackend());
+             JVisaInstrument instrument = resourceManager.openInstrument(standIn.getResourceName())) {
+            instrument.setWriteTerminator("\n");
+            instrument.setTimeout(200);
+            assertThrows(JVisaException.class, () -> instrument.queryPipelined(new String[]{"A?", "NOREPLY?", "B?"}, 3));
+            assertEquals(1, standIn.getClearCount());
+            assertEquals("ANS C?", instrument.queryString("C?"));
+        }
+    }
+
+}
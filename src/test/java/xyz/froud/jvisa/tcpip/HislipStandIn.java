@@ -0,0 +1,312 @@
+/**
+ * @license Copyright 2018-2020 Peter Froud
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package xyz.froud.jvisa.tcpip;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * A HiSLIP instrument in overlapped mode on a loopback TCP port.
+ * <p>
+ * Each response is sent LATENCY_MILLISECONDS after its query arrived, like an instrument across a slow network. If
+ * several responses are due by then, they're sent in reverse order, so overlapped queries get out-of-order responses.
+ * Responses are split into Data messages of DATA_MESSAGE_SIZE bytes and a DataEnd message, and every message is
+ * written in two pieces, so a message can arrive in several TCP segments.
+ *
+ * @author Peter Froud
+ * @see <a href="https://www.ivifoundation.org/downloads/Protocol%20Specifications/IVI-6.1_HiSLIP-2.0-2020-04-23.pdf">IVI-6.1:
+ * High-Speed LAN Instrument Protocol (HiSLIP)</a>
+ */
+final class HislipStandIn implements AutoCloseable {
+
+    private static final int INITIALIZE = 0;
+    private static final int INITIALIZE_RESPONSE = 1;
+    private static final int DATA = 6;
+    private static final int DATA_END = 7;
+    private static final int DEVICE_CLEAR_COMPLETE = 8;
+    private static final int DEVICE_CLEAR_ACKNOWLEDGE = 9;
+    private static final int ASYNC_MAXIMUM_MESSAGE_SIZE = 15;
+    private static final int ASYNC_MAXIMUM_MESSAGE_SIZE_RESPONSE = 16;
+    private static final int ASYNC_INITIALIZE = 17;
+    private static final int ASYNC_INITIALIZE_RESPONSE = 18;
+    private static final int ASYNC_DEVICE_CLEAR = 19;
+    private static final int ASYNC_STATUS_QUERY = 21;
+    private static final int ASYNC_STATUS_RESPONSE = 22;
+    private static final int ASYNC_DEVICE_CLEAR_ACKNOWLEDGE = 23;
+
+    private static final int OVERLAP_MODE = 0x01;
+
+    private static final class Message {
+        int type;
+        int controlCode;
+        int parameter;
+        byte[] payload;
+    }
+
+    private static final class PendingResponse {
+        final long DUE_NANOS;
+        final int MESSAGE_ID;
+        final byte[] RESPONSE;
+
+        PendingResponse(long dueNanos, int messageId, byte[] response) {
+            DUE_NANOS = dueNanos;
+            MESSAGE_ID = messageId;
+            RESPONSE = response;
+        }
+    }
+
+    private final ServerSocket SERVER_SOCKET;
+    private final List<Socket> CONNECTIONS = new CopyOnWriteArrayList<>();
+
+    private final Function<String, byte[]> RESPONDER;
+    private final long LATENCY_MILLISECONDS;
+    private final int DATA_MESSAGE_SIZE;
+
+    private final AtomicInteger CLEAR_COUNT = new AtomicInteger();
+
+    private int sessionCount = 0;
+    private volatile boolean wasOutOfOrder = false;
+
+    /**
+     * @param responder returns the response to a command, or null if it's not a query
+     * @param latencyMilliseconds how long after a query its response is sent
+     * @param dataMessageSize the biggest payload of a Data message. The rest of a response goes in a DataEnd message.
+     */
+    HislipStandIn(Function<String, byte[]> responder, long latencyMilliseconds, int dataMessageSize) throws IOException {
+        RESPONDER = responder;
+        LATENCY_MILLISECONDS = latencyMilliseconds;
+        DATA_MESSAGE_SIZE = dataMessageSize;
+        SERVER_SOCKET = new ServerSocket(0, 8, InetAddress.getLoopbackAddress());
+        final Thread acceptThread = new Thread(() -> {
+            try {
+                while (true) {
+                    final Socket socket = SERVER_SOCKET.accept();
+                    socket.setTcpNoDelay(true);
+                    CONNECTIONS.add(socket);
+                    final Thread connectionThread = new Thread(() -> serve(socket), "HislipStandIn connection");
+                    connectionThread.setDaemon(true);
+                    connectionThread.start();
+                }
+            } catch (IOException ex) {
+                // closed
+            }
+        }, "HislipStandIn");
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+    }
+
+    String getResourceName() {
+        return "TCPIP0::127.0.0.1::hislip0," + SERVER_SOCKET.getLocalPort() + "::INSTR";
+    }
+
+    HislipSession openSession() throws IOException {
+        final int[] status = new int[1];
+        final HislipSession session = HislipSession.open(0, TcpipResourceName.parse(getResourceName()), 2000, status);
+        if (session == null) {
+            throw new IOException("couldn't open the HiSLIP stand-in, status " + status[0]);
+        }
+        return session;
+    }
+
+    /**
+     * @return true if responses were ever sent in a different order than their queries
+     */
+    boolean wasOutOfOrder() {
+        return wasOutOfOrder;
+    }
+
+    /**
+     * @return how many device clears were done
+     */
+    int getClearCount() {
+        return CLEAR_COUNT.get();
+    }
+
+    private void serve(Socket socket) {
+        try (socket) {
+            final DataInputStream input = new DataInputStream(socket.getInputStream());
+            final OutputStream output = socket.getOutputStream();
+            final Message message = readMessage(input);
+            if (message.type == INITIALIZE) {
+                final int sessionId;
+                synchronized (this) {
+                    sessionId = ++sessionCount;
+                }
+                writeMessage(output, INITIALIZE_RESPONSE, OVERLAP_MODE, (0x0100 << 16) | sessionId, new byte[0]);
+                serveSynchronousChannel(input, output);
+            } else if (message.type == ASYNC_INITIALIZE) {
+                writeMessage(output, ASYNC_INITIALIZE_RESPONSE, 0, 0, new byte[0]);
+                serveAsynchronousChannel(input, output);
+            }
+        } catch (IOException | InterruptedException ex) {
+            // closed
+        }
+    }
+
+    private void serveSynchronousChannel(DataInputStream input, OutputStream output) throws IOException, InterruptedException {
+        final List<PendingResponse> pendingResponses = new ArrayList<>();
+        final Thread sender = new Thread(() -> sendResponses(output, pendingResponses), "HislipStandIn sender");
+        sender.setDaemon(true);
+        sender.start();
+        try {
+            final ByteArrayOutputStream command = new ByteArrayOutputStream();
+            while (true) {
+                final Message message = readMessage(input);
+                if (message.type == DEVICE_CLEAR_COMPLETE) {
+                    synchronized (pendingResponses) {
+                        pendingResponses.clear();
+                    }
+                    command.reset();
+                    CLEAR_COUNT.incrementAndGet();
+                    synchronized (output) {
+                        writeMessage(output, DEVICE_CLEAR_ACKNOWLEDGE, message.controlCode & OVERLAP_MODE, 0, new byte[0]);
+                    }
+                } else if (message.type == DATA || message.type == DATA_END) {
+                    command.write(message.payload);
+                    if (message.type == DATA_END) {
+                        final byte[] response = RESPONDER.apply(command.toString(StandardCharsets.US_ASCII).trim());
+                        command.reset();
+                        if (response != null) {
+                            synchronized (pendingResponses) {
+                                pendingResponses.add(new PendingResponse(
+                                        System.nanoTime() + LATENCY_MILLISECONDS * 1_000_000, message.parameter, response));
+                                pendingResponses.notifyAll();
+                            }
+                        }
+                    }
+                }
+            }
+        } finally {
+            sender.interrupt();
+        }
+    }
+
+    /**
+     * Sends every response which is due, newest first.
+     */
+    private void sendResponses(OutputStream output, List<PendingResponse> pendingResponses) {
+        try {
+            while (true) {
+                final List<PendingResponse> dueResponses;
+                synchronized (pendingResponses) {
+                    while (pendingResponses.isEmpty()) {
+                        pendingResponses.wait();
+                    }
+                    final long waitNanos = pendingResponses.get(0).DUE_NANOS - System.nanoTime();
+                    if (waitNanos > 0) {
+                        pendingResponses.wait(Math.max(1, waitNanos / 1_000_000));
+                        continue;
+                    }
+                    dueResponses = new ArrayList<>(pendingResponses);
+                    pendingResponses.clear();
+                }
+                if (dueResponses.size() > 1) {
+                    Collections.reverse(dueResponses);
+                    wasOutOfOrder = true;
+                }
+                synchronized (output) {
+                    for (PendingResponse pendingResponse : dueResponses) {
+                        final byte[] response = pendingResponse.RESPONSE;
+                        int offset = 0;
+                        while (response.length - offset > DATA_MESSAGE_SIZE) {
+                            writeMessage(output, DATA, 0, pendingResponse.MESSAGE_ID,
+                                    Arrays.copyOfRange(response, offset, offset + DATA_MESSAGE_SIZE));
+                            offset += DATA_MESSAGE_SIZE;
+                        }
+                        writeMessage(output, DATA_END, 0, pendingResponse.MESSAGE_ID,
+                                Arrays.copyOfRange(response, offset, response.length));
+                    }
+                }
+            }
+        } catch (IOException | InterruptedException ex) {
+            // closed
+        }
+    }
+
+    private void serveAsynchronousChannel(DataInputStream input, OutputStream output) throws IOException {
+        while (true) {
+            final Message message = readMessage(input);
+            switch (message.type) {
+                case ASYNC_MAXIMUM_MESSAGE_SIZE:
+                    writeMessage(output, ASYNC_MAXIMUM_MESSAGE_SIZE_RESPONSE, 0, 0,
+                            ByteBuffer.allocate(8).putLong(1024 * 1024).array());
+                    break;
+                case ASYNC_STATUS_QUERY:
+                    writeMessage(output, ASYNC_STATUS_RESPONSE, 0, 0, new byte[0]);
+                    break;
+                case ASYNC_DEVICE_CLEAR:
+                    writeMessage(output, ASYNC_DEVICE_CLEAR_ACKNOWLEDGE, OVERLAP_MODE, 0, new byte[0]);
+                    break;
+                default:
+                    // not used by the tests
+            }
+        }
+    }
+
+    private static Message readMessage(DataInputStream input) throws IOException {
+        final Message message = new Message();
+        if (input.readShort() != 0x4853) {
+            throw new IOException("not a HiSLIP message");
+        }
+        message.type = input.readUnsignedByte();
+        message.controlCode = input.readUnsignedByte();
+        message.parameter = input.readInt();
+        message.payload = new byte[(int) input.readLong()];
+        input.readFully(message.payload);
+        return message;
+    }
+
+    /**
+     * Writes the header and the first byte in one piece and the rest in another.
+     */
+    private static void writeMessage(OutputStream output, int type, int controlCode, int parameter, byte[] payload) throws IOException {
+        final ByteBuffer message = ByteBuffer.allocate(16 + payload.length);
+        message.putShort((short) 0x4853)
+                .put((byte) type)
+                .put((byte) controlCode)
+                .putInt(parameter)
+                .putLong(payload.length)
+                .put(payload);
+        final int splitAt = Math.min(17, message.capacity());
+        output.write(message.array(), 0, splitAt);
+        output.flush();
+        output.write(message.array(), splitAt, message.capacity() - splitAt);
+        output.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        SERVER_SOCKET.close();
+        for (Socket socket : CONNECTIONS) {
+            socket.close();
+        }
+    }
+
+}
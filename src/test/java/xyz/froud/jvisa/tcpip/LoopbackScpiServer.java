@@ -0,0 +1,112 @@
+/**
+ * @license Copyright 2018-2020 Peter Froud
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package xyz.froud.jvisa.tcpip;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Function;
+
+/**
+ * A SCPI instrument on a loopback TCP port, for SOCKET resources. Commands end with a line feed. Responses don't end
+ * with END, because a raw TCP connection doesn't have it, and the connection stays open.
+ *
+ * @author Peter Froud
+ */
+final class LoopbackScpiServer implements AutoCloseable {
+
+    private final ServerSocket SERVER_SOCKET;
+    private final Function<String, byte[]> RESPONDER;
+    private final List<Socket> CONNECTIONS = new CopyOnWriteArrayList<>();
+
+    /**
+     * Responses are written in pieces of this size, so they arrive in several TCP segments.
+     */
+    private final int SEGMENT_SIZE;
+
+    /**
+     * @param responder returns the response to a command, without its line feed, or null if it's not a query
+     * @param segmentSize responses are written in pieces of this size
+     */
+    LoopbackScpiServer(Function<String, byte[]> responder, int segmentSize) throws IOException {
+        SERVER_SOCKET = new ServerSocket(0, 8, InetAddress.getLoopbackAddress());
+        RESPONDER = responder;
+        SEGMENT_SIZE = segmentSize;
+        final Thread acceptThread = new Thread(this::acceptConnections, "LoopbackScpiServer");
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+    }
+
+    String getResourceName() {
+        return "TCPIP0::127.0.0.1::" + SERVER_SOCKET.getLocalPort() + "::SOCKET";
+    }
+
+    private void acceptConnections() {
+        try {
+            while (true) {
+                final Socket socket = SERVER_SOCKET.accept();
+                socket.setTcpNoDelay(true);
+                CONNECTIONS.add(socket);
+                final Thread connectionThread = new Thread(() -> serve(socket), "LoopbackScpiServer connection");
+                connectionThread.setDaemon(true);
+                connectionThread.start();
+            }
+        } catch (IOException ex) {
+            // closed
+        }
+    }
+
+    private void serve(Socket socket) {
+        try (socket) {
+            final InputStream input = socket.getInputStream();
+            final OutputStream output = socket.getOutputStream();
+            final ByteArrayOutputStream line = new ByteArrayOutputStream();
+            int b;
+            while ((b = input.read()) >= 0) {
+                if (b != '\n') {
+                    line.write(b);
+                    continue;
+                }
+                final byte[] response = RESPONDER.apply(line.toString(StandardCharsets.US_ASCII).trim());
+                line.reset();
+                if (response != null) {
+                    for (int offset = 0; offset < response.length; offset += SEGMENT_SIZE) {
+                        output.write(response, offset, Math.min(SEGMENT_SIZE, response.length - offset));
+                        output.flush();
+                    }
+                }
+            }
+        } catch (IOException ex) {
+            // closed
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        SERVER_SOCKET.close();
+        for (Socket socket : CONNECTIONS) {
+            socket.close();
+        }
+    }
+
+}
@@ -0,0 +1,135 @@
+/**
+ * @license Copyright 2018-2020 Peter Froud
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package xyz.froud.jvisa.tcpip;
+
+import org.junit.jupiter.api.Test;
+import xyz.froud.jvisa.JVisaBinaryBlockConsumer;
+import xyz.froud.jvisa.JVisaInstrument;
+import xyz.froud.jvisa.JVisaLibrary;
+import xyz.froud.jvisa.JVisaResourceManager;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+
+/**
+ * Tests SocketSession against {@link LoopbackScpiServer}, through JVisaResourceManager and JVisaInstrument.
+ *
+ * @author Peter Froud
+ */
+class SocketSessionTest {
+
+    @Test
+    void queryWithResponseSplitIntoSegments() throws Exception {
+        try (LoopbackScpiServer server = new LoopbackScpiServer(
+                command -> command.equals("*IDN?") ? "ACME,LOOPBACK,1,1\n".getBytes(StandardCharsets.US_ASCII) : null, 2);
+             JVisaResourceManager resourceManager = new JVisaResourceManager(new JVisaTcpipBackend());
+             JVisaInstrument instrument = resourceManager.openInstrument(server.getResourceName())) {
+            instrument.setWriteTerminator("\n");
+            instrument.setReadTerminationCharacterEnabled(true);
+            instrument.write("*RST");
+            assertEquals("ACME,LOOPBACK,1,1", instrument.queryString("*IDN?"));
+            assertEquals("ACME,LOOPBACK,1,1", instrument.queryString("*IDN?"));
+        }
+    }
+
+    @Test
+    void closedHandleIsNotReused() throws Exception {
+        try (LoopbackScpiServer server = new LoopbackScpiServer(SocketSessionTest::respond, 64)) {
+            final JVisaTcpipBackend backend = new JVisaTcpipBackend();
+            final int[] session = new int[1];
+            assertEquals(0, backend.viOpenDefaultRM(session));
+            final int resourceManagerSession = session[0];
+            assertEquals(0, backend.viOpen(resourceManagerSession, server.getResourceName(), 0, 1000, session));
+            final int closedSession = session[0];
+            assertEquals(0, backend.viClose(closedSession));
+
+            assertEquals(0, backend.viOpen(resourceManagerSession, server.getResourceName(), 0, 1000, session));
+            final int openSession = session[0];
+            assertNotEquals(closedSession, openSession);
+            assertEquals(JVisaLibrary.VI_ERROR_INV_OBJECT, backend.viClose(closedSession));
+            assertEquals(0, backend.viClose(openSession));
+            assertEquals(0, backend.viClose(resourceManagerSession));
+        }
+    }
+
+    private static byte[] respond(String command) {
+        switch (command) {
+            case "*IDN?":
+                return "ACME,LOOPBACK,1,1\n".getBytes(StandardCharsets.US_ASCII);
+            case "BLOCK?":
+                return "#15ABCDE\n".getBytes(StandardCharsets.US_ASCII);
+            case "LINES?":
+                // The last byte of the data is the termination character.
+                return "#13AB\n\n".getBytes(StandardCharsets.US_ASCII);
+            default:
+                return null;
+        }
+    }
+
+    @Test
+    void binaryBlockWithoutTerminationCharacter() throws Exception {
+        try (LoopbackScpiServer server = new LoopbackScpiServer(SocketSessionTest::respond, 3);
+             JVisaResourceManager resourceManager = new JVisaResourceManager(new JVisaTcpipBackend());
+             JVisaInstrument instrument = resourceManager.openInstrument(server.getResourceName())) {
+            instrument.setWriteTerminator("\n");
+            // A read which asks for more than the response would wait for the timeout.
+            instrument.setTimeout(1000);
+            assertArrayEquals("ABCDE".getBytes(StandardCharsets.US_ASCII), instrument.queryBinaryBlock("BLOCK?"));
+        }
+    }
+
+    @Test
+    void binaryBlockEndingWithTerminationCharacter() throws Exception {
+        try (LoopbackScpiServer server = new LoopbackScpiServer(SocketSessionTest::respond, 3);
+             JVisaResourceManager resourceManager = new JVisaResourceManager(new JVisaTcpipBackend());
+             JVisaInstrument instrument = resourceManager.openInstrument(server.getResourceName())) {
+            instrument.setWriteTerminator("\n");
+            instrument.setReadTerminationCharacterEnabled(true);
+            instrument.setTimeout(1000);
+            assertArrayEquals("AB\n".getBytes(StandardCharsets.US_ASCII), instrument.queryBinaryBlock("LINES?"));
+            assertArrayEquals("ABCDE".getBytes(StandardCharsets.US_ASCII), instrument.queryBinaryBlock("BLOCK?"));
+            assertEquals("ACME,LOOPBACK,1,1", instrument.queryString("*IDN?"));
+        }
+    }
+
+    @Test
+    void binaryBlockToConsumer() throws Exception {
+        try (LoopbackScpiServer server = new LoopbackScpiServer(SocketSessionTest::respond, 3);
+             JVisaResourceManager resourceManager = new JVisaResourceManager(new JVisaTcpipBackend());
+             JVisaInstrument instrument = resourceManager.openInstrument(server.getResourceName())) {
+            instrument.setWriteTerminator("\n");
+            instrument.setReadTerminationCharacterEnabled(true);
+            instrument.setTimeout(1000);
+            final ByteArrayOutputStream received = new ByteArrayOutputStream();
+            final JVisaBinaryBlockConsumer consumer = chunk -> {
+                while (chunk.hasRemaining()) {
+                    received.write(chunk.get());
+                }
+            };
+            assertEquals(3, instrument.queryBinaryBlock("LINES?", consumer));
+            assertArrayEquals("AB\n".getBytes(StandardCharsets.US_ASCII), received.toByteArray());
+            received.reset();
+            assertEquals(5, instrument.queryBinaryBlock("BLOCK?", consumer));
+            assertArrayEquals("ABCDE".getBytes(StandardCharsets.US_ASCII), received.toByteArray());
+            assertEquals("ACME,LOOPBACK,1,1", instrument.queryString("*IDN?"));
+        }
+    }
+
+}
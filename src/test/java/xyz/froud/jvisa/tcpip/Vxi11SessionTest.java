@@ -0,0 +1,102 @@
+/**
+ * @license Copyright 2018-2020 Peter Froud
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package xyz.froud.jvisa.tcpip;
+
+import org.junit.jupiter.api.Test;
+import xyz.froud.jvisa.JVisaLibrary;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Tests Vxi11Session and OncRpcClient against {@link Vxi11StandIn}.
+ *
+ * @author Peter Froud
+ */
+class Vxi11SessionTest {
+
+    private static void write(TcpipSession session, String command) {
+        final byte[] bytes = command.getBytes(StandardCharsets.US_ASCII);
+        final int[] returnCount = new int[1];
+        assertEquals(0, session.write(ByteBuffer.wrap(bytes), bytes.length, returnCount));
+        assertEquals(bytes.length, returnCount[0]);
+    }
+
+    private static String read(TcpipSession session, int expectedStatus) {
+        final ByteBuffer buffer = ByteBuffer.allocate(256);
+        final int[] returnCount = new int[1];
+        assertEquals(expectedStatus, session.read(buffer, buffer.capacity(), returnCount));
+        return new String(buffer.array(), 0, returnCount[0], StandardCharsets.US_ASCII);
+    }
+
+    @Test
+    void queryWithRepliesSplitIntoFragments() throws Exception {
+        // Three-byte fragments split every int and the opaque data between fragments.
+        try (Vxi11StandIn standIn = new Vxi11StandIn(command -> "ACME,VXI11,1,1\n".getBytes(StandardCharsets.US_ASCII), 3);
+             Vxi11Session session = standIn.openSession()) {
+            write(session, "*IDN?\n");
+            assertEquals("ACME,VXI11,1,1\n", read(session, 0));
+        }
+    }
+
+    @Test
+    void readInPiecesEndsWithEnd() throws Exception {
+        final byte[] response = new byte[1000];
+        for (int i = 0; i < response.length; i++) {
+            response[i] = (byte) i;
+        }
+        try (Vxi11StandIn standIn = new Vxi11StandIn(command -> response, 5);
+             Vxi11Session session = standIn.openSession()) {
+            write(session, "DATA?\n");
+            final ByteArrayOutputStream received = new ByteArrayOutputStream();
+            final ByteBuffer buffer = ByteBuffer.allocate(300);
+            final int[] returnCount = new int[1];
+            int status;
+            do {
+                buffer.clear();
+                status = session.read(buffer, buffer.capacity(), returnCount);
+                received.write(buffer.array(), 0, returnCount[0]);
+            } while (status == JVisaLibrary.VI_SUCCESS_MAX_CNT);
+            assertEquals(0, status);
+            assertArrayEquals(response, received.toByteArray());
+        }
+    }
+
+    @Test
+    void replyToTimedOutCallIsSkipped() throws Exception {
+        final AtomicInteger count = new AtomicInteger();
+        try (Vxi11StandIn standIn = new Vxi11StandIn(
+                command -> (count.incrementAndGet() + "\n").getBytes(StandardCharsets.US_ASCII), 7);
+             Vxi11Session session = standIn.openSession()) {
+            assertEquals(0, session.setAttribute(JVisaLibrary.VI_ATTR_TMO_VALUE, 100));
+
+            write(session, "COUNT?\n");
+            standIn.holdNextReadReply();
+            read(session, JVisaLibrary.VI_ERROR_TMO);
+            assertEquals(1, standIn.getAbortCount());
+
+            // The reply to the read which timed out arrives first, with the response to the first query.
+            write(session, "COUNT?\n");
+            assertEquals("2\n", read(session, 0));
+        }
+    }
+
+}
@@ -0,0 +1,324 @@
+/**
+ * @license Copyright 2018-2020 Peter Froud
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package xyz.froud.jvisa.tcpip;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * A VXI-11 instrument on loopback TCP ports, with a portmapper, a core channel, and an abort channel.
+ * <p>
+ * Every reply is split into RPC fragments of FRAGMENT_SIZE bytes, each written separately, so ints and opaque data
+ * are split between fragments and between TCP segments. {@link #holdNextReadReply()} makes the next device_read reply
+ * arrive late, after the reply to the call which follows it, like when a call times out.
+ *
+ * @author Peter Froud
+ * @see <a href="https://www.rfc-editor.org/rfc/rfc5531">RFC 5531</a>
+ */
+final class Vxi11StandIn implements AutoCloseable {
+
+    private static final int LAST_FRAGMENT = 0x80000000;
+
+    private static final int PORTMAPPER_GETPORT = 3;
+    private static final int CREATE_LINK = 10;
+    private static final int DEVICE_WRITE = 11;
+    private static final int DEVICE_READ = 12;
+    private static final int DEVICE_READSTB = 13;
+    private static final int DEVICE_CLEAR = 15;
+    private static final int DESTROY_LINK = 23;
+    private static final int DEVICE_ABORT = 1;
+
+    private static final int FLAG_END = 0x08;
+    private static final int FLAG_TERMCHRSET = 0x80;
+    private static final int REASON_REQCNT = 0x01;
+    private static final int REASON_CHR = 0x02;
+    private static final int REASON_END = 0x04;
+    private static final int ERROR_NONE = 0;
+    private static final int ERROR_OPERATION_NOT_SUPPORTED = 8;
+    private static final int ERROR_IO_TIMEOUT = 15;
+
+    private static final int LINK_ID = 42;
+
+    private final ServerSocket PORTMAPPER_SOCKET;
+    private final ServerSocket CORE_SOCKET;
+    private final ServerSocket ABORT_SOCKET;
+    private final List<Socket> CONNECTIONS = new CopyOnWriteArrayList<>();
+
+    private final Function<String, byte[]> RESPONDER;
+    private final int FRAGMENT_SIZE;
+
+    /**
+     * Responses which haven't been read, each ending with END.
+     */
+    private final Queue<ByteBuffer> RESPONSES = new ArrayDeque<>();
+    private final StringBuilder COMMAND = new StringBuilder();
+
+    private final AtomicBoolean IS_HOLDING_NEXT_READ_REPLY = new AtomicBoolean();
+    private final AtomicInteger ABORT_COUNT = new AtomicInteger();
+
+    /**
+     * A reply which wasn't sent yet, because of holdNextReadReply().
+     */
+    private byte[] heldReply = null;
+
+    /**
+     * @param responder returns the response to a command, or null if it's not a query
+     * @param fragmentSize how many bytes of a reply are in each RPC fragment
+     */
+    Vxi11StandIn(Function<String, byte[]> responder, int fragmentSize) throws IOException {
+        RESPONDER = responder;
+        FRAGMENT_SIZE = fragmentSize;
+        PORTMAPPER_SOCKET = new ServerSocket(0, 8, InetAddress.getLoopbackAddress());
+        CORE_SOCKET = new ServerSocket(0, 8, InetAddress.getLoopbackAddress());
+        ABORT_SOCKET = new ServerSocket(0, 8, InetAddress.getLoopbackAddress());
+        startAcceptThread(PORTMAPPER_SOCKET);
+        startAcceptThread(CORE_SOCKET);
+        startAcceptThread(ABORT_SOCKET);
+    }
+
+    int getPortmapperPort() {
+        return PORTMAPPER_SOCKET.getLocalPort();
+    }
+
+    /**
+     * Opens a session to the stand-in, with its portmapper port.
+     */
+    Vxi11Session openSession() throws IOException {
+        final int[] status = new int[1];
+        final Vxi11Session session = Vxi11Session.open(0, TcpipResourceName.parse("TCPIP0::127.0.0.1::inst0::INSTR"),
+                2000, 1, getPortmapperPort(), status);
+        if (session == null) {
+            throw new IOException("couldn't open the VXI-11 stand-in, status " + status[0]);
+        }
+        return session;
+    }
+
+    /**
+     * The next device_read reply is sent just before the reply to the call after it.
+     */
+    void holdNextReadReply() {
+        IS_HOLDING_NEXT_READ_REPLY.set(true);
+    }
+
+    /**
+     * @return how many device_abort calls arrived on the abort channel
+     */
+    int getAbortCount() {
+        return ABORT_COUNT.get();
+    }
+
+    private void startAcceptThread(ServerSocket serverSocket) {
+        final Thread acceptThread = new Thread(() -> {
+            try {
+                while (true) {
+                    final Socket socket = serverSocket.accept();
+                    socket.setTcpNoDelay(true);
+                    CONNECTIONS.add(socket);
+                    final Thread connectionThread = new Thread(() -> serve(serverSocket, socket), "Vxi11StandIn connection");
+                    connectionThread.setDaemon(true);
+                    connectionThread.start();
+                }
+            } catch (IOException ex) {
+                // closed
+            }
+        }, "Vxi11StandIn");
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+    }
+
+    private void serve(ServerSocket serverSocket, Socket socket) {
+        try (socket) {
+            final DataInputStream input = new DataInputStream(socket.getInputStream());
+            final OutputStream output = socket.getOutputStream();
+            while (true) {
+                final ByteBuffer call = readRecord(input);
+                final int transactionId = call.getInt();
+                call.getInt(); // message type
+                call.getInt(); // RPC version
+                call.getInt(); // program
+                call.getInt(); // version
+                final int procedure = call.getInt();
+                call.getInt(); // credential flavor
+                final int credentialLength = call.getInt();
+                call.position(call.position() + padded(credentialLength));
+                call.getInt(); // verifier flavor
+                final int verifierLength = call.getInt();
+                call.position(call.position() + padded(verifierLength));
+
+                final ByteBuffer results = ByteBuffer.allocate(64 * 1024);
+                final boolean isHeld;
+                synchronized (this) {
+                    if (serverSocket == PORTMAPPER_SOCKET) {
+                        isHeld = false;
+                        results.putInt(procedure == PORTMAPPER_GETPORT ? CORE_SOCKET.getLocalPort() : 0);
+                    } else if (serverSocket == ABORT_SOCKET) {
+                        isHeld = false;
+                        ABORT_COUNT.incrementAndGet();
+                        results.putInt(procedure == DEVICE_ABORT ? ERROR_NONE : ERROR_OPERATION_NOT_SUPPORTED);
+                    } else {
+                        isHeld = procedure == DEVICE_READ && IS_HOLDING_NEXT_READ_REPLY.getAndSet(false);
+                        callCore(procedure, call, results);
+                    }
+                }
+                results.flip();
+                final ByteBuffer reply = ByteBuffer.allocate(24 + results.remaining());
+                reply.putInt(transactionId)
+                        .putInt(1) // reply
+                        .putInt(0) // accepted
+                        .putInt(0).putInt(0) // verifier
+                        .putInt(0) // success
+                        .put(results);
+                if (isHeld) {
+                    heldReply = reply.array();
+                    continue;
+                }
+                if (heldReply != null) {
+                    writeRecord(output, heldReply);
+                    heldReply = null;
+                }
+                writeRecord(output, reply.array());
+            }
+        } catch (IOException ex) {
+            // closed
+        }
+    }
+
+    private void callCore(int procedure, ByteBuffer arguments, ByteBuffer results) {
+        switch (procedure) {
+            case CREATE_LINK:
+                results.putInt(ERROR_NONE).putInt(LINK_ID).putInt(ABORT_SOCKET.getLocalPort()).putInt(1024);
+                break;
+            case DEVICE_WRITE: {
+                arguments.getInt(); // link ID
+                arguments.getInt(); // io_timeout
+                arguments.getInt(); // lock_timeout
+                final int flags = arguments.getInt();
+                final int length = arguments.getInt();
+                final byte[] data = new byte[length];
+                arguments.get(data);
+                COMMAND.append(new String(data, StandardCharsets.US_ASCII));
+                if ((flags & FLAG_END) != 0) {
+                    final byte[] response = RESPONDER.apply(COMMAND.toString().trim());
+                    COMMAND.setLength(0);
+                    if (response != null) {
+                        RESPONSES.add(ByteBuffer.wrap(response));
+                    }
+                }
+                results.putInt(ERROR_NONE).putInt(length);
+                break;
+            }
+            case DEVICE_READ: {
+                arguments.getInt(); // link ID
+                final int requestSize = arguments.getInt();
+                arguments.getInt(); // io_timeout
+                arguments.getInt(); // lock_timeout
+                final int flags = arguments.getInt();
+                final byte terminationCharacter = (byte) arguments.getInt();
+                final ByteBuffer response = RESPONSES.peek();
+                if (response == null) {
+                    results.putInt(ERROR_IO_TIMEOUT).putInt(0).putInt(0);
+                    break;
+                }
+                int length = Math.min(requestSize, response.remaining());
+                int reason = 0;
+                if ((flags & FLAG_TERMCHRSET) != 0) {
+                    for (int i = 0; i < length; i++) {
+                        if (response.get(response.position() + i) == terminationCharacter) {
+                            length = i + 1;
+                            reason = REASON_CHR;
+                            break;
+                        }
+                    }
+                }
+                final byte[] data = new byte[length];
+                response.get(data);
+                if (!response.hasRemaining()) {
+                    RESPONSES.remove();
+                    reason |= REASON_END;
+                } else if (length == requestSize) {
+                    reason |= REASON_REQCNT;
+                }
+                results.putInt(ERROR_NONE).putInt(reason).putInt(length).put(data);
+                results.position(padded(results.position()));
+                break;
+            }
+            case DEVICE_READSTB:
+                results.putInt(ERROR_NONE).putInt(0);
+                break;
+            case DEVICE_CLEAR:
+                RESPONSES.clear();
+                COMMAND.setLength(0);
+                results.putInt(ERROR_NONE);
+                break;
+            case DESTROY_LINK:
+                results.putInt(ERROR_NONE);
+                break;
+            default:
+                results.putInt(ERROR_OPERATION_NOT_SUPPORTED);
+        }
+    }
+
+    private static ByteBuffer readRecord(DataInputStream input) throws IOException {
+        final ByteBuffer record = ByteBuffer.allocate(64 * 1024);
+        while (true) {
+            final int header = input.readInt();
+            final byte[] fragment = new byte[header & ~LAST_FRAGMENT];
+            input.readFully(fragment);
+            record.put(fragment);
+            if ((header & LAST_FRAGMENT) != 0) {
+                return record.flip();
+            }
+        }
+    }
+
+    private void writeRecord(OutputStream output, byte[] record) throws IOException {
+        for (int offset = 0; offset < record.length; offset += FRAGMENT_SIZE) {
+            final int length = Math.min(FRAGMENT_SIZE, record.length - offset);
+            final boolean isLast = offset + length == record.length;
+            output.write(ByteBuffer.allocate(4).putInt((isLast ? LAST_FRAGMENT : 0) | length).array());
+            output.write(record, offset, length);
+            output.flush();
+        }
+    }
+
+    private static int padded(int length) {
+        return (length + 3) & ~3;
+    }
+
+    @Override
+    public void close() throws IOException {
+        PORTMAPPER_SOCKET.close();
+        CORE_SOCKET.close();
+        ABORT_SOCKET.close();
+        for (Socket socket : CONNECTIONS) {
+            socket.close();
+        }
+    }
+
+}
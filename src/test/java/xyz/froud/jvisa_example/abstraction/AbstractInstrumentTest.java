@@ -0,0 +1,232 @@
+/**
+ * @license Copyright 2018-2020 Peter Froud
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package xyz.froud.jvisa_example.abstraction;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import xyz.froud.jvisa.JVisaException;
+import xyz.froud.jvisa.JVisaResourceManager;
+import xyz.froud.jvisa.simulated.JVisaSimulatedBackend;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests the error checks of AbstractInstrument against a StatusModelStandIn.
+ *
+ * @author Peter Froud
+ */
+class AbstractInstrumentTest {
+
+    private static final class TestInstrument extends AbstractInstrument {
+
+        TestInstrument(JVisaResourceManager rm, String visaResourceName) throws InstrumentException {
+            super(rm, visaResourceName);
+        }
+
+        @Override
+        public void set(String command) throws InstrumentException {
+            super.set(command);
+        }
+
+        @Override
+        public void setWithoutCheckingErrorState(String command) throws InstrumentException {
+            super.setWithoutCheckingErrorState(command);
+        }
+    }
+
+    private static final String RESOURCE_NAME = "USB0::0x1234::0x5678::SN1::INSTR";
+
+    private JVisaResourceManager resourceManager;
+    private StatusModelStandIn standIn;
+    private TestInstrument instrument;
+
+    /**
+     * Sent by the constructor.
+     */
+    private List<String> openingMessages;
+
+    @BeforeEach
+    void openInstrument() throws JVisaException, InstrumentException {
+        final JVisaSimulatedBackend backend = new JVisaSimulatedBackend();
+        standIn = new StatusModelStandIn(backend.addInstrument(RESOURCE_NAME));
+        resourceManager = new JVisaResourceManager(backend);
+        instrument = new TestInstrument(resourceManager, RESOURCE_NAME);
+        openingMessages = standIn.takeMessages();
+    }
+
+    @AfterEach
+    void close() throws JVisaException, InstrumentException {
+        instrument.close();
+        resourceManager.close();
+    }
+
+    @Test
+    void statusByteCheckWithoutErrorOnlySendsOpc() throws InstrumentException {
+        instrument.set("VOLT 1");
+        assertEquals(List.of("VOLT 1", "*OPC?"), standIn.takeMessages());
+    }
+
+    @Test
+    void statusByteCheckWaitsForTheCommandToBeExecuted() {
+        final InstrumentException ex = assertThrows(InstrumentException.class, () -> instrument.set("VOLT 99"));
+        assertTrue(ex.getMessage().contains("\"VOLT 99\""), ex.getMessage());
+        assertTrue(ex.getMessage().contains("Data out of range"), ex.getMessage());
+    }
+
+    @Test
+    void checkSystemErrorWaitsForTheCommandToBeExecuted() throws InstrumentException {
+        instrument.setWithoutCheckingErrorState("VOLT 99");
+        final InstrumentException ex = assertThrows(InstrumentException.class, instrument::checkSystemError);
+        assertTrue(ex.getMessage().contains("Data out of range;VOLT"), ex.getMessage());
+    }
+
+    @Test
+    void eventStatusEnableIsLeftAloneByDefault() throws InstrumentException {
+        assertEquals(List.of("*OPC?"), openingMessages);
+        instrument.setWithoutCheckingErrorState("*ESE 1");
+        instrument.set("VOLT 1");
+        instrument.set("CURR 2");
+        assertEquals(1, standIn.getEventStatusEnable());
+        assertEquals(List.of("*ESE 1", "VOLT 1", "*OPC?", "CURR 2", "*OPC?"), standIn.takeMessages());
+    }
+
+    @Test
+    void eventStatusErrorCheckSendsEseOnce() throws InstrumentException {
+        instrument.setEventStatusErrorCheckEnabled(true);
+        instrument.set("VOLT 1");
+        instrument.setEventStatusErrorCheckEnabled(true);
+        instrument.set("CURR 2");
+        assertEquals(AbstractInstrument.ESR_ERROR_BITS, standIn.getEventStatusEnable());
+        assertEquals(List.of("*ESE 60", "*ESR?", "VOLT 1", "*OPC?", "CURR 2", "*OPC?"), standIn.takeMessages());
+    }
+
+    @Test
+    void errorOnlyInEventStatusRegisterIsReported() throws InstrumentException {
+        instrument.setEventStatusErrorCheckEnabled(true);
+        final InstrumentException ex = assertThrows(InstrumentException.class, () -> instrument.set("OUTP ESR"));
+        assertTrue(ex.getMessage().contains("\"OUTP ESR\""), ex.getMessage());
+        assertTrue(ex.getMessage().contains(String.format("ESR 0x%02X", StatusModelStandIn.ESR_DEVICE_DEPENDENT_ERROR)),
+                ex.getMessage());
+    }
+
+    @Test
+    void errorOnlyInEventStatusRegisterIsReportedByCheckSystemError() throws InstrumentException {
+        instrument.setEventStatusErrorCheckEnabled(true);
+        instrument.checkSystemError();
+        instrument.setWithoutCheckingErrorState("OUTP ESR");
+        final InstrumentException ex = assertThrows(InstrumentException.class, instrument::checkSystemError);
+        assertTrue(ex.getMessage().contains(String.format("ESR is 0x%02X", StatusModelStandIn.ESR_DEVICE_DEPENDENT_ERROR)),
+                ex.getMessage());
+    }
+
+    @Test
+    void textQueryIsUsedWhenStatusByteCheckIsDisabled() throws InstrumentException {
+        instrument.setStatusByteErrorCheckEnabled(false);
+        instrument.set("VOLT 1");
+        assertEquals(List.of("VOLT 1", "system:error?", "*OPC?"), standIn.takeMessages());
+        assertThrows(InstrumentException.class, () -> instrument.set("VOLT 99"));
+    }
+
+    @Test
+    void batchErrorIsBlamedOnTheCommandWhoseHeaderIsInTheError() throws InstrumentException {
+        instrument.setErrorCheckPolicy(ErrorCheckPolicy.END_OF_BATCH);
+        final InstrumentException ex = assertThrows(InstrumentException.class, () -> {
+            try (AbstractInstrument.Batch ignored = instrument.beginBatch()) {
+                instrument.set("VOLT 1");
+                instrument.set("CURR 99");
+                instrument.set("OUTP 1");
+            }
+        });
+        assertTrue(ex.getMessage().startsWith("command \"CURR 99\" caused"), ex.getMessage());
+        assertEquals(List.of("VOLT 1", "CURR 99", "OUTP 1", "*OPC?", "system:error?", "system:error?"),
+                standIn.takeMessages());
+    }
+
+    @Test
+    void batchErrorWithoutHeaderListsEveryCommand() throws InstrumentException {
+        instrument.setErrorCheckPolicy(ErrorCheckPolicy.END_OF_BATCH);
+        final InstrumentException ex = assertThrows(InstrumentException.class, () -> {
+            try (AbstractInstrument.Batch ignored = instrument.beginBatch()) {
+                instrument.set("VOLT 1");
+                instrument.set("CURR 98");
+            }
+        });
+        assertTrue(ex.getMessage().startsWith("one of the commands [VOLT 1, CURR 98] caused"), ex.getMessage());
+    }
+
+    @Test
+    void nestedBatchesAreCheckedWhenTheOutermostIsClosed() throws InstrumentException {
+        instrument.setErrorCheckPolicy(ErrorCheckPolicy.END_OF_BATCH);
+        try (AbstractInstrument.Batch ignored = instrument.beginBatch()) {
+            final AbstractInstrument.Batch inner = instrument.beginBatch();
+            instrument.set("VOLT 1");
+            inner.close();
+            inner.close();
+            assertEquals(List.of("VOLT 1"), standIn.takeMessages());
+            instrument.set("CURR 2");
+            assertEquals(List.of("CURR 2"), standIn.takeMessages());
+        }
+        assertEquals(List.of("*OPC?"), standIn.takeMessages());
+
+        instrument.set("OUTP 1");
+        assertEquals(List.of("OUTP 1", "*OPC?"), standIn.takeMessages());
+    }
+
+    @Test
+    void everyNCommandsChecksOnTheNthCommand() throws InstrumentException {
+        instrument.setErrorCheckPolicy(ErrorCheckPolicy.EVERY_N_COMMANDS);
+        instrument.setErrorCheckInterval(3);
+        instrument.set("VOLT 1");
+        instrument.set("CURR 2");
+        assertEquals(List.of("VOLT 1", "CURR 2"), standIn.takeMessages());
+        instrument.set("OUTP 1");
+        assertEquals(List.of("OUTP 1", "*OPC?"), standIn.takeMessages());
+
+        instrument.set("VOLT 2");
+        instrument.set("VOLT 99");
+        final InstrumentException ex = assertThrows(InstrumentException.class, () -> instrument.set("OUTP 0"));
+        assertTrue(ex.getMessage().startsWith("command \"VOLT 99\" caused"), ex.getMessage());
+        standIn.takeMessages();
+
+        instrument.set("VOLT 3");
+        assertEquals(List.of("VOLT 3"), standIn.takeMessages());
+    }
+
+    @Test
+    void changingPolicyChecksPendingCommands() throws InstrumentException {
+        instrument.setErrorCheckPolicy(ErrorCheckPolicy.EVERY_N_COMMANDS);
+        instrument.set("VOLT 99");
+        assertThrows(InstrumentException.class, () -> instrument.setErrorCheckPolicy(ErrorCheckPolicy.EVERY_COMMAND));
+    }
+
+    @Test
+    void esrErrorBitsPolicyReadsEsrAfterEveryCommand() throws InstrumentException {
+        instrument.setErrorCheckPolicy(ErrorCheckPolicy.ESR_ERROR_BITS);
+        instrument.set("VOLT 1");
+        assertEquals(List.of("*ESR?", "VOLT 1", "*ESR?"), standIn.takeMessages());
+
+        final InstrumentException ex = assertThrows(InstrumentException.class, () -> instrument.set("CURR 99"));
+        assertTrue(ex.getMessage().contains(String.format("\"CURR 99\" set ESR to 0x%02X", StatusModelStandIn.ESR_EXECUTION_ERROR)),
+                ex.getMessage());
+        assertTrue(ex.getMessage().contains("Data out of range;CURR"), ex.getMessage());
+    }
+
+}
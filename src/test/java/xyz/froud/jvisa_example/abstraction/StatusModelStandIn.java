@@ -0,0 +1,143 @@
+/**
+ * @license Copyright 2018-2020 Peter Froud
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package xyz.froud.jvisa_example.abstraction;
+
+import xyz.froud.jvisa.JVisaInstrument;
+import xyz.froud.jvisa.simulated.SimulatedInstrument;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * The IEEE 488.2 status model of an instrument, on top of a SimulatedInstrument: an error queue, the standard event
+ * status register and its enable mask, and the status byte.
+ * <p>
+ * Like a real instrument, a command is only executed when the next query is processed. Until then, its errors don't
+ * show in the status byte.
+ * <p>
+ * A command whose parameter is 99 is out of range. It puts an error which names the command's header in the queue, and
+ * sets the execution error bit. A command whose parameter is 98 does the same, but its error doesn't name a header. A
+ * command whose parameter is ESR only sets the device-dependent error bit.
+ *
+ * @author Peter Froud
+ */
+final class StatusModelStandIn {
+
+    static final int ESR_DEVICE_DEPENDENT_ERROR = 0x08;
+    static final int ESR_EXECUTION_ERROR = 0x10;
+
+    private static final String NO_ERROR = "0,\"No error\"";
+
+    private final SimulatedInstrument INSTRUMENT;
+
+    /**
+     * Every program message unit received, in order.
+     */
+    private final List<String> MESSAGES = new ArrayList<>();
+
+    /**
+     * Commands which were received but not executed yet.
+     */
+    private final List<String> UNEXECUTED_COMMANDS = new ArrayList<>();
+
+    private final Deque<String> ERROR_QUEUE = new ArrayDeque<>();
+
+    private int eventStatus = 0;
+    private int eventStatusEnable = 0;
+
+    StatusModelStandIn(SimulatedInstrument instrument) {
+        INSTRUMENT = instrument;
+        instrument.setDefaultResponder(this::respond);
+    }
+
+    private synchronized String respond(String message) {
+        MESSAGES.add(message);
+        if (!message.endsWith("?")) {
+            UNEXECUTED_COMMANDS.add(message);
+            return null;
+        }
+        executeCommands();
+        final String response;
+        switch (message.toUpperCase(Locale.ROOT)) {
+            case "*OPC?":
+                response = "1";
+                break;
+            case "*ESR?":
+                response = Integer.toString(eventStatus);
+                eventStatus = 0;
+                break;
+            case "*ESE?":
+                response = Integer.toString(eventStatusEnable);
+                break;
+            case "SYSTEM:ERROR?":
+                response = ERROR_QUEUE.isEmpty() ? NO_ERROR : ERROR_QUEUE.removeFirst();
+                break;
+            default:
+                response = "0";
+                break;
+        }
+        updateStatusByte();
+        return response;
+    }
+
+    private void executeCommands() {
+        for (String command : UNEXECUTED_COMMANDS) {
+            final String[] headerAndParameter = command.trim().split("\\s+", 2);
+            final String header = headerAndParameter[0];
+            final String parameter = headerAndParameter.length > 1 ? headerAndParameter[1] : "";
+            if (header.equalsIgnoreCase("*ESE")) {
+                eventStatusEnable = Integer.parseInt(parameter);
+            } else if (parameter.equals("99")) {
+                ERROR_QUEUE.addLast("-222,\"Data out of range;" + header.toUpperCase(Locale.ROOT) + "\"");
+                eventStatus |= ESR_EXECUTION_ERROR;
+            } else if (parameter.equals("98")) {
+                ERROR_QUEUE.addLast("-222,\"Data out of range\"");
+                eventStatus |= ESR_EXECUTION_ERROR;
+            } else if (parameter.equals("ESR")) {
+                eventStatus |= ESR_DEVICE_DEPENDENT_ERROR;
+            }
+        }
+        UNEXECUTED_COMMANDS.clear();
+    }
+
+    private void updateStatusByte() {
+        int statusByte = 0;
+        if (!ERROR_QUEUE.isEmpty()) {
+            statusByte |= JVisaInstrument.STATUS_BYTE_ERROR_QUEUE;
+        }
+        if ((eventStatus & eventStatusEnable) != 0) {
+            statusByte |= JVisaInstrument.STATUS_BYTE_ESB;
+        }
+        INSTRUMENT.setStatusByte(statusByte);
+    }
+
+    /**
+     * @return the program message units received since the last call
+     */
+    synchronized List<String> takeMessages() {
+        final List<String> messages = new ArrayList<>(MESSAGES);
+        MESSAGES.clear();
+        return messages;
+    }
+
+    synchronized int getEventStatusEnable() {
+        return eventStatusEnable;
+    }
+
+}